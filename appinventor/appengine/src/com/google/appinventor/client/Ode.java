@@ -30,6 +30,7 @@ import com.google.appinventor.client.editor.EditorManager;
 import com.google.appinventor.client.editor.FileEditor;
 import com.google.appinventor.client.editor.youngandroid.BlocklyPanel;
 import com.google.appinventor.client.editor.youngandroid.TutorialPanel;
+import com.google.appinventor.client.explorer.commands.BuildCommand;
 import com.google.appinventor.client.explorer.commands.ChainableCommand;
 import com.google.appinventor.client.explorer.commands.CommandRegistry;
 import com.google.appinventor.client.explorer.commands.SaveAllEditorsCommand;
@@ -1517,6 +1518,9 @@ public class Ode implements EntryPoint {
     // Save all unsaved editors.
     editorManager.saveDirtyEditors(null);
 
+    // Nobody will pick up the results of builds that are still running.
+    BuildCommand.cancelAll();
+
     // Not sure if this will get to do its work...
     // We purposely do this after saving dirty
     // editors because saving work is more important then
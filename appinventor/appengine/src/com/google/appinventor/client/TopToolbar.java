@@ -459,7 +459,9 @@ public class TopToolbar extends Composite {
         String target = YoungAndroidProjectNode.YOUNG_ANDROID_TARGET_ANDROID;
         ChainableCommand cmd = new SaveAllEditorsCommand(
             new GenerateYailCommand(
-                new BuildCommand(target, secondBuildserver,
+                // The barcode is scanned to install the app right away, so the build goes ahead
+                // of builds of apps that are only downloaded.
+                new BuildCommand(target, secondBuildserver, true,
                   new ShowProgressBarCommand(target,
                     new WaitForBuildResultCommand(target,
                       new ShowBarcodeCommand(target)), "BarcodeAction"))));
@@ -492,7 +494,7 @@ public class TopToolbar extends Composite {
         String target = YoungAndroidProjectNode.YOUNG_ANDROID_TARGET_ANDROID;
         ChainableCommand cmd = new SaveAllEditorsCommand(
             new GenerateYailCommand(
-                new BuildCommand(target, secondBuildserver,
+                new BuildCommand(target, secondBuildserver, false,
                   new ShowProgressBarCommand(target,
                     new WaitForBuildResultCommand(target,
                       new DownloadProjectOutputCommand(target)), "DownloadAction"))));
@@ -13,11 +13,14 @@ import com.google.appinventor.client.Ode;
 import com.google.appinventor.client.OdeAsyncCallback;
 import com.google.appinventor.client.editor.youngandroid.YaBlocksEditor;
 import com.google.appinventor.client.editor.youngandroid.YailGenerationException;
+import com.google.appinventor.client.explorer.commands.BuildCommand;
 import com.google.appinventor.client.explorer.project.Project;
 import com.google.appinventor.client.output.OdeLog;
 import com.google.appinventor.client.settings.project.ProjectSettings;
-import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
+import com.google.appinventor.shared.rpc.project.ChecksumedSaveFile;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FileSaveResult;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.common.collect.Maps;
 import com.google.gwt.user.client.Command;
@@ -167,6 +170,7 @@ public final class EditorManager {
     ProjectSettings projectSettings = project.getSettings();
     dirtyProjectSettings.remove(projectSettings);
     openProjectEditors.remove(projectId);
+    BuildCommand.cancel(projectId);
   }
 
   /**
@@ -249,12 +253,7 @@ public final class EditorManager {
     }
 
     // Collect the files that need to be saved.
-    List<FileDescriptorWithContent> filesToSave = new ArrayList<FileDescriptorWithContent>();
-    for (FileEditor fileEditor : dirtyFileEditors) {
-      FileDescriptorWithContent fileContent = new FileDescriptorWithContent(
-          fileEditor.getProjectId(), fileEditor.getFileId(), fileEditor.getRawFileContent());
-      filesToSave.add(fileContent);
-    }
+    List<FileEditor> fileEditorsToSave = new ArrayList<FileEditor>(dirtyFileEditors);
     dirtyFileEditors.clear();
 
     // Collect the project settings that need to be saved.
@@ -290,7 +289,7 @@ public final class EditorManager {
     };
 
     // Save all files at once (asynchronously).
-    saveMultipleFilesAtOnce(filesToSave, callAfterSavingCommand, dateHolder);
+    saveMultipleFilesAtOnce(fileEditorsToSave, callAfterSavingCommand, dateHolder);
 
     // Save project settings one at a time (asynchronously).
     for (ProjectSettings projectSettings : projectSettingsToSave) {
@@ -356,65 +355,119 @@ public final class EditorManager {
 
 
   /**
-   * This code used to send the contents of all changed files to the server
-   * in the same RPC transaction. However we are now sending them separately
-   * so that we can have more fine grained control over handling errors that
-   * happen only on one file. In particular, we need to handle the case where
-   * a trivial blocks workspace is attempting to be written over a non-trival
-   * file.
+   * Sends the contents of all changed files to the server in a single RPC,
+   * which writes them with a single batch write per project.
+   *
+   * A file that could not be saved does not stop the others from being
+   * saved. If a trivial blocks workspace was about to be written over a
+   * non-trivial file, the user is asked whether to save it anyway. If a
+   * file was damaged on the way to the server, its editor is marked dirty
+   * again so that it is sent again with the next auto-save.
    *
    * If any unhandled errors occur while saving, the afterSavingFiles
-   * command will not be executed.  If filesWithContent is empty, the
+   * command will not be executed.  If fileEditors is empty, the
    * afterSavingFiles command is called immediately, not
    * asynchronously.
    *
-   * @param filesWithContent  the files that need to be saved
+   * @param fileEditors  the file editors whose files need to be saved
    * @param afterSavingFiles  optional command to be executed after file
    *                          editors are saved.
    */
   private void saveMultipleFilesAtOnce(
-      final List<FileDescriptorWithContent> filesWithContent, final Command afterSavingFiles, final DateHolder dateHolder) {
-    if (filesWithContent.isEmpty()) {
+      final List<FileEditor> fileEditors, final Command afterSavingFiles, final DateHolder dateHolder) {
+    if (fileEditors.isEmpty()) {
       // No files needed saving.
       // Execute the afterSavingFiles command if one was given.
       if (afterSavingFiles != null) {
         afterSavingFiles.execute();
       }
+      return;
+    }
 
-    } else {
-      for (FileDescriptorWithContent fileDescriptor : filesWithContent ) {
-        final long projectId = fileDescriptor.getProjectId();
-        final String fileId = fileDescriptor.getFileId();
-        final String content = fileDescriptor.getContent();
-        Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
-          projectId, fileId, false, content, new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
-            @Override
-            public void onSuccess(Long date) {
-              if (dateHolder.date != 0) {
-                // This sets the project modification time to that of one of
-                // the successful file saves. It doesn't really matter which
-                // file date we use, they will all be close. However it is important
-                // to use some files date because that will be based on the server's
-                // time. If we used the local clients time, then we may be off if the
-                // client's computer's time isn't set correctly.
-                dateHolder.date = date;
-                dateHolder.projectId = projectId;
+    final List<ChecksumedSaveFile> filesToSave = new ArrayList<ChecksumedSaveFile>();
+    try {
+      for (FileEditor fileEditor : fileEditors) {
+        filesToSave.add(new ChecksumedSaveFile(fileEditor.getProjectId(), fileEditor.getFileId(),
+            fileEditor.getRawFileContent()));
+      }
+    } catch (ChecksumedFileException e) {
+      dirtyFileEditors.addAll(fileEditors);
+      ErrorReporter.reportError(MESSAGES.saveErrorMultipleFiles());
+      return;
+    }
+
+    Ode.getInstance().getProjectService().saveFiles(Ode.getInstance().getSessionId(),
+        filesToSave, false,
+        new OdeAsyncCallback<List<FileSaveResult>>(MESSAGES.saveErrorMultipleFiles()) {
+          @Override
+          public void onSuccess(List<FileSaveResult> results) {
+            // The results are in the same order as the files.
+            List<ChecksumedSaveFile> truncatedFiles = new ArrayList<ChecksumedSaveFile>();
+            boolean damaged = false;
+            for (int i = 0; i < results.size(); i++) {
+              FileSaveResult result = results.get(i);
+              switch (result.getStatus()) {
+                case FileSaveResult.SAVED:
+                  // This sets the project modification time to that of one of
+                  // the successful file saves. It doesn't really matter which
+                  // file date we use, they will all be close. However it is important
+                  // to use some files date because that will be based on the server's
+                  // time. If we used the local clients time, then we may be off if the
+                  // client's computer's time isn't set correctly.
+                  if (result.getDate() != 0) {
+                    dateHolder.date = result.getDate();
+                    dateHolder.projectId = result.getProjectId();
+                  }
+                  break;
+                case FileSaveResult.BLOCKS_TRUNCATED:
+                  truncatedFiles.add(filesToSave.get(i));
+                  break;
+                case FileSaveResult.FILE_NOT_FOUND:
+                  // Saving it again would fail the same way.
+                  OdeLog.log("Not saving " + result.getFileId() + ", it is no longer in the project.");
+                  break;
+                default:
+                  OdeLog.log("Saving " + result.getFileId() + " failed, will try again.");
+                  dirtyFileEditors.add(fileEditors.get(i));
+                  damaged = true;
+                  break;
+              }
+            }
+            if (damaged) {
+              // Send the truncated workspaces again too, the user is asked about them then.
+              for (int i = 0; i < results.size(); i++) {
+                if (results.get(i).getStatus() == FileSaveResult.BLOCKS_TRUNCATED) {
+                  dirtyFileEditors.add(fileEditors.get(i));
+                }
               }
+              ErrorReporter.reportError(MESSAGES.saveErrorMultipleFiles());
+              scheduleAutoSaveTimer();
+              return;
+            }
+            if (truncatedFiles.isEmpty()) {
               if (afterSavingFiles != null) {
                 afterSavingFiles.execute();
               }
+              return;
             }
-            @Override
-            public void onFailure(Throwable caught) {
-              // Here is where we handle BlocksTruncatedException
-              if (caught instanceof BlocksTruncatedException) {
-                Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, this);
-              } else {
-                super.onFailure(caught);
-              }
+
+            // Here is where we handle blocks workspaces that would have been truncated
+            final AtomicInteger pendingForcedSaves = new AtomicInteger(truncatedFiles.size());
+            for (final ChecksumedSaveFile file : truncatedFiles) {
+              Ode.getInstance().blocksTruncatedDialog(file.getProjectId(), file.getFileId(),
+                  file.getUncheckedContent(),
+                  new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
+                    @Override
+                    public void onSuccess(Long date) {
+                      dateHolder.date = date;
+                      dateHolder.projectId = file.getProjectId();
+                      if (pendingForcedSaves.decrementAndGet() == 0 && afterSavingFiles != null) {
+                        afterSavingFiles.execute();
+                      }
+                    }
+                  });
             }
-          });
-      }
-    }
+          }
+        });
   }
 }
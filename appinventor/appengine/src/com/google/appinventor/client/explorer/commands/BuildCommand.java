@@ -17,26 +17,38 @@ import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.gwt.http.client.Response;
 import com.google.gwt.i18n.client.DateTimeFormat;
 
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Command for building a target in a project.
  *
  */
 public class BuildCommand extends ChainableCommand {
+  // The builds that the build server accepted and whose result has not arrived yet, by project ID
+  private static final Map<Long, BuildCommand> pendingBuilds = new HashMap<Long, BuildCommand>();
+
   // The build target
   private String target;
 
   // Whether or not to use the second buildserver
   private boolean secondBuildserver = false;
 
+  // Whether the user is waiting for the build to test it on a device
+  private boolean interactive = false;
+
   /**
    * Creates a new build command.
    *
    * @param target the build target
+   * @param interactive whether the user is waiting for the build to test it
+   *                    on a device, so the build server starts it first
    */
-  public BuildCommand(String target, boolean secondBuildserver) {
-    this(target, secondBuildserver, null);
+  public BuildCommand(String target, boolean secondBuildserver, boolean interactive) {
+    this(target, secondBuildserver, interactive, null);
   }
 
   /**
@@ -44,12 +56,16 @@ public class BuildCommand extends ChainableCommand {
    * another ChainableCommand.
    *
    * @param target the build target
+   * @param interactive whether the user is waiting for the build to test it
+   *                    on a device, so the build server starts it first
    * @param nextCommand the command to execute after the build has finished
    */
-  public BuildCommand(String target, boolean secondBuildserver, ChainableCommand nextCommand) {
+  public BuildCommand(String target, boolean secondBuildserver, boolean interactive,
+      ChainableCommand nextCommand) {
     super(nextCommand);
     this.target = target;
     this.secondBuildserver = secondBuildserver;
+    this.interactive = interactive;
   }
 
   @Override
@@ -76,6 +92,7 @@ public class BuildCommand extends ChainableCommand {
         Tracking.trackEvent(Tracking.PROJECT_EVENT, Tracking.PROJECT_SUBACTION_BUILD_YA,
                             node.getName(), getElapsedMillis());
         if (result.succeeded()) {
+          pendingBuilds.put(node.getProjectId(), BuildCommand.this);
           executeNextCommand(node);
         } else {
           // The result is the HTTP response code from the build server.
@@ -115,6 +132,60 @@ public class BuildCommand extends ChainableCommand {
     };
 
     String nonce = ode.generateNonce();
-    ode.getProjectService().build(node.getProjectId(), nonce, target, secondBuildserver, callback);
+    ode.getProjectService().build(node.getProjectId(), nonce, target, secondBuildserver,
+        interactive, callback);
+  }
+
+  /**
+   * Returns whether a build of the given project was started and neither
+   * finished nor was cancelled.
+   *
+   * @param projectId the project ID
+   */
+  public static boolean isPending(long projectId) {
+    return pendingBuilds.containsKey(projectId);
+  }
+
+  /**
+   * Records that the build of the given project has finished, so there is
+   * nothing left to cancel.
+   *
+   * @param projectId the project ID
+   */
+  public static void finished(long projectId) {
+    pendingBuilds.remove(projectId);
+  }
+
+  /**
+   * Asks the build server to stop the build of the given project, if one is
+   * pending, because nobody is going to wait for its result. Cancelling is
+   * best effort: if the request fails the build simply runs to completion,
+   * so failures are not reported to the user.
+   *
+   * @param projectId the project ID
+   */
+  public static void cancel(long projectId) {
+    BuildCommand build = pendingBuilds.remove(projectId);
+    if (build != null) {
+      Ode.getInstance().getProjectService().cancelBuild(projectId, build.target,
+          build.secondBuildserver, new AsyncCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Throwable caught) {
+            }
+          });
+    }
+  }
+
+  /**
+   * Cancels every pending build. This is used when the page is unloaded.
+   */
+  public static void cancelAll() {
+    for (Long projectId : pendingBuilds.keySet().toArray(new Long[0])) {
+      cancel(projectId);
+    }
   }
 }
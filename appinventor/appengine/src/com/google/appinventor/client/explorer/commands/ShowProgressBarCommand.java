@@ -71,6 +71,7 @@ public class ShowProgressBarCommand extends ChainableCommand {
     if (counter<1) {
       projectNode = node;
       minPB = new ProgressBarDialogBox(serviceName, node);
+      minPB.showCancelButton();
       minPB.center();
       executeNextCommand(node);
     }
@@ -83,7 +84,7 @@ public class ShowProgressBarCommand extends ChainableCommand {
         addMessages(node.getName(),result);
         if (result.succeeded()) {
             minPB.hide();
-        } else if (progressBarShow != 2 ) {
+        } else if (progressBarShow != 2 && BuildCommand.isPending(node.getProjectId())) {
           // Build isn't done yet
           Timer timer = new Timer() {
               @Override
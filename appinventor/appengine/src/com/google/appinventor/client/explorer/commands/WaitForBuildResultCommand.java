@@ -83,11 +83,19 @@ public class WaitForBuildResultCommand extends ChainableCommand {
             MESSAGES.buildError()) {
       @Override
       public void onSuccess(RpcResult result) {
+        if (!BuildCommand.isPending(node.getProjectId())) {
+          // The build was cancelled while this request was on its way.
+          executionFailedOrCanceled();
+          return;
+        }
         messagesOutput.addMessages("Waiting for " + getElapsedMillis() / 1000 + " seconds.");
         messagesOutput.addMessages(result.getOutput());
         messagesOutput.addMessages(result.getError());
         Tracking.trackEvent(Tracking.PROJECT_EVENT, Tracking.PROJECT_SUBACTION_BUILD_YA,
                             node.getName(), getElapsedMillis());
+        if (result.getResult() != -1) {
+          BuildCommand.finished(node.getProjectId());
+        }
         if (result.succeeded()) {
           ode.getTopToolbar().updateKeystoreFileMenuButtons();
           executeNextCommand(node);
@@ -127,6 +135,8 @@ public class WaitForBuildResultCommand extends ChainableCommand {
       @Override
       public void onFailure(Throwable caught) {
         super.onFailure(caught);
+        // Nothing will wait for this build any more.
+        BuildCommand.cancel(node.getProjectId());
         executionFailedOrCanceled();
       }
     };
@@ -1,5 +1,6 @@
 package com.google.appinventor.client.explorer.dialogs;
 
+import com.google.appinventor.client.explorer.commands.BuildCommand;
 import com.google.appinventor.client.explorer.commands.MiniProgressBar;
 import com.google.appinventor.client.explorer.commands.ShowProgressBarCommand;
 import com.google.appinventor.shared.rpc.RpcResult;
@@ -24,12 +25,13 @@ public class ProgressBarDialogBox extends DialogBox {
   // 0 means just initialize, 1 means click once, 2 means click twice
   private int progressBarShow = 0;
   private Button dismissButton = new Button(MESSAGES.dismissButton());
+  private Button cancelButton = new Button(MESSAGES.cancelButton());
   private HTML warningLabel;
   private MiniProgressBar mpb = new MiniProgressBar(0, 100, 0);
   private String serviceName;
 
   //constructor
-  public ProgressBarDialogBox(String serviceName, ProjectNode projectNode) {
+  public ProgressBarDialogBox(String serviceName, final ProjectNode projectNode) {
     super(false, true);
     this.serviceName = serviceName;
     setStylePrimaryName("ode-DialogBox");
@@ -50,6 +52,16 @@ public class ProgressBarDialogBox extends DialogBox {
     buttonPanel.setHorizontalAlignment(HorizontalPanel.ALIGN_CENTER);
     dismissButton.setVisible(false); // we don't need the button unless we get an error
 
+    // The cancel button stops the build, so it is only shown while building (see showCancelButton)
+    cancelButton.addClickHandler(new ClickHandler() {
+      @Override
+      public void onClick(ClickEvent event) {
+        hide();
+        BuildCommand.cancel(projectNode.getProjectId());
+      }
+    });
+    cancelButton.setVisible(false);
+
     //warning label
     warningLabel = new HTML("");
     warningLabel.setWordWrap(true);
@@ -62,6 +74,7 @@ public class ProgressBarDialogBox extends DialogBox {
 
     // button panel
     buttonPanel.add(dismissButton);
+    buttonPanel.add(cancelButton);
     buttonPanel.setSize("100%", "24px");
 
     //content panel
@@ -82,9 +95,14 @@ public class ProgressBarDialogBox extends DialogBox {
   }
 
   public void showDismissButton() {
+    cancelButton.setVisible(false);
     dismissButton.setVisible(true);
   }
 
+  public void showCancelButton() {
+    cancelButton.setVisible(true);
+  }
+
   public int getProgressBarShow() {
     return progressBarShow;
   }
@@ -20,6 +20,7 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
@@ -126,10 +127,9 @@ public class DownloadServlet extends OdeServlet {
         // project in the export
         boolean includeYail = userInfoProvider.getIsAdmin();
         boolean includeScreenShots = includeYail;
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
-          projectId, includeProjectHistory, false, zipName, includeYail,
-          includeScreenShots, false, false);
-        downloadableFile = zipFile.getRawFile();
+        fileExporter.exportProjectSourceZip(userId, projectId, includeProjectHistory, false,
+            zipName, includeYail, includeScreenShots, false, false, responseDestination(resp));
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_USER_PROJECT_SOURCE)) {
         if (!userInfoProvider.getIsAdmin()) {
@@ -182,9 +182,10 @@ public class DownloadServlet extends OdeServlet {
         } else {
           zipName = "u" + projectUserId + "_p" + projectId + ".aia";
         }
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(projectUserId,
-          projectId, /* include history*/ true, /* include keystore */ true, zipName, true, true, false, false);
-        downloadableFile = zipFile.getRawFile();
+        fileExporter.exportProjectSourceZip(projectUserId, projectId, /* include history*/ true,
+            /* include keystore */ true, zipName, true, true, false, false,
+            responseDestination(resp));
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
         // Download all project source files as a zip of zips.
@@ -231,4 +232,22 @@ public class DownloadServlet extends OdeServlet {
     out.write(content);
     out.close();
   }
+
+  /*
+   * Sends a zip as it is written, without knowing its length in advance. The response is only
+   * started once there is something to download, so that errors can still be reported.
+   */
+  private static FileExporter.ZipDestination responseDestination(
+      final HttpServletResponse resp) {
+    return new FileExporter.ZipDestination() {
+      @Override
+      public OutputStream open(String zipName) throws IOException {
+        // Set http response information
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setHeader("content-disposition", "attachment; filename=\"" + zipName + "\"");
+        resp.setContentType(StorageUtil.getContentTypeForFilePath(zipName));
+        return resp.getOutputStream();
+      }
+    };
+  }
 }
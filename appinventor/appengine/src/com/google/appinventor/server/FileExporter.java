@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -21,6 +22,20 @@ public interface FileExporter {
 
   public static final String REMIX_INFORMATION_FILE_PATH = "youngandroidproject/remix_history";
 
+  /**
+   * Where an exported zip is written to, for example an HTTP response.
+   */
+  interface ZipDestination {
+    /**
+     * Returns the stream the zip is written to. It is called once it is
+     * known that there are files to export, and the stream is closed when
+     * the zip is complete.
+     *
+     * @param zipName the name of the zip file
+     */
+    OutputStream open(String zipName) throws IOException;
+  }
+
   /**
    * Exports a project output file.
    *
@@ -57,6 +72,31 @@ public interface FileExporter {
     boolean includeScreenShots,
     boolean fatalError, boolean forGallery) throws IOException;
 
+  /**
+   * Exports the project source files as a zip, writing it to the destination
+   * as the files are read instead of keeping it in memory.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param zipName the desired name for the zip, or null for a name to be generated
+   * @param fatalError set to true to cause missing GCS file to throw exception
+   * @param destination where the zip is written to
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files), in which case nothing has been written
+   * @throws IOException if files cannot be written
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore, @Nullable String zipName,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError, boolean forGallery,
+    ZipDestination destination) throws IOException;
+
   /**
    * Exports all of the user's projects' source files as a zip of zips.
    *
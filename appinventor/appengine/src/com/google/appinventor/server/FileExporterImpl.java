@@ -76,6 +76,26 @@ public final class FileExporterImpl implements FileExporter {
     }
   }
 
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    @Nullable String zipName,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError,
+    boolean forGallery,
+    ZipDestination destination) throws IOException {
+    // Stream project source files as a zip.
+    if (storageIo instanceof ObjectifyStorageIo) {
+      return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
+        includeProjectHistory, includeAndroidKeystore, zipName, includeYail, includeScreenShots,
+        forGallery, fatalError, destination);
+    } else {
+      throw new IllegalArgumentException("Objectify only");
+    }
+  }
+
   @Override
   public ProjectSourceZip exportAllProjectsSourceZip(String userId,
       String zipName) throws IOException {
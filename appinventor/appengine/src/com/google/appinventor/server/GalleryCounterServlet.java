@@ -0,0 +1,48 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.GalleryStorageIo;
+import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * GalleryCounterServlet -- Update the gallery from its sharded counters
+ *
+ * This Servlet is called from the task queue manager (part of App
+ * Engine). Like BlobUpgradeServlet, it is restricted to admin users
+ * only, which the task queue manager always is.
+ *
+ * With a "galleryId" parameter, it copies the download and like
+ * counters of that app into the app, so that the gallery lists are
+ * sorted by them. With a "recount" parameter, it counts the active
+ * apps again.
+ *
+ */
+public class GalleryCounterServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(GalleryCounterServlet.class.getName());
+  private final GalleryStorageIo galleryStorageIo = GalleryStorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+
+    String galleryId = req.getParameter("galleryId");
+    if (galleryId != null) {
+      galleryStorageIo.foldAppCounters(Long.parseLong(galleryId));
+    } else if (req.getParameter("recount") != null) {
+      galleryStorageIo.recountActiveApps();
+    } else {
+      LOG.warning("Got a gallery counter request without a task");
+    }
+  }
+}
@@ -9,6 +9,7 @@ package com.google.appinventor.server;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.util.List;
@@ -40,8 +41,6 @@ import com.google.appinventor.shared.rpc.project.GalleryModerationAction;
 import com.google.appinventor.shared.rpc.project.GalleryReportListResult;
 import com.google.appinventor.shared.rpc.project.GalleryService;
 import com.google.appinventor.shared.rpc.project.GallerySettings;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
-import com.google.appinventor.shared.rpc.project.RawFile;
 
 /**
  * The implementation of the RPC service which runs on the server.
@@ -494,32 +493,28 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
     // build the aia file name using the ai project name and code stolen
     // from DownloadServlet to normalize...
     String aiaName = StringUtils.normalizeForFilename(projectName) + ".aia";
-    // grab the data for the aia file using code from DownloadServlet
-    RawFile aiaFile = null;
-    byte[] aiaBytes= null;
-    ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
-      projectId, true, false, aiaName, false, false, false, true);
-    aiaFile = zipFile.getRawFile();
-    aiaBytes = aiaFile.getContent();
-    LOG.log(Level.INFO, "aiaFile numBytes:"+aiaBytes.length);
-    // now stick the aia file into the gcs
-
     //String galleryKey = GalleryApp.getSourceKey(galleryId);//String.valueOf(galleryId);
     GallerySettings settings = loadGallerySettings();
     String galleryKey = settings.getSourceKey(galleryId);
     // setup cloud
-    GcsService gcsService = GcsServiceFactory.createGcsService();
+    final GcsService gcsService = GcsServiceFactory.createGcsService();
 
     //GcsFilename filename = new GcsFilename(GalleryApp.GALLERYBUCKET, galleryKey);
-    GcsFilename filename = new GcsFilename(settings.getBucket(), galleryKey);
+    final GcsFilename filename = new GcsFilename(settings.getBucket(), galleryKey);
 
-    GcsFileOptions options = new GcsFileOptions.Builder().mimeType("application/zip")
+    final GcsFileOptions options = new GcsFileOptions.Builder().mimeType("application/zip")
       .acl("public-read").cacheControl("no-cache").addUserMetadata("title", aiaName).build();
-    GcsOutputChannel writeChannel = gcsService.createOrReplace(filename, options);
-    writeChannel.write(ByteBuffer.wrap(aiaBytes));
-
-    // Now finalize
-    writeChannel.close();
+    // grab the data for the aia file using code from DownloadServlet, and stick it into the gcs
+    // as it is written. The file is finalized when the zip is complete.
+    int fileCount = fileExporter.exportProjectSourceZip(userId, projectId, true, false, aiaName,
+        false, false, false, true, new FileExporter.ZipDestination() {
+          @Override
+          public OutputStream open(String zipName) throws IOException {
+            GcsOutputChannel writeChannel = gcsService.createOrReplace(filename, options);
+            return Channels.newOutputStream(writeChannel);
+          }
+        });
+    LOG.log(Level.INFO, "aiaFile numFiles:" + fileCount);
   }
   /**
    * delete aia file based on given gallery id
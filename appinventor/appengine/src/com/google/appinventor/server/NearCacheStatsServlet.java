@@ -0,0 +1,41 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * NearCacheStatsServlet -- Show the near cache statistics
+ *
+ * Shows the hit and miss counts of the caches that the storage layer
+ * keeps in front of memcache. Like the appstats pages, it is restricted
+ * to admin users only.
+ *
+ * The near caches are private to each instance, so the counts are
+ * those of whichever instance answers the request, since it started.
+ *
+ */
+public class NearCacheStatsServlet extends OdeServlet {
+  private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    resp.setContentType("text/plain; charset=utf-8");
+    PrintWriter out = resp.getWriter();
+    for (Map.Entry<String, String> stats : storageIo.getNearCacheStats().entrySet()) {
+      out.println(stats.getKey() + ": " + stats.getValue());
+    }
+  }
+}
@@ -21,8 +21,10 @@ import com.google.appinventor.shared.rpc.InvalidSessionException;
 import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
+import com.google.appinventor.shared.rpc.project.ChecksumedSaveFile;
 import com.google.appinventor.shared.rpc.project.FileDescriptor;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FileSaveResult;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.ProjectService;
@@ -42,7 +44,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -495,6 +500,61 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
     return date;
   }
 
+  /**
+   * Saves the contents of multiple files, with a single write per project.
+   *
+   * @param sessionId session id
+   * @param files  the files to save, with their contents and checksums
+   * @param force  whether to write trivial (empty) blocks workspaces over
+   *               non-trivial ones
+   * @return  the result of saving each file, in the order of {@code files}
+   */
+  @Override
+  public List<FileSaveResult> saveFiles(String sessionId, List<ChecksumedSaveFile> files,
+      boolean force) throws InvalidSessionException {
+    validateSessionId(sessionId);
+    final String userId = userInfoProvider.getUserId();
+    FileSaveResult[] results = new FileSaveResult[files.size()];
+
+    // Group the files by project, leaving out the ones that were damaged on the way
+    Map<Long, Map<String, String>> filesByProject = new LinkedHashMap<Long, Map<String, String>>();
+    for (int i = 0; i < files.size(); i++) {
+      ChecksumedSaveFile file = files.get(i);
+      long projectId = file.getProjectId();
+      try {
+        String content = file.getContent();
+        Map<String, String> projectFiles = filesByProject.get(projectId);
+        if (projectFiles == null) {
+          projectFiles = new LinkedHashMap<String, String>();
+          filesByProject.put(projectId, projectFiles);
+        }
+        projectFiles.put(file.getFileId(), content);
+      } catch (ChecksumedFileException e) {
+        LOG.log(Level.WARNING, "Not saving " + file.getFileId() + " of project " + projectId +
+            ": " + e.getMessage());
+        results[i] = new FileSaveResult(projectId, file.getFileId(),
+            FileSaveResult.CHECKSUM_MISMATCH, 0);
+      }
+    }
+
+    for (Map.Entry<Long, Map<String, String>> entry : filesByProject.entrySet()) {
+      long projectId = entry.getKey();
+      Map<String, Integer> failed = new HashMap<String, Integer>();
+      long date = getProjectRpcImpl(userId, projectId).saveFiles(userId, projectId,
+          entry.getValue(), force, failed);
+      for (int i = 0; i < results.length; i++) {
+        ChecksumedSaveFile file = files.get(i);
+        if (results[i] == null && file.getProjectId() == projectId) {
+          Integer status = failed.get(file.getFileId());
+          results[i] = status != null
+              ? new FileSaveResult(projectId, file.getFileId(), status, 0)
+              : new FileSaveResult(projectId, file.getFileId(), FileSaveResult.SAVED, date);
+        }
+      }
+    }
+    return Lists.newArrayList(results);
+  }
+
   @Override
   public RpcResult screenshot(String sessionId, long projectId, String fileId, String content)
     throws InvalidSessionException {
@@ -509,15 +569,17 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
    *
    * @param projectId  project ID
    * @param target  build target (optional, implementation dependent)
+   * @param interactive  whether the user is waiting for the build to test it on a device
    *
    * @return  results of build
    */
   @Override
-  public RpcResult build(long projectId, String nonce, String target, boolean secondBuildserver) {
+  public RpcResult build(long projectId, String nonce, String target, boolean secondBuildserver,
+      boolean interactive) {
     // Dispatch
     final String userId = userInfoProvider.getUserId();
     return getProjectRpcImpl(userId, projectId).build(
-      userInfoProvider.getUser(), projectId, nonce, target, secondBuildserver);
+      userInfoProvider.getUser(), projectId, nonce, target, secondBuildserver, interactive);
   }
 
   /**
@@ -539,6 +601,21 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
       userInfoProvider.getUser(), projectId, target);
   }
 
+  /**
+   * Cancels a build of the project that the client is no longer waiting for.
+   *
+   * @param projectId  project ID
+   * @param target  build target (optional, implementation dependent)
+   * @param secondBuildserver  whether the build was sent to the second buildserver
+   */
+  @Override
+  public void cancelBuild(long projectId, String target, boolean secondBuildserver) {
+    // Dispatch
+    final String userId = userInfoProvider.getUserId();
+    getProjectRpcImpl(userId, projectId).cancelBuild(
+      userInfoProvider.getUser(), projectId, target, secondBuildserver);
+  }
+
   /*
    * Write the serialized response out to stdout. This is a very unusual thing
    * to do, but it allows us to create a static file version of the response
@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -293,6 +294,27 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the contents of multiple files of a project at once.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param files  map of file IDs to the content to be saved
+   * @param force  whether to write trivial (empty) blocks workspaces over
+   *               non-trivial ones
+   * @param failed  receives the IDs of the files that were not saved, each with
+   *                the {@link com.google.appinventor.shared.rpc.project.FileSaveResult}
+   *                status that says why
+   * @return modification date for project, or 0 if no file was saved
+   *
+   * @see com.google.appinventor.shared.rpc.project.ProjectService#saveFiles(String, List, boolean)
+   */
+  public long saveFiles(String userId, long projectId, Map<String, String> files, boolean force,
+      Map<String, Integer> failed) {
+    return storageIo.uploadFiles(projectId, userId, files, StorageUtil.DEFAULT_CHARSET, force,
+        failed);
+  }
+
   /**
    * Saves a screenshot of a current blocks editor. This is called from the client side
    * whenever the user leaves a blocks editor. The data is shipped to us in base64 encoding
@@ -323,10 +345,12 @@ public abstract class CommonProjectService {
    * @param nonce -- random string used to find finished APK
    * @param target  build target (optional, implementation dependent)
    * @param secondBuildserver use second buildserver
+   * @param interactive  whether the user is waiting for the build to test it on a device
    *
    * @return  build results
    */
-  public abstract RpcResult build(User user, long projectId, String nonce, String target, boolean secondBuildserver);
+  public abstract RpcResult build(User user, long projectId, String nonce, String target,
+    boolean secondBuildserver, boolean interactive);
 
   /**
    * Gets the result of a build command for the project.
@@ -341,6 +365,17 @@ public abstract class CommonProjectService {
    */
   public abstract RpcResult getBuildResult(User user, long projectId, String target);
 
+  /**
+   * Cancels a build of the project that nobody is waiting for any more.
+   *
+   * @param user the User that owns the {@code projectId}.
+   * @param projectId  project id of the build
+   * @param target  build target (optional, implementation dependent)
+   * @param secondBuildserver  whether the build was sent to the second buildserver
+   */
+  public abstract void cancelBuild(User user, long projectId, String target,
+    boolean secondBuildserver);
+
   public TextFile importMedia(String userId, long projectId, String urlString, boolean save) throws IOException {
     InputStream is = null;
     try {
@@ -28,7 +28,6 @@ import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
@@ -52,6 +51,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -60,6 +60,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -124,6 +125,9 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       Flag.createFlag("appengine.host", "");
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
+  // Size of the chunks the project zip is sent to the build server in
+  private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+
   public YoungAndroidProjectService(StorageIo storageIo) {
     super(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, storageIo);
   }
@@ -639,12 +643,15 @@ public final class YoungAndroidProjectService extends CommonProjectService {
    * @param projectId  project id to be built
    * @param nonce random string used to find resulting APK from unauth context
    * @param target  build target (optional, implementation dependent)
+   * @param secondBuildserver  whether to use the second Build Server
+   * @param interactive  whether the user is waiting for the build to test it on a device, so the
+   *     Build Server starts it before other builds that are waiting for a build slot
    *
    * @return an RpcResult reflecting the call to the Build Server
    */
   @Override
   public RpcResult build(User user, long projectId, String nonce, String target,
-    boolean secondBuildserver) {
+    boolean secondBuildserver, boolean interactive) {
     String userId = user.getUserId();
     String projectName = storageIo.getProjectName(userId, projectId);
     String outputFileDir = BUILD_FOLDER + '/' + target;
@@ -660,45 +667,28 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    BuildServerUpload upload = null;
     try {
       buildServerUrl = new URL(getBuildServerUrlStr(
           user.getUserEmail(),
           userId,
           projectId,
           secondBuildserver,
+          interactive,
           outputFileDir));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
+      // The project zip is sent as it is read from storage, with chunked transfer encoding, so
+      // it is never held in memory and its size does not need to be known in advance. The
+      // build server checks the zip as it receives it.
+      connection.setChunkedStreamingMode(UPLOAD_CHUNK_SIZE);
 
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+      upload = new BuildServerUpload(connection);
       FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
+      fileExporter.exportProjectSourceZip(userId, projectId, false,
           /* includeAndroidKeystore */ true,
-        projectName + ".aia", true, false, true, false);
-      // The code below tests the size of the compressed project before
-      // we send it off to the buildserver. When using URLFetch we know that
-      // this size is limited to 10MB based on Google's documentation.
-      // It isn't clear if this is also enforced in the Java 8 environment
-      // when not using URLFetch. However we are being conservative for now.
-      // Keep in mind that large projects can lead to large APK files which
-      // may not be loadable into many memory restricted devices, so we
-      // may not want to encourage large projects...
-      if (zipFile.getContent().length > 10*1024*1024) { // 10 Megabyte size limit...
-        int zipFileLength = zipFile.getContent().length;
-        String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
-        RuntimeException exception = new RuntimeException(
-            "Sorry, can't package projects larger than 10Mb."
-            + " Yours is " + lengthMbs + "MB.");
-        CrashReport.createAndLogError(LOG, null,
-            buildErrorMsg("RuntimeException", buildServerUrl, userId, projectId),
-            exception);
-        return new RpcResult(false, "", exception.getMessage());
-      }
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
+        projectName + ".aia", true, false, true, false, upload);
 
       int responseCode = 0;
       responseCode = connection.getResponseCode();
@@ -752,12 +742,12 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile == null ? -1 : zipFile.getContent().length;
+      long zipFileLength = upload == null ? -1 : upload.getBytesSent();
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
           "Sorry, can't package projects larger than 5MB."
-          + " Yours is " + lengthMbs + "MB.", e);
+          + " Yours is at least " + lengthMbs + "MB.", e);
       }
       CrashReport.createAndLogError(LOG, null,
           buildErrorMsg("IOException", buildServerUrl, userId, projectId), wrappedException);
@@ -770,13 +760,13 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       // In particular, we often see RequestTooLargeException (if the zip is too
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
-      if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+      if (e instanceof ApiProxy.RequestTooLargeException && upload != null) {
+        long zipFileLength = upload.getBytesSent();
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
           wrappedException = new IllegalArgumentException(
               "Sorry, can't package projects larger than 5MB."
-              + " Yours is " + lengthMbs + "MB.", e);
+              + " Yours is at least " + lengthMbs + "MB.", e);
         } else {
           wrappedException = new IllegalArgumentException(
               "Sorry, project was too large to package (" + zipFileLength + " bytes)");
@@ -789,6 +779,61 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     return new RpcResult(true, "Building " + projectName, "");
   }
 
+  /**
+   * Asks the Build Server to stop building the given user's project, so that a build that the
+   * client abandoned does not keep a build slot. The Build Server finds the build by user and
+   * main class, the same way it finds a build to replace when a newer one arrives.
+   *
+   * @param user the User that owns the {@code projectId}.
+   * @param projectId  project id of the build
+   * @param target  build target (optional, implementation dependent)
+   * @param secondBuildserver  whether the build was sent to the second Build Server
+   */
+  @Override
+  public void cancelBuild(User user, long projectId, String target, boolean secondBuildserver) {
+    String userId = user.getUserId();
+    String projectProperties;
+    try {
+      projectProperties = storageIo.downloadFile(userId, projectId,
+          PROJECT_PROPERTIES_FILE_NAME, StorageUtil.DEFAULT_CHARSET);
+    } catch (RuntimeException e) {
+      // The project is being deleted, which is one of the reasons to cancel. Without its main
+      // class the build cannot be found, so it is left to finish on its own.
+      LOG.info("Not cancelling build of missing project " + projectId + ": " + e);
+      return;
+    }
+    Properties properties = new Properties();
+    URL cancelUrl = null;
+    try {
+      properties.load(new StringReader(projectProperties));
+      String mainClass = properties.getProperty("main");
+      if (mainClass == null) {
+        return;
+      }
+      cancelUrl = new URL("http://"
+          + (secondBuildserver ? buildServerHost2.get() : buildServerHost.get())
+          + "/buildserver/cancel-build"
+          + "?uname=" + URLEncoder.encode(user.getUserEmail(), "UTF-8")
+          + "&main=" + URLEncoder.encode(mainClass, "UTF-8"));
+      HttpURLConnection connection = (HttpURLConnection) cancelUrl.openConnection();
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.setFixedLengthStreamingMode(0);
+      connection.getOutputStream().close();
+      // A 404 only means that the build had already finished. Either way the response is read
+      // to the end so that App Engine can reuse the connection (see build above).
+      if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+        readContent(connection.getInputStream());
+      } else {
+        readContent(connection.getErrorStream());
+      }
+    } catch (IOException e) {
+      // The build will still finish on its own, so this is not worth failing the call for.
+      LOG.warning("Request to cancel build failed, user=" + userId + ", project=" + projectId
+          + ", cancel URL is " + cancelUrl + ": " + e);
+    }
+  }
+
   String buildErrorMsg(String exceptionName, URL buildURL, String userId, long projectId) {
     return "Request to build failed with " + exceptionName 
       + ", user=" + userId + ", project=" + projectId 
@@ -800,7 +845,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
   private String getBuildServerUrlStr(String userName, String userId,
-    long projectId, boolean secondBuildserver, String fileName)
+    long projectId, boolean secondBuildserver, boolean interactive, String fileName)
       throws UnsupportedEncodingException, EncryptionException {
     return "http://" + (secondBuildserver ? buildServerHost2.get() : buildServerHost.get()) +
       "/buildserver/build-all-from-zip-async"
@@ -809,6 +854,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
         ? "&gitBuildVersion="
         + URLEncoder.encode(GitBuildId.getVersion(), "UTF-8")
         : "")
+      + (interactive ? "&interactive=true" : "")
       + "&callback="
       + URLEncoder.encode("http://" + getCurrentHost() + ServerLayout.ODE_BASEURL_NOAUTH
         + ServerLayout.RECEIVE_BUILD_SERVLET + "/"
@@ -896,6 +942,29 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     currentProgress = storageIo.getBuildStatus(user.getUserId(), projectId);
   }
 
+  /*
+   * Sends a project zip to the build server as it is written, counting the bytes sent.
+   */
+  private static class BuildServerUpload implements FileExporter.ZipDestination {
+    private final HttpURLConnection connection;
+    private CountingOutputStream out = null;
+
+    BuildServerUpload(HttpURLConnection connection) {
+      this.connection = connection;
+    }
+
+    @Override
+    public OutputStream open(String zipName) throws IOException {
+      out = new CountingOutputStream(
+          new BufferedOutputStream(connection.getOutputStream(), UPLOAD_CHUNK_SIZE));
+      return out;
+    }
+
+    long getBytesSent() {
+      return out == null ? 0 : out.getCount();
+    }
+  }
+
   // Nicely format floating number using only two decimal places
   private String format(double input) {
     DecimalFormat formatter = new DecimalFormat("###.##");
@@ -36,6 +36,14 @@ public class GalleryAppData {
   int status;
   long lastEmailNotificationTimeStamp;
 
+  // The downloads and likes are counted with sharded counters once this is
+  // true. numLikes and numDownloads (which the lists are sorted by) and the
+  // unread counts are then updated from the counters by a task, within a
+  // minute of a download or like, and countersFoldedAt is when the counters
+  // were last read for that.
+  boolean countersSharded;
+  long countersFoldedAt;
+
   @Indexed
   String userId;
 
@@ -0,0 +1,24 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Unindexed;
+
+/**
+ * One shard of a {@link ShardedCounter}. Each shard is its own entity
+ * group, so shards of the same counter can be written concurrently.
+ *
+ */
+@Unindexed
+public class GalleryCounterShardData {
+  // The name of the counter, "|" and the name of the shard
+  @Id String id;
+  long count;
+  // When the counter was last seeded or reset, in the base shard only
+  long date;
+}
@@ -200,6 +200,18 @@ public interface GalleryStorageIo {
    */
   void salvageGalleryApp(long galleryId);
 
+  /**
+   * copies the download and like counters of a gallery app into the app,
+   * called from the task queue
+   * @param galleryId id of gallery app
+   */
+  void foldAppCounters(long galleryId);
+
+  /**
+   * counts the active gallery apps again, called from the task queue
+   */
+  void recountActiveApps();
+
   /**
    * save AttributionId
    * @param galleryId id of gallery app that was like
@@ -0,0 +1,128 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A small cache private to this instance, kept in front of memcache so that
+ * the hottest reads do not need a memcache round trip.
+ *
+ * <p>Entries expire after a short time, which bounds how long this instance
+ * can see a value that another instance has since changed; memcache is
+ * still the cache that all instances share. Every place that deletes a key
+ * from memcache also invalidates it here.</p>
+ *
+ * <p>Fills are version-stamped: a value read before an invalidation is
+ * not kept, even if it is put after the invalidation.</p>
+ *
+ * @param <V> the type of the values
+ */
+final class NearCache<V> {
+
+  private static final Logger LOG = Logger.getLogger(NearCache.class.getName());
+
+  // The statistics are logged every this many lookups.
+  private static final long STATS_INTERVAL = 10000;
+
+  private final String name;
+  private final Cache<String, V> cache;
+  private final AtomicLong version = new AtomicLong();
+  private final AtomicLong lookups = new AtomicLong();
+
+  /**
+   * Creates a near cache.
+   *
+   * @param name  the name used in the log
+   * @param maxSize  the maximum number of entries
+   * @param ttlMillis  how long an entry is kept after it is put
+   */
+  NearCache(String name, int maxSize, long ttlMillis) {
+    this(name, maxSize, ttlMillis, Ticker.systemTicker());
+  }
+
+  NearCache(String name, int maxSize, long ttlMillis, Ticker ticker) {
+    this.name = name;
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .ticker(ticker)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns the cached value for a key, or {@code null}.
+   */
+  V get(String key) {
+    V value = cache.getIfPresent(key);
+    if (lookups.incrementAndGet() % STATS_INTERVAL == 0) {
+      LOG.info(name + " near cache: " + getStats());
+    }
+    return value;
+  }
+
+  /**
+   * Returns the version to pass to {@link #put} for a value about to be read
+   * from memcache or the datastore.
+   */
+  long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Caches a value, unless a key was invalidated since {@code readVersion}
+   * was obtained.
+   */
+  void put(String key, V value, long readVersion) {
+    if (version.get() != readVersion) {
+      return;
+    }
+    cache.put(key, value);
+    // An invalidation may have happened between the check and the put above. It bumps the
+    // version before it removes the key, so either it removed this value or it is seen here.
+    if (version.get() != readVersion) {
+      cache.invalidate(key);
+    }
+  }
+
+  /**
+   * Drops a key.
+   */
+  void invalidate(String key) {
+    version.incrementAndGet();
+    cache.invalidate(key);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  long getHitCount() {
+    return cache.stats().hitCount();
+  }
+
+  long getMissCount() {
+    return cache.stats().missCount();
+  }
+
+  /**
+   * Returns the hit, miss and eviction counts and the number of entries, for
+   * the log and the near cache statistics page.
+   */
+  String getStats() {
+    CacheStats stats = cache.stats();
+    return stats.hitCount() + " hits, " + stats.missCount() + " misses, " +
+        stats.evictionCount() + " evictions, " + cache.size() + " entries";
+  }
+}
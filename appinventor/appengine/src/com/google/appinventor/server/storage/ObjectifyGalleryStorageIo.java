@@ -13,6 +13,9 @@ import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.GalleryEmail;
 import com.google.appinventor.server.GallerySearchIndex;
@@ -53,6 +56,18 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   private static final int MAX_JOB_RETRIES = 10;
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
+  // The name of the counter of active gallery apps
+  private static final String ACTIVE_APPS_COUNTER = "activeApps";
+  // How often the download and like counters of an app are copied back into its GalleryAppData
+  private static final long COUNTER_FOLD_INTERVAL = 60*1000;
+  // How often the active apps counter is recounted from the apps, and how often each instance
+  // checks whether that is due
+  private static final long ACTIVE_APPS_RECOUNT_INTERVAL = TWENTYFOURHOURS;
+  private static final long ACTIVE_APPS_CHECK_INTERVAL = 10*60*1000;
+  // The task queue and servlet that fold and recount the counters
+  private static final String COUNTER_QUEUE = "gallerycounters";
+  private static final String COUNTER_TASK_URL = "/gallerycounters";
+
   // Use this class to define the work of a job that can be retried. The
   // "datastore" argument to run() is the Objectify object for this job
   // (created with ObjectifyService.beginTransaction()). Note that all operations
@@ -87,12 +102,20 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     ObjectifyService.register(GalleryAppAttributionData.class);
     ObjectifyService.register(GalleryAppReportData.class);
     ObjectifyService.register(GalleryModerationActionData.class);
+    ObjectifyService.register(GalleryCounterShardData.class);
   }
 
   // we'll need to talk to the StorageIo to get developer names, so...
   private final transient StorageIo storageIo =
       StorageIoInstanceHolder.INSTANCE;
 
+  // Counts the active apps, and the downloads and likes of each app, without
+  // every download or like writing the same entity
+  private final ShardedCounter counters = new ShardedCounter();
+
+  // When this instance last checked whether the active apps counter needs a recount
+  private volatile long activeAppsCheckedAt = 0;
+
   /**
    * creates a new gallery app
    * @param title title of new app
@@ -129,6 +152,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           appData.projectId = projectId;
           appData.userId = userId;
           appData.active = true;
+          appData.countersSharded = true;
           appData.lastEmailNotificationTimeStamp = Email.NO_LAST_EMAIL_NOTIFICATION_ACTIVITY;
           datastore.put(appData); // put the appData in the db so that it gets assigned an id
 
@@ -145,6 +169,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           Key<GalleryAppData> galleryKey = galleryKey(appData.id);
         }
       });
+      counters.increment(ACTIVE_APPS_COUNTER, 1);
 
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
@@ -165,6 +190,46 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     int num = datastore.query(GalleryAppData.class).count();
     return num;
   }
+
+  /**
+   * Returns the number of active gallery apps, from the active apps counter.
+   * The counter is counted from the apps the first time it is read, and
+   * recounted once a day after that, so that it does not drift for long.
+   */
+  private int getNumActiveApps() {
+    long now = System.currentTimeMillis();
+    if (now - activeAppsCheckedAt > ACTIVE_APPS_CHECK_INTERVAL) {
+      long resetDate = counters.getResetDate(ACTIVE_APPS_COUNTER);
+      if (resetDate == 0) {
+        recountActiveApps();
+      } else if (now - resetDate > ACTIVE_APPS_RECOUNT_INTERVAL) {
+        long day = now / ACTIVE_APPS_RECOUNT_INTERVAL;
+        addCounterTask(TaskOptions.Builder.withUrl(COUNTER_TASK_URL)
+            .taskName("recount-" + day)
+            .param("recount", ACTIVE_APPS_COUNTER));
+      }
+      activeAppsCheckedAt = now;
+    }
+    return (int) counters.get(ACTIVE_APPS_COUNTER);
+  }
+
+  /**
+   * Sets the active apps counter to the number of active apps. Apps created
+   * or deactivated while the apps are counted may be missed or counted
+   * twice, until the next recount.
+   */
+  @Override
+  public void recountActiveApps() {
+    Objectify datastore = ObjectifyService.begin();
+    int num = datastore.query(GalleryAppData.class).filter("active", true).count();
+    try {
+      counters.reset(ACTIVE_APPS_COUNTER, num);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, "error recounting the active apps", e);
+    }
+    LOG.info("Recounted the active gallery apps: " + num);
+  }
+
   /**
    * Returns a wrapped class which contains list of most recently
    * updated galleryApps and total number of results in database
@@ -185,7 +250,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       makeGalleryApp(appData, gApp);
       apps.add(gApp);
     }
-    int totalCount = datastore.query(GalleryAppData.class).order("-dateModified").filter("active", true).count();
+    int totalCount = getNumActiveApps();
     return new GalleryAppListResult(apps, totalCount);
   }
   /**
@@ -208,7 +273,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       makeGalleryApp(appData, gApp);
       apps.add(gApp);
     }
-    int totalCount = datastore.query(GalleryAppData.class).order("-numDownloads").filter("active", true).count();
+    int totalCount = getNumActiveApps();
     return new GalleryAppListResult(apps, totalCount);
   }
 
@@ -237,11 +302,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       apps.add(gApp);
     }
 
-    // The line below is a PROBLEM. It is *very expensive*
-    // We either need to keep separate track of the number of apps in the
-    // Gallery, or we need to cache this value somewhere so we are
-    // not computing it all the time!
-    int totalCount = datastore.query(GalleryAppData.class).filter("active", true).count();
+    int totalCount = getNumActiveApps();
     return new GalleryAppListResult(apps, totalCount);
 
   }
@@ -404,17 +465,8 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   public void incrementDownloads(final long galleryId) {
 
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            galleryAppData.numDownloads = galleryAppData.numDownloads + 1;
-            galleryAppData.unreadDownloads = galleryAppData.unreadDownloads + 1;
-            datastore.put(galleryAppData);
-          }
-        }
-      });
+      counters.increment(downloadsCounter(galleryId), 1);
+      scheduleFold(galleryId);
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo", e);
     }
@@ -512,18 +564,24 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     }
     */
     //for now, we only set app to inactive status.
+    final Result<Boolean> deactivated = new Result<Boolean>();
     try {
         runJobWithRetries(new JobRetryHelper() {
           @Override
           public void run(Objectify datastore) {
             // delete the GalleryApp
+            deactivated.t = false;
             GalleryAppData appData = datastore.find(galleryKey(galleryId));
             if(appData != null){
+              deactivated.t = appData.active;
               appData.active = false;
               datastore.put(appData);
             }
           }
         });
+        if (deactivated.t) {
+          counters.increment(ACTIVE_APPS_COUNTER, -1);
+        }
        } catch (ObjectifyException e) {
         throw CrashReport.createAndLogError(LOG, null,"gallery remove error", e);
       }
@@ -604,43 +662,44 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public int increaseLikes(final long galleryId,final String userId) {
-    final Result<Integer> numLikes = new Result<Integer>();
+    final Result<Boolean> liked = new Result<Boolean>();
+    if (ObjectifyService.begin().find(galleryKey(galleryId)) == null) {
+      return 0;
+    }
     try {
+      // The transaction only uses the like entries, so that it does not conflict with
+      // the changes to the app's GalleryAppData.
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            Key<GalleryAppData> galleryKey = galleryKey(galleryId);
+          liked.t = false;
+          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
 
-            // Make sure it isn't already liked (people have subverted the client
-            // based checks!)
-            for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
-              if(likeData.userId.equals(userId)){
-                return;         // We're done, already liked.
-              }
+          // Make sure it isn't already liked (people have subverted the client
+          // based checks!)
+          for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
+            if(likeData.userId.equals(userId)){
+              return;         // We're done, already liked.
             }
-
-            // Forge the like data entry
-            GalleryAppLikeData likeData = new GalleryAppLikeData();
-            likeData.galleryKey = galleryKey;
-            likeData.userId = userId;
-            datastore.put(likeData);
-
-            // Retrieve the current number of likes
-            numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            galleryAppData.numLikes = galleryAppData.numLikes + 1;
-            galleryAppData.unreadLikes = galleryAppData.unreadLikes + 1;
-            datastore.put(galleryAppData);
           }
+
+          // Forge the like data entry
+          GalleryAppLikeData likeData = new GalleryAppLikeData();
+          likeData.galleryKey = galleryKey;
+          likeData.userId = userId;
+          datastore.put(likeData);
+          liked.t = true;
         }
       });
+      // The app's like count is kept in its likes counter rather than in its GalleryAppData
+      if (liked.t) {
+        counters.increment(likesCounter(galleryId), 1);
+        scheduleFold(galleryId);
+      }
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.increaseLike", e);
     }
-    return numLikes.t;
+    return getNumLikes(galleryId);
   }
 
   /**
@@ -652,41 +711,34 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public int decreaseLikes(final long galleryId, final String userId) {
-    final Result<Integer> numLikes = new Result<Integer>();
+    final Result<Integer> removed = new Result<Integer>();
     try {
+      // As in increaseLikes, the transaction only uses the like entries.
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-            for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
-              if(likeData.userId.equals(userId)){
-                datastore.delete(likeData);
-                // break;
-                // We don't break because there might be more then one likeData object for this
-                // person
-              }
-            }
-            numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            if(galleryAppData.numLikes > 0){
-              galleryAppData.numLikes = galleryAppData.numLikes - 1;
-            }
-
-            if (galleryAppData.unreadLikes > 0) {
-              galleryAppData.unreadLikes = galleryAppData.unreadLikes - 1;
-              datastore.put(galleryAppData);
+          removed.t = 0;
+          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
+          for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
+            if(likeData.userId.equals(userId)){
+              datastore.delete(likeData);
+              removed.t++;
+              // break;
+              // We don't break because there might be more then one likeData object for this
+              // person
             }
           }
         }
       });
+      if (removed.t > 0) {
+        counters.increment(likesCounter(galleryId), -removed.t);
+        scheduleFold(galleryId);
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           "error in galleryStorageIo.decreaseLike", e);
     }
-    return numLikes.t;
+    return getNumLikes(galleryId);
   }
 
   /**
@@ -697,22 +749,100 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * @return the num of like
    */
   public int getNumLikes(final long galleryId) {
-    final Result<Integer> num = new Result<Integer>();
+    Objectify datastore = ObjectifyService.begin();
+    GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
+    if (galleryAppData == null) {
+      return 0;
+    }
+    return getNumLikes(galleryAppData);
+  }
+
+  private int getNumLikes(GalleryAppData appData) {
+    if (appData.countersSharded) {
+      return (int) counters.get(likesCounter(appData.id));
+    }
+    return appData.numLikes;
+  }
+
+  private int getNumDownloads(GalleryAppData appData) {
+    if (appData.countersSharded) {
+      return (int) counters.get(downloadsCounter(appData.id));
+    }
+    return appData.numDownloads;
+  }
+
+  /**
+   * Schedules a task that folds the counters of an app into its
+   * GalleryAppData at the end of the current COUNTER_FOLD_INTERVAL. The
+   * task is named after the interval, so every app that was downloaded or
+   * liked gets one fold per interval, however often that happened.
+   *
+   * @param galleryId the id of the gallery app
+   */
+  private void scheduleFold(long galleryId) {
+    long interval = System.currentTimeMillis() / COUNTER_FOLD_INTERVAL;
+    addCounterTask(TaskOptions.Builder.withUrl(COUNTER_TASK_URL)
+        .taskName("fold-" + galleryId + "-" + interval)
+        .param("galleryId", Long.toString(galleryId))
+        .etaMillis((interval + 1) * COUNTER_FOLD_INTERVAL));
+  }
+
+  private void addCounterTask(TaskOptions task) {
+    try {
+      QueueFactory.getQueue(COUNTER_QUEUE).add(task);
+    } catch (TaskAlreadyExistsException e) {
+      // Another request has already scheduled it
+    }
+  }
+
+  /**
+   * Copies the download and like counters of an app into its numDownloads
+   * and numLikes, which the lists are sorted by, and adds what they went up
+   * by to its unread counts.
+   *
+   * <p>The first time this is done for an app that was published before the
+   * counters existed, its counters are seeded with its numDownloads and
+   * numLikes.</p>
+   *
+   * @param galleryId the id of the gallery app
+   */
+  @Override
+  public void foldAppCounters(final long galleryId) {
+    final long now = System.currentTimeMillis();
     try {
+      GalleryAppData appData = ObjectifyService.begin().find(galleryKey(galleryId));
+      if (appData == null) {
+        return;
+      }
+      if (!appData.countersSharded) {
+        // numDownloads and numLikes no longer change until the counters are folded into them
+        counters.seed(downloadsCounter(galleryId), appData.numDownloads);
+        counters.seed(likesCounter(galleryId), appData.numLikes);
+      }
+      final int downloads = (int) counters.count(downloadsCounter(galleryId));
+      final int likes = (int) counters.count(likesCounter(galleryId));
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-          //num.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-          GalleryAppData galleryAppData = datastore.find(galleryKey);
-          num.t = galleryAppData.numLikes;
+          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
+          if (galleryAppData == null || galleryAppData.countersFoldedAt >= now) {
+            return;             // A later fold has already read newer counts
+          }
+          galleryAppData.unreadDownloads = Math.max(0,
+              galleryAppData.unreadDownloads + downloads - galleryAppData.numDownloads);
+          galleryAppData.unreadLikes = Math.max(0,
+              galleryAppData.unreadLikes + likes - galleryAppData.numLikes);
+          galleryAppData.numDownloads = downloads;
+          galleryAppData.numLikes = likes;
+          galleryAppData.countersSharded = true;
+          galleryAppData.countersFoldedAt = now;
+          datastore.put(galleryAppData);
         }
       });
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
-          "error in galleryStorageIo.getNumLike", e);
+          "error in galleryStorageIo.foldAppCounters", e);
     }
-    return num.t;
   }
 
   /**
@@ -755,6 +885,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public void salvageGalleryApp(final long galleryId) {
+    final Result<Integer> numLikes = new Result<Integer>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -782,9 +913,11 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           GalleryAppData galleryAppData = datastore.find(galleryKey);
           galleryAppData.numLikes = num;
           datastore.put(galleryAppData);
+          numLikes.t = num;
           LOG.info("salvage on gallerId:" + galleryId + ", total likes:" + galleryAppData.numLikes);
         }
       });
+      counters.reset(likesCounter(galleryId), numLikes.t);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           "error in galleryStorageIo.salvageGalleryApp", e);
@@ -1087,6 +1220,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   @Override
   public boolean deactivateGalleryApp(final long galleryId) {
     final Result<Boolean> success = new Result<Boolean>();
+    final Result<Boolean> active = new Result<Boolean>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -1099,6 +1233,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
               appData.active = !appData.active;
               datastore.put(appData);
               success.t = true;
+              active.t = appData.active;
               if(appData.active){
                 GalleryApp gApp = new GalleryApp();
                 makeGalleryApp(appData, gApp);
@@ -1109,6 +1244,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
             }
          }
       });
+      if (success.t) {
+        counters.increment(ACTIVE_APPS_COUNTER, active.t ? 1 : -1);
+      }
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.markReportAsResolved", e);
     }
@@ -1302,7 +1440,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     User developer = storageIo.getUser(appData.userId);
     galleryApp.setDeveloperName(developer.getUserName());
     galleryApp.setDeveloperId(appData.userId);
-    galleryApp.setDownloads(appData.numDownloads);
+    galleryApp.setDownloads(getNumDownloads(appData));
     galleryApp.setUnreadDownloads(appData.unreadDownloads);
     galleryApp.setUnreadLikes(appData.unreadLikes);
     galleryApp.setCreationDate(appData.dateCreated);
@@ -1311,7 +1449,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     galleryApp.setMoreInfo(appData.moreInfo);
     galleryApp.setCredit(appData.credit);
 
-    galleryApp.setLikes(getNumLikes(appData.id));
+    galleryApp.setLikes(getNumLikes(appData));
   }
 
   private static String collectGalleryAppErrorInfo(final String galleryAppId) {
@@ -1322,6 +1460,14 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     return new Key<GalleryAppData>(GalleryAppData.class, galleryId);
   }
 
+  private static String downloadsCounter(long galleryId) {
+    return "downloads|" + galleryId;
+  }
+
+  private static String likesCounter(long galleryId) {
+    return "likes|" + galleryId;
+  }
+
   private Key<GalleryAppFeatureData> galleryFeatureKey(long galleryId) {
     return new Key<GalleryAppFeatureData>(GalleryAppFeatureData.class, galleryId);
   }
@@ -1477,8 +1623,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           if(currentTime - galleryAppData.lastEmailNotificationTimeStamp > TWENTYFOURHOURS){
             if(galleryAppData.unreadDownloads + galleryAppData.unreadLikes >= user.getUserEmailFrequency()){
               String title = prepareAppStatsEmailTitle(galleryAppData.title);
-              String body = prepareAppStatsEmailBody(galleryAppData.title, galleryAppData.numDownloads,
-                  getNumLikes(galleryId), currentHost, galleryId);
+              String body = prepareAppStatsEmailBody(galleryAppData.title,
+                  getNumDownloads(galleryAppData), getNumLikes(galleryAppData), currentHost,
+                  galleryId);
               boolean success = new GalleryEmail().sendEmail(adminEmail, user.getUserEmail(), title, body);
               if(success){
                 send.t = true;
@@ -44,6 +44,7 @@ import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.Motd;
 import com.google.appinventor.shared.rpc.Nonce;
 import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.project.FileSaveResult;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
@@ -87,9 +88,13 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -123,6 +128,13 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
+  // Near caches in front of memcache for the reads done by almost every request. They are
+  // private to this instance, so their entries only live for a few seconds.
+  private static final long NEAR_CACHE_TTL = 5 * 1000; // 5 seconds in milliseconds
+  private final NearCache<User> userCache = new NearCache<User>("User", 1000, NEAR_CACHE_TTL);
+  private final NearCache<FileData> fileCache =
+      new NearCache<FileData>("FileData", 1000, NEAR_CACHE_TTL);
+
   private final GcsService gcsService;
 
   private static final String GCS_BUCKET_NAME;
@@ -134,6 +146,11 @@ public class ObjectifyStorageIo implements  StorageIo {
   private final boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
+  // The number of GCS files read ahead of the one being written when a project is exported,
+  // and the size of the blocks they are read in.
+  private static final int EXPORT_PREFETCH_FILES = 4;
+  private static final int EXPORT_BLOCK_SIZE = 64 * 1024;
+
   // Use this class to define the work of a job that can be
   // retried. The "datastore" argument to run() is the Objectify
   // object for this job (created with
@@ -249,11 +266,20 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public User getUser(final String userId, final String email) {
     String cachekey = User.usercachekey + "|" + userId;
-    User tuser = (User) memcache.get(cachekey);
+    long cacheVersion = userCache.getVersion();
+    User tuser = userCache.get(cachekey);
+    boolean inNearCache = tuser != null;
+    if (inNearCache) {
+      tuser = copyUser(tuser);  // Callers may change the user they get
+    } else {
+      tuser = (User) memcache.get(cachekey);
+    }
     if (tuser != null && tuser.getUserTosAccepted() && ((email == null) || (tuser.getUserEmail().equals(email)))) {
       if (tuser.getUserName()==null) {
         setUserName(userId,tuser.getDefaultName());
         tuser.setUserName(tuser.getDefaultName());
+      } else if (!inNearCache) {
+        userCache.put(cachekey, copyUser(tuser), cacheVersion);
       }
       return tuser;
     } else {                    // If not in memcache, or tos
@@ -325,6 +351,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
     memcache.put(cachekey, user, Expiration.byDeltaSeconds(60)); // Remember for one minute
+    userCache.put(cachekey, copyUser(user), cacheVersion);
     // The choice of one minute here is arbitrary. getUser() is called on every authenticated
     // RPC call to the system (out of OdeAuthFilter), so using memcache will save a significant
     // number of calls to the datastore. If someone is idle for more then a minute, it isn't
@@ -334,6 +361,13 @@ public class ObjectifyStorageIo implements  StorageIo {
     return user;
   }
 
+  // The copy made by User.copy() leaves out the password.
+  private static User copyUser(User user) {
+    User copy = user.copy();
+    copy.setPassword(user.getPassword());
+    return copy;
+  }
+
   // Get User from email address alone. This version will create the user
   // if they don't exist
   @Override
@@ -423,6 +457,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           String cachekey = User.usercachekey + "|" + userId;
           memcache.delete(cachekey);  // Flush cached copy prior to update
+          userCache.invalidate(cachekey);
           UserData userData = datastore.find(userKey(userId));
           if (userData != null) {
             userData.name = name;
@@ -444,6 +479,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           String cachekey = User.usercachekey + "|" + userId;
           memcache.delete(cachekey);  // Flush cached copy prior to update
+          userCache.invalidate(cachekey);
           UserData userData = datastore.find(userKey(userId));
           if (userData != null) {
             userData.link = link;
@@ -464,6 +500,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           String cachekey = User.usercachekey + "|" + userId;
           memcache.delete(cachekey);  // Flush cached copy prior to update
+          userCache.invalidate(cachekey);
           UserData userData = datastore.find(userKey(userId));
           if (userData != null) {
             userData.emailFrequency = emailFrequency;
@@ -484,6 +521,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           String cachekey = User.usercachekey + "|" + userId;
           memcache.delete(cachekey);  // Flush cached copy prior to update
+          userCache.invalidate(cachekey);
           UserData userData = datastore.find(userKey(userId));
           if (userData != null) {
             userData.sessionid = sessionId;
@@ -504,6 +542,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           String cachekey = User.usercachekey + "|" + userId;
           memcache.delete(cachekey);  // Flush cached copy prior to update
+          userCache.invalidate(cachekey);
           UserData userData = datastore.find(userKey(userId));
           if (userData != null) {
             userData.password = password;
@@ -1424,6 +1463,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     for (String fileName : fileNames) {
       Key<FileData> key = projectFileKey(projectKey, fileName);
       memcache.delete(key.getString()); // Remove it from memcache (if it is there)
+      fileCache.invalidate(key.getString());
       FileData fd = datastore.find(key);
       if (fd != null) {
         if (fd.role.equals(role)) {
@@ -1552,12 +1592,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
-    final boolean useGCS = useGCSforFile(fileName, content.length);
     final Result<String> oldBlobstoreKey = new Result<String>();
-    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
-        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
-        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
-      :false);
 
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1575,89 +1610,11 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
 
-          // <Screen>.yail files are missing when user converts AI1 project to AI2
-          // instead of blowing up, just create a <Screen>.yail file
-          if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))){
-            fd = createProjectFile(datastore, projectKey(projectId), FileData.RoleEnum.SOURCE, fileName);
-            fd.userId = userId;
-          }
-
-          Preconditions.checkState(fd != null);
-
-          if (fd.userId != null && !fd.userId.equals("")) {
-            if (!fd.userId.equals(userId)) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectUserProjectErrorInfo(userId, projectId),
-                new UnauthorizedAccessException(userId, projectId, null));
-            }
-          }
-
-          if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
-            if (!force) {            // force is true if we *really* want to save it!
-              checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
-            }
-          }
-
-          if (fd.isBlob) {
-            // mark the old blobstore blob for deletion
-           oldBlobstoreKey.t = fd.blobKey;
-          }
-          if (useGCS) {
-            fd.isGCS = true;
-            fd.gcsName = makeGCSfileName(fileName, projectId);
-            try {
-              GcsOutputChannel outputChannel =
-                gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
-              outputChannel.write(ByteBuffer.wrap(content));
-              outputChannel.close();
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-            }
-            // If the content was previously stored in the datastore, clear it out.
-            fd.content = null;
-            fd.isBlob = false;  // in case we are converting from a blob
-            fd.blobstorePath = null;
-          } else {
-            if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
-              try {             // and is now stored in the data store
-                gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
-              }
-              fd.isGCS = false;
-              fd.gcsName = null;
-            }
-            // Note, Don't have to do anything if the file was in the
-            // Blobstore and shrank because the code above (3 lines
-            // into the function) already handles removing the old
-            // contents from the Blobstore.
-            fd.isBlob = false;
-            fd.blobstorePath = null;
-            fd.content = content;
-          }
-          if (considerBackup && !doingConversion) {
-            if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
-              try {
-                String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
-                GcsOutputChannel outputChannel =
-                    gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
-                outputChannel.write(ByteBuffer.wrap(content));
-                outputChannel.close();
-                fd.lastBackup = System.currentTimeMillis();
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
-              }
-            }
-          }
-          // Old file not marked with ownership, mark it now
-          if (fd.userId == null || fd.userId.equals("")) {
-            fd.userId = userId;
-          }
+          fd = writeFileContent(datastore, fd, projectId, fileName, userId, force, content,
+              doingConversion, oldBlobstoreKey);
           datastore.put(fd);
           memcache.put(key.getString(), fd); // Store the updated data in memcache
+          fileCache.invalidate(key.getString());
           modTime.t = updateProjectModDate(datastore, projectId, doingConversion);
         }
 
@@ -1687,6 +1644,219 @@ public class ObjectifyStorageIo implements  StorageIo {
     return modTime.t;
   }
 
+  @Override
+  public long uploadFiles(final long projectId, final String userId,
+      final Map<String, String> files, final String encoding, final boolean force,
+      final Map<String, Integer> failed) {
+    validateGCS();
+    final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, String> file : files.entrySet()) {
+      try {
+        contents.put(file.getKey(), file.getValue().getBytes(encoding));
+      } catch (UnsupportedEncodingException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+            + collectProjectErrorInfo(null, projectId, file.getKey()), e);
+      }
+    }
+    final Result<Long> modTime = new Result<Long>();
+    // Kept across retries, since a failed attempt may already have replaced some of the files.
+    final Set<String> oldBlobstoreKeys = new LinkedHashSet<String>();
+
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        final List<FileData> updatedFiles = new ArrayList<FileData>();
+
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException {
+          updatedFiles.clear();
+          failed.clear();
+          modTime.t = 0L;
+
+          // Look all the files up at once, first in memcache and then in the datastore.
+          Key<ProjectData> projectKey = projectKey(projectId);
+          Map<String, Key<FileData>> keys = new LinkedHashMap<String, Key<FileData>>();
+          for (String fileName : contents.keySet()) {
+            Key<FileData> key = projectFileKey(projectKey, fileName);
+            keys.put(key.getString(), key);
+          }
+          Map<String, Object> cached = memcache.getAll(keys.keySet());
+          List<Key<FileData>> missing = new ArrayList<Key<FileData>>();
+          for (Map.Entry<String, Key<FileData>> entry : keys.entrySet()) {
+            if (cached.get(entry.getKey()) == null) {
+              missing.add(entry.getValue());
+            }
+          }
+          Map<Key<FileData>, FileData> found = missing.isEmpty()
+              ? new HashMap<Key<FileData>, FileData>() : datastore.get(missing);
+
+          Map<String, FileData> updatedCache = new HashMap<String, FileData>();
+          for (Map.Entry<String, byte[]> file : contents.entrySet()) {
+            String fileName = file.getKey();
+            Key<FileData> key = projectFileKey(projectKey, fileName);
+            FileData fd = (FileData) cached.get(key.getString());
+            if (fd == null) {
+              fd = found.get(key);
+            }
+            if (fd == null && !isCreatedOnWrite(fileName)) {
+              // Most likely deleted while its editor was open. Leave it out, but still write
+              // the rest of the files.
+              LOG.log(Level.WARNING, "Not saving missing file " + fileName + " of project "
+                  + projectId);
+              failed.put(fileName, FileSaveResult.FILE_NOT_FOUND);
+              continue;
+            }
+            Result<String> oldBlobstoreKey = new Result<String>();
+            try {
+              fd = writeFileContent(datastore, fd, projectId, fileName, userId, force,
+                  file.getValue(), false, oldBlobstoreKey);
+            } catch (ObjectifyException e) {
+              if (e.getMessage().startsWith("Blocks")) {
+                // Nothing was changed, leave this one out
+                failed.put(fileName, FileSaveResult.BLOCKS_TRUNCATED);
+                continue;
+              }
+              throw e;
+            }
+            if (oldBlobstoreKey.t != null) {
+              oldBlobstoreKeys.add(oldBlobstoreKey.t);
+            }
+            updatedFiles.add(fd);
+            updatedCache.put(key.getString(), fd);
+          }
+
+          if (!updatedFiles.isEmpty()) {
+            datastore.put(updatedFiles);  // batch put
+            memcache.putAll(updatedCache); // Store the updated data in memcache
+            for (String cacheKey : updatedCache.keySet()) {
+              fileCache.invalidate(cacheKey);
+            }
+            modTime.t = updateProjectModDate(datastore, projectId, false);
+          }
+        }
+
+        @Override
+        public void onNonFatalError() {
+          for (FileData fd : updatedFiles) {
+            if (fd.blobKey != null) {
+              oldBlobstoreKeys.add(fd.blobKey);
+            }
+          }
+        }
+      }, false);
+
+      // See uploadRawFile() for why the old blobstore files are deleted outside of the job.
+      // runJobWithRetries() throws when no attempt succeeds, so they are only deleted once the
+      // new contents are stored.
+      for (String oldBlobstoreKey : oldBlobstoreKeys) {
+        deleteBlobstoreFile(oldBlobstoreKey);
+      }
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+    return modTime.t;
+  }
+
+  // <Screen>.yail files are missing when user converts AI1 project to AI2
+  // instead of blowing up, just create a <Screen>.yail file
+  private static boolean isCreatedOnWrite(String fileName) {
+    return fileName.endsWith(".yail") || fileName.endsWith(".png");
+  }
+
+  // Writes new content into the FileData of a project file, and into GCS if that is where
+  // the file is stored. fd is null if the file is not in the datastore yet. The caller puts the
+  // returned FileData into the datastore.
+  private FileData writeFileContent(Objectify datastore, FileData fd, long projectId,
+      String fileName, String userId, boolean force, byte[] content, boolean doingConversion,
+      Result<String> oldBlobstoreKey) throws ObjectifyException {
+    final boolean useGCS = useGCSforFile(fileName, content.length);
+    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
+        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
+        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
+      :false);
+
+    if (fd == null && isCreatedOnWrite(fileName)) {
+      fd = createProjectFile(datastore, projectKey(projectId), FileData.RoleEnum.SOURCE, fileName);
+      fd.userId = userId;
+    }
+
+    Preconditions.checkState(fd != null);
+
+    if (fd.userId != null && !fd.userId.equals("")) {
+      if (!fd.userId.equals(userId)) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+      }
+    }
+
+    if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
+      if (!force) {            // force is true if we *really* want to save it!
+        checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
+      }
+    }
+
+    if (fd.isBlob) {
+      // mark the old blobstore blob for deletion
+     oldBlobstoreKey.t = fd.blobKey;
+    }
+    if (useGCS) {
+      fd.isGCS = true;
+      fd.gcsName = makeGCSfileName(fileName, projectId);
+      try {
+        GcsOutputChannel outputChannel =
+          gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
+        outputChannel.write(ByteBuffer.wrap(content));
+        outputChannel.close();
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+      // If the content was previously stored in the datastore, clear it out.
+      fd.content = null;
+      fd.isBlob = false;  // in case we are converting from a blob
+      fd.blobstorePath = null;
+    } else {
+      if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
+        try {             // and is now stored in the data store
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+        }
+        fd.isGCS = false;
+        fd.gcsName = null;
+      }
+      // Note, Don't have to do anything if the file was in the
+      // Blobstore and shrank because the code above (3 lines
+      // into the function) already handles removing the old
+      // contents from the Blobstore.
+      fd.isBlob = false;
+      fd.blobstorePath = null;
+      fd.content = content;
+    }
+    if (considerBackup && !doingConversion) {
+      if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
+        try {
+          String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
+          GcsOutputChannel outputChannel =
+              gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
+          outputChannel.write(ByteBuffer.wrap(content));
+          outputChannel.close();
+          fd.lastBackup = System.currentTimeMillis();
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
+        }
+      }
+    }
+    // Old file not marked with ownership, mark it now
+    if (fd.userId == null || fd.userId.equals("")) {
+      fd.userId = userId;
+    }
+    return fd;
+  }
+
   protected void deleteBlobstoreFile(String blobKeyString) {
     // It would be nice if there were an AppEngineFile.delete() method but alas there isn't, so we
     // have to get the BlobKey and delete via the BlobstoreService.
@@ -1716,6 +1886,13 @@ public class ObjectifyStorageIo implements  StorageIo {
     return false;
   }
 
+  // Whether the FileData of a file can be kept in the near cache. Only the metadata of files
+  // that are always stored in GCS is kept, as it does not change when another instance
+  // updates the file. Files stored in the datastore carry their content.
+  private boolean isNearCacheable(FileData fd) {
+    return isTrue(fd.isGCS) && fd.content == null && useGCSforFile(fd.fileName, 0);
+  }
+
   // Make a GCS file name
   String makeGCSfileName(String fileName, long projectId) {
     return (projectId + "/" + fileName);
@@ -1733,6 +1910,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
           memcache.delete(fileKey.getString());
+          fileCache.invalidate(fileKey.getString());
           FileData fileData = datastore.find(fileKey);
           if (fileData != null) {
             if (fileData.userId != null && !fileData.userId.equals("")) {
@@ -1809,17 +1987,25 @@ public class ObjectifyStorageIo implements  StorageIo {
     validateGCS();
     final Result<byte[]> result = new Result<byte[]>();
     final Result<FileData> fd = new Result<FileData>();
+    final String cacheKey = projectFileKey(projectKey(projectId), fileName).getString();
+    final long cacheVersion = fileCache.getVersion();
+    fd.t = fileCache.get(cacheKey);
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
-          fd.t = (FileData) memcache.get(fileKey.getString());
-          if (fd.t == null) {
-            fd.t = datastore.find(fileKey);
+      if (fd.t == null) {
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
+            fd.t = (FileData) memcache.get(fileKey.getString());
+            if (fd.t == null) {
+              fd.t = datastore.find(fileKey);
+            }
           }
+        }, false); // Transaction not needed
+        if (fd.t != null && isNearCacheable(fd.t)) {
+          fileCache.put(cacheKey, fd.t, cacheVersion);
         }
-      }, false); // Transaction not needed
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
@@ -1985,6 +2171,54 @@ public class ObjectifyStorageIo implements  StorageIo {
     final boolean includeScreenShots,
     final boolean forGallery,
     final boolean fatalError) throws IOException {
+    final ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    final Result<String> fileName = new Result<String>();
+    Result<String> projectName = new Result<String>();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError,
+        new FileExporter.ZipDestination() {
+          @Override
+          public OutputStream open(String zipName) {
+            fileName.t = zipName;
+            return zipFile;
+          }
+        }, projectName);
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(fileName.t, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    @Nullable String zipName,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean forGallery,
+    boolean fatalError,
+    FileExporter.ZipDestination destination) throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError,
+        destination, new Result<String>());
+  }
+
+  /*
+   * Writes the zip of exportProjectSourceZip to the destination. The zip is written as the
+   * files are read, and files stored in GCS are read up to EXPORT_PREFETCH_FILES files ahead,
+   * so that only a few buffers are needed no matter how large the project is.
+   */
+  private int writeProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    @Nullable String zipName,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    FileExporter.ZipDestination destination,
+    final Result<String> projectName) throws IOException {
     validateGCS();
     final Result<Integer> fileCount = new Result<Integer>();
     fileCount.t = 0;
@@ -1995,14 +2229,9 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
-    out.setComment("Built with MIT App Inventor");
-
     try {
       JobRetryHelper job = new JobRetryHelper() {
         @Override
@@ -2051,87 +2280,78 @@ public class ObjectifyStorageIo implements  StorageIo {
       if (error != null) {
         throw error;
       }
+    } catch (ObjectifyException e) {
+      CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      throw new IOException("Reflecting exception for userid " + userId +
+          " projectId " + projectId + ", original exception " + e.getMessage());
+    } catch (RuntimeException e) {
+      CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      throw new IOException("Reflecting exception for userid " + userId +
+          " projectId " + projectId + ", original exception " + e.getMessage());
+    }
+
+    if (fileData.isEmpty()) {
+      // Nothing has been written to the destination yet.
+      throw new IllegalArgumentException("No files to download");
+    }
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    final ZipOutputStream out = new ZipOutputStream(destination.open(zipName));
+    out.setComment("Built with MIT App Inventor");
+
+    // Channels opened ahead of time for the GCS files, by index in fileData.
+    GcsInputChannel[] prefetched = new GcsInputChannel[fileData.size()];
+    try {
       // Process the file contents outside of the job since we can't read
       // blobs in the job.
-      for (FileData fd : fileData) {
-        fileName = fd.fileName;
-        byte[] data = null;
-        if (fd.isBlob) {
-          try {
-            if (fd.blobKey == null) {
-              throw new BlobReadException("blobKey is null");
-            }
-            data = getBlobstoreBytes(fd.blobKey);
-          } catch (BlobReadException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
+      int prefetchedCount = 0;
+      byte[] buffer = new byte[EXPORT_BLOCK_SIZE];
+      for (int i = 0; i < fileData.size(); i++) {
+        // Start reading the next files from GCS while this one is written.
+        for (; prefetchedCount < Math.min(i + EXPORT_PREFETCH_FILES, fileData.size());
+             prefetchedCount++) {
+          FileData next = fileData.get(prefetchedCount);
+          if (!next.isBlob && isTrue(next.isGCS)) {
+            prefetched[prefetchedCount] = openGcsChannel(next.gcsName);
           }
-        } else if (isTrue(fd.isGCS)) {
-          try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      if (DEBUG) {
-                        LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                      }
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
-            }
+        }
 
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
-              }
-            }
+        FileData fd = fileData.get(i);
+        fileName = fd.fileName;
+        if (!fd.isBlob && isTrue(fd.isGCS)) {
+          GcsInputChannel channel = prefetched[i];
+          prefetched[i] = null;
+          try {
+            copyGcsFile(fd.gcsName, channel, fileName, out, buffer, fatalError);
           } catch (IOException e) {
             throw CrashReport.createAndLogError(LOG, null,
               collectProjectErrorInfo(userId, projectId, fileName), e);
           }
         } else {
-          data = fd.content;
-        }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
+          byte[] data = null;
+          if (fd.isBlob) {
+            try {
+              if (fd.blobKey == null) {
+                throw new BlobReadException("blobKey is null");
+              }
+              data = getBlobstoreBytes(fd.blobKey);
+            } catch (BlobReadException e) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectProjectErrorInfo(userId, projectId, fileName), e);
+            }
+          } else {
+            data = fd.content;
+          }
+          if (data == null) {     // This happens if file creation is interrupted
+            data = new byte[0];
+          }
+          out.putNextEntry(new ZipEntry(fileName));
+          out.write(data, 0, data.length);
+          out.closeEntry();
         }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
-        out.closeEntry();
         fileCount.t++;
       }
       if (projectHistory.t != null) {
@@ -2141,21 +2361,17 @@ public class ObjectifyStorageIo implements  StorageIo {
         out.closeEntry();
         fileCount.t++;
       }
-    } catch (ObjectifyException e) {
-      CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
-      throw new IOException("Reflecting exception for userid " + userId +
-          " projectId " + projectId + ", original exception " + e.getMessage());
     } catch (RuntimeException e) {
       CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
       throw new IOException("Reflecting exception for userid " + userId +
           " projectId " + projectId + ", original exception " + e.getMessage());
-    }
-
-    if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
-      throw new IllegalArgumentException("No files to download");
+    } finally {
+      for (GcsInputChannel channel : prefetched) {
+        if (channel != null) {
+          channel.close();
+        }
+      }
     }
 
     if (includeAndroidKeystore) {
@@ -2187,14 +2403,74 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
 
     out.close();
+    return fileCount.t;
+  }
 
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
+  private GcsInputChannel openGcsChannel(String gcsName) {
+    return gcsService.openPrefetchingReadChannel(new GcsFilename(GCS_BUCKET_NAME, gcsName), 0,
+        EXPORT_BLOCK_SIZE);
+  }
+
+  /*
+   * Copies a file stored in GCS into a zip entry, reading it with the given channel, if any.
+   */
+  private void copyGcsFile(String gcsName, @Nullable GcsInputChannel channel, String fileName,
+      ZipOutputStream out, byte[] buffer, boolean fatalError) throws IOException {
+    int count;
+    boolean npfHappened = false;
+    boolean recovered = false;
+    for (count = 0; count < 5; count++) {
+      if (channel == null) {
+        channel = openGcsChannel(gcsName);
+      }
+      boolean started = false;
+      try {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        int bytesRead = channel.read(byteBuffer);
+        out.putNextEntry(new ZipEntry(fileName));
+        started = true;
+        while (bytesRead != -1) {
+          out.write(buffer, 0, byteBuffer.position());
+          byteBuffer.clear();
+          bytesRead = channel.read(byteBuffer);
+          if (DEBUG) {
+            LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead);
+          }
+        }
+        out.closeEntry();
+        recovered = true;
+        break;        // We got the data, break out of the loop!
+      } catch (NullPointerException | FileNotFoundException e) {
+        // This happens if the object in GCS is non-existent, which would happen
+        // when people uploaded a zero length object. As of this change, we now
+        // store zero length objects into GCS, but there are plenty of older objects
+        // that are missing in GCS. The prefetching channel reports a missing object
+        // with a FileNotFoundException from its first read.
+        if (started) {
+          throw e;
+        }
+        LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + gcsName);
+        npfHappened = true;
+      } finally {
+        channel.close();
+        channel = null;
+      }
+    }
+
+    // report out on how things went above
+    if (npfHappened) {    // We lost at least once
+      if (recovered) {
+        LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + gcsName +
+          " count = " + count);
+      } else {
+        LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + gcsName);
+        if (fatalError) {
+          throw new IOException("FATAL Error reading file from GCS filename = " + gcsName);
+        }
+        out.putNextEntry(new ZipEntry(fileName));
+        out.closeEntry();
+      }
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
   }
 
   @Override
@@ -2636,6 +2912,16 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @VisibleForTesting
+  NearCache<User> getUserCache() {
+    return userCache;
+  }
+
+  @VisibleForTesting
+  NearCache<FileData> getFileCache() {
+    return fileCache;
+  }
+
   @VisibleForTesting
   ProjectData getProject(long projectId) {
     return ObjectifyService.begin().find(projectKey(projectId));
@@ -2941,4 +3227,12 @@ public class ObjectifyStorageIo implements  StorageIo {
       return ival.intValue();
     }
   }
+
+  @Override
+  public Map<String, String> getNearCacheStats() {
+    Map<String, String> stats = new LinkedHashMap<String, String>();
+    stats.put(userCache.getName(), userCache.getStats());
+    stats.put(fileCache.getName(), fileCache.getStats());
+    return stats;
+  }
 }
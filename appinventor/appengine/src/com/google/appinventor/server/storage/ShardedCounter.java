@@ -0,0 +1,248 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyOpts;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A counter spread over several {@link GalleryCounterShardData} entities, so
+ * that it can be incremented much more often than a single entity group
+ * allows.
+ *
+ * <p>An increment updates one shard picked at random. The value of the
+ * counter is the sum of its shards, read with one batch get and kept in
+ * memcache for a short time; increments also update the cached sum, so
+ * most reads do not touch the datastore.</p>
+ *
+ * <p>A sum read from the shards is only cached if no sum is cached yet, so
+ * it never replaces a sum that an increment has already updated. Seeding,
+ * resetting, and incrementing a counter that is not cached, remove the
+ * cached sum and keep a sum read before the change from being cached for a
+ * few seconds.</p>
+ *
+ * <p>Besides the shards that are incremented, a counter has a "base" shard
+ * holding the value it was seeded or reset with, and when. A counter that
+ * was never seeded reads as the sum of its increments.</p>
+ *
+ */
+final class ShardedCounter {
+
+  private static final Logger LOG = Logger.getLogger(ShardedCounter.class.getName());
+
+  // A reset updates all the shards in one cross-group transaction, which can span at
+  // most 25 entity groups.
+  private static final int NUM_SHARDS = 20;
+  private static final String BASE_SHARD = "base";
+  private static final String MEMCACHE_PREFIX = "counter|";
+  private static final int CACHE_EXPIRATION_SECONDS = 60;
+  // Longer than reading all the shards takes.
+  private static final long NO_RE_ADD_MILLIS = 10 * 1000;
+  private static final int MAX_JOB_RETRIES = 10;
+
+  // Work done in a transaction on shards, retried on concurrent modification.
+  private abstract static class ShardJob {
+    abstract void run(Objectify datastore);
+  }
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+  private final Random random = new Random();
+
+  ShardedCounter() {
+    memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+  }
+
+  /**
+   * Adds {@code delta} to a counter.
+   */
+  void increment(String name, final long delta) throws ObjectifyException {
+    final Key<GalleryCounterShardData> key =
+        shardKey(name, Integer.toString(random.nextInt(NUM_SHARDS)));
+    // The cached sum is updated first. Had it been updated after the commit, a sum read from
+    // the shards in between could be cached and counted the increment twice.
+    String cacheKey = cacheKey(name);
+    boolean cached = memcache.increment(cacheKey, delta) != null;
+    try {
+      runInTransaction(new ShardJob() {
+        @Override
+        void run(Objectify datastore) {
+          GalleryCounterShardData shard = datastore.find(key);
+          if (shard == null) {
+            shard = newShard(key);
+          }
+          shard.count += delta;
+          datastore.put(shard);
+        }
+      }, false);
+    } catch (ObjectifyException e) {
+      if (cached) {
+        memcache.increment(cacheKey, -delta);
+      }
+      throw e;
+    }
+    if (!cached) {
+      // A sum read from the shards before the commit would miss this increment.
+      memcache.delete(cacheKey, NO_RE_ADD_MILLIS);
+    }
+  }
+
+  /**
+   * Returns the value of a counter, possibly as cached a short time ago.
+   */
+  long get(String name) {
+    Long cached = (Long) memcache.get(cacheKey(name));
+    if (cached != null) {
+      return cached;
+    }
+    return count(name);
+  }
+
+  /**
+   * Returns the value of a counter read from the datastore, and caches it
+   * unless a value is already cached.
+   */
+  long count(String name) {
+    long sum = 0;
+    for (GalleryCounterShardData shard : ObjectifyService.begin().get(allShardKeys(name)).values()) {
+      sum += shard.count;
+    }
+    memcache.put(cacheKey(name), sum, Expiration.byDeltaSeconds(CACHE_EXPIRATION_SECONDS),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    return sum;
+  }
+
+  /**
+   * Returns when a counter was last seeded or reset, or 0 if it never was.
+   */
+  long getResetDate(String name) {
+    GalleryCounterShardData base = ObjectifyService.begin().find(shardKey(name, BASE_SHARD));
+    return base == null ? 0 : base.date;
+  }
+
+  /**
+   * Sets the base of a counter to {@code base}, unless it has already been
+   * seeded. The counter then reads as {@code base} plus all its increments,
+   * including the ones done before it was seeded.
+   */
+  void seed(String name, final long base) throws ObjectifyException {
+    final Key<GalleryCounterShardData> key = shardKey(name, BASE_SHARD);
+    runInTransaction(new ShardJob() {
+      @Override
+      void run(Objectify datastore) {
+        if (datastore.find(key) == null) {
+          GalleryCounterShardData shard = newShard(key);
+          shard.count = base;
+          shard.date = System.currentTimeMillis();
+          datastore.put(shard);
+        }
+      }
+    }, false);
+    memcache.delete(cacheKey(name), NO_RE_ADD_MILLIS);
+  }
+
+  /**
+   * Sets a counter to {@code value}, dropping all its increments. This is
+   * done in one transaction over all the shards, so an increment is either
+   * dropped with the others or added to {@code value}.
+   */
+  void reset(String name, final long value) throws ObjectifyException {
+    final List<Key<GalleryCounterShardData>> keys = allShardKeys(name);
+    runInTransaction(new ShardJob() {
+      @Override
+      void run(Objectify datastore) {
+        Map<Key<GalleryCounterShardData>, GalleryCounterShardData> shards = datastore.get(keys);
+        GalleryCounterShardData base = shards.get(keys.get(0));
+        if (base == null) {
+          base = newShard(keys.get(0));
+        }
+        base.count = value;
+        base.date = System.currentTimeMillis();
+        List<GalleryCounterShardData> changed = new ArrayList<GalleryCounterShardData>();
+        changed.add(base);
+        for (Key<GalleryCounterShardData> key : keys.subList(1, keys.size())) {
+          GalleryCounterShardData shard = shards.get(key);
+          if (shard != null && shard.count != 0) {
+            shard.count = 0;
+            changed.add(shard);
+          }
+        }
+        datastore.put(changed);
+      }
+    }, true);
+    memcache.delete(cacheKey(name), NO_RE_ADD_MILLIS);
+  }
+
+  /**
+   * Runs a job in a transaction, retrying it if another transaction changed
+   * the same shards. {@code crossGroup} is needed if the job uses more than
+   * one shard.
+   */
+  private void runInTransaction(ShardJob job, boolean crossGroup) throws ObjectifyException {
+    ObjectifyOpts opts = new ObjectifyOpts().setBeginTransaction(true);
+    if (crossGroup) {
+      opts.setTransactionOptions(TransactionOptions.Builder.withXG(true));
+    }
+    for (int tries = 0; tries <= MAX_JOB_RETRIES; tries++) {
+      Objectify datastore = ObjectifyService.factory().begin(opts);
+      try {
+        job.run(datastore);
+        datastore.getTxn().commit();
+        return;
+      } catch (ConcurrentModificationException ex) {
+        LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
+      } finally {
+        if (datastore.getTxn().isActive()) {
+          try {
+            datastore.getTxn().rollback();
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Transaction rollback failed", e);
+          }
+        }
+      }
+    }
+    throw new ObjectifyException("Couldn't update counter shards after max retries.");
+  }
+
+  // The base shard comes first.
+  private static List<Key<GalleryCounterShardData>> allShardKeys(String name) {
+    List<Key<GalleryCounterShardData>> keys = new ArrayList<Key<GalleryCounterShardData>>();
+    keys.add(shardKey(name, BASE_SHARD));
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      keys.add(shardKey(name, Integer.toString(i)));
+    }
+    return keys;
+  }
+
+  private static GalleryCounterShardData newShard(Key<GalleryCounterShardData> key) {
+    GalleryCounterShardData shard = new GalleryCounterShardData();
+    shard.id = key.getName();
+    return shard;
+  }
+
+  private static Key<GalleryCounterShardData> shardKey(String name, String shard) {
+    return new Key<GalleryCounterShardData>(GalleryCounterShardData.class, name + "|" + shard);
+  }
+
+  private static String cacheKey(String name) {
+    return MEMCACHE_PREFIX + name;
+  }
+}
@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appinventor.server.FileExporter;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.Motd;
 import com.google.appinventor.shared.rpc.Nonce;
@@ -21,6 +22,7 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
@@ -489,6 +491,23 @@ public interface StorageIo {
    */
   long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content);
 
+  /**
+   * Uploads several files of a project at once, with a single batch write to
+   * the datastore and a single update of the project modification date.
+   *
+   * @param projectId  project ID
+   * @param userId the user who owns the files
+   * @param files  map of file IDs to file content
+   * @param encoding encoding of content
+   * @param force write files even if they are trivial workspaces
+   * @param failed  receives the IDs of the files that were not written, each
+   *                with the {@link com.google.appinventor.shared.rpc.project.FileSaveResult}
+   *                status that says why; the other files are still written
+   * @return modification date for project, or 0 if no file was written
+   */
+  long uploadFiles(long projectId, String userId, Map<String, String> files, String encoding,
+      boolean force, Map<String, Integer> failed);
+
   /**
    * Deletes a file.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -590,6 +609,29 @@ public interface StorageIo {
     final boolean forGallery,
     final boolean fatalError) throws IOException;
 
+  /**
+   *  Exports project files as a zip archive, writing it to the destination
+   *  as the files are read.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param zipName  the name of the zip file, if a specific one is desired
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param destination  where the zip is written to
+   *
+   * @return  the number of files in the zip
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    @Nullable String zipName,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean forGallery,
+    boolean fatalError,
+    FileExporter.ZipDestination destination) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -706,4 +748,11 @@ public interface StorageIo {
 
   public int getBuildStatus(String userId, long projectId);
 
+  /**
+   * Returns a line of statistics (hits, misses, evictions and size) for each
+   * of the small caches that this instance keeps in front of memcache, keyed
+   * by cache name. The counts only cover the instance that answers.
+   */
+  Map<String, String> getNearCacheStats();
+
 }
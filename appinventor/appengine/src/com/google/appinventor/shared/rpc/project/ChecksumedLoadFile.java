@@ -34,34 +34,31 @@ public class ChecksumedLoadFile implements Serializable {
   private String checksum;
 
   public String getContent() throws ChecksumedFileException {
-    MessageDigest md = null;
-    try {
-      md = MessageDigest.getInstance("MD5");
-      byte [] retval = md.digest(content.getBytes("UTF-8"));
-      String hexval = byteArrayToHexString(retval);
-      if (!hexval.equals(checksum)) {
-        throw new ChecksumedFileException("Checksum doesn't match " + hexval + " " + checksum);
-      }
-      return content;
-    } catch (java.security.NoSuchAlgorithmException e) {
-      throw new ChecksumedFileException(e.toString());
-    } catch (java.io.UnsupportedEncodingException e) { // We need to catch this because it can
-      throw new ChecksumedFileException(e.toString()); // be thrown by the .getBytes() call above
+    String hexval = computeChecksum(content);
+    if (!hexval.equals(checksum)) {
+      throw new ChecksumedFileException("Checksum doesn't match " + hexval + " " + checksum);
     }
+    return content;
   }
 
   public void setContent(String content) throws ChecksumedFileException {
+    this.checksum = computeChecksum(content);
+    this.content = content;
+  }
+
+  /**
+   * Returns the MD5 checksum of file contents, as a hex string.
+   */
+  static String computeChecksum(String content) throws ChecksumedFileException {
     MessageDigest md = null;
     try {
       md = MessageDigest.getInstance("MD5");
       byte [] retval = md.digest(content.getBytes("UTF-8"));
-      String hexval = byteArrayToHexString(retval);
-      this.checksum = hexval;
-      this.content = content;
+      return byteArrayToHexString(retval);
     } catch (java.security.NoSuchAlgorithmException e) {
       throw new ChecksumedFileException(e.toString());
-    } catch (java.io.UnsupportedEncodingException e) {
-      throw new ChecksumedFileException(e.toString());
+    } catch (java.io.UnsupportedEncodingException e) { // We need to catch this because it can
+      throw new ChecksumedFileException(e.toString()); // be thrown by the .getBytes() call above
     }
   }
 
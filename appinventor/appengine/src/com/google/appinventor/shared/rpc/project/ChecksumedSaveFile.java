@@ -0,0 +1,67 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+/**
+ * A file sent from the client to the App Inventor service to be saved,
+ * along with a checksum (MD5) of its contents. This is the counterpart of
+ * {@link ChecksumedLoadFile}: the checksum is computed on the client and
+ * checked on the server, so that a file altered on the way is not saved.
+ *
+ */
+public final class ChecksumedSaveFile extends FileDescriptor {
+
+  // For serialization
+  private static final long serialVersionUID = 3147089120981533264L;
+
+  private String content;
+  private String checksum;
+
+  /**
+   * Default constructor (for serialization only).
+   * Unfortunately this will prevent any fields from being marked as final!
+   */
+  @SuppressWarnings("unused")
+  private ChecksumedSaveFile() {
+  }
+
+  /**
+   * Creates a new descriptor for a file and its content.
+   *
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param content  file content
+   */
+  public ChecksumedSaveFile(long projectId, String fileId, String content)
+      throws ChecksumedFileException {
+    super(projectId, fileId);
+    this.content = content;
+    this.checksum = ChecksumedLoadFile.computeChecksum(content);
+  }
+
+  /**
+   * Returns the content of the file, without checking it.
+   *
+   * @return  file content
+   */
+  public String getUncheckedContent() {
+    return content;
+  }
+
+  /**
+   * Returns the content of the file.
+   *
+   * @return  file content
+   * @throws ChecksumedFileException  if the content does not match its checksum
+   */
+  public String getContent() throws ChecksumedFileException {
+    String hexval = ChecksumedLoadFile.computeChecksum(content);
+    if (!hexval.equals(checksum)) {
+      throw new ChecksumedFileException("Checksum doesn't match " + hexval + " " + checksum);
+    }
+    return content;
+  }
+}
@@ -0,0 +1,73 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+/**
+ * The outcome of saving one file of a batch.
+ *
+ * @see ProjectService#saveFiles(String, java.util.List, boolean)
+ */
+public final class FileSaveResult extends FileDescriptor {
+
+  // For serialization
+  private static final long serialVersionUID = -2873150984468213071L;
+
+  /** The file was saved. */
+  public static final int SAVED = 0;
+
+  /**
+   * The file was not saved because it is a trivial blocks workspace that
+   * would have replaced a non-trivial one.
+   */
+  public static final int BLOCKS_TRUNCATED = 1;
+
+  /** The file was not saved because its content did not match its checksum. */
+  public static final int CHECKSUM_MISMATCH = 2;
+
+  /**
+   * The file was not saved because it is no longer in the project, for
+   * example because it was deleted while its editor was still open.
+   */
+  public static final int FILE_NOT_FOUND = 3;
+
+  private int status;
+  private long date;
+
+  /**
+   * Default constructor (for serialization only).
+   * Unfortunately this will prevent any fields from being marked as final!
+   */
+  @SuppressWarnings("unused")
+  private FileSaveResult() {
+  }
+
+  /**
+   * Creates the result of saving a file.
+   *
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param status  one of {@link #SAVED}, {@link #BLOCKS_TRUNCATED},
+   *                {@link #CHECKSUM_MISMATCH} or {@link #FILE_NOT_FOUND}
+   * @param date  modification date for project, if the file was saved
+   */
+  public FileSaveResult(long projectId, String fileId, int status, long date) {
+    super(projectId, fileId);
+    this.status = status;
+    this.date = date;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * Returns the modification date for the project, or 0 if the file was
+   * not saved.
+   */
+  public long getDate() {
+    return date;
+  }
+}
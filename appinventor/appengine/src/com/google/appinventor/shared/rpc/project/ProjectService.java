@@ -262,6 +262,20 @@ public interface ProjectService extends RemoteService {
   public long save(String sessionId, List<FileDescriptorWithContent> filesAndContent) throws InvalidSessionException,
       BlocksTruncatedException;
 
+  /**
+   * Saves the contents of multiple files with a single write per project.
+   * Unlike {@link #save(String, List)}, a file that cannot be saved does not
+   * stop the others from being saved; its result tells why.
+   *
+   * @param sessionId current session id
+   * @param files  the files to save, with their contents and checksums
+   * @param force  whether to write trivial (empty) blocks workspaces over
+   *               non-trivial ones
+   * @return  the result of saving each file, in the order of {@code files}
+   */
+  List<FileSaveResult> saveFiles(String sessionId, List<ChecksumedSaveFile> files, boolean force)
+      throws InvalidSessionException;
+
   /**
    * Saves a screenshot of the blocks
    * This is called on the client side when a user leaves a blocks editor
@@ -282,10 +296,13 @@ public interface ProjectService extends RemoteService {
    * @param nonce used to access the built project -- random string
    * @param target  build target (optional, implementation dependent)
    * @param secondBuildserver whether to use the second buildserver
+   * @param interactive whether the user is waiting for the build to test it on a device, so the
+   *                    build server should start it before other builds
    *
    * @return  results of invoking the build command
    */
-  RpcResult build(long projectId, String nonce, String target, boolean secondBuildserver);
+  RpcResult build(long projectId, String nonce, String target, boolean secondBuildserver,
+      boolean interactive);
 
   /**
    * Gets the result of a build command for the project from the back-end.
@@ -300,6 +317,16 @@ public interface ProjectService extends RemoteService {
    */
   RpcResult getBuildResult(long projectId, String target);
 
+  /**
+   * Asks the back-end to stop a build that the client is no longer waiting for.
+   * Cancelling a build that has already finished does nothing.
+   *
+   * @param projectId  project ID
+   * @param target  build target (optional, implementation dependent)
+   * @param secondBuildserver whether the build was sent to the second buildserver
+   */
+  void cancelBuild(long projectId, String target, boolean secondBuildserver);
+
   /**
    * Adds a new file to the given project.
    *
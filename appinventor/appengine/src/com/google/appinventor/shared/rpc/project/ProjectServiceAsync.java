@@ -141,6 +141,12 @@ public interface ProjectServiceAsync {
    */
   void save(String sessionId, List<FileDescriptorWithContent> filesAndContent, AsyncCallback<Long> callback);
 
+  /**
+   * @see ProjectService#saveFiles(String, List, boolean)
+   */
+  void saveFiles(String sessionId, List<ChecksumedSaveFile> files, boolean force,
+      AsyncCallback<List<FileSaveResult>> callback);
+
   /**
    * @see ProjectService#screnshot(String, long, String, String)
    */
@@ -149,15 +155,22 @@ public interface ProjectServiceAsync {
     AsyncCallback<RpcResult> callback);
 
   /**
-   * @see ProjectService#build(long, String, String, boolean)
+   * @see ProjectService#build(long, String, String, boolean, boolean)
    */
-  void build(long projectId, String nonce, String target, boolean secondBuildserver, AsyncCallback<RpcResult> callback);
+  void build(long projectId, String nonce, String target, boolean secondBuildserver,
+      boolean interactive, AsyncCallback<RpcResult> callback);
 
   /**
    * @see ProjectService#getBuildResult(long, String)
    */
   void getBuildResult(long projectId, String target, AsyncCallback<RpcResult> callback);
 
+  /**
+   * @see ProjectService#cancelBuild(long, String, boolean)
+   */
+  void cancelBuild(long projectId, String target, boolean secondBuildserver,
+      AsyncCallback<Void> callback);
+
   /**
    * @see ProjectService#addFile(long, String)
    */
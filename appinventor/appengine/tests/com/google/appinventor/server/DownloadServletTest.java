@@ -6,10 +6,10 @@
 
 package com.google.appinventor.server;
 
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.riq.MockHttpServletRequest;
 import com.riq.MockHttpServletResponse;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -22,7 +22,11 @@ import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.fail;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.isNull;
 
 /**
  * Tests for {@link DownloadServlet}. Mocks out FileExporter. Mainly tests
@@ -43,8 +47,6 @@ public class DownloadServletTest {
   private static final String DUMMY_ZIP_FILENAME_WITH_TITLE = "MyProjectTitle123.aia";
   private static final String DOWNLOAD_URL = "http://localhost/baseUrl/download/";
 
-  private ProjectSourceZip dummyZip;
-  private ProjectSourceZip dummyZipWithTitle;
   private RawFile dummyApk;
   private RawFile dummyFile;
 
@@ -60,12 +62,23 @@ public class DownloadServletTest {
     exporterMock = PowerMock.createNiceMock(FileExporterImpl.class);
     PowerMock.expectNew(FileExporterImpl.class).andReturn(exporterMock).anyTimes();
 
-    dummyZip = new ProjectSourceZip(DUMMY_ZIP_FILENAME, new byte[] {}, 2);
-    dummyZipWithTitle = new ProjectSourceZip(DUMMY_ZIP_FILENAME_WITH_TITLE, new byte[] {}, 2);
     dummyApk = new RawFile(DUMMY_APK_FILENAME, new byte[] {});
     dummyFile = new RawFile(DUMMY_FILENAME, new byte[] {});
   }
 
+  // Writes an empty zip to the destination passed to the exporter.
+  private static IAnswer<Integer> writeZip(final String zipName) {
+    return new IAnswer<Integer>() {
+      @Override
+      public Integer answer() throws Throwable {
+        FileExporter.ZipDestination destination =
+            (FileExporter.ZipDestination) getCurrentArguments()[9];
+        destination.open(zipName).close();
+        return 2;
+      }
+    };
+  }
+
   private void checkResponseHeader(MockHttpServletResponse response, String header) {
     List cd = (List) response.getHeader("content-disposition");
     assertEquals(header, cd.get(0));
@@ -76,8 +89,10 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithoutTitle() throws Exception {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false, null, false, false, false, false))
-        .andReturn(dummyZip);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        (String) isNull(), eq(false), eq(false), eq(false), eq(false),
+        isA(FileExporter.ZipDestination.class)))
+        .andAnswer(writeZip(DUMMY_ZIP_FILENAME));
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -91,9 +106,10 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithTitle() throws IOException {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234/My Project Title 123");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false,
-        "MyProjectTitle123.aia", false, false, false, false))
-        .andReturn(dummyZipWithTitle);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq("MyProjectTitle123.aia"), eq(false), eq(false), eq(false), eq(false),
+        isA(FileExporter.ZipDestination.class)))
+        .andAnswer(writeZip(DUMMY_ZIP_FILENAME_WITH_TITLE));
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -108,7 +124,9 @@ public class DownloadServletTest {
     IllegalArgumentException expectedException = new IllegalArgumentException();
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/12345");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, 12345L, true, false, null, false, false, false, false))
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(12345L), eq(true), eq(false),
+        (String) isNull(), eq(false), eq(false), eq(false), eq(false),
+        isA(FileExporter.ZipDestination.class)))
         .andThrow(expectedException);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
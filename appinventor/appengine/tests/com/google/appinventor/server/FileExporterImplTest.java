@@ -20,8 +20,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -125,6 +128,41 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
         StorageUtil.DEFAULT_CHARSET));
   }
 
+  public void testExportProjectSourceZipToDestination() throws IOException {
+    final ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    final List<String> zipNames = new ArrayList<String>();
+    int fileCount = exporter.exportProjectSourceZip(USER_ID, projectId,
+      true, false, null, false, false, false, false, new FileExporter.ZipDestination() {
+        @Override
+        public OutputStream open(String zipName) {
+          zipNames.add(zipName);
+          return zipFile;
+        }
+      });
+    assertEquals(Arrays.asList(PROJECT_NAME + ".aia"), zipNames);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(
+        new ProjectSourceZip(zipNames.get(0), zipFile.toByteArray(), fileCount));
+    assertEquals(3, content.size());
+  }
+
+  public void testExportProjectSourceZipToDestinationWithNonExistingProject()
+      throws IOException {
+    try {
+      exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, null, false, false,
+        false, false, new FileExporter.ZipDestination() {
+          @Override
+          public OutputStream open(String zipName) {
+            fail();
+            return null;
+          }
+        });
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof IllegalArgumentException ||
+                 e.getCause() instanceof IllegalArgumentException);
+    }
+  }
+
   public void testExportProjectSourceZipWithNonExistingProject() throws IOException {
     try {
       exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, null, false, false, false, false);
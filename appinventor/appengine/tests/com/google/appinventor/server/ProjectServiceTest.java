@@ -16,8 +16,10 @@ import com.google.appinventor.server.encryption.KeyczarEncryptor;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.ChecksumedSaveFile;
 import com.google.appinventor.shared.rpc.project.FileDescriptor;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FileSaveResult;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.UserProject;
@@ -515,6 +517,72 @@ public class ProjectServiceTest {
     PowerMock.verifyAll();
   }
 
+  @Test
+  public void testSaveFiles() throws Exception {
+    expect(localUserMock.getUserId()).andReturn(USER_ID_ONE).anyTimes();
+    expect(localUserMock.getUser()).andReturn(storageIo.getUser(USER_ID_ONE, USER_EMAIL_ONE)).anyTimes();
+    PowerMock.replayAll();
+    do_init();
+
+    NewYoungAndroidProjectParameters params = new NewYoungAndroidProjectParameters(
+        PACKAGE_BASE + PROJECT1_NAME);
+    long projectId = projectServiceImpl.newProject(
+        YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, PROJECT1_NAME, params).getProjectId();
+    ProjectRootNode root = projectServiceImpl.getProject(projectId);
+    String formFileId = findFileIdByName(root,
+        YOUNG_ANDROID_FORM_NAME + YoungAndroidSourceAnalyzer.FORM_PROPERTIES_EXTENSION);
+    String blocksFileId = findFileIdByName(root,
+        YOUNG_ANDROID_FORM_NAME + YoungAndroidSourceAnalyzer.BLOCKLY_SOURCE_EXTENSION);
+    String form = projectServiceImpl.load(projectId, formFileId) + YOUNG_ANDROID_COMMENT1;
+    StringBuilder blocks = new StringBuilder("<xml>");
+    for (int i = 0; i < 20; i++) {
+      blocks.append("<block type=\"text\"></block>");
+    }
+    blocks.append("</xml>");
+
+    List<ChecksumedSaveFile> files = Lists.newArrayList();
+    files.add(new ChecksumedSaveFile(projectId, formFileId, form));
+    files.add(new ChecksumedSaveFile(projectId, blocksFileId, blocks.toString()));
+    List<FileSaveResult> results = projectServiceImpl.saveFiles("test-session", files, false);
+    assertEquals(2, results.size());
+    assertEquals(formFileId, results.get(0).getFileId());
+    assertEquals(FileSaveResult.SAVED, results.get(0).getStatus());
+    assertEquals(FileSaveResult.SAVED, results.get(1).getStatus());
+    checkModificationDateMatchesStored(results.get(0).getDate(), USER_ID_ONE, projectId);
+    assertEquals(form, projectServiceImpl.load(projectId, formFileId));
+    assertEquals(blocks.toString(), projectServiceImpl.load(projectId, blocksFileId));
+
+    // An empty workspace is not written over the blocks unless forced, but the form still is
+    String form2 = form + YOUNG_ANDROID_COMMENT2;
+    files = Lists.newArrayList();
+    files.add(new ChecksumedSaveFile(projectId, formFileId, form2));
+    files.add(new ChecksumedSaveFile(projectId, blocksFileId, "<xml></xml>"));
+    results = projectServiceImpl.saveFiles("test-session", files, false);
+    assertEquals(FileSaveResult.SAVED, results.get(0).getStatus());
+    assertEquals(FileSaveResult.BLOCKS_TRUNCATED, results.get(1).getStatus());
+    assertEquals(0, results.get(1).getDate());
+    assertEquals(form2, projectServiceImpl.load(projectId, formFileId));
+    assertEquals(blocks.toString(), projectServiceImpl.load(projectId, blocksFileId));
+
+    results = projectServiceImpl.saveFiles("test-session", files.subList(1, 2), true);
+    assertEquals(FileSaveResult.SAVED, results.get(0).getStatus());
+    assertEquals("<xml></xml>", projectServiceImpl.load(projectId, blocksFileId));
+
+    // A file that was deleted is reported, and the rest of the batch is still saved
+    projectServiceImpl.deleteFile("test-session", projectId, blocksFileId);
+    String form3 = form2 + YOUNG_ANDROID_COMMENT1;
+    files = Lists.newArrayList();
+    files.add(new ChecksumedSaveFile(projectId, blocksFileId, blocks.toString()));
+    files.add(new ChecksumedSaveFile(projectId, formFileId, form3));
+    results = projectServiceImpl.saveFiles("test-session", files, false);
+    assertEquals(FileSaveResult.FILE_NOT_FOUND, results.get(0).getStatus());
+    assertEquals(0, results.get(0).getDate());
+    assertEquals(FileSaveResult.SAVED, results.get(1).getStatus());
+    checkModificationDateMatchesStored(results.get(1).getDate(), USER_ID_ONE, projectId);
+    assertEquals(form3, projectServiceImpl.load(projectId, formFileId));
+    PowerMock.verifyAll();
+  }
+
   private Map<String, String> getTextFiles(String userId, long projectId) {
     Map<String, String> textFiles = new HashMap<String, String>();
     for (String fileId : storageIo.getProjectSourceFiles(userId, projectId)) {
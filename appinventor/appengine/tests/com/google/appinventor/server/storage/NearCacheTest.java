@@ -0,0 +1,83 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link NearCache}.
+ */
+public class NearCacheTest extends TestCase {
+
+  private static class FakeTicker extends Ticker {
+    long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+
+  private FakeTicker ticker;
+  private NearCache<String> cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ticker = new FakeTicker();
+    cache = new NearCache<String>("Test", 2, 5000, ticker);
+  }
+
+  public void testGetAndPut() {
+    assertNull(cache.get("a"));
+    cache.put("a", "A", cache.getVersion());
+    assertEquals("A", cache.get("a"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testEntriesExpire() {
+    cache.put("a", "A", cache.getVersion());
+    ticker.nanos += TimeUnit.MILLISECONDS.toNanos(4999);
+    assertEquals("A", cache.get("a"));
+    ticker.nanos += TimeUnit.MILLISECONDS.toNanos(1);
+    assertNull(cache.get("a"));
+  }
+
+  public void testSizeIsBounded() {
+    cache.put("a", "A", cache.getVersion());
+    cache.put("b", "B", cache.getVersion());
+    cache.put("c", "C", cache.getVersion());
+    int present = 0;
+    for (String key : new String[] { "a", "b", "c" }) {
+      if (cache.get(key) != null) {
+        present++;
+      }
+    }
+    assertEquals(2, present);
+  }
+
+  public void testInvalidate() {
+    cache.put("a", "A", cache.getVersion());
+    cache.invalidate("a");
+    assertNull(cache.get("a"));
+  }
+
+  public void testFillReadBeforeInvalidationIsDropped() {
+    long version = cache.getVersion();
+    // Another thread changes "a" while this one reads the old value.
+    cache.invalidate("a");
+    cache.put("a", "old A", version);
+    assertNull(cache.get("a"));
+
+    cache.put("a", "new A", cache.getVersion());
+    assertEquals("new A", cache.get("a"));
+  }
+}
@@ -8,10 +8,12 @@ package com.google.appinventor.server.storage;
 
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.StoredData.FileData;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.component.Component;
 import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.UserProject;
@@ -20,8 +22,13 @@ import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -30,7 +37,11 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.json.JSONObject;
 
@@ -125,6 +136,20 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     assertEquals(USER_EMAIL_NEW, user4.getUserEmail());
   }
 
+  public void testGetUserFromNearCache() {
+    final String USER_ID = "550";
+    final String USER_EMAIL = "user550@test.com";
+
+    storage.getUser(USER_ID, USER_EMAIL).setUserName("changed by the caller");
+    User user1 = storage.getUser(USER_ID);
+    assertEquals(1, storage.getUserCache().getHitCount());
+    assertEquals(User.getDefaultName(USER_EMAIL), user1.getUserName());
+    assertTrue(storage.getNearCacheStats().get("User").startsWith("1 hits, "));
+
+    storage.setUserName(USER_ID, "New Name");
+    assertEquals("New Name", storage.getUser(USER_ID).getUserName());
+  }
+
   public void testSetTosAccepted() {
     final String USER_ID = "100";
     final String USER_EMAIL = "newuser100@test.com";
@@ -466,6 +491,36 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
           USER_ID, projectId, BLOCK_FILE_NAME)));
  }
 
+  public void testExportProjectWithMissingGcsObject() throws IOException {
+    final String USER_ID = "1320";
+    final String USER_EMAIL = "newuser1320@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+
+    // Older zero length files were recorded as GCS files without an object in GCS.
+    FileData fd = new FileData();
+    fd.fileName = ASSET_FILE_NAME1;
+    fd.projectKey = new Key<ProjectData>(ProjectData.class, projectId);
+    fd.role = FileData.RoleEnum.SOURCE;
+    fd.userId = USER_ID;
+    fd.isGCS = true;
+    fd.gcsName = "missing/" + projectId + "/" + ASSET_FILE_NAME1;
+    ObjectifyService.begin().put(fd);
+
+    ProjectSourceZip zip = storage.exportProjectSourceZip(USER_ID, projectId, false, false,
+        null, false, false, false, false);
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.getContent()));
+    Map<String, byte[]> content = new HashMap<String, byte[]>();
+    ZipEntry entry;
+    while ((entry = zis.getNextEntry()) != null) {
+      content.put(entry.getName(), ByteStreams.toByteArray(zis));
+    }
+    assertTrue(content.containsKey(FORM_QUALIFIED_NAME));
+    assertEquals(0, content.get(ASSET_FILE_NAME1).length);
+  }
+
   public void testGetProject() {
     final String USER_ID = "1400";
     final String USER_EMAIL = "newuser1400@test.com";
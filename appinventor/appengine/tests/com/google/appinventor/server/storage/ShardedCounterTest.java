@@ -0,0 +1,80 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+
+import com.googlecode.objectify.ObjectifyService;
+
+/**
+ * Tests for {@link ShardedCounter}.
+ */
+public class ShardedCounterTest extends LocalDatastoreTestCase {
+
+  static {
+    ObjectifyService.register(GalleryCounterShardData.class);
+  }
+
+  private ShardedCounter counter;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    counter = new ShardedCounter();
+  }
+
+  public void testIncrement() throws Exception {
+    assertEquals(0, counter.count("c"));
+    for (int i = 0; i < 50; i++) {
+      counter.increment("c", 1);
+    }
+    counter.increment("c", -5);
+    assertEquals(45, counter.count("c"));
+    assertEquals(45, counter.get("c"));
+    assertEquals(0, counter.count("other"));
+  }
+
+  public void testSeed() throws Exception {
+    counter.increment("c", 3);
+    assertEquals(0, counter.getResetDate("c"));
+    counter.seed("c", 10);
+    assertTrue(counter.getResetDate("c") > 0);
+    assertEquals(13, counter.get("c"));
+
+    // A counter is only seeded once
+    counter.seed("c", 100);
+    assertEquals(13, counter.get("c"));
+  }
+
+  public void testReset() throws Exception {
+    counter.seed("c", 10);
+    counter.increment("c", 7);
+    counter.reset("c", 4);
+    assertEquals(4, counter.get("c"));
+    assertTrue(counter.getResetDate("c") > 0);
+    counter.increment("c", 1);
+    assertEquals(5, counter.count("c"));
+  }
+
+  public void testStaleSumIsNotCached() throws Exception {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    counter.increment("c", 3);
+    assertEquals(3, counter.count("c"));
+    counter.reset("c", 10);
+    // A sum read from the shards before the reset cannot be cached after it.
+    assertFalse(memcache.put("counter|c", 3L, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+    assertEquals(10, counter.get("c"));
+  }
+
+  public void testResetWithoutSeed() throws Exception {
+    counter.increment("c", 3);
+    counter.reset("c", 10);
+    assertEquals(10, counter.count("c"));
+  }
+}
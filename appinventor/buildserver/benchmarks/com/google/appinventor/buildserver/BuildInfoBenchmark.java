@@ -0,0 +1,59 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Sets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the component build info, which every build does for
+ * its permissions, libraries, assets, activities and broadcast receivers.
+ * Each of these goes through Compiler.loadJsonInfo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuildInfoBenchmark {
+
+  private static final String RUNTIME = "com.google.appinventor.components.runtime.";
+
+  private final Set<String> componentTypes = Sets.newHashSet(RUNTIME + "Form",
+      RUNTIME + "Button", RUNTIME + "Label", RUNTIME + "Map", RUNTIME + "Marker",
+      RUNTIME + "FirebaseDB", RUNTIME + "Web", RUNTIME + "Texting");
+
+  private final PrintStream output = new PrintStream(new ByteArrayOutputStream());
+
+  @Benchmark
+  public Map<String, Set<String>> loadBuildInfo() {
+    Compiler compiler = new Compiler(null, componentTypes, output, output, output, false,
+        2048, null, null);
+    compiler.generatePermissions();
+    compiler.generateLibNames();
+    compiler.generateNativeLibNames();
+    compiler.generateAssets();
+    compiler.generateActivities();
+    compiler.generateBroadcastReceivers();
+    return compiler.getPermissions();
+  }
+}
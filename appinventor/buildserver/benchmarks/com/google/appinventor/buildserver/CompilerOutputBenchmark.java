@@ -0,0 +1,62 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning the output of the Kawa compiler into the HTML messages
+ * shown to the user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerOutputBenchmark {
+
+  private static final String SRC_PATH = "/tmp/1234_0.5-0/youngandroidproject/../src/";
+
+  // The number of warnings and errors in the output.
+  @Param({"10", "1000"})
+  public int messages;
+
+  private String output;
+
+  @Setup
+  public void writeOutput() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < messages; i++) {
+      if (i % 3 == 0) {
+        sb.append("runtime.scm:").append(i).append(":5: warning - no known slot 'Text'\n");
+      } else {
+        sb.append(SRC_PATH).append("appinventor/ai_benchmark/OneScreen/Screen1.yail:")
+            .append(i).append(":10: ").append(i % 3 == 1 ? "warning" : "error")
+            .append(": unbound location g$total\n")
+            .append("  (set-var! g$total (+ (get-var g$total) 1))\n");
+      }
+    }
+    output = sb.toString();
+  }
+
+  @Benchmark
+  public String processCompilerOutput() {
+    return ProjectBuilder.processCompilerOutput(output, SRC_PATH);
+  }
+}
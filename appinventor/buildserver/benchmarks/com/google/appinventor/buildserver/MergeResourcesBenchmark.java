@@ -0,0 +1,114 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.util.AARLibraries;
+import com.google.appinventor.buildserver.util.AARLibrary;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import com.android.ide.common.internal.PngCruncher;
+
+import org.apache.commons.io.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures merging the resources of the support libraries every app is
+ * built with into the resources of an app.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MergeResourcesBenchmark {
+
+  private static final String[] LIBRARIES = {
+      "appcompat-v7.aar", "support-compat.aar", "support-core-ui.aar",
+      "support-core-utils.aar", "support-fragment.aar", "support-media-compat.aar",
+      "support-v4.aar", "support-vector-drawable.aar", "animated-vector-drawable.aar",
+      "runtime.aar"};
+
+  // The PNGs of the libraries are crunched already.
+  private static final PngCruncher NO_CRUNCHER = new PngCruncher() {
+    @Override
+    public int start() {
+      return 0;
+    }
+
+    @Override
+    public void crunchPng(int key, File from, File to) {
+    }
+
+    @Override
+    public void end(int key) {
+    }
+  };
+
+  private File tmpDir;
+  private File mainResDir;
+  private File mergedResDir;
+  private AARLibraries libraries;
+
+  @Setup(Level.Trial)
+  public void unpackLibraries() throws Exception {
+    tmpDir = Files.createTempDir();
+    mainResDir = new File(tmpDir, "res");
+    new File(mainResDir, "values").mkdirs();
+    Files.write("<resources><string name=\"app_name\">Benchmark</string></resources>",
+        new File(mainResDir, "values/strings.xml"), Charsets.UTF_8);
+    libraries = new AARLibraries(new File(tmpDir, "generated"));
+    File explodedDir = new File(tmpDir, "exploded");
+    for (String name : LIBRARIES) {
+      File aar = new File(tmpDir, name);
+      Files.copy(Resources.newInputStreamSupplier(
+          Compiler.class.getResource(Compiler.RUNTIME_FILES_DIR + name)), aar);
+      AARLibrary library = new AARLibrary(aar);
+      library.unpackToDirectory(explodedDir);
+      libraries.add(library);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void createOutputDir() {
+    mergedResDir = new File(tmpDir, "merged");
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteOutputDir() {
+    FileUtils.deleteQuietly(mergedResDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteLibraries() {
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  @Benchmark
+  public boolean mergeResources() {
+    if (!libraries.mergeResources(mergedResDir, mainResDir, NO_CRUNCHER)) {
+      throw new IllegalStateException("Unable to merge resources");
+    }
+    return true;
+  }
+}
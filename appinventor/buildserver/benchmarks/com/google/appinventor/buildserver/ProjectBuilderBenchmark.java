@@ -0,0 +1,89 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures complete builds of the sample projects, from the source zip to
+ * the signed APK, the way the build server runs them.
+ *
+ * <p>Each invocation is a cold build: none of the build caches are
+ * configured.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProjectBuilderBenchmark {
+
+  @Param({SampleProjects.ONE_SCREEN, SampleProjects.TEN_SCREENS, SampleProjects.MAPS_FIREBASE})
+  public String project;
+
+  private File tmpDir;
+  private File zipFile;
+  private File outputDir;
+
+  @Setup(Level.Trial)
+  public void writeProject() throws Exception {
+    tmpDir = Files.createTempDir();
+    zipFile = new File(tmpDir, project + ".zip");
+    SampleProjects.write(project, zipFile);
+  }
+
+  @Setup(Level.Invocation)
+  public void createOutputDir() {
+    outputDir = new File(tmpDir, "output");
+    outputDir.mkdir();
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteOutputDir() {
+    FileUtils.deleteQuietly(outputDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteProject() {
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  @Benchmark
+  public Result build() throws Exception {
+    ZipFile inputZip = new ZipFile(zipFile);
+    try {
+      Result result = new ProjectBuilder().build("benchmark", inputZip, outputDir, false,
+          2048, null, null);
+      if (!result.succeeded()) {
+        throw new IllegalStateException("Build of " + project + " failed: " + result.getError());
+      }
+      return result;
+    } finally {
+      inputZip.close();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the sample projects the benchmarks build, as source zips like the
+ * ones the App Inventor server sends to the build server.
+ */
+final class SampleProjects {
+
+  /** A project with one screen of basic components. */
+  static final String ONE_SCREEN = "OneScreen";
+
+  /** A project with ten screens of basic components. */
+  static final String TEN_SCREENS = "TenScreens";
+
+  /** A project with maps, Firebase and the web components that pull in most libraries. */
+  static final String MAPS_FIREBASE = "MapsFirebase";
+
+  private static final String PACKAGE = "appinventor.ai_benchmark";
+
+  private SampleProjects() {
+  }
+
+  /**
+   * Writes the source zip of a sample project.
+   *
+   * @param name  one of the project names above
+   * @param zipFile  the file the zip is written to
+   */
+  static void write(String name, File zipFile) throws IOException {
+    int screens = TEN_SCREENS.equals(name) ? 10 : 1;
+    boolean maps = MAPS_FIREBASE.equals(name);
+    if (!ONE_SCREEN.equals(name) && !TEN_SCREENS.equals(name) && !maps) {
+      throw new IllegalArgumentException("Unknown sample project " + name);
+    }
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(zipFile));
+    try {
+      put(output, "youngandroidproject/project.properties",
+          "main=" + PACKAGE + "." + name + ".Screen1\n" +
+          "name=" + name + "\n" +
+          "assets=../assets\n" +
+          "source=../src\n" +
+          "build=../build\n" +
+          "versioncode=1\n" +
+          "versionname=1.0\n" +
+          "useslocation=" + (maps ? "True" : "False") + "\n" +
+          "aname=" + name + "\n");
+      for (int i = 1; i <= screens; i++) {
+        String screen = "Screen" + i;
+        String path = "src/" + PACKAGE.replace('.', '/') + "/" + name + "/" + screen;
+        put(output, path + ".scm", formFile(screen, maps));
+        put(output, path + ".bky", "<xml xmlns=\"http://www.w3.org/1999/xhtml\"></xml>");
+        put(output, path + ".yail", yailFile(PACKAGE + "." + name + "." + screen, screen, maps));
+      }
+    } finally {
+      output.close();
+    }
+  }
+
+  /**
+   * Returns the contents of a .scm file with the given number of basic
+   * components, for benchmarks of the form file parsing.
+   */
+  static String formFile(int components) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("#|\n$JSON\n{\"YaVersion\":\"175\",\"Source\":\"Form\",\"Properties\":")
+        .append("{\"$Name\":\"Screen1\",\"$Type\":\"Form\",\"$Version\":\"23\",\"Uuid\":\"0\",")
+        .append("\"Title\":\"Screen1\",\"$Components\":[");
+    for (int i = 1; i <= components; i++) {
+      if (i > 1) {
+        sb.append(',');
+      }
+      appendBasicComponents(sb, i);
+    }
+    sb.append("]}}\n|#\n");
+    return sb.toString();
+  }
+
+  private static String formFile(String screen, boolean maps) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("#|\n$JSON\n{\"YaVersion\":\"175\",\"Source\":\"Form\",\"Properties\":")
+        .append("{\"$Name\":\"").append(screen).append("\",\"$Type\":\"Form\",")
+        .append("\"$Version\":\"23\",\"Uuid\":\"0\",\"Title\":\"").append(screen)
+        .append("\",\"$Components\":[");
+    appendBasicComponents(sb, 1);
+    if (maps) {
+      sb.append(",{\"$Name\":\"Map1\",\"$Type\":\"Map\",\"$Version\":\"4\",\"Uuid\":\"11\",")
+          .append("\"$Components\":[{\"$Name\":\"Marker1\",\"$Type\":\"Marker\",")
+          .append("\"$Version\":\"2\",\"Uuid\":\"12\"}]},")
+          .append("{\"$Name\":\"FirebaseDB1\",\"$Type\":\"FirebaseDB\",\"$Version\":\"3\",")
+          .append("\"Uuid\":\"13\"},")
+          .append("{\"$Name\":\"Web1\",\"$Type\":\"Web\",\"$Version\":\"6\",\"Uuid\":\"14\"},")
+          .append("{\"$Name\":\"LocationSensor1\",\"$Type\":\"LocationSensor\",")
+          .append("\"$Version\":\"3\",\"Uuid\":\"15\"}");
+    }
+    sb.append("]}}\n|#\n");
+    return sb.toString();
+  }
+
+  private static void appendBasicComponents(StringBuilder sb, int i) {
+    sb.append("{\"$Name\":\"Arrangement").append(i).append("\",\"$Type\":\"VerticalArrangement\",")
+        .append("\"$Version\":\"3\",\"Uuid\":\"").append(i * 10).append("\",\"$Components\":[")
+        .append("{\"$Name\":\"Button").append(i).append("\",\"$Type\":\"Button\",")
+        .append("\"$Version\":\"6\",\"Uuid\":\"").append(i * 10 + 1)
+        .append("\",\"Text\":\"Press\"},")
+        .append("{\"$Name\":\"Label").append(i).append("\",\"$Type\":\"Label\",")
+        .append("\"$Version\":\"4\",\"Uuid\":\"").append(i * 10 + 2)
+        .append("\",\"Text\":\"Pressed \"},")
+        .append("{\"$Name\":\"TextBox").append(i).append("\",\"$Type\":\"TextBox\",")
+        .append("\"$Version\":\"5\",\"Uuid\":\"").append(i * 10 + 3).append("\"}]}");
+  }
+
+  private static String yailFile(String formClass, String screen, boolean maps) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("#|\n$Source $Yail\n|#\n\n")
+        .append("(define-form ").append(formClass).append(' ').append(screen).append(")\n")
+        .append("(require <com.google.youngandroid.runtime>)\n")
+        .append(";;; ").append(screen).append('\n')
+        .append("(do-after-form-creation (set-and-coerce-property! '").append(screen)
+        .append(" 'Title \"").append(screen).append("\" 'text)\n)\n")
+        .append("(add-component ").append(screen)
+        .append(" VerticalArrangement Arrangement1 )\n")
+        .append("(add-component Arrangement1 Button Button1 ")
+        .append("(set-and-coerce-property! 'Button1 'Text \"Press\" 'text)\n)\n")
+        .append("(add-component Arrangement1 Label Label1 ")
+        .append("(set-and-coerce-property! 'Label1 'Text \"Pressed \" 'text)\n)\n")
+        .append("(add-component Arrangement1 TextBox TextBox1 )\n")
+        .append("(define-event Button1 Click()(set-this-form)\n")
+        .append("    (set-and-coerce-property! 'Label1 'Text (call-yail-primitive string-append ")
+        .append("(*list-for-runtime* (get-property 'Label1 'Text) (get-property 'TextBox1 'Text) ) ")
+        .append("'(text text ) \"join\") 'text))\n");
+    if (maps) {
+      sb.append("(add-component ").append(screen).append(" Map Map1 )\n")
+          .append("(add-component Map1 Marker Marker1 )\n")
+          .append("(add-component ").append(screen).append(" FirebaseDB FirebaseDB1 )\n")
+          .append("(add-component ").append(screen).append(" Web Web1 )\n")
+          .append("(add-component ").append(screen).append(" LocationSensor LocationSensor1 )\n");
+    }
+    sb.append("(init-runtime)\n");
+    return sb.toString();
+  }
+
+  private static void put(ZipOutputStream output, String name, String contents)
+      throws IOException {
+    output.putNextEntry(new ZipEntry(name));
+    output.write(contents.getBytes(Charsets.UTF_8));
+    output.closeEntry();
+  }
+}
@@ -0,0 +1,346 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.util.AARLibraries;
+import com.google.appinventor.buildserver.util.AARLibrary;
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import com.android.builder.internal.SymbolLoader;
+import com.android.ide.common.internal.PngCruncher;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the Android Archive (AAR) libraries of the build server in
+ * unpacked form, shared by all builds.
+ *
+ * <p>Three kinds of entries are kept in one {@link DirectoryCache}:</p>
+ * <ul>
+ *   <li>an unpacked AAR, keyed by a digest of the .aar file,</li>
+ *   <li>the merged resources of a set of AARs, keyed by the digests of the
+ *       AARs in the set,</li>
+ *   <li>the compiled R classes of a set of AARs, keyed by the digests of
+ *       the AARs, the app's package and the app's R.txt, since the values
+ *       of the resource ids come from the app.</li>
+ * </ul>
+ *
+ * <p>Entries are never modified once they are committed; their files are
+ * made read-only. Builds read them in place instead of copying them, so
+ * every entry a build uses is pinned until the build calls
+ * {@link #release}. The symbols of each AAR are also kept in memory, as
+ * they are read-only once loaded.</p>
+ *
+ * <p>The cache is disabled until {@link #configure(String, long)} is called
+ * with a directory.</p>
+ */
+final class AarLibraryCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(AarLibraryCache.class.getName());
+
+  private static final String AAR_PREFIX = "aar-";
+  private static final String RESOURCES_PREFIX = "res-";
+  private static final String R_CLASSES_PREFIX = "rclasses-";
+
+  private static final String RES_DIR_NAME = "res";
+  private static final String CLASSES_DIR_NAME = "classes";
+
+  private static DirectoryCache cache;
+
+  // Digests of the .aar files, keyed by path, length and modification time.
+  private static final ConcurrentMap<String, String> aarDigests =
+      new ConcurrentHashMap<String, String>();
+
+  // Symbols of the unpacked AARs, keyed by cache key. There is at most one for each AAR that
+  // ships with the build server.
+  private static final ConcurrentMap<String, SymbolLoader> symbols =
+      new ConcurrentHashMap<String, SymbolLoader>();
+
+  private static final AtomicInteger hits = new AtomicInteger(0);
+  private static final AtomicInteger misses = new AtomicInteger(0);
+
+  private AarLibraryCache() {
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param dir  the cache directory, {@code null} to disable the cache
+   * @param maxMb  the maximum size of the cache directory, in MB
+   */
+  static synchronized void configure(String dir, long maxMb) {
+    cache = dir == null ? null : new DirectoryCache(new File(dir), maxMb * 1024 * 1024);
+    symbols.clear();
+  }
+
+  static synchronized boolean isEnabled() {
+    return cache != null;
+  }
+
+  private static synchronized DirectoryCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Adds an AAR to a build's libraries, from the cache if it was unpacked
+   * before and otherwise unpacking it into the cache first.
+   *
+   * @param aar  the .aar file
+   * @param libraries  the libraries of the build
+   * @param pinnedKeys  the keys of the entries the build uses, to which the
+   *     key of the AAR is added
+   * @return  {@code true} if the AAR was added, {@code false} if the cache
+   *     is disabled or the AAR could not be cached, in which case the caller
+   *     has to unpack it itself
+   */
+  static boolean addLibrary(File aar, AARLibraries libraries, List<String> pinnedKeys)
+      throws IOException {
+    DirectoryCache directoryCache = getCache();
+    if (directoryCache == null) {
+      return false;
+    }
+    String key = AAR_PREFIX + getDigest(aar);
+    File entryDir = lookup(directoryCache, key);
+    if (entryDir == null) {
+      File tmpDir = directoryCache.newEntryDir(key);
+      try {
+        new AARLibrary(aar).unpackToDirectory(tmpDir);
+        makeReadOnly(tmpDir);
+      } catch (IOException|RuntimeException e) {
+        FileUtils.deleteQuietly(tmpDir);
+        throw e;
+      }
+      directoryCache.commit(key, tmpDir);
+      entryDir = directoryCache.get(key);
+      if (entryDir == null) {
+        // Evicted right away, the cache is too small.
+        return false;
+      }
+    }
+    pinnedKeys.add(key);
+    AARLibrary library = new AARLibrary(aar);
+    try {
+      library.loadFromDirectory(entryDir);
+      SymbolLoader loader = symbols.get(key);
+      if (loader == null) {
+        loader = AARLibraries.loadSymbols(library);
+        if (loader != null) {
+          symbols.putIfAbsent(key, loader);
+        }
+      }
+      libraries.add(library, loader);
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read AAR cache entry " + key, e);
+      directoryCache.invalidate(key);
+      directoryCache.release(key);
+      pinnedKeys.remove(key);
+      return false;
+    }
+  }
+
+  /**
+   * Returns the merged resources of a build's libraries, merging them into
+   * the cache first if no build used the same libraries before.
+   *
+   * @param libraries  the libraries of the build
+   * @param cruncher  the PNG cruncher used for merging
+   * @param pinnedKeys  the keys of the entries the build uses, to which the
+   *     key of the merged resources is added
+   * @return  the directory of the merged resources, or {@code null} if the
+   *     cache is disabled or the resources could not be merged into it
+   */
+  static File getMergedResources(AARLibraries libraries, PngCruncher cruncher,
+      List<String> pinnedKeys) throws IOException {
+    DirectoryCache directoryCache = getCache();
+    if (directoryCache == null) {
+      return null;
+    }
+    String key = RESOURCES_PREFIX + computeLibrarySetKey(libraries).hash();
+    File entryDir = lookup(directoryCache, key);
+    if (entryDir == null) {
+      File tmpDir = directoryCache.newEntryDir(key);
+      File resDir = new File(tmpDir, RES_DIR_NAME);
+      if (!resDir.mkdirs() || !libraries.mergeLibraryResources(resDir, cruncher)) {
+        FileUtils.deleteQuietly(tmpDir);
+        return null;
+      }
+      makeReadOnly(tmpDir);
+      directoryCache.commit(key, tmpDir);
+      entryDir = directoryCache.get(key);
+      if (entryDir == null) {
+        return null;
+      }
+    }
+    pinnedKeys.add(key);
+    return new File(entryDir, RES_DIR_NAME);
+  }
+
+  /**
+   * Computes the cache key of the R classes of a build's libraries.
+   *
+   * @param libraries  the libraries of the build
+   * @param packageName  the package of the app
+   * @param appRTxt  the R.txt file AAPT wrote for the app
+   */
+  static String computeRClassesKey(AARLibraries libraries, String packageName, File appRTxt)
+      throws IOException {
+    Hasher hasher = computeLibrarySetKey(libraries);
+    hasher.putString(packageName + "\n", Charsets.UTF_8);
+    hasher.putBytes(Files.hash(appRTxt, Hashing.sha1()).asBytes());
+    return R_CLASSES_PREFIX + hasher.hash();
+  }
+
+  /**
+   * Copies cached R classes into the classes directory.
+   *
+   * @param key  the key computed by {@link #computeRClassesKey}
+   * @param classesDir  the directory the classes are copied to
+   * @return  {@code true} on a cache hit, {@code false} if the R classes
+   *     have to be compiled
+   */
+  static boolean restoreRClasses(String key, File classesDir) {
+    DirectoryCache directoryCache = getCache();
+    File entryDir = directoryCache == null ? null : lookup(directoryCache, key);
+    if (entryDir == null) {
+      return false;
+    }
+    try {
+      FileUtils.copyDirectory(new File(entryDir, CLASSES_DIR_NAME), classesDir);
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read AAR cache entry " + key, e);
+      directoryCache.invalidate(key);
+      return false;
+    } finally {
+      directoryCache.release(key);
+    }
+  }
+
+  /**
+   * Stores the compiled R classes of a build's libraries.
+   *
+   * @param key  the key computed by {@link #computeRClassesKey}
+   * @param rClassesDir  a directory that contains only the R classes
+   */
+  static void storeRClasses(String key, File rClassesDir) {
+    DirectoryCache directoryCache = getCache();
+    if (directoryCache == null || directoryCache.contains(key)) {
+      return;
+    }
+    File tmpDir = directoryCache.newEntryDir(key);
+    try {
+      FileUtils.copyDirectory(rClassesDir, new File(tmpDir, CLASSES_DIR_NAME));
+      makeReadOnly(tmpDir);
+      directoryCache.commit(key, tmpDir);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store AAR cache entry " + key, e);
+      FileUtils.deleteQuietly(tmpDir);
+    }
+  }
+
+  /**
+   * Unpins the entries a build used.
+   *
+   * @param pinnedKeys  the keys collected by the build, cleared on return
+   */
+  static void release(List<String> pinnedKeys) {
+    DirectoryCache directoryCache = getCache();
+    if (directoryCache != null) {
+      for (String key : pinnedKeys) {
+        directoryCache.release(key);
+      }
+    }
+    pinnedKeys.clear();
+  }
+
+  /*
+   * Looks up and pins an entry, counting the hit or miss.
+   */
+  private static File lookup(DirectoryCache directoryCache, String key) {
+    File entryDir = directoryCache.get(key);
+    if (entryDir == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return entryDir;
+  }
+
+  private static Hasher computeLibrarySetKey(AARLibraries libraries) throws IOException {
+    List<String> digests = new ArrayList<String>();
+    for (AARLibrary library : libraries) {
+      digests.add(getDigest(library.getFile()));
+    }
+    // The order in which the libraries were added does not matter.
+    Collections.sort(digests);
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(GitBuildId.getVersion() + "\n" + GitBuildId.getFingerprint() + "\n",
+        Charsets.UTF_8);
+    for (String digest : digests) {
+      hasher.putString(digest + "\n", Charsets.UTF_8);
+    }
+    return hasher;
+  }
+
+  private static String getDigest(File aar) throws IOException {
+    String id = aar.getAbsolutePath() + "|" + aar.length() + "|" + aar.lastModified();
+    String digest = aarDigests.get(id);
+    if (digest == null) {
+      digest = Files.hash(aar, Hashing.sha1()).toString();
+      aarDigests.put(id, digest);
+    }
+    return digest;
+  }
+
+  private static void makeReadOnly(File file) {
+    if (file.isDirectory()) {
+      File[] children = file.listFiles();
+      if (children != null) {
+        for (File child : children) {
+          makeReadOnly(child);
+        }
+      }
+    } else {
+      // Directories stay writable, so that evicted entries can be deleted.
+      file.setWritable(false);
+    }
+  }
+
+  static int getHitCount() {
+    return hits.get();
+  }
+
+  static int getMissCount() {
+    return misses.get();
+  }
+
+  static int getEntryCount() {
+    DirectoryCache directoryCache = getCache();
+    return directoryCache == null ? 0 : directoryCache.getEntryCount();
+  }
+
+  static long getSizeInBytes() {
+    DirectoryCache directoryCache = getCache();
+    return directoryCache == null ? 0 : directoryCache.getSizeInBytes();
+  }
+}
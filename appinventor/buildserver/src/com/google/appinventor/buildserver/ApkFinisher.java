@@ -0,0 +1,605 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Signs and aligns an APK in a single pass, in process.
+ *
+ * <p>This replaces running jarsigner and then zipalign, each of which
+ * rewrote the whole APK. The entries of the unsigned APK are copied once,
+ * as they are stored in it: their compressed data, CRC, sizes and times are
+ * kept, and only the padding that aligns stored entries to 4 bytes, the way
+ * zipalign pads them, is changed. Each entry is digested for the v1 (JAR)
+ * signature as it is copied, by inflating it into the digest, and the
+ * signature files are appended at the end. Signature files already in the
+ * input, for example in an APK from the build cache, are dropped.</p>
+ *
+ * <p>Zip64 is not supported, neither in the input nor in the output, so an APK
+ * with 65535 entries or more, or larger than 4 GB, is rejected.</p>
+ *
+ * <p>Keys are cached by the digest of the keystore, so the keystore of a
+ * user is only loaded once while they build.</p>
+ */
+final class ApkFinisher {
+
+  // The alias and passwords ProjectBuilder creates keystores with.
+  static final String KEY_ALIAS = "AndroidKey";
+  // jarsigner names the signature files after the first 8 characters of the alias.
+  private static final String SIGNATURE_NAME = "ANDROIDK";
+  private static final char[] KEYSTORE_PASSWORD = "android".toCharArray();
+
+  private static final int ALIGNMENT = 4;
+
+  private static final String META_INF = "META-INF/";
+  private static final String MANIFEST_NAME = META_INF + "MANIFEST.MF";
+  private static final String CREATED_BY = "1.0 (Android)";
+  // MANIFEST.MF, the signature file and the signature block.
+  private static final int SIGNATURE_ENTRIES = 3;
+
+  // Zip format constants.
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIZE = 22;
+  private static final int ENCRYPTED_FLAG = 0x0001;
+  private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+  private static final int UTF8_FLAG = 0x0800;
+  // Without zip64, counts are limited to 16 bits and sizes and offsets to 32 bits. A count of
+  // 0xFFFF means that the real count is in the zip64 record.
+  private static final int MAX_ENTRIES = 0xFFFE;
+  private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // Maximum length of a manifest line in bytes, without the line break.
+  private static final int MAX_MANIFEST_LINE = 72;
+
+  private static final Cache<String, Signer> signers = CacheBuilder.newBuilder()
+      .maximumSize(100)
+      .expireAfterAccess(10, TimeUnit.MINUTES)
+      .build();
+
+  private ApkFinisher() {
+  }
+
+  /*
+   * The key and certificate of a keystore.
+   */
+  private static class Signer {
+    final PrivateKey key;
+    final X509Certificate certificate;
+
+    Signer(PrivateKey key, X509Certificate certificate) {
+      this.key = key;
+      this.certificate = certificate;
+    }
+  }
+
+  /*
+   * An entry of a zip file, as described by its central directory header. dosTime holds the DOS
+   * time and date fields as they are stored, so that copying an entry keeps them as they are.
+   */
+  private static class Entry {
+    final String name;
+    final byte[] nameBytes;
+    final int flags;
+    final int method;
+    final long dosTime;
+    final long crc;
+    final long compressedSize;
+    final long size;
+    final long offset;
+
+    Entry(byte[] nameBytes, int flags, int method, long dosTime, long crc, long compressedSize,
+        long size, long offset) {
+      this.name = new String(nameBytes, Charsets.UTF_8);
+      this.nameBytes = nameBytes;
+      this.flags = flags;
+      this.method = method;
+      this.dosTime = dosTime;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.offset = offset;
+    }
+
+    boolean isDirectory() {
+      return name.endsWith("/");
+    }
+  }
+
+  /**
+   * Writes a signed and aligned copy of an APK.
+   *
+   * @param inputApk  the APK to sign
+   * @param outputApk  the signed APK, must not be the input
+   * @param keystore  the keystore holding the {@value #KEY_ALIAS} key
+   */
+  static void finish(File inputApk, File outputApk, File keystore)
+      throws IOException, GeneralSecurityException {
+    Signer signer = getSigner(keystore);
+    long signatureTime = toDosTime(System.currentTimeMillis());
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    writeManifestLine(manifest, "Manifest-Version: 1.0");
+    writeManifestLine(manifest, "Created-By: " + CREATED_BY);
+    writeManifestLine(manifest, "");
+    ByteArrayOutputStream signatureFileSections = new ByteArrayOutputStream();
+
+    RandomAccessFile input = new RandomAccessFile(inputApk, "r");
+    try {
+      List<Entry> entries = new ArrayList<Entry>();
+      for (Entry entry : readCentralDirectory(input)) {
+        if (!isSignatureFile(entry.name)) {
+          entries.add(entry);
+        }
+      }
+      // Fail before writing anything rather than with a truncated APK.
+      if (entries.size() + SIGNATURE_ENTRIES > MAX_ENTRIES) {
+        throw new IOException("APK has more than " + MAX_ENTRIES + " entries, which needs " +
+            "zip64, and zip64 is not supported");
+      }
+      ZipWriter output = new ZipWriter(
+          new BufferedOutputStream(new FileOutputStream(outputApk)));
+      try {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+        for (Entry entry : entries) {
+          output.copy(input, entry, sha1);
+          byte[] digest = sha1.digest();
+          if (!entry.isDirectory()) {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            writeManifestLine(section, "Name: " + entry.name);
+            writeManifestLine(section, "SHA1-Digest: " + base64(digest));
+            writeManifestLine(section, "");
+            manifest.write(section.toByteArray());
+
+            writeManifestLine(signatureFileSections, "Name: " + entry.name);
+            writeManifestLine(signatureFileSections,
+                "SHA1-Digest: " + base64(sha1.digest(section.toByteArray())));
+            writeManifestLine(signatureFileSections, "");
+          }
+        }
+
+        ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+        writeManifestLine(signatureFile, "Signature-Version: 1.0");
+        writeManifestLine(signatureFile, "Created-By: " + CREATED_BY);
+        writeManifestLine(signatureFile,
+            "SHA1-Digest-Manifest: " + base64(sha1.digest(manifest.toByteArray())));
+        writeManifestLine(signatureFile, "");
+        signatureFile.write(signatureFileSections.toByteArray());
+
+        String keyAlgorithm = signer.key.getAlgorithm();
+        output.write(MANIFEST_NAME, manifest.toByteArray(), signatureTime);
+        output.write(META_INF + SIGNATURE_NAME + ".SF", signatureFile.toByteArray(),
+            signatureTime);
+        output.write(META_INF + SIGNATURE_NAME + "." + keyAlgorithm,
+            sign(signer, keyAlgorithm, signatureFile.toByteArray()), signatureTime);
+        output.finish();
+      } finally {
+        output.close();
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  private static Signer getSigner(File keystore) throws IOException, GeneralSecurityException {
+    String digest = Files.hash(keystore, Hashing.sha1()).toString();
+    Signer signer = signers.getIfPresent(digest);
+    if (signer == null) {
+      KeyStore keyStore = KeyStore.getInstance("JKS");
+      InputStream input = new FileInputStream(keystore);
+      try {
+        keyStore.load(input, KEYSTORE_PASSWORD);
+      } finally {
+        input.close();
+      }
+      PrivateKey key = (PrivateKey) keyStore.getKey(KEY_ALIAS, KEYSTORE_PASSWORD);
+      X509Certificate certificate = (X509Certificate) keyStore.getCertificate(KEY_ALIAS);
+      if (key == null || certificate == null) {
+        throw new GeneralSecurityException("No key " + KEY_ALIAS + " in " + keystore);
+      }
+      signer = new Signer(key, certificate);
+      signers.put(digest, signer);
+    }
+    return signer;
+  }
+
+  /*
+   * Creates the PKCS #7 signature block of the signature file, without signed attributes, the way
+   * jarsigner does.
+   */
+  private static byte[] sign(Signer signer, String keyAlgorithm, byte[] signatureFile)
+      throws IOException, GeneralSecurityException {
+    try {
+      ContentSigner contentSigner =
+          new JcaContentSignerBuilder("SHA1with" + keyAlgorithm).build(signer.key);
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(
+          new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+              .setDirectSignature(true)
+              .build(contentSigner, signer.certificate));
+      generator.addCertificates(new JcaCertStore(Collections.singletonList(signer.certificate)));
+      return generator.generate(new CMSProcessableByteArray(signatureFile), false).getEncoded();
+    } catch (OperatorCreationException|CMSException e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  static boolean isSignatureFile(String name) {
+    if (!name.startsWith(META_INF) || name.indexOf('/', META_INF.length()) != -1) {
+      return false;
+    }
+    return name.equals(MANIFEST_NAME) || name.endsWith(".SF") ||
+        name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+  }
+
+  /*
+   * Reads the entries of a zip file from its central directory, in order. Zip files that need
+   * zip64, or that have a comment longer than the end of central directory record allows, are
+   * rejected.
+   */
+  private static List<Entry> readCentralDirectory(RandomAccessFile input) throws IOException {
+    long length = input.length();
+    if (length > MAX_SIZE) {
+      throw new IOException("APK is larger than 4 GB, which needs zip64, and zip64 is not " +
+          "supported");
+    }
+    byte[] tail = new byte[(int) Math.min(length, END_SIZE + 0xFFFF)];
+    input.seek(length - tail.length);
+    input.readFully(tail);
+    int end = tail.length - END_SIZE;
+    while (end >= 0 && getInt(tail, end) != END_SIGNATURE) {
+      end--;
+    }
+    if (end < 0) {
+      throw new IOException("APK is not a zip file");
+    }
+    int count = getShort(tail, end + 10);
+    long directorySize = getInt(tail, end + 12);
+    long directoryOffset = getInt(tail, end + 16);
+    if (count > MAX_ENTRIES || directorySize == MAX_SIZE || directoryOffset == MAX_SIZE) {
+      throw new IOException("APK uses zip64, which is not supported");
+    }
+
+    byte[] directory = new byte[(int) directorySize];
+    input.seek(directoryOffset);
+    input.readFully(directory);
+    List<Entry> entries = new ArrayList<Entry>(count);
+    int position = 0;
+    for (int i = 0; i < count; i++) {
+      if (position + CENTRAL_HEADER_SIZE > directory.length ||
+          getInt(directory, position) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException("APK has a corrupt central directory");
+      }
+      int flags = getShort(directory, position + 8);
+      int method = getShort(directory, position + 10);
+      long dosTime = getInt(directory, position + 12);
+      long crc = getInt(directory, position + 16);
+      long compressedSize = getInt(directory, position + 20);
+      long size = getInt(directory, position + 24);
+      int nameLength = getShort(directory, position + 28);
+      int extraLength = getShort(directory, position + 30);
+      int commentLength = getShort(directory, position + 32);
+      long offset = getInt(directory, position + 42);
+      byte[] nameBytes = new byte[nameLength];
+      System.arraycopy(directory, position + CENTRAL_HEADER_SIZE, nameBytes, 0, nameLength);
+      Entry entry = new Entry(nameBytes, flags, method, dosTime, crc, compressedSize, size,
+          offset);
+      if (compressedSize == MAX_SIZE || size == MAX_SIZE || offset == MAX_SIZE) {
+        throw new IOException("APK entry " + entry.name + " uses zip64, which is not supported");
+      }
+      if ((flags & ENCRYPTED_FLAG) != 0) {
+        throw new IOException("APK entry " + entry.name + " is encrypted");
+      }
+      if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+        throw new IOException("APK entry " + entry.name + " has unsupported compression method " +
+            method);
+      }
+      entries.add(entry);
+      position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  private static int getShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+  }
+
+  private static long getInt(byte[] bytes, int offset) {
+    return getShort(bytes, offset) | ((long) getShort(bytes, offset + 2) << 16);
+  }
+
+  /*
+   * Returns the DOS time and date fields of a time. DOS times have no time zone; UTC is used so
+   * that the signature files do not depend on the time zone of the build server.
+   */
+  private static long toDosTime(long time) {
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    calendar.setTimeInMillis(time);
+    int year = calendar.get(Calendar.YEAR);
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return ((long) (year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) |
+        (calendar.get(Calendar.DAY_OF_MONTH) << 16) | (calendar.get(Calendar.HOUR_OF_DAY) << 11) |
+        (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+  }
+
+  private static String base64(byte[] bytes) {
+    return BaseEncoding.base64().encode(bytes);
+  }
+
+  /*
+   * Writes a manifest line, continuing it on further lines that start with a space if it is
+   * longer than 72 bytes. UTF-8 sequences are never split.
+   */
+  private static void writeManifestLine(ByteArrayOutputStream output, String line) {
+    byte[] bytes = line.getBytes(Charsets.UTF_8);
+    int start = 0;
+    int limit = MAX_MANIFEST_LINE;
+    while (bytes.length - start > limit) {
+      int end = start + limit;
+      while ((bytes[end] & 0xC0) == 0x80) {
+        end--;
+      }
+      output.write(bytes, start, end - start);
+      output.write('\r');
+      output.write('\n');
+      output.write(' ');
+      start = end;
+      limit = MAX_MANIFEST_LINE - 1;
+    }
+    output.write(bytes, start, bytes.length - start);
+    output.write('\r');
+    output.write('\n');
+  }
+
+  /*
+   * Writes a zip file whose stored entries have their data aligned.
+   */
+  private static class ZipWriter {
+    private final CountingOutputStream output;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Inflater inflater = new Inflater(true);
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] inflated = new byte[BUFFER_SIZE];
+
+    ZipWriter(OutputStream output) {
+      this.output = new CountingOutputStream(output);
+    }
+
+    /*
+     * Copies an entry of the input as it is stored there, and updates the digest with its
+     * uncompressed data. The data is inflated only for the digest, and to check it against the
+     * CRC and size of the entry.
+     */
+    void copy(RandomAccessFile input, Entry entry, MessageDigest digest) throws IOException {
+      byte[] header = new byte[LOCAL_HEADER_SIZE];
+      input.seek(entry.offset);
+      input.readFully(header);
+      if (getInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+        throw new IOException("APK entry " + entry.name + " has a corrupt local header");
+      }
+      input.seek(entry.offset + LOCAL_HEADER_SIZE + getShort(header, 26) + getShort(header, 28));
+
+      // The sizes are written in the local header, so no data descriptor follows the data.
+      writeLocalHeader(new Entry(entry.nameBytes, entry.flags & ~DATA_DESCRIPTOR_FLAG,
+          entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size,
+          output.getCount()));
+
+      boolean stored = entry.method == ZipEntry.STORED;
+      CRC32 crc = new CRC32();
+      long size = 0;
+      inflater.reset();
+      long remaining = entry.compressedSize;
+      while (remaining > 0) {
+        int count = (int) Math.min(remaining, buffer.length);
+        input.readFully(buffer, 0, count);
+        output.write(buffer, 0, count);
+        remaining -= count;
+        if (stored) {
+          crc.update(buffer, 0, count);
+          digest.update(buffer, 0, count);
+          size += count;
+        } else {
+          inflater.setInput(buffer, 0, count);
+          size += inflate(crc, digest);
+        }
+      }
+      if (!stored && !inflater.finished()) {
+        // Inflater may need an extra byte past the end of raw deflate data.
+        inflater.setInput(new byte[1]);
+        size += inflate(crc, digest);
+      }
+      if ((!stored && !inflater.finished()) || size != entry.size ||
+          crc.getValue() != entry.crc) {
+        throw new IOException("APK entry " + entry.name + " is corrupt");
+      }
+    }
+
+    private long inflate(CRC32 crc, MessageDigest digest) throws IOException {
+      long size = 0;
+      try {
+        int count;
+        while ((count = inflater.inflate(inflated)) > 0) {
+          crc.update(inflated, 0, count);
+          digest.update(inflated, 0, count);
+          size += count;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException(e);
+      }
+      return size;
+    }
+
+    /*
+     * Writes a new, deflated entry.
+     */
+    void write(String name, byte[] data, long dosTime) throws IOException {
+      byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2 + 16);
+      deflater.reset();
+      DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
+      deflaterOutput.write(data);
+      deflaterOutput.finish();
+      byte[] compressed = buffer.toByteArray();
+      writeLocalHeader(new Entry(nameBytes, flags(name), ZipEntry.DEFLATED, dosTime,
+          crc.getValue(), compressed.length, data.length, output.getCount()));
+      output.write(compressed);
+    }
+
+    /*
+     * Writes the local header of an entry, padding stored entries so that their data is aligned,
+     * and fails if the entry would not fit in a zip file without zip64.
+     */
+    private void writeLocalHeader(Entry entry) throws IOException {
+      if (entries.size() == MAX_ENTRIES) {
+        throw new IOException("APK has more than " + MAX_ENTRIES + " entries, which needs " +
+            "zip64, and zip64 is not supported");
+      }
+      int padding = 0;
+      if (entry.method == ZipEntry.STORED) {
+        long dataOffset = entry.offset + LOCAL_HEADER_SIZE + entry.nameBytes.length;
+        padding = (int) ((ALIGNMENT - dataOffset % ALIGNMENT) % ALIGNMENT);
+      }
+      checkSize(entry.offset + LOCAL_HEADER_SIZE + entry.nameBytes.length + padding +
+          entry.compressedSize);
+      writeInt(LOCAL_HEADER_SIGNATURE);
+      writeShort(entry.method == ZipEntry.STORED ? 10 : 20);
+      writeShort(entry.flags);
+      writeShort(entry.method);
+      writeInt(entry.dosTime);
+      writeInt(entry.crc);
+      writeInt(entry.compressedSize);
+      writeInt(entry.size);
+      writeShort(entry.nameBytes.length);
+      writeShort(padding);
+      output.write(entry.nameBytes);
+      // zipalign pads with zeros in the extra field.
+      output.write(new byte[padding]);
+      entries.add(entry);
+    }
+
+    void finish() throws IOException {
+      long centralDirectoryOffset = output.getCount();
+      long centralDirectoryEnd = centralDirectoryOffset;
+      for (Entry entry : entries) {
+        centralDirectoryEnd += CENTRAL_HEADER_SIZE + entry.nameBytes.length;
+      }
+      checkSize(centralDirectoryEnd + END_SIZE);
+      for (Entry entry : entries) {
+        writeInt(CENTRAL_HEADER_SIGNATURE);
+        writeShort(20);
+        writeShort(entry.method == ZipEntry.STORED ? 10 : 20);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(entry.compressedSize);
+        writeInt(entry.size);
+        writeShort(entry.nameBytes.length);
+        writeShort(0);  // extra field length
+        writeShort(0);  // comment length
+        writeShort(0);  // disk number
+        writeShort(0);  // internal attributes
+        writeInt(0);    // external attributes
+        writeInt(entry.offset);
+        output.write(entry.nameBytes);
+      }
+      long centralDirectorySize = output.getCount() - centralDirectoryOffset;
+      writeInt(END_SIGNATURE);
+      writeShort(0);
+      writeShort(0);
+      writeShort(entries.size());
+      writeShort(entries.size());
+      writeInt(centralDirectorySize);
+      writeInt(centralDirectoryOffset);
+      writeShort(0);
+    }
+
+    void close() throws IOException {
+      inflater.end();
+      deflater.end();
+      output.close();
+    }
+
+    private static void checkSize(long size) throws IOException {
+      if (size > MAX_SIZE) {
+        throw new IOException("Signed APK would be larger than 4 GB, which needs zip64, and " +
+            "zip64 is not supported");
+      }
+    }
+
+    private static int flags(String name) {
+      for (int i = 0; i < name.length(); i++) {
+        if (name.charAt(i) > 0x7F) {
+          return UTF8_FLAG;
+        }
+      }
+      return 0;
+    }
+
+    private void writeShort(int value) throws IOException {
+      output.write(value & 0xFF);
+      output.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long value) throws IOException {
+      writeShort((int) (value & 0xFFFF));
+      writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+  }
+}
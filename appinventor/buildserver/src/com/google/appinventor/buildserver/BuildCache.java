@@ -0,0 +1,327 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Cache of build results, so that building an unchanged project again does
+ * not run the whole aapt/Kawa/dx/ApkBuilder pipeline.
+ *
+ * <p>Entries are keyed by a digest of the project contents that influence
+ * the APK (every file of the project zip except the keystore and the blocks
+ * files, in name order and independent of zip metadata), the component types,
+ * the kind of build and the version of the build server. An entry holds the
+ * signed APK, a digest of the keystore it was signed with and the compiler
+ * messages of the build. When a project is built again with a different
+ * keystore, the cached APK is stripped of its signature and signed again.</p>
+ *
+ * <p>The total size of the cache directory is bounded; least recently used
+ * entries are evicted first (see {@link DirectoryCache}). The cache is
+ * disabled until {@link #configure(String, long)} is called with a
+ * directory.</p>
+ */
+final class BuildCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildCache.class.getName());
+
+  private static final String APK_FILE_NAME = "app.apk";
+  private static final String KEYSTORE_DIGEST_FILE_NAME = "keystore.sha1";
+  private static final String MESSAGES_FILE_NAME = "messages.txt";
+
+  private static final String KEYSTORE_FILE_NAME =
+      YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION;
+  private static final String CODEBLOCKS_SOURCE_EXTENSION =
+      YoungAndroidConstants.CODEBLOCKS_SOURCE_EXTENSION;
+  private static final String BLOCKLY_SOURCE_EXTENSION =
+      YoungAndroidConstants.BLOCKLY_SOURCE_EXTENSION;
+
+  private static DirectoryCache cache;
+
+  private static final AtomicInteger hits = new AtomicInteger(0);
+  private static final AtomicInteger resignedHits = new AtomicInteger(0);
+  private static final AtomicInteger misses = new AtomicInteger(0);
+
+  private BuildCache() {
+  }
+
+  /**
+   * A cached build result. The entry cannot be evicted until it is closed.
+   */
+  static final class Entry implements Closeable {
+    private final String key;
+    private final File apk;
+    private final String keystoreDigest;
+    private final String messages;
+
+    private Entry(String key, File apk, String keystoreDigest, String messages) {
+      this.key = key;
+      this.apk = apk;
+      this.keystoreDigest = keystoreDigest;
+      this.messages = messages;
+    }
+
+    /**
+     * Returns the compiler messages of the build that created this entry.
+     */
+    String getMessages() {
+      return messages;
+    }
+
+    /**
+     * Copies the cached APK to the given file, removing its signature if it
+     * was signed with a different keystore.
+     *
+     * @return  {@code true} if the copy is signed with the given keystore,
+     *     {@code false} if it has to be signed again
+     */
+    boolean copyApkTo(File destination, File keystore) throws IOException {
+      if (keystoreDigest.equals(digest(keystore))) {
+        Files.copy(apk, destination);
+        hits.incrementAndGet();
+        return true;
+      }
+      stripSignature(apk, destination);
+      resignedHits.incrementAndGet();
+      return false;
+    }
+
+    @Override
+    public void close() {
+      release(key);
+    }
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param dir  the cache directory, {@code null} to disable the cache
+   * @param maxMb  the maximum size of the cache directory, in MB
+   */
+  static synchronized void configure(String dir, long maxMb) {
+    cache = dir == null ? null : new DirectoryCache(new File(dir), maxMb * 1024 * 1024);
+  }
+
+  static synchronized boolean isEnabled() {
+    return cache != null;
+  }
+
+  private static synchronized DirectoryCache getCache() {
+    return cache;
+  }
+
+  private static void release(String key) {
+    DirectoryCache directoryCache = getCache();
+    if (directoryCache != null) {
+      directoryCache.release(key);
+    }
+  }
+
+  /**
+   * Computes the cache key of a build.
+   *
+   * @param inputZip  the project zip
+   * @param componentTypes  the component types of the build
+   * @param isForCompanion  whether the build is for the companion
+   */
+  static String computeKey(ZipFile inputZip, Set<String> componentTypes, boolean isForCompanion)
+      throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(GitBuildId.getVersion() + "\n" + GitBuildId.getFingerprint() + "\n",
+        Charsets.UTF_8);
+    hasher.putBoolean(isForCompanion);
+    for (String type : new TreeSet<String>(componentTypes)) {
+      hasher.putString(type + "\n", Charsets.UTF_8);
+    }
+    List<ZipEntry> zipEntries = Lists.newArrayList();
+    for (ZipEntry zipEntry : Collections.list(inputZip.entries())) {
+      String name = zipEntry.getName();
+      if (!zipEntry.isDirectory() && !name.equals(KEYSTORE_FILE_NAME) &&
+          !name.endsWith(CODEBLOCKS_SOURCE_EXTENSION) &&
+          !name.endsWith(BLOCKLY_SOURCE_EXTENSION)) {
+        zipEntries.add(zipEntry);
+      }
+    }
+    Collections.sort(zipEntries, new Comparator<ZipEntry>() {
+      @Override
+      public int compare(ZipEntry e1, ZipEntry e2) {
+        return e1.getName().compareTo(e2.getName());
+      }
+    });
+    byte[] buffer = new byte[8192];
+    for (ZipEntry zipEntry : zipEntries) {
+      hasher.putString(zipEntry.getName() + "\n", Charsets.UTF_8);
+      long length = 0;
+      InputStream input = inputZip.getInputStream(zipEntry);
+      try {
+        int n;
+        while ((n = input.read(buffer)) != -1) {
+          hasher.putBytes(buffer, 0, n);
+          length += n;
+        }
+      } finally {
+        input.close();
+      }
+      // Separates the contents of consecutive files.
+      hasher.putLong(length);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Looks up a build result. The caller must close the returned entry.
+   *
+   * @return  the cached result, or {@code null} if there is none
+   */
+  static Entry lookup(String key) {
+    DirectoryCache directoryCache = getCache();
+    File entryDir = directoryCache == null ? null : directoryCache.get(key);
+    if (entryDir == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    try {
+      return new Entry(key, new File(entryDir, APK_FILE_NAME),
+          Files.toString(new File(entryDir, KEYSTORE_DIGEST_FILE_NAME), Charsets.UTF_8),
+          Files.toString(new File(entryDir, MESSAGES_FILE_NAME), Charsets.UTF_8));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read build cache entry " + key, e);
+      directoryCache.release(key);
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Stores the result of a successful build.
+   *
+   * @param key  the cache key computed by {@link #computeKey}
+   * @param apk  the signed APK
+   * @param keystore  the keystore the APK was signed with
+   * @param messages  the compiler messages of the build
+   */
+  static void store(String key, File apk, File keystore, String messages) {
+    DirectoryCache directoryCache = getCache();
+    if (directoryCache == null || directoryCache.contains(key)) {
+      return;
+    }
+    File tmpDir = directoryCache.newEntryDir(key);
+    try {
+      Files.copy(apk, new File(tmpDir, APK_FILE_NAME));
+      Files.write(digest(keystore), new File(tmpDir, KEYSTORE_DIGEST_FILE_NAME), Charsets.UTF_8);
+      Files.write(messages, new File(tmpDir, MESSAGES_FILE_NAME), Charsets.UTF_8);
+      directoryCache.commit(key, tmpDir);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store build cache entry " + key, e);
+      FileUtils.deleteQuietly(tmpDir);
+    }
+  }
+
+  private static String digest(File file) throws IOException {
+    return Files.hash(file, Hashing.sha1()).toString();
+  }
+
+  /*
+   * Copies an APK without the signature files that jarsigner added to META-INF.
+   */
+  private static void stripSignature(File signedApk, File unsignedApk) throws IOException {
+    ZipInputStream input = new ZipInputStream(new BufferedInputStream(
+        new FileInputStream(signedApk)));
+    try {
+      ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(
+          new FileOutputStream(unsignedApk)));
+      try {
+        ZipEntry entry;
+        while ((entry = input.getNextEntry()) != null) {
+          String name = entry.getName();
+          if (ApkFinisher.isSignatureFile(name)) {
+            continue;
+          }
+          // Start from a fresh entry so that zipalign's padding is dropped.
+          ZipEntry copy = new ZipEntry(name);
+          copy.setTime(entry.getTime());
+          if (entry.getMethod() == ZipEntry.STORED) {
+            byte[] data = ByteStreams.toByteArray(input);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            copy.setMethod(ZipEntry.STORED);
+            copy.setSize(data.length);
+            copy.setCompressedSize(data.length);
+            copy.setCrc(crc.getValue());
+            output.putNextEntry(copy);
+            output.write(data);
+          } else {
+            output.putNextEntry(copy);
+            ByteStreams.copy(input, output);
+          }
+          output.closeEntry();
+        }
+      } finally {
+        output.close();
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  static int getHitCount() {
+    return hits.get();
+  }
+
+  static int getResignedHitCount() {
+    return resignedHits.get();
+  }
+
+  static int getMissCount() {
+    return misses.get();
+  }
+
+  static int getEvictionCount() {
+    DirectoryCache directoryCache = getCache();
+    return directoryCache == null ? 0 : directoryCache.getEvictionCount();
+  }
+
+  static int getEntryCount() {
+    DirectoryCache directoryCache = getCache();
+    return directoryCache == null ? 0 : directoryCache.getEntryCount();
+  }
+
+  static long getSizeInBytes() {
+    DirectoryCache directoryCache = getCache();
+    return directoryCache == null ? 0 : directoryCache.getSizeInBytes();
+  }
+}
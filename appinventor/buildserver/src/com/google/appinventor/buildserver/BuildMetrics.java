@@ -0,0 +1,131 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Latency histograms of the steps of a build, served by the build server in
+ * the Prometheus text exposition format.
+ *
+ * <p>The durations of the compiler stages, the extraction of the project
+ * zip and the creation of the output zip are kept in one histogram labelled
+ * by stage. The time builds wait for a build slot is kept in a histogram of
+ * its own.</p>
+ */
+final class BuildMetrics {
+
+  // Stage labels.
+  static final String EXTRACT_PROJECT = "extract_project";
+  static final String AAPT = "aapt";
+  static final String R_CLASSES = "r_classes";
+  static final String KAWA = "kawa";
+  static final String DX = "dx";
+  static final String APK_BUILDER = "apkbuilder";
+  static final String SIGN_AND_ALIGN = "sign_and_align";
+  static final String OUTPUT_ZIP = "output_zip";
+  static final String BUILD = "build";
+
+  // Upper bounds of the buckets, in seconds. Builds take from well under a
+  // second for a cached screen to minutes for dx on a large project.
+  private static final double[] BUCKETS =
+      {0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 20, 40, 80, 160, 320};
+
+  private static final String STAGE_METRIC = "buildserver_stage_duration_seconds";
+  private static final String QUEUE_WAIT_METRIC = "buildserver_queue_wait_seconds";
+
+  // Stage histograms, keyed by label, sorted so the output is stable.
+  private static final ConcurrentMap<String, Histogram> stages =
+      new ConcurrentSkipListMap<String, Histogram>();
+  private static final Histogram queueWait = new Histogram();
+
+  private BuildMetrics() {
+  }
+
+  /*
+   * A cumulative histogram.
+   */
+  private static class Histogram {
+    private final long[] counts = new long[BUCKETS.length];
+    private long count = 0;
+    private double sum = 0;
+
+    synchronized void observe(double seconds) {
+      for (int i = 0; i < BUCKETS.length; i++) {
+        if (seconds <= BUCKETS[i]) {
+          counts[i]++;
+        }
+      }
+      count++;
+      sum += seconds;
+    }
+
+    synchronized void write(StringBuilder sb, String name, String labels) {
+      String separator = labels.isEmpty() ? "" : ",";
+      for (int i = 0; i < BUCKETS.length; i++) {
+        sb.append(name).append("_bucket{").append(labels).append(separator)
+            .append("le=\"").append(BUCKETS[i]).append("\"} ").append(counts[i]).append('\n');
+      }
+      sb.append(name).append("_bucket{").append(labels).append(separator)
+          .append("le=\"+Inf\"} ").append(count).append('\n');
+      String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+      sb.append(name).append("_sum").append(braces).append(' ').append(sum).append('\n');
+      sb.append(name).append("_count").append(braces).append(' ').append(count).append('\n');
+    }
+  }
+
+  /**
+   * Records the duration of a stage that started at the given time.
+   *
+   * @param stage  the stage label
+   * @param startMillis  the start of the stage, from
+   *     {@link System#currentTimeMillis()}
+   */
+  static void observeStage(String stage, long startMillis) {
+    observeStageMillis(stage, System.currentTimeMillis() - startMillis);
+  }
+
+  /**
+   * Records the duration of a stage.
+   *
+   * @param stage  the stage label
+   * @param millis  the duration of the stage
+   */
+  static void observeStageMillis(String stage, long millis) {
+    Histogram histogram = stages.get(stage);
+    if (histogram == null) {
+      stages.putIfAbsent(stage, new Histogram());
+      histogram = stages.get(stage);
+    }
+    histogram.observe(millis / 1000.0);
+  }
+
+  /**
+   * Records the time a build waited for a build slot.
+   */
+  static void observeQueueWait(long millis) {
+    queueWait.observe(millis / 1000.0);
+  }
+
+  /**
+   * Returns all metrics in the Prometheus text exposition format.
+   */
+  static String toPrometheusText() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("# HELP ").append(STAGE_METRIC).append(" Time spent in each stage of a build.\n");
+    sb.append("# TYPE ").append(STAGE_METRIC).append(" histogram\n");
+    for (Map.Entry<String, Histogram> entry : stages.entrySet()) {
+      entry.getValue().write(sb, STAGE_METRIC, "stage=\"" + entry.getKey() + "\"");
+    }
+    sb.append("# HELP ").append(QUEUE_WAIT_METRIC)
+        .append(" Time builds waited for a free build slot.\n");
+    sb.append("# TYPE ").append(QUEUE_WAIT_METRIC).append(" histogram\n");
+    queueWait.write(sb, QUEUE_WAIT_METRIC, "");
+    return sb.toString();
+  }
+}
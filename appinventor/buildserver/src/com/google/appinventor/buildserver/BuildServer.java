@@ -9,6 +9,7 @@ import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.sun.grizzly.http.SelectorThread;
 import com.sun.jersey.api.container.grizzly.GrizzlyServerFactory;
@@ -20,14 +21,14 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.lang.management.ManagementFactory;
@@ -42,10 +43,16 @@ import java.text.DateFormat;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
@@ -73,14 +80,96 @@ public class BuildServer {
     // We create a ProgressReporter instance which is handed off to the
     // project builder and compiler. It is called to report the progress
     // of the build. The reporting is done by calling the callback URL
-    // and putting the status inside a "build.status" file. This isn't
-    // particularly efficient, but this is the version 0.9 implementation
+    // and putting the status inside a "build.status" file.
+    //
+    // Reports never block the build. Only the latest progress is kept and it
+    // is posted by a thread shared by all builds, at most once per
+    // PROGRESS_INTERVAL_MS for each build. Progress that is still pending
+    // when the build is over is dropped, as the result zip follows.
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private static final ScheduledExecutorService sender =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("progress-reporter-%d").setDaemon(true).build());
+
+    private static final AtomicInteger sentReports = new AtomicInteger(0);
+    private static final AtomicInteger coalescedReports = new AtomicInteger(0);
+
     String callbackUrlStr;
+
+    // The progress waiting to be posted, -1 for none.
+    private int pendingProgress = -1;
+    private boolean scheduled = false;
+    private boolean sending = false;
+    private boolean closed = false;
+    private long lastSentMillis = 0;
+
+    private final Runnable sendTask = new Runnable() {
+      @Override
+      public void run() {
+        sendPending();
+      }
+    };
+
     ProgressReporter(String callbackUrlStr) {
       this.callbackUrlStr = callbackUrlStr;
     }
 
-    public void report(int progress) {
+    public synchronized void report(int progress) {
+      if (closed) {
+        return;
+      }
+      if (pendingProgress >= 0) {
+        coalescedReports.incrementAndGet();
+      }
+      pendingProgress = progress;
+      if (!scheduled) {
+        scheduled = true;
+        long delay = lastSentMillis + PROGRESS_INTERVAL_MS - System.currentTimeMillis();
+        sender.schedule(sendTask, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /**
+     * Drops any pending progress and waits for a post that is under way, so
+     * that no progress reaches the callback URL after the result does.
+     */
+    public synchronized void close() {
+      closed = true;
+      pendingProgress = -1;
+      while (sending) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+
+    private void sendPending() {
+      int progress;
+      synchronized (this) {
+        scheduled = false;
+        if (closed || pendingProgress < 0) {
+          return;
+        }
+        progress = pendingProgress;
+        pendingProgress = -1;
+        sending = true;
+      }
+      try {
+        post(progress);
+      } finally {
+        synchronized (this) {
+          sending = false;
+          lastSentMillis = System.currentTimeMillis();
+          notifyAll();
+        }
+      }
+    }
+
+    private void post(int progress) {
       try {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         ZipOutputStream zipoutput = new ZipOutputStream(output);
@@ -90,7 +179,7 @@ public class BuildServer {
         pout.flush();
         zipoutput.flush();
         zipoutput.close();
-        ByteArrayInputStream zipinput = new ByteArrayInputStream(output.toByteArray());
+        byte[] zip = output.toByteArray();
         URL callbackUrl = new URL(callbackUrlStr);
         HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
         connection.setDoOutput(true);
@@ -98,27 +187,42 @@ public class BuildServer {
         // Make sure we aren't misinterpreted as
         // form-url-encoded
         connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
+        connection.setFixedLengthStreamingMode(zip.length);
         connection.setConnectTimeout(5000);
         connection.setReadTimeout(5000);
-        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+        OutputStream connectionOutput = connection.getOutputStream();
         try {
-          BufferedInputStream bufferedInputStream = new BufferedInputStream(zipinput);
+          connectionOutput.write(zip);
+        } finally {
+          connectionOutput.close();
+        }
+        int responseCode = connection.getResponseCode();
+        // Read the whole response so that the connection can be reused.
+        InputStream response = responseCode < HttpURLConnection.HTTP_BAD_REQUEST
+          ? connection.getInputStream() : connection.getErrorStream();
+        if (response != null) {
           try {
-            ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-            bufferedOutputStream.flush();
+            ByteStreams.copy(response, ByteStreams.nullOutputStream());
           } finally {
-            bufferedInputStream.close();
+            response.close();
           }
-        } finally {
-          bufferedOutputStream.close();
         }
-        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-          LOG.severe("Bad Response Code! (sending status): "+ connection.getResponseCode());
+        sentReports.incrementAndGet();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+          LOG.severe("Bad Response Code! (sending status): "+ responseCode);
         }
       } catch (IOException e) {
         LOG.severe("IOException during progress report!");
       }
     }
+
+    static int getSentCount() {
+      return sentReports.get();
+    }
+
+    static int getCoalescedCount() {
+      return coalescedReports.get();
+    }
   }
 
 
@@ -135,6 +239,16 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for a free build slot. 0 means builds are " +
+      "rejected when all slots are busy. Ignored if --maxSimultaneousBuilds is unlimited.")
+    int maxQueuedBuilds = 100;  // Enough for a few classes building at once.
+
+    @Option(name = "--maxQueueWaitSeconds",
+      usage = "Maximum time in seconds a build can wait for a free build slot before it is " +
+      "rejected. 0 means builds wait until a slot is free.")
+    int maxQueueWaitSeconds = 600;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -151,6 +265,82 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--dexCacheMaxMb",
+      usage = "Maximum size of the pre-dexed library cache directory, in MB.")
+    long dexCacheMaxMb = 2048;
+
+    @Option(name = "--resourceDir",
+      usage = "The directory the build tools and runtime jars are unpacked into at startup. It " +
+      "is reused by later build servers of the same version. Defaults to a directory in the " +
+      "temporary directory.")
+    String resourceDir = null;
+
+    @Option(name = "--kawaWorkers",
+      usage = "Number of idle warm Kawa compiler processes to keep for reuse. 0 means a new " +
+      "Kawa process is started for every build.")
+    int kawaWorkers = 0;
+
+    @Option(name = "--kawaWorkerMaxJobs",
+      usage = "Number of compilations after which a warm Kawa compiler process is replaced.")
+    int kawaWorkerMaxJobs = 20;
+
+    @Option(name = "--buildCacheDir",
+      usage = "The directory to cache the APKs of recent builds in, so that building an " +
+      "unchanged project again is fast. If not given, builds are not cached.")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheMaxMb",
+      usage = "Maximum size of the build cache directory, in MB.")
+    long buildCacheMaxMb = 2048;
+
+    @Option(name = "--screenClassCacheDir",
+      usage = "The directory to cache the compiled classes of each screen in, so that only the " +
+      "screens that changed are compiled again. If not given, all screens are compiled together " +
+      "by every build.")
+    String screenClassCacheDir = null;
+
+    @Option(name = "--screenClassCacheMaxMb",
+      usage = "Maximum size of the screen class cache directory, in MB.")
+    long screenClassCacheMaxMb = 512;
+
+    @Option(name = "--aarCacheDir",
+      usage = "The directory to keep the unpacked AAR libraries, their merged resources and " +
+      "their R classes in, shared by all builds. If not given, every build unpacks and merges " +
+      "the AAR libraries it uses.")
+    String aarCacheDir = null;
+
+    @Option(name = "--aarCacheMaxMb",
+      usage = "Maximum size of the AAR library cache directory, in MB.")
+    long aarCacheMaxMb = 1024;
+
+    @Option(name = "--keystorePoolSize",
+      usage = "Number of key pairs generated in the background for the keystores of projects " +
+      "that do not have one yet. 0 means every key pair is generated by the build that needs it.")
+    int keystorePoolSize = 4;
+
+    @Option(name = "--childProcessTimeoutSeconds",
+      usage = "Longest deadline of a child process of a build, in seconds. aapt, Kawa and dx each " +
+      "have their own deadline, which is cut down to this one. A child process that runs past " +
+      "its deadline is killed along with its descendants and the build fails. 0 means no " +
+      "deadlines.")
+    long childProcessTimeoutSeconds = 600;
+
+    @Option(name = "--childProcessMemoryBudgetMb",
+      usage = "Memory available to the Kawa and dx child processes of all builds, in MB. As many " +
+      "child processes run in parallel as fit in the budget, counting --childProcessRamMb for " +
+      "each. 0 means the free physical memory of the host at startup.")
+    long childProcessMemoryBudgetMb = 0;
+
+    @Option(name = "--maxParallelCompiles",
+      usage = "Maximum number of Kawa compiles that can run in parallel. 0 means only the memory " +
+      "budget limits them.")
+    int maxParallelCompiles = 0;
+
+    @Option(name = "--maxParallelDexes",
+      usage = "Maximum number of dx runs that can run in parallel. 0 means only the memory " +
+      "budget limits them.")
+    int maxParallelDexes = 0;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -167,12 +357,21 @@ public class BuildServer {
 
   private static final AtomicInteger buildCount = new AtomicInteger(0);
 
+  // The size of the chunks the output zip is posted to the callback URL in.
+  private static final int CALLBACK_CHUNK_SIZE = 64 * 1024;
+
+  // How many times the output zip is posted to the callback URL before giving up.
+  private static final int CALLBACK_ATTEMPTS = 2;
+
   // The number of build requests for this server run
   private static final AtomicInteger asyncBuildRequests = new AtomicInteger(0);
 
   // The number of rejected build requests for this server run
   private static final AtomicInteger rejectedAsyncBuildRequests = new AtomicInteger(0);
 
+  // The number of build requests with a corrupt project zip for this server run
+  private static final AtomicInteger corruptAsyncBuildRequests = new AtomicInteger(0);
+
   //The number of successful build requests for this server run
   private static final AtomicInteger successfulBuildRequests = new AtomicInteger(0);
 
@@ -182,11 +381,29 @@ public class BuildServer {
   //The number of failed build requests for this server run
   private static int maximumActiveBuildTasks = 0;
 
-  // The build executor used to limit the number of simultaneous builds.
+  // The number of queued build requests that waited too long for a build slot
+  private static final AtomicInteger expiredBuildRequests = new AtomicInteger(0);
+
+  // The number of builds cancelled because the same project was built again
+  private static final AtomicInteger supersededBuildRequests = new AtomicInteger(0);
+
+  // The number of builds cancelled by a cancel-build request
+  private static final AtomicInteger cancelledBuildRequests = new AtomicInteger(0);
+
+  // Queued and running builds, keyed by user, project and target.
+  private static final ConcurrentMap<String, RunningBuild> runningBuilds =
+    new ConcurrentHashMap<String, RunningBuild>();
+
+  // The tasks of the queued and running builds, so that a superseded build can be taken out of
+  // the queue.
+  private static final ConcurrentMap<RunningBuild, Runnable> buildTasks =
+    new ConcurrentHashMap<RunningBuild, Runnable>();
+
+  // The build executor used to limit the number of simultaneous builds and queue the excess.
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static QueuingExecutor buildExecutor;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -289,8 +506,15 @@ public class BuildServer {
     // Build requests
     variables.put("count-async-build-requests", asyncBuildRequests.get() + "");
     variables.put("rejected-async-build-requests", rejectedAsyncBuildRequests.get() + "");
+    variables.put("corrupt-async-build-requests", corruptAsyncBuildRequests.get() + "");
     variables.put("successful-async-build-requests", successfulBuildRequests.get() + "");
     variables.put("failed-async-build-requests", failedBuildRequests.get() + "");
+    variables.put("expired-async-build-requests", expiredBuildRequests.get() + "");
+    variables.put("superseded-async-build-requests", supersededBuildRequests.get() + "");
+    variables.put("cancelled-async-build-requests", cancelledBuildRequests.get() + "");
+    variables.put("timed-out-child-processes", Execution.getTimedOutCount() + "");
+    variables.put("sent-progress-reports", ProgressReporter.getSentCount() + "");
+    variables.put("coalesced-progress-reports", ProgressReporter.getCoalescedCount() + "");
 
     // Build tasks
     int max = buildExecutor.getMaxActiveTasks();
@@ -304,6 +528,87 @@ public class BuildServer {
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
 
+    // Kawa compiler workers
+    if (KawaCompilerPool.isEnabled()) {
+      variables.put("idle-kawa-workers", KawaCompilerPool.getIdleWorkerCount() + "");
+      variables.put("started-kawa-workers", KawaCompilerPool.getStartedWorkerCount() + "");
+      variables.put("reused-kawa-workers", KawaCompilerPool.getReusedWorkerCount() + "");
+      variables.put("failed-kawa-worker-jobs", KawaCompilerPool.getFailedJobCount() + "");
+      variables.put("fallback-kawa-compiles", KawaCompilerPool.getFallbackCompileCount() + "");
+    }
+
+    // Build cache
+    if (BuildCache.isEnabled()) {
+      int hits = BuildCache.getHitCount() + BuildCache.getResignedHitCount();
+      int lookups = hits + BuildCache.getMissCount();
+      variables.put("build-cache-hits", hits + "");
+      variables.put("build-cache-resigned-hits", BuildCache.getResignedHitCount() + "");
+      variables.put("build-cache-misses", BuildCache.getMissCount() + "");
+      variables.put("build-cache-hit-rate", (lookups == 0 ? 0 : 100 * hits / lookups) + "%");
+      variables.put("build-cache-entries", BuildCache.getEntryCount() + "");
+      variables.put("build-cache-size-in-bytes", BuildCache.getSizeInBytes() + "");
+      variables.put("build-cache-evictions", BuildCache.getEvictionCount() + "");
+    }
+
+    // Screen class cache
+    if (ScreenClassCache.isEnabled()) {
+      variables.put("screen-class-cache-hits", ScreenClassCache.getHitCount() + "");
+      variables.put("screen-class-cache-misses", ScreenClassCache.getMissCount() + "");
+      variables.put("screen-class-cache-entries", ScreenClassCache.getEntryCount() + "");
+      variables.put("screen-class-cache-size-in-bytes", ScreenClassCache.getSizeInBytes() + "");
+    }
+
+    // AAR library cache
+    if (AarLibraryCache.isEnabled()) {
+      variables.put("aar-cache-hits", AarLibraryCache.getHitCount() + "");
+      variables.put("aar-cache-misses", AarLibraryCache.getMissCount() + "");
+      variables.put("aar-cache-entries", AarLibraryCache.getEntryCount() + "");
+      variables.put("aar-cache-size-in-bytes", AarLibraryCache.getSizeInBytes() + "");
+    }
+
+    // Keystore pool
+    int keyStoreHits = KeyStorePool.getHitCount();
+    int keyStoreLookups = keyStoreHits + KeyStorePool.getMissCount();
+    variables.put("keystore-pool-capacity", KeyStorePool.getCapacity() + "");
+    variables.put("keystore-pool-available", KeyStorePool.getAvailableCount() + "");
+    variables.put("keystore-pool-hits", keyStoreHits + "");
+    variables.put("keystore-pool-misses", KeyStorePool.getMissCount() + "");
+    variables.put("keystore-pool-hit-rate",
+        (keyStoreLookups == 0 ? 0 : 100 * keyStoreHits / keyStoreLookups) + "%");
+    variables.put("keystore-pool-refills", KeyStorePool.getRefillCount() + "");
+    variables.put("keystore-pool-refills-per-minute",
+        String.format("%.1f", KeyStorePool.getRefillsPerMinute()));
+    variables.put("keystore-pool-average-generation-ms",
+        KeyStorePool.getAverageGenerationMillis() + "");
+
+    // Pre-dex cache
+    if (commandLineOptions.dexCacheDir != null) {
+      variables.put("pre-dex-cache-hits", DexExecTask.getPreDexHitCount() + "");
+      variables.put("pre-dex-cache-misses", DexExecTask.getPreDexMissCount() + "");
+      variables.put("pre-dex-cache-entries", DexExecTask.getDexCacheEntryCount() + "");
+      variables.put("pre-dex-cache-size-in-bytes", DexExecTask.getDexCacheSizeInBytes() + "");
+    }
+
+    // Child processes
+    variables.put("child-process-memory-budget-in-mb",
+        ChildProcessAdmission.getMemoryBudgetMb() + "");
+    variables.put("reserved-child-process-memory-in-mb",
+        ChildProcessAdmission.getReservedMemoryMb() + "");
+    variables.put("active-compile-processes",
+        ChildProcessAdmission.getActiveCount(ChildProcessAdmission.Stage.COMPILE) + "");
+    variables.put("active-dex-processes",
+        ChildProcessAdmission.getActiveCount(ChildProcessAdmission.Stage.DEX) + "");
+    variables.put("waiting-child-processes", ChildProcessAdmission.getWaitingCount() + "");
+
+    // Build queue
+    variables.put("maximum-queued-build-tasks-allowed", buildExecutor.getMaxQueuedTasks() + "");
+    long maxWait = buildExecutor.getMaxQueueWaitMillis();
+    variables.put("maximum-queue-wait-allowed-in-ms", maxWait == 0 ? "unlimited" : maxWait + "");
+    variables.put("queued-build-tasks", buildExecutor.getQueuedTaskCount() + "");
+    variables.put("expired-queued-build-tasks", buildExecutor.getExpiredTaskCount() + "");
+    variables.put("average-queue-wait-in-ms", buildExecutor.getAverageQueueWaitMillis() + "");
+    variables.put("longest-queue-wait-in-ms", buildExecutor.getLongestQueueWaitMillis() + "");
+
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
     for (Map.Entry<String, String> variable : variables.entrySet()) {
@@ -314,6 +619,20 @@ public class BuildServer {
     return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
   }
 
+  /**
+   * Returns latency histograms of the build stages in the Prometheus text
+   * exposition format.
+   *
+   * @return the metrics
+   */
+  @GET
+  @Path("metrics")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response metrics() {
+    return Response.ok(BuildMetrics.toPrometheusText())
+        .type("text/plain; version=0.0.4; charset=utf-8").build();
+  }
+
   /**
    * Indicate that the server is shutting down.
    *
@@ -446,12 +765,24 @@ public class BuildServer {
    * The status code returned here will be seen by the server in YoungAndroidProjectService.build
    * as connection.getResponseCode().
    *
+   * If all build slots are busy, the build is queued. Interactive builds, which the user is waiting
+   * for to test the app on a device, are started before other builds and queued builds of
+   * different users are started round-robin. If the build waits in
+   * the queue for too long, a failing build.out is posted to the callbackUrl instead.
+   *
+   * A build of the same project and target for the same user that is still queued or running is
+   * cancelled, and nothing is posted to its callbackUrl.
+   *
    * @param userName  The user name to be used in making the CN entry in the generated keystore.
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
+   * @param interactive  Whether the build is interactive, sent by YoungAndroidProjectService.build
+   *     for builds whose barcode is scanned to install the app.
    * @param callbackUrlStr An url to send the build results back to.
-   * @param inputZipFile  The zip file representing the App Inventor source code.
-   * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
+   * @param inputZipStream  The zip file representing the App Inventor source code. It is usually
+   *     sent with chunked transfer encoding, and is checked as it is received.
+   * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503), or BAD_REQUEST
+   *     (400) if the zip is corrupt.
    */
   @POST
   @Path("build-all-from-zip-async")
@@ -460,11 +791,21 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
-    final File inputZipFile) throws IOException {
+    @QueryParam("interactive") final boolean interactive,
+    InputStream inputZipStream) throws IOException {
+    final File inputZipFile = File.createTempFile("project", ".zip");
     // Set the inputZip field so we can delete the input zip file later in
     // cleanUp.
     inputZip = inputZipFile;
     inputZip.deleteOnExit(); // In case build server is killed before cleanUp executes.
+    try {
+      UploadedZip.receive(inputZipStream, inputZipFile);
+    } catch (ZipException e) {
+      LOG.warning("Corrupt project zip received: " + e.getMessage());
+      corruptAsyncBuildRequests.incrementAndGet();
+      cleanUp();
+      return Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN_TYPE).entity("The project was damaged while it was sent, try again.").build();
+    }
     String requesting_host = (new URL(callbackUrlStr)).getHost();
 
     //for the request for update part, the file should be empty
@@ -514,57 +855,74 @@ public class BuildServer {
         }
       }
 
+      String projectId = ProjectBuilder.getMainClass(inputZipFile);
+      final RunningBuild runningBuild = new RunningBuild(userName,
+          projectId == null ? inputZipFile.getName() : projectId, false);
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
+            if (!runningBuild.attach()) {
+              // Superseded while it was queued.
+              finishBuild(runningBuild);
+              cleanUp();
+              return;
+            }
             int count = buildCount.incrementAndGet();
+            ProgressReporter reporter = new ProgressReporter(callbackUrlStr);
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile, new ProgressReporter(callbackUrlStr));
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
-              } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
+              Result buildResult = buildAndRecord(userName, inputZipFile, reporter);
+              reporter.close();
+              if (runningBuild.isCancelled()) {
+                LOG.info("BUILD " + count + " CANCELLED");
+              } else {
+                // Send zip back to the callbackUrl
+                sendOutputZip(callbackUrlStr, buildResult);
               }
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
               LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
             } finally {
+              reporter.close();
+              runningBuild.detach();
+              finishBuild(runningBuild);
               cleanUp();
               checkMemory();
               LOG.info("BUILD " + count + " FINISHED");
             }
           }
         };
+      Runnable expiredTask = new Runnable() {
+          @Override
+          public void run() {
+            // This request was rejected because it waited in the queue for too long.
+            finishBuild(runningBuild);
+            expiredBuildRequests.incrementAndGet();
+            rejectedAsyncBuildRequests.incrementAndGet();
+            try {
+              sendOutputZip(callbackUrlStr, Result.createFailingResult("",
+                  "The build server was too busy to start your build. Please try again."));
+            } catch (Exception e) {
+              LOG.severe("Exception: " + e.getMessage() + " while reporting an expired build");
+            } finally {
+              cleanUp();
+            }
+          }
+        };
+      buildTasks.put(runningBuild, buildTask);
+      RunningBuild superseded = runningBuilds.put(runningBuild.getKey(), runningBuild);
+      if (superseded != null) {
+        LOG.info("Cancelling the previous build of " + runningBuild.getKey());
+        supersededBuildRequests.incrementAndGet();
+        cancelBuild(superseded);
+      }
       try {
-        buildExecutor.execute(buildTask);
+        buildExecutor.execute(buildTask, expiredTask, userName, interactive);
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy and the build queue is full.
+        finishBuild(runningBuild);
         rejectedAsyncBuildRequests.incrementAndGet();
         cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
@@ -583,14 +941,93 @@ public class BuildServer {
       .entity("" + 50).build();
   }
 
+  /**
+   * Cancels a queued or running build, for example when the user closed App Inventor. Nothing is
+   * posted to the callbackUrl of the cancelled build.
+   *
+   * @param userName  The user name the build was requested with.
+   * @param mainClass  The main class of the project, from its project.properties.
+   * @return OK (200) if the build was cancelled, NOT_FOUND (404) if there was no such build.
+   */
+  @POST
+  @Path("cancel-build")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response cancelBuild(
+    @QueryParam("uname") String userName,
+    @QueryParam("main") String mainClass) {
+    String key = new RunningBuild(userName, mainClass, false).getKey();
+    RunningBuild runningBuild = runningBuilds.remove(key);
+    if (runningBuild == null) {
+      return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("No such build").build();
+    }
+    LOG.info("Cancelling the build of " + key);
+    cancelledBuildRequests.incrementAndGet();
+    cancelBuild(runningBuild);
+    return Response.ok("Cancelled", MediaType.TEXT_PLAIN_TYPE).build();
+  }
+
+  /*
+   * Cancels a build. If it is still queued, its task is run right away, which only cleans up.
+   */
+  private static void cancelBuild(RunningBuild runningBuild) {
+    runningBuild.cancel();
+    Runnable buildTask = buildTasks.get(runningBuild);
+    if (buildTask != null && buildExecutor.remove(buildTask)) {
+      new Thread(buildTask).start();
+    }
+  }
+
+  /*
+   * Forgets a build that is over.
+   */
+  private static void finishBuild(RunningBuild runningBuild) {
+    buildTasks.remove(runningBuild);
+    runningBuilds.remove(runningBuild.getKey(), runningBuild);
+  }
+
   private void buildAndCreateZip(String userName, File inputZipFile, ProgressReporter reporter)
     throws IOException, JSONException {
+    Result buildResult = buildAndRecord(userName, inputZipFile, reporter);
+    createOutputZip(inputZipFile, buildResult);
+  }
+
+  private Result buildAndRecord(String userName, File inputZipFile, ProgressReporter reporter)
+    throws IOException {
     Result buildResult = build(userName, inputZipFile, reporter);
-    boolean buildSucceeded = buildResult.succeeded();
+    if (buildResult.succeeded()) {
+      successfulBuildRequests.getAndIncrement();
+    } else {
+      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
+      failedBuildRequests.getAndIncrement();
+    }
+    return buildResult;
+  }
+
+  /*
+   * Writes the zip file that is sent back to the requester of a synchronous build.
+   */
+  private void createOutputZip(File inputZipFile, Result buildResult)
+    throws IOException, JSONException {
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
+    OutputStream output = new BufferedOutputStream(new FileOutputStream(outputZip));
+    try {
+      writeOutputZip(buildResult, output);
+    } finally {
+      output.close();
+    }
+  }
+
+  /*
+   * Writes the zip that is sent back to the requester. It contains the build.out file as well
+   * as the APK file and the generated android.keystore file, if any.
+   */
+  private void writeOutputZip(Result buildResult, OutputStream output)
+    throws IOException, JSONException {
+    long startOutputZip = System.currentTimeMillis();
+    boolean buildSucceeded = buildResult.succeeded() && outputApk != null;
+    ZipOutputStream zipOutputStream = new ZipOutputStream(output);
     if (buildSucceeded) {
       if (outputKeystore != null) {
         zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
@@ -598,18 +1035,67 @@ public class BuildServer {
       }
       zipOutputStream.putNextEntry(new ZipEntry(outputApk.getName()));
       Files.copy(outputApk, zipOutputStream);
-      successfulBuildRequests.getAndIncrement();
-    } else {
-      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
-      failedBuildRequests.getAndIncrement();
     }
     zipOutputStream.putNextEntry(new ZipEntry("build.out"));
     String buildOutputJson = genBuildOutput(buildResult);
     PrintStream zipPrintStream = new PrintStream(zipOutputStream);
     zipPrintStream.print(buildOutputJson);
     zipPrintStream.flush();
+    zipOutputStream.finish();
     zipOutputStream.flush();
-    zipOutputStream.close();
+    BuildMetrics.observeStage(BuildMetrics.OUTPUT_ZIP, startOutputZip);
+  }
+
+  /*
+   * Posts the output zip to the callback URL. The zip is written straight to the connection in
+   * chunks, reading the APK from where the build left it. If the post fails, it is retried from
+   * the same files, which are only deleted in cleanUp.
+   */
+  private void sendOutputZip(String callbackUrlStr, Result buildResult)
+    throws IOException, JSONException {
+    LOG.info("CallbackURL: " + callbackUrlStr);
+    URL callbackUrl = new URL(callbackUrlStr);
+    for (int attempt = 1; ; attempt++) {
+      try {
+        int responseCode = postOutputZip(callbackUrl, buildResult);
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+          return;
+        }
+        LOG.severe("Bad Response Code!: " + responseCode);
+        if (responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR ||
+            attempt == CALLBACK_ATTEMPTS) {
+          return;
+        }
+      } catch (IOException e) {
+        if (attempt == CALLBACK_ATTEMPTS) {
+          throw e;
+        }
+        LOG.warning("Unable to post the build result, retrying: " + e.getMessage());
+      }
+    }
+  }
+
+  private int postOutputZip(URL callbackUrl, Result buildResult)
+    throws IOException, JSONException {
+    HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    // Make sure we aren't misinterpreted as
+    // form-url-encoded
+    connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
+    connection.setChunkedStreamingMode(CALLBACK_CHUNK_SIZE);
+    connection.setConnectTimeout(60000);
+    connection.setReadTimeout(60000);
+    BufferedOutputStream bufferedOutputStream =
+      new BufferedOutputStream(connection.getOutputStream(), CALLBACK_CHUNK_SIZE);
+    try {
+      writeOutputZip(buildResult, bufferedOutputStream);
+      checkMemory();
+      bufferedOutputStream.flush();
+    } finally {
+      bufferedOutputStream.close();
+    }
+    return connection.getResponseCode();
   }
 
   private String genBuildOutput(Result buildResult) throws JSONException {
@@ -704,13 +1190,14 @@ public class BuildServer {
             return;
           }
           while (true) {
-            int tasks = buildExecutor.getActiveTaskCount();
+            int tasks = buildExecutor.getActiveTaskCount() + buildExecutor.getQueuedTaskCount();
             if (tasks <= 0) {
               try {
                 Thread.sleep(10000); // One final wait so people can get
                                      // their barcode
               } catch (InterruptedException e) {
               }
+              KawaCompilerPool.shutdown();
               return;
             }
             try {
@@ -723,8 +1210,28 @@ public class BuildServer {
       });
 
 
+    // Unpack the build tools and runtime jars before accepting builds, rather than in the first
+    // build that needs them.
+    ResourceStore.configure(commandLineOptions.resourceDir);
+    LOG.info("Unpacked resources = " + ResourceStore.get().size());
+    // Likewise, the build info of the built-in components is read once and shared by all builds.
+    ComponentBuildInfo.getSimpleComponents();
+
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    KawaCompilerPool.configure(commandLineOptions.kawaWorkers,
+        commandLineOptions.kawaWorkerMaxJobs);
+    BuildCache.configure(commandLineOptions.buildCacheDir, commandLineOptions.buildCacheMaxMb);
+    ScreenClassCache.configure(commandLineOptions.screenClassCacheDir,
+        commandLineOptions.screenClassCacheMaxMb);
+    AarLibraryCache.configure(commandLineOptions.aarCacheDir, commandLineOptions.aarCacheMaxMb);
+    KeyStorePool.configure(commandLineOptions.keystorePoolSize);
+    Execution.setMaxTimeoutSeconds(commandLineOptions.childProcessTimeoutSeconds);
+    DexExecTask.setMaxDexCacheMb(commandLineOptions.dexCacheMaxMb);
+    ChildProcessAdmission.configure(commandLineOptions.childProcessMemoryBudgetMb,
+        commandLineOptions.maxParallelCompiles, commandLineOptions.maxParallelDexes);
+
+    buildExecutor = new QueuingExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds, commandLineOptions.maxQueueWaitSeconds * 1000L);
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -736,6 +1243,7 @@ public class BuildServer {
       LOG.info("Maximum simultanous builds = unlimited!");
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
+      LOG.info("Maximum queued builds = " + buildExecutor.getMaxQueuedTasks());
     }
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
@@ -0,0 +1,186 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.logging.Logger;
+
+/**
+ * Admission control for the memory hungry child processes of a build (the
+ * Kawa compiler and dx).
+ *
+ * <p>Builds used to run these processes one at a time behind a single global
+ * lock. Instead, every process now reserves its maximum heap size from a
+ * memory budget before it is started and returns it when it is done, so as
+ * many processes run in parallel as the host has memory for. Each stage can
+ * additionally be limited to a maximum number of parallel processes.</p>
+ *
+ * <p>Until {@link #configure(long, int, int)} is called, the budget admits a
+ * single process at a time, which is the old behavior.</p>
+ */
+final class ChildProcessAdmission {
+
+  /**
+   * The stages of a build that run memory hungry child processes.
+   */
+  enum Stage {
+    COMPILE,
+    DEX
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ChildProcessAdmission.class.getName());
+
+  private static final Object lock = new Object();
+
+  // The memory budget, in MB. 0 means one process at a time.
+  private static long memoryBudgetMb = 0;
+
+  // The maximum number of parallel processes per stage. 0 means unlimited.
+  private static int maxCompiles = 0;
+  private static int maxDexes = 0;
+
+  private static long reservedMb = 0;
+  private static int activeCompiles = 0;
+  private static int activeDexes = 0;
+  private static int waiting = 0;
+
+  private ChildProcessAdmission() {
+  }
+
+  /**
+   * A reservation for one child process, released by {@link #release}.
+   */
+  static final class Permit {
+    private final Stage stage;
+    private final long memoryMb;
+    private boolean closed;
+
+    private Permit(Stage stage, long memoryMb) {
+      this.stage = stage;
+      this.memoryMb = memoryMb;
+    }
+
+    void release() {
+      synchronized (lock) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        reservedMb -= memoryMb;
+        if (stage == Stage.COMPILE) {
+          activeCompiles--;
+        } else {
+          activeDexes--;
+        }
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Configures the admission controller.
+   *
+   * @param budgetMb  the memory available for child processes, in MB. If 0,
+   *     the free physical memory of the host is used.
+   * @param maxParallelCompiles  the maximum number of Kawa compiles that can
+   *     run in parallel, 0 for no limit other than memory
+   * @param maxParallelDexes  the maximum number of dx runs that can run in
+   *     parallel, 0 for no limit other than memory
+   */
+  static void configure(long budgetMb, int maxParallelCompiles, int maxParallelDexes) {
+    if (budgetMb <= 0) {
+      budgetMb = getFreePhysicalMemoryMb();
+    }
+    synchronized (lock) {
+      memoryBudgetMb = budgetMb;
+      maxCompiles = maxParallelCompiles;
+      maxDexes = maxParallelDexes;
+      lock.notifyAll();
+    }
+    LOG.info("Child process memory budget: " + budgetMb + " MB, parallel compiles: " +
+        (maxParallelCompiles == 0 ? "unlimited" : maxParallelCompiles) + ", parallel dexes: " +
+        (maxParallelDexes == 0 ? "unlimited" : maxParallelDexes));
+  }
+
+  /*
+   * Returns the free physical memory, or 0 if the JVM does not tell.
+   */
+  private static long getFreePhysicalMemoryMb() {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getFreePhysicalMemorySize()
+          / (1024 * 1024);
+    }
+    return 0;
+  }
+
+  /**
+   * Waits until a child process of the given stage and size can be started.
+   *
+   * <p>A process larger than the whole budget is admitted when no other
+   * process is running, so that it cannot wait forever.</p>
+   *
+   * @param stage  the stage of the build that starts the process
+   * @param memoryMb  the maximum heap of the process, in MB
+   * @return  the permit, which must be released when the process has finished
+   */
+  static Permit acquire(Stage stage, long memoryMb) throws InterruptedException {
+    synchronized (lock) {
+      waiting++;
+      try {
+        while (!canAdmit(stage, memoryMb)) {
+          lock.wait();
+        }
+      } finally {
+        waiting--;
+      }
+      reservedMb += memoryMb;
+      if (stage == Stage.COMPILE) {
+        activeCompiles++;
+      } else {
+        activeDexes++;
+      }
+      return new Permit(stage, memoryMb);
+    }
+  }
+
+  // Must be called while holding lock.
+  private static boolean canAdmit(Stage stage, long memoryMb) {
+    if (stage == Stage.COMPILE && maxCompiles > 0 && activeCompiles >= maxCompiles) {
+      return false;
+    }
+    if (stage == Stage.DEX && maxDexes > 0 && activeDexes >= maxDexes) {
+      return false;
+    }
+    return activeCompiles + activeDexes == 0 || reservedMb + memoryMb <= memoryBudgetMb;
+  }
+
+  static long getMemoryBudgetMb() {
+    synchronized (lock) {
+      return memoryBudgetMb;
+    }
+  }
+
+  static long getReservedMemoryMb() {
+    synchronized (lock) {
+      return reservedMb;
+    }
+  }
+
+  static int getActiveCount(Stage stage) {
+    synchronized (lock) {
+      return stage == Stage.COMPILE ? activeCompiles : activeDexes;
+    }
+  }
+
+  static int getWaitingCount() {
+    synchronized (lock) {
+      return waiting;
+    }
+  }
+}
@@ -10,7 +10,9 @@ import com.google.appinventor.buildserver.util.AARLibraries;
 import com.google.appinventor.buildserver.util.AARLibrary;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
@@ -24,11 +26,12 @@ import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.codehaus.jettison.json.JSONTokener;
 
+import org.apache.commons.io.FileUtils;
+
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -37,6 +40,7 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -45,8 +49,13 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -73,9 +82,6 @@ public final class Compiler {
 
   public static int currentProgress = 10;
 
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
-
   private static final String SLASH = File.separator;
   private static final String COLON = File.pathSeparator;
 
@@ -153,8 +159,6 @@ public final class Compiler {
       RUNTIME_FILES_DIR + "support-v4.jar",
       RUNTIME_FILES_DIR + "support-vector-drawable.jar"
   };
-  private static final String COMP_BUILD_INFO =
-      RUNTIME_FILES_DIR + "simple_components_build_info.json";
   private static final String DX_JAR =
       RUNTIME_FILES_DIR + "dx.jar";
   private static final String KAWA_RUNTIME =
@@ -164,16 +168,10 @@ public final class Compiler {
 
   private static final String LINUX_AAPT_TOOL =
       "/tools/linux/aapt";
-  private static final String LINUX_ZIPALIGN_TOOL =
-      "/tools/linux/zipalign";
   private static final String MAC_AAPT_TOOL =
       "/tools/mac/aapt";
-  private static final String MAC_ZIPALIGN_TOOL =
-      "/tools/mac/zipalign";
   private static final String WINDOWS_AAPT_TOOL =
       "/tools/windows/aapt";
-  private static final String WINDOWS_ZIPALIGN_TOOL =
-      "/tools/windows/zipalign";
 
   @VisibleForTesting
   static final String YAIL_RUNTIME = RUNTIME_FILES_DIR + "runtime.scm";
@@ -199,6 +197,17 @@ public final class Compiler {
    */
   private AARLibraries explodedAarLibs;
 
+  /**
+   * Keys of the entries of the {@link AarLibraryCache} this build uses.
+   */
+  private final List<String> aarCacheKeys = new ArrayList<String>();
+
+  /**
+   * Directory of the merged resources of the AAR libraries, taken from the
+   * {@link AarLibraryCache}, or null if they are merged with the app's resources.
+   */
+  private File libraryResDir;
+
   /**
    * File where the compiled R resources are written.
    */
@@ -221,15 +230,6 @@ public final class Compiler {
   private final ConcurrentMap<String, Set<String>> componentBroadcastReceiver =
       new ConcurrentHashMap<String, Set<String>>();
 
-  /**
-   * Map used to hold the names and paths of resources that we've written out
-   * as temp files.
-   * Don't use this map directly. Please call getResource() with one of the
-   * constants above to get the (temp file) path to a resource.
-   */
-  private static final ConcurrentMap<String, File> resources =
-      new ConcurrentHashMap<String, File>();
-
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String COMPILATION_ERROR =
       "Error: Your build failed due to an error when compiling %s.\n";
@@ -251,9 +251,9 @@ public final class Compiler {
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
   private boolean hasSecondDex = false; // True if classes2.dex should be added to the APK
+  private File yailRuntimeJar;  // Precompiled YAIL runtime, null if it is compiled with the screens
 
-  private JSONArray simpleCompsBuildInfo;
-  private JSONArray extCompsBuildInfo;
+  private ComponentBuildInfo extCompsBuildInfo = ComponentBuildInfo.EMPTY;
   private Set<String> simpleCompTypes;  // types needed by the project
   private Set<String> extCompTypes; // types needed by the project
 
@@ -925,6 +925,19 @@ public final class Compiler {
     // Create a new compiler instance for the compilation
     Compiler compiler = new Compiler(project, compTypes, out, err, userErrors, isForCompanion,
                                      childProcessRam, dexCacheDir, reporter);
+    try {
+      return compiler.build(start, keystoreFilePath);
+    } finally {
+      // The build reads the libraries it took from the cache in place until it is done.
+      AarLibraryCache.release(compiler.aarCacheKeys);
+    }
+  }
+
+  /*
+   * Runs all stages of the build. Returns false after the first stage that fails.
+   */
+  private boolean build(long start, String keystoreFilePath) throws IOException, JSONException {
+    final Compiler compiler = this;
 
     compiler.generateAssets();
     compiler.generateActivities();
@@ -941,73 +954,125 @@ public final class Compiler {
     compiler.generateBroadcastReceiver();
 
     // Create build directory.
-    File buildDir = createDir(project.getBuildDirectory());
+    final File buildDir = createDir(project.getBuildDirectory());
 
-    // Prepare application icon.
-    out.println("________Preparing application icon");
+    // Create the directories the resource stages write into.
     File resDir = createDir(buildDir, "res");
-    File drawableDir = createDir(resDir, "drawable");
-    if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
-      return false;
-    }
-    if (reporter != null) {
-      reporter.report(15);        // Have to call directly because we are in a
-    }                             // Static context
-
-    // Create anim directory and animation xml files
-    out.println("________Creating animation xml");
-    File animDir = createDir(resDir, "anim");
-    if (!compiler.createAnimationXml(animDir)) {
-      return false;
-    }
-
-    // Create values directory and style xml files
-    out.println("________Creating style xml");
-    File styleDir = createDir(resDir, "values");
-    File style11Dir = createDir(resDir, "values-v11");
-    File style14Dir = createDir(resDir, "values-v14");
-    File style21Dir = createDir(resDir, "values-v21");
-    if (!compiler.createValuesXml(styleDir, "") ||
-        !compiler.createValuesXml(style11Dir, "-v11") ||
-        !compiler.createValuesXml(style14Dir, "-v14") ||
-        !compiler.createValuesXml(style21Dir, "-v21")) {
-      return false;
-    }
-
-    out.println("________Creating provider_path xml");
-    File providerDir = createDir(resDir, "xml");
-    if (!compiler.createProviderXml(providerDir)) {
-      return false;
-    }
-
-    // Generate AndroidManifest.xml
-    out.println("________Generating manifest file");
-    File manifestFile = new File(buildDir, "AndroidManifest.xml");
-    if (!compiler.writeAndroidManifest(manifestFile)) {
+    final File drawableDir = createDir(resDir, "drawable");
+    final File animDir = createDir(resDir, "anim");
+    final File styleDir = createDir(resDir, "values");
+    final File style11Dir = createDir(resDir, "values-v11");
+    final File style14Dir = createDir(resDir, "values-v14");
+    final File style21Dir = createDir(resDir, "values-v21");
+    final File providerDir = createDir(resDir, "xml");
+    final File manifestFile = new File(buildDir, "AndroidManifest.xml");
+
+    // None of the steps before aapt depends on another, so they run concurrently.
+    // The first one that fails stops the build, and only its user error is shown.
+    StageGraph resourceStages = new StageGraph(userErrors)
+        .add("icon", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            // Prepare application icon.
+            compiler.out.println("________Preparing application icon");
+            return compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"));
+          }
+        })
+        .add("animation_xml", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            // Create animation xml files
+            compiler.out.println("________Creating animation xml");
+            return compiler.createAnimationXml(animDir);
+          }
+        })
+        .add("values_xml", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            // Create style xml files
+            compiler.out.println("________Creating style xml");
+            return compiler.createValuesXml(styleDir, "");
+          }
+        })
+        .add("values_v11_xml", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            return compiler.createValuesXml(style11Dir, "-v11");
+          }
+        })
+        .add("values_v14_xml", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            return compiler.createValuesXml(style14Dir, "-v14");
+          }
+        })
+        .add("values_v21_xml", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            return compiler.createValuesXml(style21Dir, "-v21");
+          }
+        })
+        .add("provider_xml", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            compiler.out.println("________Creating provider_path xml");
+            return compiler.createProviderXml(providerDir);
+          }
+        })
+        .add("manifest", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            // Generate AndroidManifest.xml
+            compiler.out.println("________Generating manifest file");
+            return compiler.writeAndroidManifest(manifestFile);
+          }
+        })
+        .add("native_libs", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            // Insert native libraries
+            compiler.out.println("________Attaching native libraries");
+            return compiler.insertNativeLibs(buildDir);
+          }
+        })
+        .add("aar_libraries", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            // Attach Android AAR Library dependencies
+            compiler.out.println("________Attaching Android Archive (AAR) libraries");
+            return compiler.attachAarLibraries(buildDir);
+          }
+        })
+        .add("component_assets", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            // Add raw assets to sub-directory of project assets.
+            compiler.out.println("________Attaching component assets");
+            return compiler.attachCompAssets();
+          }
+        });
+    long startResources = System.currentTimeMillis();
+    try {
+      if (!resourceStages.run()) {
+        return false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       return false;
+    } finally {
+      for (Map.Entry<String, Long> timing : resourceStages.getTimings().entrySet()) {
+        BuildMetrics.observeStageMillis(timing.getKey(), timing.getValue());
+      }
     }
+    String resourcesTimeMessage = "Resource stages time: " +
+        ((System.currentTimeMillis() - startResources) / 1000.0) + " seconds " +
+        resourceStages.getTimings();
+    out.println(resourcesTimeMessage);
+    LOG.info(resourcesTimeMessage);
     if (reporter != null) {
       reporter.report(20);
     }
 
-    // Insert native libraries
-    out.println("________Attaching native libraries");
-    if (!compiler.insertNativeLibs(buildDir)) {
-      return false;
-    }
-
-    // Attach Android AAR Library dependencies
-    out.println("________Attaching Android Archive (AAR) libraries");
-    if (!compiler.attachAarLibraries(buildDir)) {
-      return false;
-    }
-
-    // Add raw assets to sub-directory of project assets.
-    out.println("________Attaching component assets");
-    if (!compiler.attachCompAssets()) {
-      return false;
-    }
-
     // Invoke aapt to package everything up
     out.println("________Invoking AAPT");
     File deployDir = createDir(buildDir, "deploy");
@@ -1015,7 +1080,11 @@ public final class Compiler {
         project.getProjectName() + ".ap_";
     File srcJavaDir = createDir(buildDir, "generated/src");
     File rJavaDir = createDir(buildDir, "generated/symbols");
-    if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName, srcJavaDir, rJavaDir)) {
+    long stageStart = System.currentTimeMillis();
+    boolean success =
+        compiler.runAaptPackage(manifestFile, resDir, tmpPackageName, srcJavaDir, rJavaDir);
+    BuildMetrics.observeStage(BuildMetrics.AAPT, stageStart);
+    if (!success) {
       return false;
     }
     if (reporter != null) {
@@ -1025,10 +1094,16 @@ public final class Compiler {
     // Create class files.
     out.println("________Compiling source files");
     File classesDir = createDir(buildDir, "classes");
-    if (!compiler.generateRClasses(classesDir)) {
+    stageStart = System.currentTimeMillis();
+    success = compiler.generateRClasses(classesDir);
+    BuildMetrics.observeStage(BuildMetrics.R_CLASSES, stageStart);
+    if (!success) {
       return false;
     }
-    if (!compiler.generateClasses(classesDir)) {
+    stageStart = System.currentTimeMillis();
+    success = compiler.generateClasses(classesDir);
+    BuildMetrics.observeStage(BuildMetrics.KAWA, stageStart);
+    if (!success) {
       return false;
     }
     if (reporter != null) {
@@ -1054,7 +1129,10 @@ public final class Compiler {
     // Android SDK's Dex Ant task
     File tmpDir = createDir(buildDir, "tmp");
     String dexedClassesDir = tmpDir.getAbsolutePath();
-    if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
+    stageStart = System.currentTimeMillis();
+    success = compiler.runDx(classesDir, dexedClassesDir, false);
+    BuildMetrics.observeStage(BuildMetrics.DX, stageStart);
+    if (!success) {
       return false;
     }
     if (reporter != null) {
@@ -1065,22 +1143,23 @@ public final class Compiler {
     out.println("________Invoking ApkBuilder");
     String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH +
         project.getProjectName() + ".apk";
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClassesDir)) {
+    String unsignedApkPath = dexedClassesDir + SLASH + "unsigned.apk";
+    stageStart = System.currentTimeMillis();
+    success = compiler.runApkBuilder(unsignedApkPath, tmpPackageName, dexedClassesDir);
+    BuildMetrics.observeStage(BuildMetrics.APK_BUILDER, stageStart);
+    if (!success) {
       return false;
     }
     if (reporter != null) {
       reporter.report(95);
     }
 
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
-      return false;
-    }
-
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
+    // Sign and align the apk file
+    out.println("________Signing and aligning the apk file");
+    stageStart = System.currentTimeMillis();
+    success = compiler.runApkFinisher(unsignedApkPath, apkAbsolutePath, keystoreFilePath);
+    BuildMetrics.observeStage(BuildMetrics.SIGN_AND_ALIGN, stageStart);
+    if (!success) {
       return false;
     }
 
@@ -1088,12 +1167,43 @@ public final class Compiler {
       reporter.report(100);
     }
 
+    BuildMetrics.observeStage(BuildMetrics.BUILD, start);
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
 
     return true;
   }
 
+  /**
+   * Signs and zipaligns an APK that was built earlier, for example one taken
+   * from the build cache and stripped of its old signature.
+   *
+   * @param project  project the APK was built from
+   * @param apkAbsolutePath  the unsigned APK, signed in place
+   * @param keystoreFilePath  the keystore to sign with
+   * @param out  stdout stream for compiler messages
+   * @param err  stderr stream for compiler messages
+   * @param userErrors stream to write user-visible error messages
+   * @return  {@code true} if signing succeeds, {@code false} otherwise
+   */
+  public static boolean signApk(Project project, String apkAbsolutePath, String keystoreFilePath,
+                                PrintStream out, PrintStream err, PrintStream userErrors) {
+    Compiler compiler = new Compiler(project, Collections.<String>emptySet(), out, err,
+                                     userErrors, false, 0, null, null);
+    File tmpDir = createDir(createDir(project.getBuildDirectory()), "tmp");
+    File unsignedApk = new File(tmpDir, "unsigned.apk");
+    if (!new File(apkAbsolutePath).renameTo(unsignedApk)) {
+      userErrors.print(String.format(ERROR_IN_STAGE, "ApkFinisher"));
+      return false;
+    }
+    out.println("________Signing and aligning the apk file");
+    long stageStart = System.currentTimeMillis();
+    boolean success = compiler.runApkFinisher(unsignedApk.getAbsolutePath(), apkAbsolutePath,
+        keystoreFilePath);
+    BuildMetrics.observeStage(BuildMetrics.SIGN_AND_ALIGN, stageStart);
+    return success;
+  }
+
   /*
    * Creates all the animation xml files.
    */
@@ -1191,7 +1301,8 @@ public final class Compiler {
 
     this.out = out;
     this.err = err;
-    this.userErrors = userErrors;
+    // The resource stages run concurrently and only the first one that fails reports its error.
+    this.userErrors = StageGraph.newUserErrorStream(userErrors);
     this.isForCompanion = isForCompanion;
     this.childProcessRamMb = childProcessMaxRam;
     this.dexCacheDir = dexCacheDir;
@@ -1261,6 +1372,9 @@ public final class Compiler {
         classpath.append(COLON);
       }
 
+      // The libraries that come with the project rather than with the build server.
+      List<File> projectLibraries = Lists.newArrayList();
+
       // attach the jars of external comps
       Set<String> addedExtJars = new HashSet<String>();
       for (String type : extCompTypes) {
@@ -1269,6 +1383,7 @@ public final class Compiler {
           classpath.append(sourcePath);
           classpath.append(COLON);
           addedExtJars.add(sourcePath);
+          projectLibraries.add(new File(sourcePath));
         }
       }
 
@@ -1282,6 +1397,7 @@ public final class Compiler {
             sourcePath = getResource(pathSuffix);
           } else if (extCompTypes.contains(type)) {
             sourcePath = getExtCompDirPath(type) + pathSuffix;
+            projectLibraries.add(new File(sourcePath));
           } else {
             userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
             return false;
@@ -1301,48 +1417,57 @@ public final class Compiler {
           uniqueLibsNeeded.add(abspath);
           classpath.append(abspath);
           classpath.append(COLON);
+          projectLibraries.add(classesJar);
         }
       }
       if (explodedAarLibs.size() > 0) {
         classpath.append(explodedAarLibs.getOutputDirectory().getAbsolutePath());
         classpath.append(COLON);
+        projectLibraries.add(explodedAarLibs.getOutputDirectory());
       }
 
       classpath.append(getResource(ANDROID_RUNTIME));
 
-      System.out.println("Libraries Classpath = " + classpath);
-
       String yailRuntime = getResource(YAIL_RUNTIME);
-      List<String> kawaCommandArgs = Lists.newArrayList();
       int mx = childProcessRamMb - 200;
-      Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
-          "-Dfile.encoding=UTF-8",
-          "-mx" + mx + "M",
-          "-cp", classpath.toString(),
-          "kawa.repl",
-          "-f", yailRuntime,
-          "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
-          "-C");
-      // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
-      // source file names. The resulting .class files contain references to the source file names,
-      // including the name of the tmp directory that contains them. We may be able to avoid that
-      // by using source file names that are relative to the project root and using the project
-      // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
-      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+      yailRuntimeJar = getYailRuntimeJar(yailRuntime, mx);
+      if (yailRuntimeJar != null) {
+        classpath.append(COLON);
+        classpath.append(yailRuntimeJar.getAbsolutePath());
+      }
+
+      System.out.println("Libraries Classpath = " + classpath);
 
+      String packagePrefix = Signatures.getPackageName(project.getMainClass()) + ".";
       long start = System.currentTimeMillis();
       // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
       // them to the protocol buffer for logging purposes. (See
       // buildserver/ProjectBuilder.processCompilerOutout.
       ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
       boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+      if (yailRuntimeJar != null && ScreenClassCache.isEnabled()) {
+        kawaSuccess = compileScreens(sourceFileNames, classesDir, classpath.toString(), mx,
+            packagePrefix, projectLibraries, kawaOutputStream);
+      } else {
+        List<String> kawaArgs = Lists.newArrayList();
+        // With a precompiled runtime, the runtime macros are loaded from the compiled module and
+        // only the screens are compiled.
+        Collections.addAll(kawaArgs,
+            "-f", yailRuntimeJar != null ? YailRuntimeCache.RUNTIME_MODULE : yailRuntime,
+            "-d", classesDir.getAbsolutePath(),
+            "-P", packagePrefix,
+            "-C");
+        // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
+        // source file names. The resulting .class files contain references to the source file
+        // names, including the name of the tmp directory that contains them. We may be able to
+        // avoid that by using source file names that are relative to the project root and using
+        // the project root as the working directory for the Kawa compiler process.
+        kawaArgs.addAll(sourceFileNames);
+        if (yailRuntimeJar == null) {
+          kawaArgs.add(yailRuntime);
+        }
+        kawaSuccess = runKawa(classpath.toString(), mx, kawaArgs,
+            new PrintStream(kawaOutputStream));
       }
       if (!kawaSuccess) {
         LOG.log(Level.SEVERE, "Kawa compile has failed.");
@@ -1370,99 +1495,146 @@ public final class Compiler {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
       return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
+      return false;
     }
 
     return true;
   }
 
-  private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
-    // TODO(user): maybe make a command line flag for the jarsigner location
-    String javaHome = System.getProperty("java.home");
-    // This works on Mac OS X.
-    File jarsignerFile = new File(javaHome + SLASH + "bin" +
-        SLASH + "jarsigner");
-    if (!jarsignerFile.exists()) {
-      // This works when a JDK is installed with the JRE.
-      jarsignerFile = new File(javaHome + SLASH + ".." + SLASH + "bin" +
-          SLASH + "jarsigner");
-      if (System.getProperty("os.name").startsWith("Windows")) {
-        jarsignerFile = new File(javaHome + SLASH + ".." + SLASH + "bin" +
-            SLASH + "jarsigner.exe");
+  /*
+   * Runs the Kawa compiler, in a warm worker process if the pool is enabled.
+   */
+  private boolean runKawa(String classpath, int mx, List<String> kawaArgs, PrintStream kawaErr)
+      throws InterruptedException {
+    // Kawa and DX processes can use a lot of memory. Only start as many as fit in the budget.
+    ChildProcessAdmission.Permit permit = ChildProcessAdmission.acquire(
+        ChildProcessAdmission.Stage.COMPILE, childProcessRamMb);
+    try {
+      return KawaCompilerPool.compile(classpath, mx,
+          kawaArgs.toArray(new String[kawaArgs.size()]), System.out, kawaErr);
+    } finally {
+      permit.release();
+    }
+  }
+
+  /*
+   * Compiles every screen on its own, so that screens whose classes are in the screen class cache
+   * are not compiled again and the others are compiled in parallel. Kawa's messages are written
+   * to kawaOutputStream in the order of the screens, as if they had been compiled together.
+   */
+  private boolean compileScreens(List<String> sourceFileNames, File classesDir,
+      final String classpath, final int mx, final String packagePrefix,
+      List<File> projectLibraries, ByteArrayOutputStream kawaOutputStream)
+      throws IOException, InterruptedException {
+    int count = sourceFileNames.size();
+    final String[] keys = new String[count];
+    final ByteArrayOutputStream[] messages = new ByteArrayOutputStream[count];
+    List<Integer> changedScreens = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      keys[i] = ScreenClassCache.computeKey(new File(sourceFileNames.get(i)), packagePrefix,
+          yailRuntimeJar, projectLibraries);
+      messages[i] = new ByteArrayOutputStream();
+      PrintStream screenErr = new PrintStream(messages[i]);
+      if (!ScreenClassCache.restore(keys[i], classesDir, sourceFileNames.get(i), screenErr)) {
+        changedScreens.add(i);
       }
-      if (!jarsignerFile.exists()) {
-        LOG.warning("YAIL compiler - could not find jarsigner.");
-        err.println("YAIL compiler - could not find jarsigner.");
-        userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-        return false;
+      screenErr.flush();
+    }
+    LOG.info("Compiling " + changedScreens.size() + " of " + count + " screens");
+
+    boolean success = true;
+    if (!changedScreens.isEmpty()) {
+      File screensDir = createDir(project.getBuildDirectory(), "screens");
+      ExecutorService executor = Executors.newFixedThreadPool(
+          Math.min(changedScreens.size(), Runtime.getRuntime().availableProcessors()));
+      try {
+        List<Future<Boolean>> results = Lists.newArrayList();
+        for (final int i : changedScreens) {
+          final String sourceFileName = sourceFileNames.get(i);
+          final File screenClassesDir = createDir(screensDir, Integer.toString(i));
+          results.add(executor.submit(RunningBuild.propagate(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+              List<String> kawaArgs = Lists.newArrayList(
+                  "-f", YailRuntimeCache.RUNTIME_MODULE,
+                  "-d", screenClassesDir.getAbsolutePath(),
+                  "-P", packagePrefix,
+                  "-C", sourceFileName);
+              PrintStream screenErr = new PrintStream(messages[i]);
+              boolean screenSuccess = runKawa(classpath, mx, kawaArgs, screenErr);
+              screenErr.flush();
+              if (screenSuccess) {
+                ScreenClassCache.store(keys[i], screenClassesDir, sourceFileName,
+                    messages[i].toString());
+              }
+              return screenSuccess;
+            }
+          })));
+        }
+        for (int j = 0; j < results.size(); j++) {
+          try {
+            if (results.get(j).get()) {
+              File screenClassesDir = new File(screensDir, Integer.toString(changedScreens.get(j)));
+              FileUtils.copyDirectory(screenClassesDir, classesDir);
+            } else {
+              success = false;
+            }
+          } catch (ExecutionException e) {
+            LOG.log(Level.WARNING, "Kawa compile of a screen has failed", e.getCause());
+            success = false;
+          }
+        }
+      } finally {
+        executor.shutdownNow();
       }
     }
 
-    String[] jarsignerCommandLine = {
-        jarsignerFile.getAbsolutePath(),
-        "-digestalg", "SHA1",
-        "-sigalg", "MD5withRSA",
-        "-keystore", keystoreAbsolutePath,
-        "-storepass", "android",
-        apkAbsolutePath,
-        "AndroidKey"
-    };
-    if (!Execution.execute(null, jarsignerCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - jarsigner execution failed.");
-      err.println("YAIL compiler - jarsigner execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-      return false;
+    for (ByteArrayOutputStream screenMessages : messages) {
+      screenMessages.writeTo(kawaOutputStream);
     }
-
-    return true;
+    return success;
   }
 
-  private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
-    // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
-    // Need to make sure assets directory exists otherwise zipalign will fail.
-    createDir(project.getAssetsDirectory());
-    String zipAlignTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      zipAlignTool = MAC_ZIPALIGN_TOOL;
-    } else if (osName.equals("Linux")) {
-      zipAlignTool = LINUX_ZIPALIGN_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      zipAlignTool = WINDOWS_ZIPALIGN_TOOL;
-    } else {
-      LOG.warning("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      err.println("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
-    }
-    // TODO: create tmp file for zipaling result
-    String zipAlignedPath = tmpDir.getAbsolutePath() + SLASH + "zipaligned.apk";
-    // zipalign -f -v 4 infile.zip outfile.zip
-    String[] zipAlignCommandLine = {
-        getResource(zipAlignTool),
-        "-f",
-        "4",
-        apkAbsolutePath,
-        zipAlignedPath
-    };
-    long startZipAlign = System.currentTimeMillis();
-    // Using System.err and System.out on purpose. Don't want to pollute build messages with
-    // tools output
-    if (!Execution.execute(null, zipAlignCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - ZIPALIGN execution failed.");
-      err.println("YAIL compiler - ZIPALIGN execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+  /*
+   * Returns the precompiled YAIL runtime, or null if it could not be compiled. The runtime only
+   * depends on the built-in component libraries, never on extensions, so it is compiled against
+   * those alone and shared by all builds.
+   */
+  private File getYailRuntimeJar(String yailRuntime, int mx) {
+    List<String> dependencies = Lists.newArrayList(
+        getResource(KAWA_RUNTIME),
+        getResource(ACRA_RUNTIME),
+        getResource(SIMPLE_ANDROID_RUNTIME_JAR));
+    for (String jar : SUPPORT_JARS) {
+      dependencies.add(getResource(jar));
     }
-    if (!copyFile(zipAlignedPath, apkAbsolutePath)) {
-      LOG.warning("YAIL compiler - ZIPALIGN file copy failed.");
-      err.println("YAIL compiler - ZIPALIGN file copy failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
+    dependencies.add(getResource(ANDROID_RUNTIME));
+    return YailRuntimeCache.getRuntimeJar(yailRuntime, Joiner.on(COLON).join(dependencies),
+        dependencies.toArray(new String[dependencies.size()]), dexCacheDir, mx);
+  }
+
+  /*
+   * Signs the APK with the user's key and aligns it, in process.
+   */
+  private boolean runApkFinisher(String unsignedApkPath, String apkAbsolutePath,
+      String keystoreAbsolutePath) {
+    long startFinisher = System.currentTimeMillis();
+    try {
+      ApkFinisher.finish(new File(unsignedApkPath), new File(apkAbsolutePath),
+          new File(keystoreAbsolutePath));
+    } catch (IOException|GeneralSecurityException e) {
+      LOG.log(Level.WARNING, "YAIL compiler - signing the APK failed.", e);
+      err.println("YAIL compiler - signing the APK failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "ApkFinisher"));
       return false;
     }
-    String zipALignTimeMessage = "ZIPALIGN time: " +
-        ((System.currentTimeMillis() - startZipAlign) / 1000.0) + " seconds";
-    out.println(zipALignTimeMessage);
-    LOG.info(zipALignTimeMessage);
+    String finisherTimeMessage = "Signing and aligning time: " +
+        ((System.currentTimeMillis() - startFinisher) / 1000.0) + " seconds";
+    out.println(finisherTimeMessage);
+    LOG.info(finisherTimeMessage);
     return true;
   }
 
@@ -1508,6 +1680,9 @@ public final class Compiler {
     inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
     inputList.add(new File(getResource(KAWA_RUNTIME)));
     inputList.add(new File(getResource(ACRA_RUNTIME)));
+    if (yailRuntimeJar != null) {
+      inputList.add(yailRuntimeJar);
+    }
 
     for (String jar : SUPPORT_JARS) {
       inputList.add(new File(getResource(jar)));
@@ -1573,26 +1748,25 @@ public final class Compiler {
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
     boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      if (dxSuccess && (class2List.size() > 0)) {
-        setProgress(60);
-        dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
-        inputList = new ArrayList<File>();
-        dxSuccess = dexTask.execute(class2List);
-        setProgress(75);
-        hasSecondDex = true;
-      } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
-        LOG.info("DX execution failed, trying with fewer libraries.");
-        if (secondTry) {        // Already tried the more conservative approach!
-          LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
-          err.println("YAIL compiler - DX execution failed.");
-          userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
-          return false;
-        } else {
-          return runDx(classesDir, dexedClassesDir, true);
-        }
+    // Every dx process DexExecTask starts is admitted by ChildProcessAdmission.
+    setProgress(50);
+    dxSuccess = dexTask.execute(inputList);
+    if (dxSuccess && (class2List.size() > 0)) {
+      setProgress(60);
+      dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
+      inputList = new ArrayList<File>();
+      dxSuccess = dexTask.execute(class2List);
+      setProgress(75);
+      hasSecondDex = true;
+    } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
+      LOG.info("DX execution failed, trying with fewer libraries.");
+      if (secondTry) {        // Already tried the more conservative approach!
+        LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
+        err.println("YAIL compiler - DX execution failed.");
+        userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+        return false;
+      } else {
+        return runDx(classesDir, dexedClassesDir, true);
       }
     }
     if (!dxSuccess) {
@@ -1641,6 +1815,12 @@ public final class Compiler {
     aaptPackageCommandLineArgs.add(manifestFile.getAbsolutePath());
     aaptPackageCommandLineArgs.add("-S");
     aaptPackageCommandLineArgs.add(mergedResDir.getAbsolutePath());
+    if (libraryResDir != null) {
+      // The app's own resources come first and take precedence over those of the libraries.
+      aaptPackageCommandLineArgs.add("-S");
+      aaptPackageCommandLineArgs.add(libraryResDir.getAbsolutePath());
+      aaptPackageCommandLineArgs.add("--auto-add-overlay");
+    }
     aaptPackageCommandLineArgs.add("-A");
     aaptPackageCommandLineArgs.add(mergedAssetsDir.getAbsolutePath());
     aaptPackageCommandLineArgs.add("-I");
@@ -1666,7 +1846,8 @@ public final class Compiler {
     long startAapt = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    if (!Execution.execute(null, aaptPackageCommandLine, System.out, System.err)) {
+    if (!Execution.execute(null, aaptPackageCommandLine, System.out, System.err,
+        Execution.Deadline.AAPT)) {
       LOG.warning("YAIL compiler - AAPT execution failed.");
       err.println("YAIL compiler - AAPT execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
@@ -1765,10 +1946,13 @@ public final class Compiler {
           if (libname.endsWith(".aar")) {
             i.remove();
             if (!processedLibs.contains(libname)) {
-              // explode libraries into ${buildDir}/exploded-aars/<package>/
-              AARLibrary aarLib = new AARLibrary(new File(getResource(RUNTIME_FILES_DIR + libname)));
-              aarLib.unpackToDirectory(explodedBaseDir);
-              explodedAarLibs.add(aarLib);
+              File aarFile = new File(getResource(RUNTIME_FILES_DIR + libname));
+              if (!AarLibraryCache.addLibrary(aarFile, explodedAarLibs, aarCacheKeys)) {
+                // explode libraries into ${buildDir}/exploded-aars/<package>/
+                AARLibrary aarLib = new AARLibrary(aarFile);
+                aarLib.unpackToDirectory(explodedBaseDir);
+                explodedAarLibs.add(aarLib);
+              }
               processedLibs.add(libname);
             }
           }
@@ -1845,6 +2029,18 @@ public final class Compiler {
     File resDir = createDir(intermediates, "res");
     mergedResDir = createDir(resDir, "merged");
     PngCruncher cruncher = new AaptCruncher(getResource(aaptTool), null, null);
+    if (explodedAarLibs.size() > 0) {
+      try {
+        libraryResDir = AarLibraryCache.getMergedResources(explodedAarLibs, cruncher, aarCacheKeys);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to use the cached library resources", e);
+      }
+      if (libraryResDir != null) {
+        // Only the app's resources are left, and they need no merging.
+        mergedResDir = mainResDir;
+        return true;
+      }
+    }
     return explodedAarLibs.mergeResources(mergedResDir, mainResDir, cruncher);
   }
 
@@ -1852,9 +2048,27 @@ public final class Compiler {
     if (explodedAarLibs.size() == 0) {
       return true;  // nothing to see here
     }
+    String packageName = Signatures.getPackageName(project.getMainClass());
     int error;
     try {
-      error = explodedAarLibs.writeRClasses(outputDir, Signatures.getPackageName(project.getMainClass()), appRTxt);
+      if (AarLibraryCache.isEnabled()) {
+        String cacheKey = AarLibraryCache.computeRClassesKey(explodedAarLibs, packageName, appRTxt);
+        if (!AarLibraryCache.restoreRClasses(cacheKey, outputDir)) {
+          // Compile on their own first, so that only the R classes are cached.
+          File rClassesDir = createDir(createDir(project.getBuildDirectory(), "intermediates"),
+              "r-classes");
+          error = explodedAarLibs.writeRClasses(rClassesDir, packageName, appRTxt);
+          if (error == 0) {
+            AarLibraryCache.storeRClasses(cacheKey, rClassesDir);
+            FileUtils.copyDirectory(rClassesDir, outputDir);
+          }
+        } else {
+          error = 0;
+        }
+        explodedAarLibs.setOutputDirectory(outputDir);
+      } else {
+        error = explodedAarLibs.writeRClasses(outputDir, packageName, appRTxt);
+      }
     } catch (IOException|InterruptedException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Generate R Classes"));
@@ -1869,41 +2083,13 @@ public final class Compiler {
   }
 
   /**
-   * Writes out the given resource as a temp file and returns the absolute path.
-   * Caches the location of the files, so we can reuse them.
+   * Returns the absolute path of the file of the given resource, unpacked by
+   * {@link ResourceStore}.
    *
    * @param resourcePath the name of the resource
    */
-  static synchronized String getResource(String resourcePath) {
-    try {
-      File file = resources.get(resourcePath);
-      if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
-        } else {
-          prefix = basename;
-          suffix = "";
-        }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
-        }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
-            file);
-        resources.put(resourcePath, file);
-      }
-      return file.getAbsolutePath();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+  static String getResource(String resourcePath) {
+    return ResourceStore.get().getPath(resourcePath);
   }
 
   /*
@@ -1934,79 +2120,38 @@ public final class Compiler {
    */
   private void loadJsonInfo(ConcurrentMap<String, Set<String>> infoMap, String targetInfo)
       throws IOException, JSONException {
-    synchronized (infoMap) {
-      if (!infoMap.isEmpty()) {
-        return;
-      }
-
-      JSONArray buildInfo = new JSONArray(
-          "[" + simpleCompsBuildInfo.join(",") + "," +
-          extCompsBuildInfo.join(",") + "]");
-
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject compJson = buildInfo.getJSONObject(i);
-        JSONArray infoArray = null;
-        String type = compJson.getString("type");
-        try {
-          infoArray = compJson.getJSONArray(targetInfo);
-        } catch (JSONException e) {
-          // Older compiled extensions will not have a broadcastReceiver
-          // defined. Rather then require them all to be recompiled, we
-          // treat the missing attribute as empty.
-          if (e.getMessage().contains("broadcastReceiver")) {
-            LOG.log(Level.INFO, "Component \"" + type + "\" does not have a broadcast receiver.");
-            continue;
-          } else if (e.getMessage().contains(ANDROIDMINSDK_TARGET)) {
-            LOG.log(Level.INFO, "Component \"" + type + "\" does not specify a minimum SDK.");
-            continue;
-          } else {
-            throw e;
-          }
-        }
+    if (!infoMap.isEmpty()) {
+      return;
+    }
 
-        if (!simpleCompTypes.contains(type) && !extCompTypes.contains(type)) {
+    ComponentBuildInfo simpleCompsBuildInfo = ComponentBuildInfo.getSimpleComponents();
+    for (String type : Iterables.concat(simpleCompTypes, extCompTypes)) {
+      ComponentBuildInfo buildInfo = extCompsBuildInfo.contains(type)
+          ? extCompsBuildInfo
+          : simpleCompsBuildInfo;
+      if (!buildInfo.contains(type)) {
+        continue;
+      }
+      Set<String> infoSet = buildInfo.get(type, targetInfo);
+      if (infoSet == null) {
+        // Older compiled extensions will not have a broadcastReceiver
+        // defined. Rather then require them all to be recompiled, we
+        // treat the missing attribute as empty.
+        if (targetInfo.equals(BROADCAST_RECEIVER_TARGET)) {
+          LOG.log(Level.INFO, "Component \"" + type + "\" does not have a broadcast receiver.");
           continue;
-        }
-
-        Set<String> infoSet = Sets.newHashSet();
-        for (int j = 0; j < infoArray.length(); ++j) {
-          String info = infoArray.getString(j);
-          if (!info.isEmpty()) {
-            infoSet.add(info);
-          }
-        }
-
-        if (!infoSet.isEmpty()) {
-          infoMap.put(type, infoSet);
+        } else if (targetInfo.equals(ANDROIDMINSDK_TARGET)) {
+          LOG.log(Level.INFO, "Component \"" + type + "\" does not specify a minimum SDK.");
+          continue;
+        } else {
+          throw new JSONException("Component \"" + type + "\" has no " + targetInfo);
         }
       }
-    }
-  }
 
-  /**
-   * Copy one file to another. If destination file does not exist, it is created.
-   *
-   * @param srcPath absolute path to source file
-   * @param dstPath absolute path to destination file
-   * @return  {@code true} if the copy succeeds, {@code false} otherwise
-   */
-  private static Boolean copyFile(String srcPath, String dstPath) {
-    try {
-      FileInputStream in = new FileInputStream(srcPath);
-      FileOutputStream out = new FileOutputStream(dstPath);
-      byte[] buf = new byte[1024];
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        out.write(buf, 0, len);
+      if (!infoSet.isEmpty()) {
+        infoMap.putIfAbsent(type, infoSet);
       }
-      in.close();
-      out.close();
-    }
-    catch (IOException e) {
-      e.printStackTrace();
-      return false;
     }
-    return true;
   }
 
   /**
@@ -2047,10 +2192,8 @@ public final class Compiler {
 
   private void readBuildInfo() {
     try {
-      simpleCompsBuildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
-
-      extCompsBuildInfo = new JSONArray();
+      // The build info of the built-in components is shared, only the extensions are read here.
+      JSONArray extCompsInfos = new JSONArray();
       Set<String> readComponentInfos = new HashSet<String>();
       for (String type : extCompTypes) {
         // .../assets/external_comps/com.package.MyExtComp/files/component_build_info.json
@@ -2078,16 +2221,17 @@ public final class Compiler {
         JSONTokener tokener = new JSONTokener(buildInfo);
         Object value = tokener.nextValue();
         if (value instanceof JSONObject) {
-          extCompsBuildInfo.put((JSONObject) value);
+          extCompsInfos.put((JSONObject) value);
           readComponentInfos.add(jsonFile.getAbsolutePath());
         } else if (value instanceof JSONArray) {
           JSONArray infos = (JSONArray) value;
           for (int i = 0; i < infos.length(); i++) {
-            extCompsBuildInfo.put(infos.getJSONObject(i));
+            extCompsInfos.put(infos.getJSONObject(i));
           }
           readComponentInfos.add(jsonFile.getAbsolutePath());
         }
       }
+      extCompsBuildInfo = ComponentBuildInfo.parse(extCompsInfos);
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -2095,14 +2239,7 @@ public final class Compiler {
 
   private void prepareCompTypes(Set<String> neededTypes) {
     try {
-      JSONArray buildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
-
-      Set<String> allSimpleTypes = Sets.newHashSet();
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject comp = buildInfo.getJSONObject(i);
-        allSimpleTypes.add(comp.getString("type"));
-      }
+      Set<String> allSimpleTypes = ComponentBuildInfo.getSimpleComponents().getTypes();
 
       simpleCompTypes = Sets.newHashSet(neededTypes);
       simpleCompTypes.retainAll(allSimpleTypes);
@@ -0,0 +1,135 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Resources;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The build info of a set of components, indexed by component type and
+ * target, for example {@code permissions} or {@code libraries}.
+ *
+ * <p>The build info of the built-in components is read from
+ * {@code simple_components_build_info.json} once per build server and then
+ * shared by all builds. Each build only reads the build info of the
+ * extensions it uses. Instances are immutable.</p>
+ */
+final class ComponentBuildInfo {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ComponentBuildInfo.class.getName());
+
+  static final String SIMPLE_COMPONENTS_BUILD_INFO =
+      Compiler.RUNTIME_FILES_DIR + "simple_components_build_info.json";
+
+  static final ComponentBuildInfo EMPTY =
+      new ComponentBuildInfo(ImmutableMap.<String, ImmutableMap<String, ImmutableSet<String>>>of());
+
+  private static volatile ComponentBuildInfo simpleComponents = null;
+
+  // Keyed by component type and then by target. Empty entries are kept, to tell a target
+  // without build info from a missing target.
+  private final ImmutableMap<String, ImmutableMap<String, ImmutableSet<String>>> infos;
+
+  private ComponentBuildInfo(ImmutableMap<String, ImmutableMap<String, ImmutableSet<String>>> infos) {
+    this.infos = infos;
+  }
+
+  /**
+   * Returns the build info of the built-in components, reading it first if
+   * this is the first call.
+   */
+  static ComponentBuildInfo getSimpleComponents() throws IOException {
+    ComponentBuildInfo result = simpleComponents;
+    if (result == null) {
+      synchronized (ComponentBuildInfo.class) {
+        result = simpleComponents;
+        if (result == null) {
+          URL url = Compiler.class.getResource(SIMPLE_COMPONENTS_BUILD_INFO);
+          if (url == null) {
+            throw new IOException("Missing " + SIMPLE_COMPONENTS_BUILD_INFO);
+          }
+          try {
+            result = parse(new JSONArray(Resources.toString(url, Charsets.UTF_8)));
+          } catch (JSONException e) {
+            throw new IOException("Invalid " + SIMPLE_COMPONENTS_BUILD_INFO, e);
+          }
+          LOG.info("Read the build info of " + result.getTypes().size() + " components");
+          simpleComponents = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Indexes the build info of components.
+   *
+   * @param components  JSON objects with the type of a component and arrays
+   *     of build info. A component that comes later replaces an earlier one
+   *     of the same type.
+   */
+  static ComponentBuildInfo parse(JSONArray components) throws JSONException {
+    Map<String, ImmutableMap<String, ImmutableSet<String>>> infos =
+        new LinkedHashMap<String, ImmutableMap<String, ImmutableSet<String>>>();
+    for (int i = 0; i < components.length(); i++) {
+      JSONObject component = components.getJSONObject(i);
+      ImmutableMap.Builder<String, ImmutableSet<String>> targets = ImmutableMap.builder();
+      Iterator<?> keys = component.keys();
+      while (keys.hasNext()) {
+        String target = (String) keys.next();
+        Object value = component.get(target);
+        if (!(value instanceof JSONArray)) {
+          continue;
+        }
+        JSONArray infoArray = (JSONArray) value;
+        ImmutableSet.Builder<String> infoSet = ImmutableSet.builder();
+        for (int j = 0; j < infoArray.length(); j++) {
+          String info = infoArray.getString(j);
+          if (!info.isEmpty()) {
+            infoSet.add(info);
+          }
+        }
+        targets.put(target, infoSet.build());
+      }
+      infos.put(component.getString("type"), targets.build());
+    }
+    return new ComponentBuildInfo(ImmutableMap.copyOf(infos));
+  }
+
+  Set<String> getTypes() {
+    return infos.keySet();
+  }
+
+  boolean contains(String type) {
+    return infos.containsKey(type);
+  }
+
+  /**
+   * Returns the build info of a component for a target.
+   *
+   * @return  the build info, or {@code null} if the component is unknown or
+   *     has no such target
+   */
+  Set<String> get(String type, String target) {
+    ImmutableMap<String, ImmutableSet<String>> targets = infos.get(type);
+    return targets == null ? null : targets.get(target);
+  }
+}
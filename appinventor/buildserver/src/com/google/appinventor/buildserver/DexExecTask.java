@@ -18,25 +18,47 @@ package com.google.appinventor.buildserver;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipFile;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Striped;
+
+import org.apache.commons.io.FileUtils;
 
 /**
  * Dex task, modified from the Android SDK to run in BuildServer.
  * Custom task to execute dx while handling dependencies.
+ *
+ * <p>Libraries are pre-dexed in parallel into a {@link DirectoryCache} in
+ * the dexed libs directory, one entry per library content hash. Entries are
+ * written atomically, checked before they are used and evicted least
+ * recently used first once the cache exceeds its maximum size.</p>
  */
 public class DexExecTask  {
 
+    private static final Logger LOG = Logger.getLogger(DexExecTask.class.getName());
+
+    // Name of the pre-dexed library inside a cache entry.
+    private static final String DEXED_LIB_NAME = "classes.jar";
+
     private String mExecutable;
     private String mOutput;
     private String mDexedLibs;
@@ -44,10 +66,35 @@ public class DexExecTask  {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
 
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
+    // Content hashes of libraries, keyed by path, size and modification time.
+    private static final Cache<String, String> alreadyChecked =
+        CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    // The pre-dex caches, keyed by directory.
+    private static final Map<String, DirectoryCache> dexCaches =
+        new HashMap<String, DirectoryCache>();
+    private static long maxDexCacheBytes = 2048L * 1024 * 1024;
+
+    // Locks that keep two builds from pre-dexing the same library at the same time. Striped,
+    // so that they take a fixed amount of memory however many libraries are seen.
+    private static final Striped<Lock> entryLocks = Striped.lock(64);
 
+    private static final AtomicInteger preDexHits = new AtomicInteger(0);
+    private static final AtomicInteger preDexMisses = new AtomicInteger(0);
+
+    // Cache entries used by the current execution, released when it is done.
+    private final List<String> mPinnedEntries = new ArrayList<String>();
+
+    /**
+     * Sets the maximum size of the pre-dex cache. Takes effect for caches
+     * that are created afterwards.
+     */
+    public static void setMaxDexCacheMb(long mb) {
+        synchronized (dexCaches) {
+            maxDexCacheBytes = mb * 1024 * 1024;
+        }
+    }
 
     /**
      * Sets the value of the "executable" attribute.
@@ -93,6 +140,55 @@ public class DexExecTask  {
         mDisableDexMerger = disable;
     }
 
+    public static int getPreDexHitCount() {
+        return preDexHits.get();
+    }
+
+    public static int getPreDexMissCount() {
+        return preDexMisses.get();
+    }
+
+    public static int getDexCacheEntryCount() {
+        int count = 0;
+        synchronized (dexCaches) {
+            for (DirectoryCache cache : dexCaches.values()) {
+                count += cache.getEntryCount();
+            }
+        }
+        return count;
+    }
+
+    public static long getDexCacheSizeInBytes() {
+        long size = 0;
+        synchronized (dexCaches) {
+            for (DirectoryCache cache : dexCaches.values()) {
+                size += cache.getSizeInBytes();
+            }
+        }
+        return size;
+    }
+
+    private static DirectoryCache getDexCache(String dexedLibs) {
+        synchronized (dexCaches) {
+            DirectoryCache cache = dexCaches.get(dexedLibs);
+            if (cache == null) {
+                File dir = new File(dexedLibs);
+                // Pre-dexed libraries used to be stored directly in the directory.
+                File[] legacyEntries = dir.listFiles();
+                if (legacyEntries != null) {
+                    for (File legacyEntry : legacyEntries) {
+                        if (legacyEntry.isFile() && legacyEntry.getName().startsWith("dex-cached-")) {
+                            legacyEntry.delete();
+                        }
+                    }
+                }
+                cache = new DirectoryCache(dir, maxDexCacheBytes);
+                dexCaches.put(dexedLibs, cache);
+            }
+            return cache;
+        }
+    }
+
     private boolean preDexLibraries(List<File> inputs) {
         if (mDisableDexMerger || inputs.size() == 1) {
             // only one input, no need to put a pre-dexed version, even if this path is
@@ -100,84 +196,168 @@ public class DexExecTask  {
             return true;
         }
 
-        synchronized(semaphore) {
+        final DirectoryCache cache = getDexCache(mDexedLibs);
+        final int count = inputs.size();
+        List<Integer> libraries = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            if (inputs.get(i).isFile()) {
+                libraries.add(i);
+            }
+        }
+        if (libraries.isEmpty()) {
+            return true;
+        }
 
-            final int count = inputs.size();
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(libraries.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<File>> results = new ArrayList<Future<File>>();
+            for (int i : libraries) {
+                final File input = inputs.get(i);
+                results.add(executor.submit(RunningBuild.propagate(new Callable<File>() {
+                    @Override
+                    public File call() throws IOException {
+                        return preDexLibrary(cache, input);
+                    }
+                })));
+            }
             boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
-                    if (dexedLib.isFile() == false/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
-
-                        System.out.println(
-                            String.format("Pre-Dexing %1$s -> %2$s",
-                              input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
-                        }
-
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
-                        allSuccessful = allSuccessful && dexSuccess;
+            for (int j = 0; j < libraries.size(); j++) {
+                try {
+                    File dexedLib = results.get(j).get();
+                    if (dexedLib == null) {
+                        allSuccessful = false;
                     } else {
-                        System.out.println(
-                            String.format("Using Pre-Dexed %1$s <- %2$s",
-                              fileName, input.getAbsolutePath()));
+                        // replace the input with the pre-dex libs.
+                        inputs.set(libraries.get(j), dexedLib);
                     }
-
-                    // replace the input with the pre-dex libs.
-                    inputs.set(i, dexedLib);
+                } catch (ExecutionException e) {
+                    LOG.log(Level.WARNING, "Pre-dexing failed", e.getCause());
+                    allSuccessful = false;
                 }
             }
             return allSuccessful;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-    private String getDexFileName(File inputFile) {
-        // get the filename
-        String name = inputFile.getName();
-        // remove the extension
-        int pos = name.lastIndexOf('.');
-        if (pos != -1) {
-            name = name.substring(0, pos);
+    /*
+     * Returns the pre-dexed version of a library, dexing it first if it is not in the cache.
+     * Returns the library itself if the pre-dexed version is too large to be cached, and null if
+     * dx fails.
+     */
+    private File preDexLibrary(DirectoryCache cache, File input) throws IOException {
+        String key = getHashFor(input);
+        Lock lock = entryLocks.get(key);
+        lock.lock();
+        try {
+            File entryDir = cache.get(key);
+            if (entryDir != null) {
+                File dexedLib = new File(entryDir, DEXED_LIB_NAME);
+                if (isValidDexedLib(dexedLib)) {
+                    System.out.println(
+                        String.format("Using Pre-Dexed %1$s <- %2$s",
+                          key, input.getAbsolutePath()));
+                    preDexHits.incrementAndGet();
+                    pin(key);
+                    return dexedLib;
+                }
+                LOG.warning("Discarding damaged pre-dexed library " + dexedLib);
+                cache.invalidate(key);
+                cache.release(key);
+            }
+
+            preDexMisses.incrementAndGet();
+            System.out.println(
+                String.format("Pre-Dexing %1$s -> %2$s",
+                  input.getAbsolutePath(), key));
+            File tmpDir = cache.newEntryDir(key);
+            File tmpDexedLib = new File(tmpDir, DEXED_LIB_NAME);
+            if (!runDx(input, tmpDexedLib.getAbsolutePath(), false /*showInput*/) ||
+                !isValidDexedLib(tmpDexedLib)) {
+                FileUtils.deleteQuietly(tmpDir);
+                return null;
+            }
+            cache.commit(key, tmpDir);
+            entryDir = cache.get(key);
+            if (entryDir == null) {
+                // Evicted right away because it is larger than the whole cache, or the damaged
+                // entry is still used by another build.
+                return input;
+            }
+            pin(key);
+            return new File(entryDir, DEXED_LIB_NAME);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        String hashed = getHashFor(inputFile);
+    private void pin(String key) {
+        synchronized (mPinnedEntries) {
+            mPinnedEntries.add(key);
+        }
+    }
 
-        return "dex-cached-" + hashed + ".jar";
+    private void releasePinnedEntries() {
+        if (mDexedLibs == null) {
+            return;
+        }
+        DirectoryCache cache = getDexCache(mDexedLibs);
+        synchronized (mPinnedEntries) {
+            for (String key : mPinnedEntries) {
+                cache.release(key);
+            }
+            mPinnedEntries.clear();
+        }
     }
 
-    private String getHashFor(File inputFile) {
-        String retval = alreadyChecked.get(inputFile.getAbsolutePath());
-        if (retval != null) return retval;
-        // add a hash of the original file path
+    /*
+     * Checks that a pre-dexed library is a complete jar that contains a classes.dex.
+     */
+    private static boolean isValidDexedLib(File dexedLib) {
+        if (!dexedLib.isFile()) {
+            return false;
+        }
         try {
-            HashFunction hashFunction = Hashing.md5();
-            HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
-            retval = hashCode.toString();
-            alreadyChecked.put(inputFile.getAbsolutePath(), retval);
-            return retval;
+            ZipFile zipFile = new ZipFile(dexedLib);
+            try {
+                return zipFile.getEntry("classes.dex") != null;
+            } finally {
+                zipFile.close();
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-            return "ERROR";
+            return false;
         }
     }
 
+    private static String getHashFor(File inputFile) throws IOException {
+        String checkKey = inputFile.getAbsolutePath() + "|" + inputFile.length() + "|" +
+            inputFile.lastModified();
+        String retval = alreadyChecked.getIfPresent(checkKey);
+        if (retval != null) return retval;
+        // Hash the contents, since the path is usually a temporary file.
+        retval = Files.hash(inputFile, Hashing.md5()).toString();
+        alreadyChecked.put(checkKey, retval);
+        return retval;
+    }
+
     public boolean execute(List<File> paths) {
-        // pre dex libraries if needed
-        boolean successPredex = preDexLibraries(paths);
-        if (!successPredex) return false;
+        try {
+            // pre dex libraries if needed
+            boolean successPredex = preDexLibraries(paths);
+            if (!successPredex) return false;
 
-        System.out.println(String.format(
-                "Converting compiled files and external libraries into %1$s...", mOutput));
+            System.out.println(String.format(
+                    "Converting compiled files and external libraries into %1$s...", mOutput));
 
-        return runDx(paths, mOutput, mVerbose /*showInputs*/);
+            return runDx(paths, mOutput, mVerbose /*showInputs*/);
+        } finally {
+            releasePinnedEntries();
+        }
     }
 
     private boolean runDx(File input, String output, boolean showInputs) {
@@ -218,8 +398,21 @@ public class DexExecTask  {
         String[] dxCommandLine = new String[commandLineList.size()];
         commandLineList.toArray(dxCommandLine);
 
-        boolean dxSuccess = Execution.execute(null, dxCommandLine, System.out, System.err);
-        return dxSuccess;
+        // dx can use a lot of memory. Only start as many as fit in the budget.
+        ChildProcessAdmission.Permit permit;
+        try {
+            permit = ChildProcessAdmission.acquire(
+                ChildProcessAdmission.Stage.DEX, mChildProcessRamMb);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            return Execution.execute(null, dxCommandLine, System.out, System.err,
+                Execution.Deadline.DEX);
+        } finally {
+            permit.release();
+        }
 
     }
 
@@ -0,0 +1,216 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A size bounded cache of directories on disk.
+ *
+ * <p>Every entry is a subdirectory of the cache directory named after its
+ * key. An entry is filled in a temporary directory obtained from
+ * {@link #newEntryDir} and then moved into place by {@link #commit}, so a
+ * crash can never leave a half-written entry behind. When the total size of
+ * the entries exceeds the maximum, the least recently used entries are
+ * deleted. Entries returned by {@link #get} are pinned until they are
+ * {@link #release released}, so they cannot be deleted while they are being
+ * read. This holds for {@link #invalidate invalidated} entries too.</p>
+ *
+ * <p>Entries left by an earlier run of the build server are picked up when
+ * the cache is created, oldest first.</p>
+ */
+final class DirectoryCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(DirectoryCache.class.getName());
+
+  // Temporary directories start with a dot and are never picked up as entries.
+  private static final String TMP_PREFIX = ".";
+
+  private final File cacheDir;
+  private final long maxBytes;
+
+  // Entry sizes in bytes, keyed by cache key. Least recently used first.
+  private final Map<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private final Map<String, Integer> pins = new HashMap<String, Integer>();
+  // Pinned entries that are deleted when they are released.
+  private final Set<String> invalidated = new HashSet<String>();
+  private long totalBytes = 0;
+  private int tmpDirCount = 0;
+
+  private final AtomicInteger evictions = new AtomicInteger(0);
+
+  /**
+   * Creates a cache, picking up the entries already in the directory.
+   *
+   * @param cacheDir  the cache directory, created if necessary
+   * @param maxBytes  the maximum total size of the entries
+   */
+  DirectoryCache(File cacheDir, long maxBytes) {
+    this.cacheDir = cacheDir;
+    this.maxBytes = maxBytes;
+    cacheDir.mkdirs();
+
+    File[] dirs = cacheDir.listFiles();
+    if (dirs == null) {
+      dirs = new File[0];
+    }
+    Arrays.sort(dirs, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+      }
+    });
+    synchronized (this) {
+      for (File entryDir : dirs) {
+        if (entryDir.getName().startsWith(TMP_PREFIX)) {
+          // Left behind by a crash while an entry was being filled.
+          FileUtils.deleteQuietly(entryDir);
+        } else if (entryDir.isDirectory()) {
+          long size = FileUtils.sizeOfDirectory(entryDir);
+          entries.put(entryDir.getName(), size);
+          totalBytes += size;
+        }
+      }
+      evict();
+    }
+    LOG.info("Cache in " + cacheDir + " has " + entries.size() + " entries, " + totalBytes +
+        " bytes");
+  }
+
+  /**
+   * Returns the directory of an entry and pins it. The caller must call
+   * {@link #release} when it has finished reading the entry.
+   *
+   * @return  the entry directory, or {@code null} if there is no such entry
+   */
+  synchronized File get(String key) {
+    if (entries.get(key) == null || invalidated.contains(key)) {
+      return null;
+    }
+    Integer count = pins.get(key);
+    pins.put(key, count == null ? 1 : count + 1);
+    File entryDir = new File(cacheDir, key);
+    entryDir.setLastModified(System.currentTimeMillis());
+    return entryDir;
+  }
+
+  /**
+   * Unpins an entry returned by {@link #get}.
+   */
+  synchronized void release(String key) {
+    Integer count = pins.get(key);
+    if (count == null) {
+      return;
+    }
+    if (count == 1) {
+      pins.remove(key);
+      if (invalidated.remove(key)) {
+        remove(key);
+      }
+      evict();
+    } else {
+      pins.put(key, count - 1);
+    }
+  }
+
+  /**
+   * Deletes an entry that turned out to be unusable. {@link #get} no longer
+   * returns it, but while it is pinned it is only deleted once the last pin
+   * is released. Callers that got the entry must still release it.
+   */
+  synchronized void invalidate(String key) {
+    if (!entries.containsKey(key)) {
+      return;
+    }
+    if (pins.containsKey(key)) {
+      invalidated.add(key);
+    } else {
+      remove(key);
+    }
+  }
+
+  synchronized boolean contains(String key) {
+    return entries.containsKey(key) && !invalidated.contains(key);
+  }
+
+  /**
+   * Creates an empty temporary directory in which a new entry is filled.
+   */
+  synchronized File newEntryDir(String key) {
+    File tmpDir = new File(cacheDir, TMP_PREFIX + key + "-" + (tmpDirCount++));
+    FileUtils.deleteQuietly(tmpDir);
+    tmpDir.mkdirs();
+    return tmpDir;
+  }
+
+  /**
+   * Moves a directory filled by the caller into the cache. If there already
+   * is an entry for the key, the directory is deleted instead.
+   *
+   * @param key  the key of the new entry
+   * @param tmpDir  the directory returned by {@link #newEntryDir}
+   * @return  {@code true} if the entry was added
+   */
+  boolean commit(String key, File tmpDir) {
+    long size = FileUtils.sizeOfDirectory(tmpDir);
+    synchronized (this) {
+      if (!entries.containsKey(key) && tmpDir.renameTo(new File(cacheDir, key))) {
+        entries.put(key, size);
+        totalBytes += size;
+        evict();
+        return true;
+      }
+    }
+    FileUtils.deleteQuietly(tmpDir);
+    return false;
+  }
+
+  // Must be called while holding the lock.
+  private void remove(String key) {
+    totalBytes -= entries.remove(key);
+    FileUtils.deleteQuietly(new File(cacheDir, key));
+  }
+
+  // Must be called while holding the lock.
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      if (pins.containsKey(entry.getKey())) {
+        continue;
+      }
+      FileUtils.deleteQuietly(new File(cacheDir, entry.getKey()));
+      totalBytes -= entry.getValue();
+      iterator.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  synchronized long getSizeInBytes() {
+    return totalBytes;
+  }
+
+  int getEvictionCount() {
+    return evictions.get();
+  }
+}
@@ -8,6 +8,7 @@ package com.google.appinventor.buildserver;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -16,12 +17,26 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Utility class for command execution and I/O redirection.
  *
+ * <p>Every child process gets a deadline, after which it is killed along
+ * with the processes it started. The deadline depends on what the process
+ * does, see {@link Deadline}, and is capped by
+ * {@link #setMaxTimeoutSeconds}. A child process started for a
+ * {@link RunningBuild} is also killed when the build is cancelled.</p>
  */
 public final class Execution {
 
@@ -29,6 +44,102 @@ public final class Execution {
   private static final Logger LOG = Logger.getLogger(Execution.class.getName());
   private static final Joiner joiner = Joiner.on(" ");
 
+  // The longest deadline of a child process, in ms, 0 for no deadlines at all.
+  private static volatile long maxTimeoutMillis = 0;
+
+  /**
+   * The kinds of child processes a build runs, each with the time it may
+   * take before it is considered hung.
+   */
+  enum Deadline {
+    // Packages the resources, which takes seconds even for large apps.
+    AAPT(120),
+    // Compiles a screen, or the YAIL runtime.
+    KAWA(300),
+    // Dexes a library, or all of the app's classes.
+    DEX(600);
+
+    private final long seconds;
+
+    Deadline(long seconds) {
+      this.seconds = seconds;
+    }
+  }
+
+  private static final ScheduledExecutorService watchdog = Executors.newScheduledThreadPool(1,
+      new ThreadFactoryBuilder().setNameFormat("execution-watchdog-%d").setDaemon(true).build());
+
+  private static final AtomicInteger timedOutProcesses = new AtomicInteger(0);
+  private static final AtomicInteger cancelledProcesses = new AtomicInteger(0);
+
+  /**
+   * Watches a child process until it ends. The process is killed when its
+   * deadline passes or when its build is cancelled.
+   */
+  static final class ProcessWatch {
+    private final Process process;
+    private final RunningBuild build;
+    private final ScheduledFuture<?> deadline;
+
+    private final long timeoutMillis;
+    private volatile boolean timedOut = false;
+
+    private ProcessWatch(final Process process, final String description, Deadline kind) {
+      this.process = process;
+      build = RunningBuild.current();
+      if (build != null && !build.addProcess(process)) {
+        destroyProcessTree(process);
+      }
+      timeoutMillis = Execution.getTimeoutMillis(kind);
+      deadline = timeoutMillis <= 0 ? null : watchdog.schedule(new Runnable() {
+        @Override
+        public void run() {
+          timedOut = true;
+          timedOutProcesses.incrementAndGet();
+          LOG.warning("____Killing " + description + " after " + timeoutMillis + " ms");
+          destroyProcessTree(process);
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether the process was killed because it ran past its deadline.
+     */
+    boolean hasTimedOut() {
+      return timedOut;
+    }
+
+    /**
+     * Returns the deadline of the process, in ms, 0 if it has none.
+     */
+    long getTimeoutMillis() {
+      return timeoutMillis;
+    }
+
+    /**
+     * Whether the process was killed, because of its deadline or because
+     * its build was cancelled.
+     */
+    boolean wasKilled() {
+      return timedOut || (build != null && build.isCancelled());
+    }
+
+    /**
+     * Stops watching the process, once it has ended or is given back.
+     */
+    void release() {
+      if (deadline != null) {
+        deadline.cancel(false);
+      }
+      if (build != null) {
+        build.removeProcess(process);
+        if (build.isCancelled() && !timedOut) {
+          cancelledProcesses.incrementAndGet();
+        }
+      }
+    }
+  }
+
   /*
    * Input stream handler used for stdout and stderr redirection.
    */
@@ -90,6 +201,121 @@ public final class Execution {
   private Execution() {
   }
 
+  /**
+   * Sets the longest deadline of child processes. The deadline of each kind
+   * of process is cut down to it.
+   *
+   * @param seconds  the maximum time any child process may run, 0 for no
+   *     deadlines at all
+   */
+  static void setMaxTimeoutSeconds(long seconds) {
+    maxTimeoutMillis = Math.max(0, seconds) * 1000;
+  }
+
+  /*
+   * Returns the deadline of a kind of process, or the longest deadline if the kind is null.
+   */
+  private static long getTimeoutMillis(Deadline kind) {
+    long max = maxTimeoutMillis;
+    return kind == null ? max : Math.min(max, kind.seconds * 1000);
+  }
+
+  /**
+   * Starts watching a child process. The caller must call
+   * {@link ProcessWatch#release} when the process has ended.
+   *
+   * @param process  the process
+   * @param description  describes the process in log messages
+   * @param kind  what the process does, which sets its deadline
+   */
+  static ProcessWatch watch(Process process, String description, Deadline kind) {
+    return new ProcessWatch(process, description, kind);
+  }
+
+  static int getTimedOutCount() {
+    return timedOutProcesses.get();
+  }
+
+  static int getCancelledCount() {
+    return cancelledProcesses.get();
+  }
+
+  /**
+   * Kills a process and all of its descendants. Only the process itself is
+   * killed if its descendants cannot be found.
+   */
+  static void destroyProcessTree(Process process) {
+    long pid = getPid(process);
+    if (pid > 0) {
+      try {
+        if (System.getProperty("os.name").startsWith("Windows")) {
+          Runtime.getRuntime().exec(new String[] {
+              "taskkill", "/F", "/T", "/PID", Long.toString(pid)}).waitFor();
+        } else {
+          // Find the descendants first, as they are reparented once their parent is gone.
+          List<Long> pids = new ArrayList<Long>();
+          pids.add(pid);
+          for (int i = 0; i < pids.size(); i++) {
+            pids.addAll(getChildPids(pids.get(i)));
+          }
+          String[] command = new String[pids.size() + 2];
+          command[0] = "kill";
+          command[1] = "-KILL";
+          for (int i = 0; i < pids.size(); i++) {
+            command[i + 2] = Long.toString(pids.get(i));
+          }
+          Runtime.getRuntime().exec(command).waitFor();
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "____Unable to kill the descendants of process " + pid, e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    process.destroy();
+  }
+
+  private static List<Long> getChildPids(long pid) throws IOException, InterruptedException {
+    List<Long> children = new ArrayList<Long>();
+    Process pgrep = Runtime.getRuntime().exec(new String[] {"pgrep", "-P", Long.toString(pid)});
+    BufferedReader reader = new BufferedReader(new InputStreamReader(pgrep.getInputStream()));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        try {
+          children.add(Long.parseLong(line.trim()));
+        } catch (NumberFormatException e) {
+          // Not a pid.
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    pgrep.waitFor();
+    return children;
+  }
+
+  /*
+   * Returns the pid of a process, or -1 if it is unknown. Process.pid() only exists from Java 9
+   * on, and earlier JDKs keep the pid in a field of their Process implementation.
+   */
+  private static long getPid(Process process) {
+    try {
+      Method pidMethod = Process.class.getMethod("pid");
+      return ((Number) pidMethod.invoke(process)).longValue();
+    } catch (NoSuchMethodException e) {
+      try {
+        Field pidField = process.getClass().getDeclaredField("pid");
+        pidField.setAccessible(true);
+        return ((Number) pidField.get(process)).longValue();
+      } catch (ReflectiveOperationException|RuntimeException e2) {
+        return -1;
+      }
+    } catch (ReflectiveOperationException|RuntimeException e) {
+      return -1;
+    }
+  }
+
   /**
    * Executes a command in a command shell.
    *
@@ -101,6 +327,21 @@ public final class Execution {
    */
   public static boolean execute(File workingDir, String[] command, PrintStream out,
       PrintStream err) {
+    return execute(workingDir, command, out, err, null);
+  }
+
+  /**
+   * Executes a command of a build in a command shell.
+   *
+   * @param workingDir  working directory for the command
+   * @param command  command to execute and its arguments
+   * @param out  standard output stream to redirect to
+   * @param err  standard error stream to redirect to
+   * @param kind  what the command does, which sets its deadline
+   * @return  {@code true} if the command succeeds, {@code false} otherwise
+   */
+  static boolean execute(File workingDir, String[] command, PrintStream out,
+      PrintStream err, Deadline kind) {
     LOG.log(Level.INFO, "____Executing " + joiner.join(command));
     if (System.getProperty("os.name").startsWith("Windows")){
     	for(int i =0; i < command.length; i++){
@@ -109,9 +350,25 @@ public final class Execution {
     }
     try {
       Process process = Runtime.getRuntime().exec(command, null, workingDir);
-      new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
-      new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
-      return process.waitFor() == 0;
+      ProcessWatch watch = watch(process, command[0], kind);
+      try {
+        new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
+        new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
+        int exitCode = process.waitFor();
+        if (watch.hasTimedOut()) {
+          err.println("Killed " + command[0] + " after " + watch.getTimeoutMillis() / 1000 +
+              " seconds");
+        }
+        return exitCode == 0 && !watch.wasKilled();
+      } catch (InterruptedException e) {
+        // The build was cancelled.
+        LOG.log(Level.WARNING, "____Execution interrupted: " + command[0]);
+        Thread.currentThread().interrupt();
+        destroyProcessTree(process);
+        return false;
+      } finally {
+        watch.release();
+      }
     } catch (Exception e) {
       LOG.log(Level.WARNING, "____Execution failure: ", e);
       return false;
@@ -132,15 +389,22 @@ public final class Execution {
       StringBuffer err) throws IOException {
     LOG.log(Level.INFO, "____Executing " + joiner.join(command));
     Process process = Runtime.getRuntime().exec(command, null, workingDir);
-    Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
-    Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
+    ProcessWatch watch = watch(process, command[0], null);
     try {
-      process.waitFor();
-      outThread.join();
-      errThread.join();
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+      Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
+      Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
+      try {
+        process.waitFor();
+        outThread.join();
+        errThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        destroyProcessTree(process);
+        return -1;
+      }
+      return process.exitValue();
+    } finally {
+      watch.release();
     }
-    return process.exitValue();
   }
 }
@@ -6,11 +6,11 @@
 
 package com.google.appinventor.buildserver;
 
-import org.codehaus.jettison.json.JSONArray;
+import com.google.appinventor.common.utils.FormPropertiesScanner;
+
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
-import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -69,27 +69,7 @@ public class FormPropertiesAnalyzer {
    * Returns the Set of component types used in the given form file source.
    */
   public static Set<String> getComponentTypesFromFormFile(String source) {
-    Set<String> componentTypes = new HashSet<String>();
-    JSONObject propertiesObject = parseSourceFile(source);
-    try {
-      collectComponentTypes(propertiesObject.getJSONObject("Properties"), componentTypes);
-    } catch (JSONException e) {
-      throw new IllegalArgumentException("Unable to parse file - invalid $JSON section syntax");
-    }
-    return componentTypes;
-  }
-
-  private static void collectComponentTypes(JSONObject componentProperties,
-      Set<String> componentTypes) throws JSONException {
-    String componentType = componentProperties.getString("$Type");
-    componentTypes.add(componentType);
-
-    // Recursive call to collect nested components.
-    if (componentProperties.has("$Components")) {
-      JSONArray components = componentProperties.getJSONArray("$Components");
-      for (int i = 0; i < components.length(); i++) {
-        collectComponentTypes(components.getJSONObject(i), componentTypes);
-      }
-    }
+    // Scans the $JSON section without building the JSON tree, which large screens make costly.
+    return FormPropertiesScanner.getComponentTypes(source);
   }
 }
@@ -0,0 +1,377 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of warm Kawa compiler processes.
+ *
+ * <p>Instead of forking a new {@code java kawa.repl} for every build, builds
+ * borrow a {@link KawaCompilerWorker} process that was started with the same
+ * classpath and heap size, send it their compile arguments, and hand it back
+ * afterwards. A worker is checked with a ping before it is reused, and is
+ * retired after a configurable number of jobs so that whatever Kawa keeps in
+ * its global state cannot grow without bound.</p>
+ *
+ * <p>The pool is disabled (every compile forks a new process) until
+ * {@link #configure(int, int)} is called with a positive number of
+ * workers. A compile also forks a new process if no worker can be
+ * started.</p>
+ */
+final class KawaCompilerPool {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+  private static final Joiner joiner = Joiner.on(" ");
+
+  // The maximum number of idle workers that are kept. 0 disables the pool.
+  private static volatile int maxIdleWorkers = 0;
+
+  // The number of jobs after which a worker is retired.
+  private static volatile int maxJobsPerWorker = 20;
+
+  // Idle workers, keyed by command line. Least recently used first.
+  private static final Map<String, Deque<Worker>> idleWorkers =
+      new LinkedHashMap<String, Deque<Worker>>(16, 0.75f, true);
+  private static int idleWorkerCount = 0;
+
+  private static final AtomicInteger startedWorkers = new AtomicInteger(0);
+  private static final AtomicInteger reusedWorkers = new AtomicInteger(0);
+  private static final AtomicInteger failedJobs = new AtomicInteger(0);
+  private static final AtomicInteger fallbackCompiles = new AtomicInteger(0);
+
+  private KawaCompilerPool() {
+  }
+
+  /*
+   * A running KawaCompilerWorker process.
+   */
+  private static class Worker {
+    final Process process;
+    final DataOutputStream jobs;
+    final DataInputStream replies;
+    int jobCount = 0;
+
+    Worker(String[] command) throws IOException {
+      process = Runtime.getRuntime().exec(command);
+      jobs = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      replies = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+      drain(process.getErrorStream());
+    }
+
+    /**
+     * Sends a job to the worker and relays its output.
+     *
+     * @return the exit code of the job, or -1 if the worker died
+     */
+    int run(String[] args, PrintStream out, PrintStream err) throws IOException {
+      jobs.writeInt(args.length);
+      for (String arg : args) {
+        jobs.writeUTF(arg);
+      }
+      jobs.flush();
+      jobCount++;
+      byte[] buffer = new byte[8192];
+      while (true) {
+        int type;
+        int length;
+        try {
+          type = replies.readByte();
+          length = replies.readInt();
+        } catch (EOFException e) {
+          return -1;
+        }
+        if (type == KawaCompilerWorker.FRAME_EXIT) {
+          return replies.readInt();
+        }
+        PrintStream target = type == KawaCompilerWorker.FRAME_STDERR ? err : out;
+        while (length > 0) {
+          int n = replies.read(buffer, 0, Math.min(length, buffer.length));
+          if (n < 0) {
+            return -1;
+          }
+          target.write(buffer, 0, n);
+          length -= n;
+        }
+        target.flush();
+      }
+    }
+
+    boolean isAlive() {
+      try {
+        process.exitValue();
+        return false;
+      } catch (IllegalThreadStateException e) {
+        return true;
+      }
+    }
+
+    boolean ping() {
+      try {
+        return isAlive() && run(new String[0], System.out, System.err) == 0;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    void destroy() {
+      process.destroy();
+    }
+  }
+
+  /*
+   * Copies what a worker writes to its real stderr (e.g. JVM crash messages) to our stderr.
+   */
+  private static void drain(final InputStream input) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            System.err.println(line);
+          }
+        } catch (IOException e) {
+          // OK to ignore...
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Configures the pool.
+   *
+   * @param maxIdle  the maximum number of idle workers to keep, 0 to disable the pool
+   * @param maxJobs  the number of jobs after which a worker is retired
+   */
+  static void configure(int maxIdle, int maxJobs) {
+    maxIdleWorkers = maxIdle;
+    maxJobsPerWorker = Math.max(1, maxJobs);
+    if (maxIdle <= 0) {
+      shutdown();
+    }
+  }
+
+  static boolean isEnabled() {
+    return maxIdleWorkers > 0;
+  }
+
+  /**
+   * Compiles with Kawa, in a warm worker process if the pool is enabled and
+   * one can be started, or else in a new process.
+   *
+   * @param classpath  the classpath Kawa needs to compile the sources
+   * @param maxHeapMb  maximum heap of the worker, in MB
+   * @param kawaArgs  arguments for {@code kawa.repl}
+   * @param out  standard output stream to redirect to
+   * @param err  standard error stream to redirect to
+   * @return  {@code true} if the compilation succeeds, {@code false} otherwise
+   */
+  static boolean compile(String classpath, int maxHeapMb, String[] kawaArgs, PrintStream out,
+      PrintStream err) {
+    if (!isEnabled()) {
+      return compileInNewProcess(classpath, maxHeapMb, kawaArgs, out, err);
+    }
+    String[] command = {
+        System.getProperty("java.home") + "/bin/java",
+        "-Dfile.encoding=UTF-8",
+        "-mx" + maxHeapMb + "M",
+        "-cp", classpath + File.pathSeparator + getWorkerClasspath(),
+        KawaCompilerWorker.class.getName()
+    };
+    String key = joiner.join(command);
+    Worker worker;
+    try {
+      worker = borrow(key, command);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "____Unable to start a Kawa worker, compiling in a new process: ", e);
+      fallbackCompiles.incrementAndGet();
+      return compileInNewProcess(classpath, maxHeapMb, kawaArgs, out, err);
+    }
+    int exitCode = -1;
+    try {
+      LOG.log(Level.INFO, "____Compiling with Kawa worker (job " + (worker.jobCount + 1) + "): " +
+          joiner.join(kawaArgs));
+      // A cancelled or hung job kills the worker, which is then not given back to the pool.
+      Execution.ProcessWatch watch = Execution.watch(worker.process, "Kawa worker",
+          Execution.Deadline.KAWA);
+      try {
+        exitCode = worker.run(kawaArgs, out, err);
+      } finally {
+        watch.release();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "____Kawa worker failure: ", e);
+    } finally {
+      if (exitCode == -1) {
+        // The worker died, or is about to: Kawa exits after a failed compilation.
+        worker.destroy();
+      } else {
+        giveBack(key, worker);
+      }
+    }
+    if (exitCode != 0) {
+      failedJobs.incrementAndGet();
+    }
+    return exitCode == 0;
+  }
+
+  private static boolean compileInNewProcess(String classpath, int maxHeapMb, String[] kawaArgs,
+      PrintStream out, PrintStream err) {
+    List<String> command = Lists.newArrayList(
+        System.getProperty("java.home") + "/bin/java",
+        "-Dfile.encoding=UTF-8",
+        "-mx" + maxHeapMb + "M",
+        "-cp", classpath,
+        "kawa.repl");
+    Collections.addAll(command, kawaArgs);
+    return Execution.execute(null, command.toArray(new String[command.size()]), out, err,
+        Execution.Deadline.KAWA);
+  }
+
+  private static Worker borrow(String key, String[] command) throws IOException {
+    while (true) {
+      Worker worker = null;
+      synchronized (idleWorkers) {
+        Deque<Worker> workers = idleWorkers.get(key);
+        if (workers != null) {
+          worker = workers.pollFirst();
+          if (workers.isEmpty()) {
+            idleWorkers.remove(key);
+          }
+          if (worker != null) {
+            idleWorkerCount--;
+          }
+        }
+      }
+      if (worker == null) {
+        LOG.log(Level.INFO, "____Starting Kawa worker " + key);
+        startedWorkers.incrementAndGet();
+        worker = new Worker(command);
+        // Make sure that it came up before giving it a job that could not be taken back.
+        if (!worker.ping()) {
+          worker.destroy();
+          throw new IOException("Kawa worker did not start");
+        }
+        return worker;
+      }
+      // Health check before reuse.
+      if (worker.ping()) {
+        reusedWorkers.incrementAndGet();
+        return worker;
+      }
+      LOG.warning("Discarding unhealthy Kawa worker");
+      worker.destroy();
+    }
+  }
+
+  private static void giveBack(String key, Worker worker) {
+    if (!worker.isAlive() || worker.jobCount >= maxJobsPerWorker || !isEnabled()) {
+      worker.destroy();
+      return;
+    }
+    Worker evicted = null;
+    synchronized (idleWorkers) {
+      Deque<Worker> workers = idleWorkers.get(key);
+      if (workers == null) {
+        workers = new ArrayDeque<Worker>();
+        idleWorkers.put(key, workers);
+      }
+      workers.addLast(worker);
+      idleWorkerCount++;
+      if (idleWorkerCount > maxIdleWorkers) {
+        // Evict from the least recently used classpath.
+        Iterator<Deque<Worker>> iterator = idleWorkers.values().iterator();
+        Deque<Worker> oldest = iterator.next();
+        evicted = oldest.pollFirst();
+        if (oldest.isEmpty()) {
+          iterator.remove();
+        }
+        idleWorkerCount--;
+      }
+    }
+    if (evicted != null) {
+      evicted.destroy();
+    }
+  }
+
+  /**
+   * Stops all idle workers.
+   */
+  static void shutdown() {
+    synchronized (idleWorkers) {
+      for (Deque<Worker> workers : idleWorkers.values()) {
+        for (Worker worker : workers) {
+          worker.destroy();
+        }
+      }
+      idleWorkers.clear();
+      idleWorkerCount = 0;
+    }
+  }
+
+  static int getIdleWorkerCount() {
+    synchronized (idleWorkers) {
+      return idleWorkerCount;
+    }
+  }
+
+  static int getStartedWorkerCount() {
+    return startedWorkers.get();
+  }
+
+  static int getReusedWorkerCount() {
+    return reusedWorkers.get();
+  }
+
+  static int getFailedJobCount() {
+    return failedJobs.get();
+  }
+
+  static int getFallbackCompileCount() {
+    return fallbackCompiles.get();
+  }
+
+  /*
+   * Returns the jar or directory that contains KawaCompilerWorker.
+   */
+  private static String getWorkerClasspath() {
+    try {
+      return new File(KawaCompilerWorker.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
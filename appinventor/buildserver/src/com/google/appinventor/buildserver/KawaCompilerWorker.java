@@ -0,0 +1,142 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Main class of a long-lived Kawa compiler process.
+ *
+ * <p>The process is started by {@link KawaCompilerPool} with Kawa and the
+ * component libraries on its classpath. It reads compile jobs from standard
+ * input and runs each of them through {@code kawa.repl.main}, so the JVM
+ * start-up, class loading and JIT warm-up are paid only once for many
+ * builds.</p>
+ *
+ * <p>Protocol, all integers big-endian:
+ * <ul>
+ *   <li>A job is an int argument count followed by that many
+ *       {@link DataOutputStream#writeUTF} strings. A count of 0 is a ping.</li>
+ *   <li>Replies are frames: a type byte, an int length and that many bytes.
+ *       {@link #FRAME_STDOUT} and {@link #FRAME_STDERR} frames carry output
+ *       of the job, a {@link #FRAME_EXIT} frame carries the int exit code and
+ *       ends the job.</li>
+ * </ul>
+ * Kawa calls {@code System.exit} when a compilation fails, so the end of the
+ * stream without a {@link #FRAME_EXIT} frame means the job failed.</p>
+ */
+public final class KawaCompilerWorker {
+  static final int FRAME_STDOUT = 'O';
+  static final int FRAME_STDERR = 'E';
+  static final int FRAME_EXIT = 'X';
+
+  private KawaCompilerWorker() {
+  }
+
+  /*
+   * Sends everything written to it as frames of the given type.
+   */
+  private static class FrameOutputStream extends OutputStream {
+    private final DataOutputStream channel;
+    private final int type;
+
+    FrameOutputStream(DataOutputStream channel, int type) {
+      this.channel = channel;
+      this.type = type;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return;
+      }
+      synchronized (channel) {
+        channel.writeByte(type);
+        channel.writeInt(len);
+        channel.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (channel) {
+        channel.flush();
+      }
+    }
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  ignored
+   */
+  public static void main(String[] args) throws Exception {
+    final DataOutputStream channel = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    DataInputStream jobs = new DataInputStream(new BufferedInputStream(System.in));
+
+    // Kawa captures System.out and System.err when it is loaded, so they have to be replaced
+    // before the first job.
+    System.setOut(new PrintStream(new FrameOutputStream(channel, FRAME_STDOUT), true, "UTF-8"));
+    System.setErr(new PrintStream(new FrameOutputStream(channel, FRAME_STDERR), true, "UTF-8"));
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        // Push out the messages of a failed compilation before Kawa's System.exit completes.
+        System.out.flush();
+        System.err.flush();
+      }
+    });
+
+    Method kawaMain = Class.forName("kawa.repl").getMethod("main", String[].class);
+    while (true) {
+      int argc;
+      try {
+        argc = jobs.readInt();
+      } catch (EOFException e) {
+        return;  // The build server has closed the pool.
+      }
+      String[] kawaArgs = new String[argc];
+      for (int i = 0; i < argc; i++) {
+        kawaArgs[i] = jobs.readUTF();
+      }
+
+      int exitCode = 0;
+      if (argc > 0) {
+        try {
+          kawaMain.invoke(null, (Object) kawaArgs);
+        } catch (InvocationTargetException e) {
+          e.getCause().printStackTrace();
+          exitCode = 1;
+        }
+      }
+      System.out.flush();
+      System.err.flush();
+      synchronized (channel) {
+        channel.writeByte(FRAME_EXIT);
+        channel.writeInt(4);
+        channel.writeInt(exitCode);
+        channel.flush();
+      }
+    }
+  }
+}
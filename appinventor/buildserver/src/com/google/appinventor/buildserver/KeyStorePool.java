@@ -0,0 +1,243 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the keystores that projects without one are signed with.
+ *
+ * <p>Generating an RSA key pair takes most of the time, so a background
+ * thread keeps a number of key pairs ready, generated in-process with
+ * BouncyCastle instead of forking keytool. A build takes a key pair from
+ * the pool and only issues the self-signed certificate with the user's
+ * name. If the pool is empty, the key pair is generated by the build
+ * itself.</p>
+ *
+ * <p>The keystores are equivalent to the ones keytool used to create: a JKS
+ * keystore holding a 2048 bit RSA key under the alias {@code AndroidKey},
+ * protected by the password {@code android}, and a certificate valid for
+ * 10000 days.</p>
+ *
+ * <p>The pool is empty until {@link #configure(int)} is called with a
+ * positive size.</p>
+ */
+final class KeyStorePool {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeyStorePool.class.getName());
+
+  private static final String KEY_ALIAS = "AndroidKey";
+  private static final char[] PASSWORD = "android".toCharArray();
+  private static final String KEY_ALGORITHM = "RSA";
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+  // Note: must expire after October 22, 2033, to be in the Android marketplace. Android docs
+  // recommend 10000 days.
+  private static final long VALIDITY_MILLIS = 10000L * 24 * 60 * 60 * 1000;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private static BlockingQueue<KeyPair> keyPairs = new LinkedBlockingQueue<KeyPair>(1);
+  private static ExecutorService generator = null;
+  private static int capacity = 0;
+  private static long configuredMillis = System.currentTimeMillis();
+
+  private static final AtomicInteger hits = new AtomicInteger(0);
+  private static final AtomicInteger misses = new AtomicInteger(0);
+  private static final AtomicInteger refills = new AtomicInteger(0);
+  private static final AtomicInteger generated = new AtomicInteger(0);
+  private static final AtomicLong generationMillis = new AtomicLong(0);
+
+  private KeyStorePool() {
+  }
+
+  /**
+   * Sets the number of key pairs kept ready and starts filling the pool.
+   *
+   * @param size  the number of key pairs, 0 to generate every key pair when
+   *     it is needed
+   */
+  static synchronized void configure(int size) {
+    if (generator != null) {
+      generator.shutdownNow();
+      generator = null;
+    }
+    capacity = Math.max(size, 0);
+    keyPairs = new LinkedBlockingQueue<KeyPair>(Math.max(capacity, 1));
+    configuredMillis = System.currentTimeMillis();
+    refills.set(0);
+    if (capacity > 0) {
+      generator = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("keystore-pool-%d")
+          .setDaemon(true)
+          // Builds come first.
+          .setPriority(Thread.MIN_PRIORITY)
+          .build());
+      for (int i = 0; i < capacity; i++) {
+        refill();
+      }
+    }
+  }
+
+  /*
+   * Generates one key pair in the background and adds it to the pool.
+   */
+  private static synchronized void refill() {
+    if (generator == null) {
+      return;
+    }
+    final BlockingQueue<KeyPair> queue = keyPairs;
+    generator.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (queue.offer(generateKeyPair())) {
+            refills.incrementAndGet();
+          }
+        } catch (GeneralSecurityException e) {
+          LOG.log(Level.SEVERE, "Unable to generate a key pair", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Creates a keystore for a user.
+   *
+   * @param userName  the name of the user, used as the common name of the
+   *     certificate
+   * @param keyStoreFile  the file the keystore is written to
+   */
+  static void createKeyStore(String userName, File keyStoreFile)
+      throws IOException, GeneralSecurityException {
+    BlockingQueue<KeyPair> queue;
+    synchronized (KeyStorePool.class) {
+      queue = keyPairs;
+    }
+    KeyPair keyPair = queue.poll();
+    if (keyPair != null) {
+      hits.incrementAndGet();
+      refill();
+    } else {
+      misses.incrementAndGet();
+      keyPair = generateKeyPair();
+    }
+
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, PASSWORD);
+    keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), PASSWORD,
+        new Certificate[] { createCertificate(userName, keyPair) });
+    OutputStream output = new FileOutputStream(keyStoreFile);
+    try {
+      keyStore.store(output, PASSWORD);
+    } finally {
+      output.close();
+    }
+  }
+
+  private static KeyPair generateKeyPair() throws GeneralSecurityException {
+    long start = System.currentTimeMillis();
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+    keyPairGenerator.initialize(KEY_SIZE, random);
+    KeyPair keyPair = keyPairGenerator.generateKeyPair();
+    generated.incrementAndGet();
+    generationMillis.addAndGet(System.currentTimeMillis() - start);
+    return keyPair;
+  }
+
+  private static Certificate createCertificate(String userName, KeyPair keyPair)
+      throws GeneralSecurityException {
+    // The name reads "CN=<userName>, O=AppInventor for Android, C=US", as before. RDNs are
+    // encoded in the reverse order. For the country, US may not be the right one to assign.
+    X500Name name = new X500NameBuilder(BCStyle.INSTANCE)
+        .addRDN(BCStyle.C, "US")
+        .addRDN(BCStyle.O, "AppInventor for Android")
+        .addRDN(BCStyle.CN, userName)
+        .build();
+    long now = System.currentTimeMillis();
+    JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name,
+        new BigInteger(64, random), new Date(now), new Date(now + VALIDITY_MILLIS), name,
+        keyPair.getPublic());
+    try {
+      ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM)
+          .build(keyPair.getPrivate());
+      return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  static synchronized int getCapacity() {
+    return capacity;
+  }
+
+  static synchronized int getAvailableCount() {
+    return capacity == 0 ? 0 : keyPairs.size();
+  }
+
+  static int getHitCount() {
+    return hits.get();
+  }
+
+  static int getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the average time it took to generate a key pair, in
+   * milliseconds.
+   */
+  static long getAverageGenerationMillis() {
+    int count = generated.get();
+    return count == 0 ? 0 : generationMillis.get() / count;
+  }
+
+  static int getRefillCount() {
+    return refills.get();
+  }
+
+  /**
+   * Returns the number of key pairs added to the pool per minute since the
+   * pool was configured.
+   */
+  static synchronized double getRefillsPerMinute() {
+    long minutes = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - configuredMillis);
+    return (double) refills.get() / Math.max(minutes, 1);
+  }
+}
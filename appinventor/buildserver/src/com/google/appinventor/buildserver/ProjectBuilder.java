@@ -29,12 +29,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -126,11 +129,14 @@ public final class ProjectBuilder {
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
         List<String> sourceFiles;
+        long startExtract = System.currentTimeMillis();
         try {
           sourceFiles = extractProjectFiles(inputZip, projectRoot);
         } catch (IOException e) {
           LOG.severe("unexpected problem extracting project file from zip");
           return Result.createFailingResult("", "Problems processing zip file.");
+        } finally {
+          BuildMetrics.observeStage(BuildMetrics.EXTRACT_PROJECT, startExtract);
         }
 
         File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
@@ -155,30 +161,64 @@ public final class ProjectBuilder {
         Set<String> componentTypes = isForCompanion ? getAllComponentTypes() :
             getComponentTypes(sourceFiles, project.getAssetsDirectory());
 
-        // Invoke YoungAndroid compiler
-        boolean success =
-            Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath, reporter);
-        console.close();
-        userErrors.close();
+        File outputFile = new File(projectRoot,
+            "build/deploy/" + project.getProjectName() + ".apk");
 
-        // Retrieve compiler messages and convert to HTML and log
-        String srcPath = projectRoot.getAbsolutePath() + "/" + PROJECT_DIRECTORY + "/../src/";
-        String messages = processCompilerOutput(output.toString(PathUtil.DEFAULT_CHARSET),
-            srcPath);
+        // Look for the result of an earlier build of the same project
+        String cacheKey = null;
+        BuildCache.Entry cachedBuild = null;
+        if (BuildCache.isEnabled() && keyStorePath != null) {
+          cacheKey = BuildCache.computeKey(inputZip, componentTypes, isForCompanion);
+          cachedBuild = BuildCache.lookup(cacheKey);
+        }
+
+        boolean success;
+        String messages;
+        if (cachedBuild != null) {
+          LOG.info("Using cached build " + cacheKey);
+          Files.createParentDirs(outputFile);
+          try {
+            success = cachedBuild.copyApkTo(outputFile, new File(keyStorePath)) ||
+                Compiler.signApk(project, outputFile.getAbsolutePath(), keyStorePath,
+                    console, console, userErrors);
+          } finally {
+            cachedBuild.close();
+          }
+          console.close();
+          userErrors.close();
+          messages = cachedBuild.getMessages();
+          if (success && reporter != null) {
+            reporter.report(100);
+          }
+        } else {
+          // Invoke YoungAndroid compiler
+          success =
+              Compiler.compile(project, componentTypes, console, console, userErrors,
+                               isForCompanion, keyStorePath, childProcessRam, dexCachePath,
+                               reporter);
+          console.close();
+          userErrors.close();
+
+          // Retrieve compiler messages and convert to HTML and log
+          String srcPath = projectRoot.getAbsolutePath() + "/" + PROJECT_DIRECTORY + "/../src/";
+          messages = processCompilerOutput(output.toString(PathUtil.DEFAULT_CHARSET),
+              srcPath);
+          if (success && cacheKey != null && outputFile.exists()) {
+            BuildCache.store(cacheKey, outputFile, new File(keyStorePath), messages);
+          }
+        }
 
         if (success) {
           // Locate output file
-          File outputFile = new File(projectRoot,
-              "build/deploy/" + project.getProjectName() + ".apk");
           if (!outputFile.exists()) {
             LOG.warning("Young Android build - " + outputFile + " does not exist");
           } else {
+            // Both directories are in java.io.tmpdir, so this is a rename rather than a copy.
             outputApk = new File(outputDir, outputFile.getName());
-            Files.copy(outputFile, outputApk);
+            Files.move(outputFile, outputApk);
             if (saveKeystore) {
               outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
-              Files.copy(keyStoreFile, outputKeystore);
+              Files.move(keyStoreFile, outputKeystore);
             }
           }
         }
@@ -300,32 +340,49 @@ public final class ProjectBuilder {
     return nameTypeMap;
   }
 
+  /**
+   * Returns the main class of the project in a project zip, which identifies
+   * the project, or {@code null} if it cannot be read.
+   */
+  static String getMainClass(File inputZipFile) {
+    try {
+      ZipFile zipFile = new ZipFile(inputZipFile);
+      try {
+        ZipEntry entry = zipFile.getEntry(PROJECT_PROPERTIES_FILE_NAME);
+        if (entry == null) {
+          return null;
+        }
+        Properties properties = new Properties();
+        InputStream input = zipFile.getInputStream(entry);
+        try {
+          properties.load(input);
+        } finally {
+          input.close();
+        }
+        return properties.getProperty("main");
+      } finally {
+        zipFile.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read the project properties of " + inputZipFile, e);
+      return null;
+    }
+  }
+
   static String createKeyStore(String userName, File projectRoot, String keystoreFileName)
       throws IOException {
+    Preconditions.checkNotNull(userName);
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
-
-    /* Note: must expire after October 22, 2033, to be in the Android
-    * marketplace.  Android docs recommend "10000" as the expiration # of
-    * days.
-    *
-    * For DNAME, US may not the right country to assign it to.
-    */
-    String[] keytoolCommandline = {
-        System.getProperty("java.home") + "/bin/keytool",
-        "-genkey",
-        "-keystore", keyStoreFile.getAbsolutePath(),
-        "-alias", "AndroidKey",
-        "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
-        "-validity", "10000",
-        "-storepass", "android",
-        "-keypass", "android"
-    };
-
-    if (Execution.execute(null, keytoolCommandline, System.out, System.err)) {
-      if (keyStoreFile.length() > 0) {
-        return keyStoreFile.getAbsolutePath();
-      }
+    long start = System.currentTimeMillis();
+    try {
+      KeyStorePool.createKeyStore(userName, keyStoreFile);
+    } catch (GeneralSecurityException e) {
+      LOG.log(Level.SEVERE, "Unable to create keystore", e);
+      return null;
+    }
+    LOG.info("Created keystore in " + (System.currentTimeMillis() - start) + " ms");
+    if (keyStoreFile.length() > 0) {
+      return keyStoreFile.getAbsolutePath();
     }
     return null;
   }
@@ -414,26 +471,6 @@ public final class ProjectBuilder {
     return messages;
   }
 
-  /*
-   * Adds quotes around the given userName and encodes embedded quotes as \".
-   */
-  private static String quotifyUserName(String userName) {
-    Preconditions.checkNotNull(userName);
-    int length = userName.length();
-    StringBuilder sb = new StringBuilder(length + 2);
-    sb.append('"');
-    for (int i = 0; i < length; i++) {
-      char ch = userName.charAt(i);
-      if (ch == '"') {
-        sb.append('\\').append(ch);
-      } else {
-        sb.append(ch);
-      }
-    }
-    sb.append('"');
-    return sb.toString();
-  }
-
   /*
    * Loads the project properties file of a Young Android project.
    */
@@ -0,0 +1,333 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link Executor} used for executing build tasks.
+ *
+ * <p>This Executor allows only a certain number of simultaneous tasks. When
+ * all of the task slots are busy, additional tasks are held in a bounded
+ * queue instead of being rejected outright. Only when the queue is also full
+ * is a task rejected.</p>
+ *
+ * <p>The queue is fair: queued tasks are grouped by owner (the user name of
+ * the build request) and owners are served round-robin, so one user
+ * submitting many builds cannot starve everyone else. Tasks submitted with
+ * high priority (interactive builds, which the user is waiting for to test
+ * the app on a device) are always started before normal tasks.</p>
+ *
+ * <p>With a maximum of 0 queued tasks, this behaves like the
+ * NonQueuingExecutor it replaced: a task is rejected as soon as all slots
+ * are busy.</p>
+ *
+ * <p>A task that waits in the queue for longer than the maximum queue wait
+ * is removed from the queue and its expiration handler is run instead.</p>
+ */
+final class QueuingExecutor implements Executor {
+  // The maximum number of active tasks. O means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of queued tasks. 0 means that tasks are never queued.
+  private final int maxQueuedTasks;
+
+  // The maximum time a task may wait in the queue, in ms. 0 means forever.
+  private final long maxQueueWaitMillis;
+
+  private final AtomicInteger activeTaskCount = new AtomicInteger(0);
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger dequeuedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger expiredTaskCount = new AtomicInteger(0);
+  private final AtomicLong totalQueueWaitMillis = new AtomicLong(0);
+  private final AtomicLong longestQueueWaitMillis = new AtomicLong(0);
+
+  // Queued tasks, per owner. The iteration order of each map is the
+  // round-robin order in which owners will be served.
+  private final Map<String, Deque<QueuedTask>> highPriorityQueues =
+      new LinkedHashMap<String, Deque<QueuedTask>>();
+  private final Map<String, Deque<QueuedTask>> normalPriorityQueues =
+      new LinkedHashMap<String, Deque<QueuedTask>>();
+  private int queuedTaskCount = 0;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(QueuingExecutor.class.getName());
+
+  // lock protects the queues, queuedTaskCount and the decision to start a task.
+  private final Object lock = new Object();
+
+  private static class QueuedTask {
+    final Runnable runnable;
+    final Runnable onExpired;
+    final long enqueueTime;
+
+    QueuedTask(Runnable runnable, Runnable onExpired) {
+      this.runnable = runnable;
+      this.onExpired = onExpired;
+      this.enqueueTime = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Creates a QueuingExecutor.
+   *
+   * @param maxActiveTasks the maximum number of active tasks, 0 for unlimited
+   * @param maxQueuedTasks the maximum number of tasks waiting for a free slot
+   * @param maxQueueWaitMillis the maximum time a task may wait for a free
+   *     slot, in ms, 0 for unlimited
+   */
+  QueuingExecutor(int maxActiveTasks, int maxQueuedTasks, long maxQueueWaitMillis) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxActiveTasks == 0 ? 0 : maxQueuedTasks;
+    this.maxQueueWaitMillis = maxQueueWaitMillis;
+    if (this.maxQueuedTasks > 0 && maxQueueWaitMillis > 0) {
+      Timer expirationTimer = new Timer("QueuingExecutor-expiration", true);
+      long period = Math.max(100, Math.min(1000, maxQueueWaitMillis / 2));
+      expirationTimer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          expireQueuedTasks();
+        }
+      }, period, period);
+    }
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    execute(runnable, null, "", false);
+  }
+
+  /**
+   * Executes the given task, queuing it if no task slot is free.
+   *
+   * @param runnable the task to execute
+   * @param onExpired run instead of the task if it waits in the queue for
+   *     longer than the maximum queue wait, may be null
+   * @param owner the owner of the task, used for fair queuing
+   * @param highPriority whether the task goes ahead of normal priority tasks
+   * @throws RejectedExecutionException if all task slots are busy and the
+   *     queue is full
+   */
+  public void execute(Runnable runnable, Runnable onExpired, String owner, boolean highPriority) {
+    synchronized (lock) {
+      // Drain the queue first in case a task has just completed.
+      startQueuedTasks();
+      // Check whether the executor is below maximum capacity.
+      if (hasFreeSlot()) {
+        BuildMetrics.observeQueueWait(0);
+        start(runnable);
+      } else if (queuedTaskCount < maxQueuedTasks) {
+        Map<String, Deque<QueuedTask>> queues =
+            highPriority ? highPriorityQueues : normalPriorityQueues;
+        String key = owner == null ? "" : owner;
+        Deque<QueuedTask> queue = queues.get(key);
+        if (queue == null) {
+          queue = new ArrayDeque<QueuedTask>();
+          queues.put(key, queue);
+        }
+        queue.addLast(new QueuedTask(runnable, onExpired));
+        queuedTaskCount++;
+        LOG.info("Build queued, queue depth is now " + queuedTaskCount);
+      } else {
+        // If the executor and its queue are at maximum capacity, reject the task.
+        throw new RejectedExecutionException();
+      }
+    }
+  }
+
+  /**
+   * Takes a task out of the queue.
+   *
+   * @param runnable the task given to {@link #execute}
+   * @return {@code true} if the task was still queued and will not be run
+   */
+  public boolean remove(Runnable runnable) {
+    synchronized (lock) {
+      if (removeTask(highPriorityQueues, runnable) || removeTask(normalPriorityQueues, runnable)) {
+        queuedTaskCount--;
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private static boolean removeTask(Map<String, Deque<QueuedTask>> queues, Runnable runnable) {
+    Iterator<Deque<QueuedTask>> queueIterator = queues.values().iterator();
+    while (queueIterator.hasNext()) {
+      Deque<QueuedTask> queue = queueIterator.next();
+      for (Iterator<QueuedTask> iterator = queue.iterator(); iterator.hasNext(); ) {
+        if (iterator.next().runnable == runnable) {
+          iterator.remove();
+          if (queue.isEmpty()) {
+            queueIterator.remove();
+          }
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean hasFreeSlot() {
+    return maxActiveTasks == 0 || activeTaskCount.get() < maxActiveTasks;
+  }
+
+  // Must be called while holding lock.
+  private void start(final Runnable runnable) {
+    // Create a new thread for the task.
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runnable.run();
+        } finally {
+          activeTaskCount.decrementAndGet();
+          completedTaskCount.incrementAndGet();
+          startQueuedTasks();
+        }
+      }
+    });
+    activeTaskCount.incrementAndGet();
+    thread.start();
+  }
+
+  private void startQueuedTasks() {
+    synchronized (lock) {
+      while (queuedTaskCount > 0 && hasFreeSlot()) {
+        QueuedTask task = pollNextTask();
+        long wait = System.currentTimeMillis() - task.enqueueTime;
+        dequeuedTaskCount.incrementAndGet();
+        totalQueueWaitMillis.addAndGet(wait);
+        BuildMetrics.observeQueueWait(wait);
+        if (wait > longestQueueWaitMillis.get()) {
+          longestQueueWaitMillis.set(wait);
+        }
+        start(task.runnable);
+      }
+    }
+  }
+
+  // Must be called while holding lock and with queuedTaskCount > 0.
+  private QueuedTask pollNextTask() {
+    Map<String, Deque<QueuedTask>> queues =
+        highPriorityQueues.isEmpty() ? normalPriorityQueues : highPriorityQueues;
+    Iterator<Map.Entry<String, Deque<QueuedTask>>> iterator = queues.entrySet().iterator();
+    Map.Entry<String, Deque<QueuedTask>> entry = iterator.next();
+    Deque<QueuedTask> queue = entry.getValue();
+    QueuedTask task = queue.pollFirst();
+    // Move the owner to the back of the line.
+    iterator.remove();
+    if (!queue.isEmpty()) {
+      queues.put(entry.getKey(), queue);
+    }
+    queuedTaskCount--;
+    return task;
+  }
+
+  private void expireQueuedTasks() {
+    List<QueuedTask> expired = new ArrayList<QueuedTask>();
+    long deadline = System.currentTimeMillis() - maxQueueWaitMillis;
+    synchronized (lock) {
+      removeExpiredTasks(highPriorityQueues, deadline, expired);
+      removeExpiredTasks(normalPriorityQueues, deadline, expired);
+      queuedTaskCount -= expired.size();
+    }
+    for (final QueuedTask task : expired) {
+      expiredTaskCount.incrementAndGet();
+      LOG.warning("Build expired after waiting " + maxQueueWaitMillis + " ms in the queue");
+      if (task.onExpired != null) {
+        // The expiration handler may need to talk to the network, so it
+        // gets a thread of its own.
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              task.onExpired.run();
+            } catch (RuntimeException e) {
+              LOG.log(Level.WARNING, "Exception in expiration handler", e);
+            }
+          }
+        }).start();
+      }
+    }
+  }
+
+  private static void removeExpiredTasks(Map<String, Deque<QueuedTask>> queues, long deadline,
+      List<QueuedTask> expired) {
+    Iterator<Deque<QueuedTask>> queueIterator = queues.values().iterator();
+    while (queueIterator.hasNext()) {
+      Deque<QueuedTask> queue = queueIterator.next();
+      // Tasks are queued in order, so the expired ones are at the front.
+      while (!queue.isEmpty() && queue.peekFirst().enqueueTime <= deadline) {
+        expired.add(queue.pollFirst());
+      }
+      if (queue.isEmpty()) {
+        queueIterator.remove();
+      }
+    }
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public long getMaxQueueWaitMillis() {
+    return maxQueueWaitMillis;
+  }
+
+  public int getActiveTaskCount() {
+    return activeTaskCount.get();
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  public int getQueuedTaskCount() {
+    synchronized (lock) {
+      return queuedTaskCount;
+    }
+  }
+
+  public int getExpiredTaskCount() {
+    return expiredTaskCount.get();
+  }
+
+  /**
+   * Returns the average time spent in the queue by tasks that were started
+   * after being queued, in ms.
+   */
+  public long getAverageQueueWaitMillis() {
+    int count = dequeuedTaskCount.get();
+    return count == 0 ? 0 : totalQueueWaitMillis.get() / count;
+  }
+
+  /**
+   * Returns the longest time spent in the queue by a task that was started
+   * after being queued, in ms.
+   */
+  public long getLongestQueueWaitMillis() {
+    return longestQueueWaitMillis.get();
+  }
+}
@@ -0,0 +1,300 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The build tools, runtime jars and Android jars the compiler needs as
+ * files.
+ *
+ * <p>They are packaged as resources of the build server under
+ * {@code /files/} and {@code /tools/}. The store unpacks all of them once,
+ * into a directory named after the version of the build server, and keeps
+ * a checksum of every file. A later build server of the same version
+ * verifies the checksums and reuses the directory instead of unpacking
+ * again. After that, {@link #getPath} is a lookup in an immutable map.</p>
+ *
+ * <p>The store is created on first use, in the directory given to
+ * {@link #configure(String)} or in the temporary directory.</p>
+ */
+final class ResourceStore {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ResourceStore.class.getName());
+
+  // The resource directories that are unpacked.
+  private static final String[] ROOTS = {Compiler.RUNTIME_FILES_DIR, "/tools/"};
+
+  private static final String CHECKSUMS_FILE_NAME = "checksums.sha1";
+
+  private static volatile String baseDir = null;
+
+  // Unpacked files, keyed by resource path.
+  private final ImmutableMap<String, File> files;
+
+  private ResourceStore(ImmutableMap<String, File> files) {
+    this.files = files;
+  }
+
+  private static class Holder {
+    static final ResourceStore INSTANCE = openDefault();
+  }
+
+  /**
+   * Sets the directory the store is kept in. Must be called before the store
+   * is first used.
+   *
+   * @param dir  the directory, {@code null} for the temporary directory
+   */
+  static void configure(String dir) {
+    baseDir = dir;
+  }
+
+  /**
+   * Returns the store, unpacking the resources first if this is the first
+   * call.
+   */
+  static ResourceStore get() {
+    return Holder.INSTANCE;
+  }
+
+  /**
+   * Returns the absolute path of the file of a resource.
+   *
+   * @param resourcePath  the resource path, for example
+   *     {@code /files/kawa.jar}
+   * @throws IllegalArgumentException  if there is no such resource
+   */
+  String getPath(String resourcePath) {
+    File file = files.get(resourcePath);
+    if (file == null) {
+      throw new IllegalArgumentException("Unknown resource " + resourcePath);
+    }
+    return file.getAbsolutePath();
+  }
+
+  int size() {
+    return files.size();
+  }
+
+  private static ResourceStore openDefault() {
+    String dir = baseDir;
+    File base = dir == null
+        ? new File(System.getProperty("java.io.tmpdir"), "appinventor-buildserver-resources")
+        : new File(dir);
+    Map<String, URL> roots = new LinkedHashMap<String, URL>();
+    for (String root : ROOTS) {
+      URL url = Compiler.class.getResource(root);
+      if (url != null) {
+        roots.put(root, url);
+      }
+    }
+    try {
+      return open(base, getVersion(roots), roots);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to unpack the build server resources", e);
+    }
+  }
+
+  /*
+   * Identifies the resources of this build server. Development builds can share a version, so
+   * the size and date of the jar the resources come from are included.
+   */
+  private static String getVersion(Map<String, URL> roots) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(GitBuildId.getVersion() + "\n" + GitBuildId.getFingerprint() + "\n",
+        Charsets.UTF_8);
+    for (URL url : roots.values()) {
+      hasher.putString(url + "\n", Charsets.UTF_8);
+      URLConnection connection = url.openConnection();
+      if (connection instanceof JarURLConnection) {
+        try {
+          File jar = new File(((JarURLConnection) connection).getJarFileURL().toURI());
+          hasher.putLong(jar.length()).putLong(jar.lastModified());
+        } catch (URISyntaxException e) {
+          throw new IOException(e);
+        }
+      }
+    }
+    return hasher.hash().toString().substring(0, 16);
+  }
+
+  /**
+   * Opens the store for the resources under the given roots, unpacking them
+   * unless a complete and intact copy already exists.
+   *
+   * @param base  the directory that holds the stores of all versions
+   * @param version  identifies the resources
+   * @param roots  the resource directories to unpack, keyed by resource path
+   *     prefix, for example {@code /files/}
+   */
+  static ResourceStore open(File base, String version, Map<String, URL> roots)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    File dir = new File(base, version);
+    Map<String, File> files = verify(dir);
+    if (files == null) {
+      FileUtils.deleteQuietly(dir);
+      if (!base.isDirectory() && !base.mkdirs()) {
+        throw new IOException("Unable to create " + base);
+      }
+      // Unpack next to the final directory, then move it into place, so that a store is never
+      // seen half written.
+      File tmpDir = new File(base, "." + version + "-" + System.nanoTime());
+      try {
+        unpack(tmpDir, roots);
+        // If the rename fails, another build server may have unpacked the same version first.
+        tmpDir.renameTo(dir);
+      } finally {
+        FileUtils.deleteQuietly(tmpDir);
+      }
+      files = verify(dir);
+      if (files == null) {
+        throw new IOException("Unpacked resources in " + dir + " are damaged");
+      }
+      LOG.info("Unpacked " + files.size() + " resources into " + dir + " in " +
+          (System.currentTimeMillis() - start) + " ms");
+    } else {
+      LOG.info("Verified " + files.size() + " resources in " + dir + " in " +
+          (System.currentTimeMillis() - start) + " ms");
+    }
+    return new ResourceStore(ImmutableMap.copyOf(files));
+  }
+
+  /*
+   * Checks every file of a store against its checksum. Returns the files keyed by resource path,
+   * or null if the store is missing, incomplete or damaged.
+   */
+  private static Map<String, File> verify(File dir) {
+    File checksums = new File(dir, CHECKSUMS_FILE_NAME);
+    if (!checksums.isFile()) {
+      return null;
+    }
+    try {
+      Map<String, File> files = new LinkedHashMap<String, File>();
+      List<String> lines = Files.readLines(checksums, Charsets.UTF_8);
+      for (String line : lines) {
+        int space = line.indexOf(' ');
+        String checksum = line.substring(0, space);
+        String resourcePath = line.substring(space + 1);
+        File file = new File(dir, resourcePath.substring(1));
+        if (!file.isFile() || !Files.hash(file, Hashing.sha1()).toString().equals(checksum)) {
+          LOG.warning("Resource " + file + " is missing or damaged");
+          return null;
+        }
+        files.put(resourcePath, file);
+      }
+      return files;
+    } catch (IOException|RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to verify resources in " + dir, e);
+      return null;
+    }
+  }
+
+  private static void unpack(File dir, Map<String, URL> roots) throws IOException {
+    if (!dir.mkdirs()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    Writer checksums = Files.newWriter(new File(dir, CHECKSUMS_FILE_NAME), Charsets.UTF_8);
+    try {
+      for (Map.Entry<String, URL> root : roots.entrySet()) {
+        URL url = root.getValue();
+        URLConnection connection = url.openConnection();
+        if (connection instanceof JarURLConnection) {
+          JarURLConnection jarConnection = (JarURLConnection) connection;
+          jarConnection.setUseCaches(false);
+          JarFile jarFile = jarConnection.getJarFile();
+          try {
+            String prefix = jarConnection.getEntryName();
+            if (!prefix.endsWith("/")) {
+              prefix += "/";
+            }
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+              JarEntry entry = entries.nextElement();
+              if (!entry.isDirectory() && entry.getName().startsWith(prefix)) {
+                String resourcePath = root.getKey() + entry.getName().substring(prefix.length());
+                InputStream input = jarFile.getInputStream(entry);
+                try {
+                  unpackFile(dir, resourcePath, input, checksums);
+                } finally {
+                  input.close();
+                }
+              }
+            }
+          } finally {
+            jarFile.close();
+          }
+        } else {
+          File rootDir;
+          try {
+            rootDir = new File(url.toURI());
+          } catch (URISyntaxException e) {
+            throw new IOException(e);
+          }
+          unpackDirectory(dir, root.getKey(), rootDir, checksums);
+        }
+      }
+    } finally {
+      checksums.close();
+    }
+  }
+
+  private static void unpackDirectory(File dir, String resourcePrefix, File sourceDir,
+      Writer checksums) throws IOException {
+    File[] children = sourceDir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        unpackDirectory(dir, resourcePrefix + child.getName() + "/", child, checksums);
+      } else {
+        InputStream input = Files.newInputStreamSupplier(child).getInput();
+        try {
+          unpackFile(dir, resourcePrefix + child.getName(), input, checksums);
+        } finally {
+          input.close();
+        }
+      }
+    }
+  }
+
+  private static void unpackFile(File dir, String resourcePath, InputStream input,
+      Writer checksums) throws IOException {
+    File file = new File(dir, resourcePath.substring(1));
+    file.getParentFile().mkdirs();
+    FileUtils.copyInputStreamToFile(input, file);
+    // The tools are run directly.
+    file.setExecutable(true);
+    checksums.write(Files.hash(file, Hashing.sha1()) + " " + resourcePath + "\n");
+  }
+}
@@ -0,0 +1,154 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * A build that can be cancelled.
+ *
+ * <p>Builds are identified by the user, the project and the target (the
+ * app or the Companion), so that a new build of the same project can
+ * supersede the one still running or queued. The thread that runs the
+ * build {@link #attach attaches} to it, and threads that work for the build
+ * in a pool carry it along with {@link #propagate}. Child processes started
+ * by {@link Execution} on such a thread are registered with the build.</p>
+ *
+ * <p>Cancelling a build kills its child processes along with their
+ * descendants and interrupts the thread that runs it, so that its build
+ * slot is freed as soon as possible.</p>
+ */
+final class RunningBuild {
+
+  private static final ThreadLocal<RunningBuild> current = new ThreadLocal<RunningBuild>();
+
+  private final String key;
+  private final Set<Process> processes = new HashSet<Process>();
+  private Thread thread = null;
+  private boolean cancelled = false;
+
+  /**
+   * Creates a build.
+   *
+   * @param userName  the user who asked for the build
+   * @param projectId  identifies the project, for example its main class
+   * @param isForCompanion  whether the Companion is built
+   */
+  RunningBuild(String userName, String projectId, boolean isForCompanion) {
+    this.key = userName + "/" + projectId + "/" + (isForCompanion ? "companion" : "app");
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * Returns the build the current thread works for, or {@code null}.
+   */
+  static RunningBuild current() {
+    return current.get();
+  }
+
+  /**
+   * Makes the current thread the thread that runs the build.
+   *
+   * @return  {@code false} if the build was cancelled before it started
+   */
+  synchronized boolean attach() {
+    if (cancelled) {
+      return false;
+    }
+    thread = Thread.currentThread();
+    current.set(this);
+    return true;
+  }
+
+  /**
+   * Detaches the current thread from the build when it is done.
+   */
+  void detach() {
+    synchronized (this) {
+      thread = null;
+    }
+    current.remove();
+    // A cancel may have interrupted the thread after the build had finished.
+    Thread.interrupted();
+  }
+
+  /**
+   * Cancels the build, killing its child processes.
+   */
+  void cancel() {
+    List<Process> toKill;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      toKill = new ArrayList<Process>(processes);
+      processes.clear();
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+    for (Process process : toKill) {
+      Execution.destroyProcessTree(process);
+    }
+  }
+
+  synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Registers a child process of the build.
+   *
+   * @return  {@code false} if the build has been cancelled, in which case
+   *     the caller has to kill the process
+   */
+  synchronized boolean addProcess(Process process) {
+    if (cancelled) {
+      return false;
+    }
+    processes.add(process);
+    return true;
+  }
+
+  synchronized void removeProcess(Process process) {
+    processes.remove(process);
+  }
+
+  /**
+   * Returns a task that runs for the build of the current thread, if any,
+   * on whichever thread it is run.
+   */
+  static <T> Callable<T> propagate(final Callable<T> task) {
+    final RunningBuild build = current();
+    if (build == null) {
+      return task;
+    }
+    return new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        RunningBuild previous = current.get();
+        current.set(build);
+        try {
+          return task.call();
+        } finally {
+          if (previous == null) {
+            current.remove();
+          } else {
+            current.set(previous);
+          }
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,190 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the class files Kawa compiles from a single screen.
+ *
+ * <p>Entries are keyed by a digest of the screen's .yail file, the package
+ * it is compiled into, the version of the build server (which fixes the
+ * component runtime and Kawa), the precompiled YAIL runtime and the
+ * contents of the project's own libraries (extensions and AARs) on the
+ * classpath. An entry holds the class files of the screen and the messages
+ * Kawa printed while compiling it, so that a cached screen reports the same
+ * warnings as a freshly compiled one.</p>
+ *
+ * <p>The cache is disabled until {@link #configure(String, long)} is called
+ * with a directory.</p>
+ */
+final class ScreenClassCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ScreenClassCache.class.getName());
+
+  private static final String CLASSES_DIR_NAME = "classes";
+  private static final String MESSAGES_FILE_NAME = "messages.txt";
+
+  // Stands for the absolute path of the source file in cached messages.
+  private static final String SOURCE_PLACEHOLDER = "${source}";
+
+  private static DirectoryCache cache;
+
+  private static final AtomicInteger hits = new AtomicInteger(0);
+  private static final AtomicInteger misses = new AtomicInteger(0);
+
+  private ScreenClassCache() {
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param dir  the cache directory, {@code null} to disable the cache
+   * @param maxMb  the maximum size of the cache directory, in MB
+   */
+  static synchronized void configure(String dir, long maxMb) {
+    cache = dir == null ? null : new DirectoryCache(new File(dir), maxMb * 1024 * 1024);
+  }
+
+  static synchronized boolean isEnabled() {
+    return cache != null;
+  }
+
+  private static synchronized DirectoryCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Computes the cache key of a screen.
+   *
+   * @param source  the .yail file of the screen
+   * @param packagePrefix  the package prefix passed to Kawa
+   * @param yailRuntimeJar  the precompiled YAIL runtime
+   * @param projectLibraries  the jars and class directories of the project
+   *     itself on the Kawa classpath
+   */
+  static String computeKey(File source, String packagePrefix, File yailRuntimeJar,
+      List<File> projectLibraries) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(GitBuildId.getVersion() + "\n" + GitBuildId.getFingerprint() + "\n" +
+        yailRuntimeJar.getName() + "\n" + packagePrefix + "\n" + source.getName() + "\n",
+        Charsets.UTF_8);
+    hasher.putBytes(Files.hash(source, Hashing.sha1()).asBytes());
+    for (File library : projectLibraries) {
+      putContents(hasher, library);
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void putContents(Hasher hasher, File file) throws IOException {
+    if (file.isDirectory()) {
+      File[] children = file.listFiles();
+      if (children != null) {
+        Arrays.sort(children);
+        for (File child : children) {
+          hasher.putString(child.getName() + "\n", Charsets.UTF_8);
+          putContents(hasher, child);
+        }
+      }
+    } else if (file.exists()) {
+      hasher.putBytes(Files.hash(file, Hashing.sha1()).asBytes());
+    }
+  }
+
+  /**
+   * Copies the cached class files of a screen into the classes directory and
+   * prints the Kawa messages of the screen.
+   *
+   * @param key  the key computed by {@link #computeKey}
+   * @param classesDir  the directory the classes are copied to
+   * @param sourceFileName  the absolute path of the .yail file
+   * @param kawaErr  the stream for Kawa's messages
+   * @return  {@code true} on a cache hit, {@code false} if the screen has to
+   *     be compiled
+   */
+  static boolean restore(String key, File classesDir, String sourceFileName,
+      PrintStream kawaErr) {
+    DirectoryCache directoryCache = getCache();
+    File entryDir = directoryCache == null ? null : directoryCache.get(key);
+    if (entryDir == null) {
+      misses.incrementAndGet();
+      return false;
+    }
+    try {
+      String messages = Files.toString(new File(entryDir, MESSAGES_FILE_NAME), Charsets.UTF_8);
+      FileUtils.copyDirectory(new File(entryDir, CLASSES_DIR_NAME), classesDir);
+      kawaErr.print(messages.replace(SOURCE_PLACEHOLDER, sourceFileName));
+      hits.incrementAndGet();
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read screen class cache entry " + key, e);
+      misses.incrementAndGet();
+      return false;
+    } finally {
+      directoryCache.release(key);
+    }
+  }
+
+  /**
+   * Stores the result of compiling a screen.
+   *
+   * @param key  the key computed by {@link #computeKey}
+   * @param screenClassesDir  the directory that contains only the classes of
+   *     the screen
+   * @param sourceFileName  the absolute path of the .yail file
+   * @param messages  the messages Kawa printed while compiling the screen
+   */
+  static void store(String key, File screenClassesDir, String sourceFileName, String messages) {
+    DirectoryCache directoryCache = getCache();
+    if (directoryCache == null || directoryCache.contains(key)) {
+      return;
+    }
+    File tmpDir = directoryCache.newEntryDir(key);
+    try {
+      FileUtils.copyDirectory(screenClassesDir, new File(tmpDir, CLASSES_DIR_NAME));
+      Files.write(messages.replace(sourceFileName, SOURCE_PLACEHOLDER),
+          new File(tmpDir, MESSAGES_FILE_NAME), Charsets.UTF_8);
+      directoryCache.commit(key, tmpDir);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store screen class cache entry " + key, e);
+      FileUtils.deleteQuietly(tmpDir);
+    }
+  }
+
+  static int getHitCount() {
+    return hits.get();
+  }
+
+  static int getMissCount() {
+    return misses.get();
+  }
+
+  static int getEntryCount() {
+    DirectoryCache directoryCache = getCache();
+    return directoryCache == null ? 0 : directoryCache.getEntryCount();
+  }
+
+  static long getSizeInBytes() {
+    DirectoryCache directoryCache = getCache();
+    return directoryCache == null ? 0 : directoryCache.getSizeInBytes();
+  }
+}
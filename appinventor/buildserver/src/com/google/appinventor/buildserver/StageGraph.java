@@ -0,0 +1,292 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Runs the independent steps of a build concurrently.
+ *
+ * <p>Each stage is added with the names of the stages it depends on, and is
+ * started on a pool shared by all builds as soon as those have finished. A
+ * stage reports failure by returning {@code false}, after printing its own
+ * user error. Once a stage fails no further stages are started; the stages
+ * that are already running are allowed to finish, and {@link #run} returns
+ * {@code false}.</p>
+ *
+ * <p>User errors written to a stream from {@link #newUserErrorStream} while
+ * a stage runs are buffered. Only the ones of the first stage that fails are
+ * written out, so the user sees a single error, as if the stages had run one
+ * after the other. If no stage fails, the output of all stages is written
+ * out in the order they were added. A runtime exception thrown by a stage is rethrown by
+ * {@link #run} after the running stages have finished.</p>
+ *
+ * <p>A graph is run once, by a single thread.</p>
+ */
+final class StageGraph {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(StageGraph.class.getName());
+
+  // Threads that run the stages of all builds.
+  private static final ExecutorService pool = Executors.newFixedThreadPool(
+      Math.max(2, Runtime.getRuntime().availableProcessors()),
+      new ThreadFactoryBuilder().setNameFormat("build-stage-%d").setDaemon(true).build());
+
+  // The buffer for the user errors of the stage running on the current thread.
+  private static final ThreadLocal<ByteArrayOutputStream> stageUserErrors =
+      new ThreadLocal<ByteArrayOutputStream>();
+
+  /**
+   * A step of the build.
+   */
+  interface Stage {
+    /**
+     * Runs the stage.
+     *
+     * @return  {@code true} on success, {@code false} if the build must stop
+     */
+    boolean run();
+  }
+
+  private static class Node {
+    final String name;
+    final Stage stage;
+    final Set<String> dependencies;
+    final ByteArrayOutputStream userErrors = new ByteArrayOutputStream();
+
+    Node(String name, Stage stage, Set<String> dependencies) {
+      this.name = name;
+      this.stage = stage;
+      this.dependencies = dependencies;
+    }
+  }
+
+  /*
+   * The outcome of a stage, computed on a pool thread.
+   */
+  private static class Outcome {
+    final Node node;
+    final boolean success;
+    final long millis;
+
+    Outcome(Node node, boolean success, long millis) {
+      this.node = node;
+      this.success = success;
+      this.millis = millis;
+    }
+  }
+
+  // Stages in the order they were added.
+  private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+  private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+  private final PrintStream userErrors;
+
+  /**
+   * Creates a graph whose stages print their user errors right away.
+   */
+  StageGraph() {
+    this(null);
+  }
+
+  /**
+   * Creates a graph that buffers the user errors of its stages.
+   *
+   * @param userErrors  the stream the user errors of the first stage that
+   *     fails are written to
+   */
+  StageGraph(PrintStream userErrors) {
+    this.userErrors = userErrors;
+  }
+
+  /**
+   * Returns a stream for user errors that is buffered while a stage of a
+   * graph created with {@link #StageGraph(PrintStream)} runs. Outside of
+   * stages, it writes to {@code userErrors} directly.
+   */
+  static PrintStream newUserErrorStream(final PrintStream userErrors) {
+    return new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        getTarget().write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        getTarget().write(b, off, len);
+      }
+
+      @Override
+      public void flush() {
+        userErrors.flush();
+      }
+
+      private OutputStream getTarget() {
+        ByteArrayOutputStream buffer = stageUserErrors.get();
+        return buffer == null ? userErrors : buffer;
+      }
+    }, true);
+  }
+
+  /**
+   * Adds a stage.
+   *
+   * @param name  the name of the stage, unique within the graph
+   * @param stage  the stage
+   * @param dependencies  the names of stages added earlier that must have
+   *     succeeded before this stage is started
+   * @return  this graph
+   */
+  StageGraph add(String name, Stage stage, String... dependencies) {
+    if (nodes.containsKey(name)) {
+      throw new IllegalArgumentException("Duplicate stage " + name);
+    }
+    for (String dependency : dependencies) {
+      if (!nodes.containsKey(dependency)) {
+        throw new IllegalArgumentException("Stage " + name + " depends on unknown stage " +
+            dependency);
+      }
+    }
+    nodes.put(name, new Node(name, stage, new HashSet<String>(Arrays.asList(dependencies))));
+    return this;
+  }
+
+  /**
+   * Runs all stages, each as soon as its dependencies have succeeded.
+   *
+   * @return  {@code true} if every stage succeeded
+   * @throws InterruptedException  if the thread is interrupted while waiting
+   *     for the stages; running stages are interrupted as well
+   */
+  boolean run() throws InterruptedException {
+    CompletionService<Outcome> completionService = new ExecutorCompletionService<Outcome>(pool);
+    List<Node> pending = new ArrayList<Node>(nodes.values());
+    Set<String> succeeded = new HashSet<String>();
+    List<Future<Outcome>> running = new ArrayList<Future<Outcome>>();
+    Map<Future<Outcome>, String> names = new HashMap<Future<Outcome>, String>();
+    boolean failed = false;
+    Node firstFailed = null;
+    RuntimeException exception = null;
+    Error error = null;
+    try {
+      while (true) {
+        if (!failed) {
+          for (Iterator<Node> iterator = pending.iterator(); iterator.hasNext(); ) {
+            Node node = iterator.next();
+            if (succeeded.containsAll(node.dependencies)) {
+              iterator.remove();
+              Future<Outcome> future = completionService.submit(newTask(node));
+              running.add(future);
+              names.put(future, node.name);
+            }
+          }
+        }
+        if (running.isEmpty()) {
+          break;
+        }
+        Future<Outcome> future = completionService.take();
+        running.remove(future);
+        try {
+          Outcome outcome = future.get();
+          timings.put(outcome.node.name, outcome.millis);
+          LOG.info("Stage " + outcome.node.name + " took " + outcome.millis + " ms" +
+              (outcome.success ? "" : " and failed"));
+          if (outcome.success) {
+            succeeded.add(outcome.node.name);
+          } else {
+            failed = true;
+            if (firstFailed == null) {
+              firstFailed = outcome.node;
+            }
+          }
+        } catch (ExecutionException e) {
+          failed = true;
+          if (firstFailed == null) {
+            firstFailed = nodes.get(names.get(future));
+          }
+          Throwable cause = e.getCause();
+          LOG.warning("Stage " + names.get(future) + " threw " + cause);
+          if (cause instanceof Error && error == null) {
+            error = (Error) cause;
+          } else if (cause instanceof RuntimeException && exception == null) {
+            exception = (RuntimeException) cause;
+          }
+        }
+      }
+    } finally {
+      for (Future<Outcome> future : running) {
+        future.cancel(true);
+      }
+    }
+    if (userErrors != null) {
+      if (firstFailed != null) {
+        userErrors.print(firstFailed.userErrors.toString());
+      } else if (!failed) {
+        for (Node node : nodes.values()) {
+          userErrors.print(node.userErrors.toString());
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+    if (exception != null) {
+      throw exception;
+    }
+    return !failed;
+  }
+
+  private Callable<Outcome> newTask(final Node node) {
+    final boolean buffered = userErrors != null;
+    // Child processes started by the stage belong to the build that runs the graph.
+    return RunningBuild.propagate(new Callable<Outcome>() {
+      @Override
+      public Outcome call() {
+        if (buffered) {
+          stageUserErrors.set(node.userErrors);
+        }
+        try {
+          long start = System.currentTimeMillis();
+          boolean success = node.stage.run();
+          return new Outcome(node, success, System.currentTimeMillis() - start);
+        } finally {
+          stageUserErrors.remove();
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the time each finished stage took, in milliseconds, in the order
+   * the stages finished.
+   */
+  Map<String, Long> getTimings() {
+    return Collections.unmodifiableMap(timings);
+  }
+}
@@ -0,0 +1,83 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.apache.commons.io.input.TeeInputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Receives the project zip of a build request.
+ *
+ * <p>App Inventor streams the zip as it is written, so its length and a
+ * checksum of the whole are not known before it is sent. Instead, the zip
+ * is checked as it arrives: the CRC-32 of every entry is verified while the
+ * entries are inflated, and the central directory at the end has to list as
+ * many entries as were received. A zip that was cut short or damaged on the
+ * way is rejected before a build is queued for it.</p>
+ */
+final class UploadedZip {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private UploadedZip() {
+  }
+
+  /**
+   * Copies a zip from a request body into a file, checking it on the way.
+   *
+   * @param body  the request body
+   * @param file  the file the zip is written to
+   * @return  the number of entries, 0 if the body is empty
+   * @throws ZipException  if the zip is truncated or corrupt
+   */
+  static int receive(InputStream body, File file) throws IOException {
+    int entries = 0;
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+    try {
+      InputStream tee = new TeeInputStream(body, out);
+      ZipInputStream zip = new ZipInputStream(tee);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      try {
+        // Reading an entry to its end verifies its CRC-32.
+        while (zip.getNextEntry() != null) {
+          while (zip.read(buffer) != -1) {
+          }
+          entries++;
+        }
+      } catch (EOFException e) {
+        throw new ZipException("Truncated zip: " + e.getMessage());
+      }
+      // The rest is the central directory, read through the tee so that it is written too.
+      while (tee.read(buffer) != -1) {
+      }
+    } finally {
+      out.close();
+    }
+
+    if (file.length() > 0) {
+      ZipFile zipFile = new ZipFile(file);
+      try {
+        if (zipFile.size() != entries) {
+          throw new ZipException("Received " + entries + " entries but the zip lists " +
+              zipFile.size());
+        }
+      } finally {
+        zipFile.close();
+      }
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,256 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compiles the YAIL runtime (runtime.scm) once per build server.
+ *
+ * <p>The runtime used to be compiled again, together with the screens, by
+ * every build. Now it is compiled once into a jar whose name contains a hash
+ * of runtime.scm and of the jars it is compiled against, so a jar left in the
+ * cache directory by an older build server is never picked up by mistake.
+ * Builds put the jar on the Kawa classpath, load the runtime macros from the
+ * compiled module with {@code -f com.google.youngandroid.runtime}, and pass
+ * the jar to dx like any other library, so that it is pre-dexed once as well.
+ * </p>
+ *
+ * <p>The runtime is compiled on a background thread, and builds never wait
+ * for it: until the jar is ready, or while it cannot be compiled, builds
+ * compile runtime.scm with the screens as before. After a failure, the
+ * runtime is compiled again once a delay has passed, which doubles with
+ * each failure.</p>
+ */
+final class YailRuntimeCache {
+
+  /**
+   * Name of the module compiled from runtime.scm.
+   */
+  static final String RUNTIME_MODULE = "com.google.youngandroid.runtime";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(YailRuntimeCache.class.getName());
+
+  // How long to wait before compiling the runtime again after a failure.
+  private static final long MIN_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final ExecutorService compiler = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("YailRuntimeCache").setDaemon(true).build());
+
+  // All guarded by the class lock, which is never held while compiling.
+  private static Ticker ticker = Ticker.systemTicker();
+  private static File runtimeJar;
+  private static Future<File> compilation;
+  private static int failures;
+  private static long retryTime;
+
+  private YailRuntimeCache() {
+  }
+
+  /**
+   * Returns the jar containing the compiled YAIL runtime. If it is not ready
+   * yet, starts compiling it in the background, unless that is already
+   * under way or failed a short time ago, and returns {@code null}.
+   *
+   * @param yailRuntime  path of runtime.scm
+   * @param classpath  the classpath runtime.scm is compiled against
+   * @param dependencies  the jars of the classpath whose contents determine
+   *     the compiled runtime
+   * @param cacheDir  directory where the jar is kept across restarts, or
+   *     {@code null} to use a temporary directory
+   * @param maxHeapMb  maximum heap of the Kawa process, in MB
+   * @return  the jar, or {@code null} if the runtime is not compiled (yet),
+   *     in which case the caller should compile runtime.scm with the screens
+   */
+  static synchronized File getRuntimeJar(final String yailRuntime, final String classpath,
+      final String[] dependencies, final String cacheDir, final int maxHeapMb) {
+    if (runtimeJar != null) {
+      return runtimeJar;
+    }
+    if (compilation != null) {
+      if (!compilation.isDone()) {
+        return null;
+      }
+      try {
+        runtimeJar = compilation.get();
+        failures = 0;
+        return runtimeJar;
+      } catch (ExecutionException e) {
+        failures++;
+        long delay = Math.min(MAX_RETRY_DELAY_MILLIS,
+            MIN_RETRY_DELAY_MILLIS << Math.min(failures - 1, 12));
+        retryTime = ticker.read() + TimeUnit.MILLISECONDS.toNanos(delay);
+        LOG.log(Level.WARNING, "Unable to precompile the YAIL runtime, trying again in " +
+            (delay / 1000) + " seconds", e.getCause());
+        return null;
+      } catch (InterruptedException e) {
+        // Not possible, the compilation is done.
+        Thread.currentThread().interrupt();
+        return null;
+      } finally {
+        compilation = null;
+      }
+    }
+    if (failures > 0 && ticker.read() - retryTime < 0) {
+      return null;
+    }
+    compilation = compiler.submit(new Callable<File>() {
+      @Override
+      public File call() throws IOException, InterruptedException {
+        return compile(yailRuntime, classpath, dependencies, cacheDir, maxHeapMb);
+      }
+    });
+    return null;
+  }
+
+  /*
+   * Compiles the runtime into a jar in the cache directory, unless it is there already.
+   */
+  private static File compile(String yailRuntime, String classpath, String[] dependencies,
+      String cacheDir, int maxHeapMb) throws IOException, InterruptedException {
+    File tmpDir = null;
+    try {
+      Hasher hasher = Hashing.sha1().newHasher();
+      hasher.putBytes(Files.toByteArray(new File(yailRuntime)));
+      for (String dependency : dependencies) {
+        hasher.putBytes(Files.hash(new File(dependency), Hashing.sha1()).asBytes());
+      }
+      File dir = cacheDir == null ? Files.createTempDir() : new File(cacheDir);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Unable to create " + dir);
+      }
+      File jar = new File(dir, "yail-runtime-" + hasher.hash() + ".jar");
+      if (cacheDir == null) {
+        jar.deleteOnExit();
+        dir.deleteOnExit();
+      }
+      if (!jar.exists()) {
+        long start = System.currentTimeMillis();
+        tmpDir = Files.createTempDir();
+        File classesDir = new File(tmpDir, "classes");
+        classesDir.mkdir();
+        String[] kawaCommandLine = {
+            System.getProperty("java.home") + "/bin/java",
+            "-Dfile.encoding=UTF-8",
+            "-mx" + maxHeapMb + "M",
+            "-cp", classpath,
+            "kawa.repl",
+            "-d", classesDir.getAbsolutePath(),
+            "-C", yailRuntime
+        };
+        boolean success;
+        ChildProcessAdmission.Permit permit = ChildProcessAdmission.acquire(
+            ChildProcessAdmission.Stage.COMPILE, maxHeapMb);
+        try {
+          success = Execution.execute(null, kawaCommandLine, System.out, System.err,
+              Execution.Deadline.KAWA);
+        } finally {
+          permit.release();
+        }
+        if (!success) {
+          throw new IOException("Kawa failed to compile " + yailRuntime);
+        }
+        // Write to a temporary file next to the jar first, so that a half-written jar is never
+        // used and the rename below does not cross file systems.
+        File partial = File.createTempFile("yail-runtime", ".tmp", dir);
+        JarOutputStream output = new JarOutputStream(new FileOutputStream(partial), new Manifest());
+        try {
+          addToJar(output, classesDir, "");
+        } finally {
+          output.close();
+        }
+        if (!partial.renameTo(jar)) {
+          partial.delete();
+          if (!jar.exists()) {
+            throw new IOException("Unable to create " + jar);
+          }
+        }
+        LOG.info("Compiled YAIL runtime into " + jar + " in " +
+            ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+      }
+      return jar;
+    } finally {
+      if (tmpDir != null) {
+        deleteRecursively(tmpDir);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  static synchronized boolean isCompiling() {
+    return compilation != null;
+  }
+
+  @VisibleForTesting
+  static synchronized int getFailureCount() {
+    return failures;
+  }
+
+  /*
+   * Forgets the compiled runtime and any failures, and measures the retry delay with the given
+   * ticker.
+   */
+  @VisibleForTesting
+  static synchronized void reset(Ticker newTicker) {
+    ticker = newTicker;
+    runtimeJar = null;
+    compilation = null;
+    failures = 0;
+    retryTime = 0;
+  }
+
+  private static void addToJar(JarOutputStream output, File dir, String prefix)
+      throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = prefix + file.getName();
+      if (file.isDirectory()) {
+        output.putNextEntry(new ZipEntry(name + "/"));
+        output.closeEntry();
+        addToJar(output, file, name + "/");
+      } else {
+        output.putNextEntry(new ZipEntry(name));
+        Files.copy(file, output);
+        output.closeEntry();
+      }
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,340 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver.loadtest;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Drives load against a build server.
+ *
+ * <p>Builds are submitted to build-all-from-zip-async at random times, with
+ * a given average rate, regardless of how fast the build server answers.
+ * Their results are received by a callback server started by the load test.
+ * The projects are either generated by {@link ProjectGenerator} or read from
+ * a directory of .aia files. When all builds are answered, or the drain
+ * time is up, throughput, latency percentiles and rejection rate are
+ * printed.</p>
+ *
+ * <p>Use a command like the following, with a build server running:
+ * ant RunLoadTest -Dloadtest.args="--rate 0.2 --durationSeconds 600"</p>
+ */
+public final class LoadTest {
+
+  static class CommandLineOptions {
+    @Option(name = "--buildServerUrl",
+      usage = "The URL of the build server.")
+    String buildServerUrl = "http://localhost:9990/buildserver";
+
+    @Option(name = "--callbackHost",
+      usage = "The host name the build server reaches this machine at.")
+    String callbackHost = "localhost";
+
+    @Option(name = "--callbackPort",
+      usage = "The port of the callback server, 0 for any.")
+    int callbackPort = 0;
+
+    @Option(name = "--rate",
+      usage = "The average number of builds submitted per second.")
+    double rate = 0.1;
+
+    @Option(name = "--durationSeconds",
+      usage = "How long builds are submitted for.")
+    int durationSeconds = 300;
+
+    @Option(name = "--drainSeconds",
+      usage = "How long to wait for the results of the builds after the last one is submitted.")
+    int drainSeconds = 600;
+
+    @Option(name = "--users",
+      usage = "The number of users the builds are spread over.")
+    int users = 10;
+
+    @Option(name = "--interactivePercent",
+      usage = "The percentage of builds that are interactive builds.")
+    int interactivePercent = 0;
+
+    @Option(name = "--projects",
+      usage = "The number of different projects generated.")
+    int projects = 10;
+
+    @Option(name = "--screens",
+      usage = "The number of screens of each generated project.")
+    int screens = 1;
+
+    @Option(name = "--components",
+      usage = "The number of components on each screen of the generated projects.")
+    int components = 10;
+
+    @Option(name = "--blocks",
+      usage = "The number of blocks of each screen of the generated projects.")
+    int blocks = 20;
+
+    @Option(name = "--assets",
+      usage = "The number of assets of each generated project.")
+    int assets = 2;
+
+    @Option(name = "--assetKb",
+      usage = "The size of each asset of the generated projects, in KB.")
+    int assetKb = 100;
+
+    @Option(name = "--replayDir",
+      usage = "A directory of .aia files that are built instead of generated projects.")
+    File replayDir = null;
+
+    @Option(name = "--seed",
+      usage = "The seed of the random arrival times and projects.")
+    long seed = 1;
+  }
+
+  private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(LoadTest.class.getName());
+
+  private final CommandLineOptions options;
+  private final LoadTestStats stats = new LoadTestStats();
+  private final Random random;
+
+  // The submission times of the accepted builds that have no result yet, by build id.
+  private final ConcurrentMap<Integer, Long> pendingBuilds = new ConcurrentHashMap<Integer, Long>();
+  private final AtomicInteger nextBuildId = new AtomicInteger(0);
+
+  private LoadTest(CommandLineOptions options) {
+    this.options = options;
+    this.random = new Random(options.seed);
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    CmdLineParser cmdLineParser = new CmdLineParser(commandLineOptions);
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+    new LoadTest(commandLineOptions).run();
+    System.exit(0);
+  }
+
+  private void run() throws IOException, InterruptedException {
+    File tmpDir = Files.createTempDir();
+    HttpServer callbackServer = null;
+    try {
+      List<File> projects = getProjects(tmpDir);
+      callbackServer = startCallbackServer();
+      String callbackUrl = "http://" + options.callbackHost + ":" +
+          callbackServer.getAddress().getPort() + "/callback/";
+      LOG.info("Submitting builds of " + projects.size() + " projects for " +
+          options.durationSeconds + " seconds");
+
+      ExecutorService submitters = Executors.newCachedThreadPool();
+      long end = System.currentTimeMillis() + options.durationSeconds * 1000L;
+      long next = System.currentTimeMillis();
+      while (true) {
+        // Exponential inter-arrival times make the arrivals a Poisson process.
+        next += (long) (-Math.log(1 - random.nextDouble()) / options.rate * 1000);
+        if (next >= end) {
+          break;
+        }
+        long delay = next - System.currentTimeMillis();
+        if (delay > 0) {
+          Thread.sleep(delay);
+        }
+        final int buildId = nextBuildId.incrementAndGet();
+        final File project = projects.get(random.nextInt(projects.size()));
+        final String userName = "loadtest" + random.nextInt(options.users);
+        final boolean interactive = random.nextInt(100) < options.interactivePercent;
+        final String buildCallbackUrl = callbackUrl + buildId;
+        submitters.execute(new Runnable() {
+          @Override
+          public void run() {
+            submit(buildId, project, userName, interactive, buildCallbackUrl);
+          }
+        });
+      }
+      // The submissions still running and the builds still outstanding share one drain period.
+      long drainEnd = System.currentTimeMillis() + options.drainSeconds * 1000L;
+      submitters.shutdown();
+      submitters.awaitTermination(
+          Math.max(0, drainEnd - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      while (stats.getOutstandingCount() > 0 && System.currentTimeMillis() < drainEnd) {
+        Thread.sleep(1000);
+      }
+      stats.print(System.out);
+    } finally {
+      if (callbackServer != null) {
+        callbackServer.stop(0);
+      }
+      FileUtils.deleteQuietly(tmpDir);
+    }
+  }
+
+  private List<File> getProjects(File tmpDir) throws IOException {
+    List<File> projects = new ArrayList<File>();
+    if (options.replayDir != null) {
+      File[] files = options.replayDir.listFiles();
+      if (files != null) {
+        Arrays.sort(files);
+        for (File file : files) {
+          if (file.getName().endsWith(".aia") || file.getName().endsWith(".zip")) {
+            projects.add(file);
+          }
+        }
+      }
+      if (projects.isEmpty()) {
+        throw new IOException("No .aia files in " + options.replayDir);
+      }
+    } else {
+      ProjectGenerator generator = new ProjectGenerator(options.screens, options.components,
+          options.blocks, options.assets, options.assetKb * 1024, options.seed);
+      for (int i = 1; i <= options.projects; i++) {
+        File project = new File(tmpDir, "LoadTest" + i + ".aia");
+        generator.write("LoadTest" + i, project);
+        projects.add(project);
+      }
+    }
+    return projects;
+  }
+
+  private void submit(int buildId, File project, String userName, boolean interactive,
+      String callbackUrl) {
+    try {
+      URL url = new URL(options.buildServerUrl + "/build-all-from-zip-async" +
+          "?uname=" + URLEncoder.encode(userName, "UTF-8") +
+          "&callback=" + URLEncoder.encode(callbackUrl, "UTF-8") +
+          "&interactive=" + interactive);
+      long start = System.currentTimeMillis();
+      stats.submitted(start);
+      // Known before the build can possibly call back.
+      pendingBuilds.put(buildId, start);
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.addRequestProperty("Content-Type", "application/zip; charset=utf-8");
+      connection.setFixedLengthStreamingMode((int) project.length());
+      OutputStream output = connection.getOutputStream();
+      try {
+        Files.copy(project, output);
+      } finally {
+        output.close();
+      }
+      int responseCode = connection.getResponseCode();
+      if (responseCode == HttpURLConnection.HTTP_OK) {
+        stats.accepted();
+      } else {
+        pendingBuilds.remove(buildId);
+        if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+          stats.rejected();
+        } else {
+          LOG.warning("Build " + buildId + " answered with " + responseCode);
+          stats.error();
+        }
+      }
+    } catch (IOException e) {
+      pendingBuilds.remove(buildId);
+      LOG.warning("Unable to submit build " + buildId + ": " + e.getMessage());
+      stats.error();
+    }
+  }
+
+  private HttpServer startCallbackServer() throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(options.callbackPort), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/callback/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          String path = exchange.getRequestURI().getPath();
+          int buildId = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+          byte[] zip = ByteStreams.toByteArray(exchange.getRequestBody());
+          String buildOutput = getBuildOutput(zip);
+          // Progress reports only hold build.status.
+          if (buildOutput != null) {
+            long now = System.currentTimeMillis();
+            Long start = pendingBuilds.remove(buildId);
+            if (start != null) {
+              stats.completed(isSuccess(buildOutput), now - start, now);
+            }
+          }
+          exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+        } catch (NumberFormatException e) {
+          exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  /*
+   * Returns the contents of the build.out entry of a result zip, or null.
+   */
+  private static String getBuildOutput(byte[] zip) throws IOException {
+    ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip));
+    try {
+      ZipEntry entry;
+      while ((entry = input.getNextEntry()) != null) {
+        if (entry.getName().equals("build.out")) {
+          return new String(ByteStreams.toByteArray(input), Charsets.UTF_8);
+        }
+      }
+      return null;
+    } finally {
+      input.close();
+    }
+  }
+
+  private static boolean isSuccess(String buildOutput) {
+    try {
+      return new JSONObject(buildOutput).getInt("result") == 0;
+    } catch (JSONException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver.loadtest;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the outcome of the builds of a load test and reports throughput,
+ * latency percentiles and rejection rate.
+ *
+ * <p>The latency of a build is the time from submitting it to receiving its
+ * result at the callback URL.</p>
+ */
+final class LoadTestStats {
+
+  private int submitted = 0;
+  private int accepted = 0;
+  private int rejected = 0;
+  private int errors = 0;
+  private int succeeded = 0;
+  private int failed = 0;
+  private final List<Long> latencies = new ArrayList<Long>();
+  private long firstSubmitMillis = 0;
+  private long lastResultMillis = 0;
+
+  synchronized void submitted(long millis) {
+    if (submitted++ == 0) {
+      firstSubmitMillis = millis;
+    }
+  }
+
+  /** The build server queued the build. */
+  synchronized void accepted() {
+    accepted++;
+  }
+
+  /** The build server was too busy to take the build. */
+  synchronized void rejected() {
+    rejected++;
+  }
+
+  /** The build could not be submitted, or the build server answered with an error. */
+  synchronized void error() {
+    errors++;
+  }
+
+  /**
+   * The result of a build arrived at the callback URL.
+   *
+   * @param success  whether the build succeeded
+   * @param latencyMillis  the time since the build was submitted
+   * @param millis  the time the result arrived
+   */
+  synchronized void completed(boolean success, long latencyMillis, long millis) {
+    if (success) {
+      succeeded++;
+    } else {
+      failed++;
+    }
+    latencies.add(latencyMillis);
+    lastResultMillis = Math.max(lastResultMillis, millis);
+  }
+
+  synchronized int getOutstandingCount() {
+    return accepted - succeeded - failed;
+  }
+
+  synchronized int getCompletedCount() {
+    return succeeded + failed;
+  }
+
+  /**
+   * Returns a latency percentile, in milliseconds, or -1 if no build completed.
+   *
+   * @param percentile  the percentile, between 0 and 100
+   */
+  synchronized long getLatencyPercentile(double percentile) {
+    if (latencies.isEmpty()) {
+      return -1;
+    }
+    List<Long> sorted = new ArrayList<Long>(latencies);
+    Collections.sort(sorted);
+    // Nearest rank.
+    int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+    return sorted.get(Math.max(rank, 1) - 1);
+  }
+
+  /**
+   * Returns the completed builds per minute, from the first submission to
+   * the last result.
+   */
+  synchronized double getThroughputPerMinute() {
+    long elapsed = lastResultMillis - firstSubmitMillis;
+    return elapsed <= 0 ? 0 : 60000.0 * getCompletedCount() / elapsed;
+  }
+
+  /**
+   * Returns the percentage of submitted builds the build server rejected.
+   */
+  synchronized double getRejectionRate() {
+    return submitted == 0 ? 0 : 100.0 * rejected / submitted;
+  }
+
+  synchronized void print(PrintStream out) {
+    out.println("submitted builds:    " + submitted);
+    out.println("accepted builds:     " + accepted);
+    out.println("rejected builds:     " + rejected +
+        String.format(" (%.1f%%)", getRejectionRate()));
+    out.println("submission errors:   " + errors);
+    out.println("succeeded builds:    " + succeeded);
+    out.println("failed builds:       " + failed);
+    // Superseded builds, and builds still running when the test gave up, have no result.
+    out.println("unanswered builds:   " + getOutstandingCount());
+    out.println(String.format("throughput:          %.2f builds/min", getThroughputPerMinute()));
+    out.println("latency p50:         " + getLatencyPercentile(50) + " ms");
+    out.println("latency p95:         " + getLatencyPercentile(95) + " ms");
+    out.println("latency p99:         " + getLatencyPercentile(99) + " ms");
+  }
+}
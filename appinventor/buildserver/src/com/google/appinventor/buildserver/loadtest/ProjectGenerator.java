@@ -0,0 +1,178 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver.loadtest;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates synthetic App Inventor projects, as the source zips the App
+ * Inventor server sends to the build server.
+ *
+ * <p>Each screen holds a number of components of common types and a number
+ * of blocks. The assets are random bytes, so that they do not compress.</p>
+ */
+public final class ProjectGenerator {
+
+  static final String PACKAGE = "appinventor.ai_loadtest";
+
+  // Component types, and whether they have a Text property.
+  private static final String[] COMPONENT_TYPES = {
+      "Button", "Label", "TextBox", "CheckBox", "Image", "Slider", "ListView", "Clock",
+      "Notifier", "TinyDB"};
+  private static final int TEXT_COMPONENT_TYPES = 4;
+
+  private final int screens;
+  private final int componentsPerScreen;
+  private final int blocksPerScreen;
+  private final int assets;
+  private final int assetBytes;
+  private final Random random;
+
+  /**
+   * Creates a generator.
+   *
+   * @param screens  the number of screens of a project
+   * @param componentsPerScreen  the number of components on each screen
+   * @param blocksPerScreen  the number of blocks of each screen
+   * @param assets  the number of assets of a project
+   * @param assetBytes  the size of each asset
+   * @param seed  the seed of the random contents of the assets
+   */
+  public ProjectGenerator(int screens, int componentsPerScreen, int blocksPerScreen, int assets,
+      int assetBytes, long seed) {
+    if (screens < 1) {
+      throw new IllegalArgumentException("A project needs at least one screen");
+    }
+    this.screens = screens;
+    this.componentsPerScreen = componentsPerScreen;
+    this.blocksPerScreen = blocksPerScreen;
+    this.assets = assets;
+    this.assetBytes = assetBytes;
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Writes the source zip of a project.
+   *
+   * @param name  the name of the project, a valid identifier
+   * @param zipFile  the file the zip is written to
+   */
+  public void write(String name, File zipFile) throws IOException {
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(zipFile));
+    try {
+      put(output, "youngandroidproject/project.properties",
+          "main=" + PACKAGE + "." + name + ".Screen1\n" +
+          "name=" + name + "\n" +
+          "assets=../assets\n" +
+          "source=../src\n" +
+          "build=../build\n" +
+          "versioncode=1\n" +
+          "versionname=1.0\n" +
+          "useslocation=False\n" +
+          "aname=" + name + "\n");
+      for (int i = 1; i <= screens; i++) {
+        String screen = "Screen" + i;
+        String path = "src/" + PACKAGE.replace('.', '/') + "/" + name + "/" + screen;
+        put(output, path + ".scm", formFile(screen));
+        put(output, path + ".bky", blocksFile());
+        put(output, path + ".yail", yailFile(PACKAGE + "." + name + "." + screen, screen));
+      }
+      byte[] asset = new byte[assetBytes];
+      for (int i = 1; i <= assets; i++) {
+        random.nextBytes(asset);
+        output.putNextEntry(new ZipEntry("assets/asset" + i + ".bin"));
+        output.write(asset);
+        output.closeEntry();
+      }
+    } finally {
+      output.close();
+    }
+  }
+
+  private String formFile(String screen) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("#|\n$JSON\n{\"YaVersion\":\"175\",\"Source\":\"Form\",\"Properties\":")
+        .append("{\"$Name\":\"").append(screen).append("\",\"$Type\":\"Form\",")
+        .append("\"$Version\":\"23\",\"Uuid\":\"0\",\"Title\":\"").append(screen)
+        .append("\",\"$Components\":[");
+    for (int i = 1; i <= componentsPerScreen; i++) {
+      String type = componentType(i);
+      if (i > 1) {
+        sb.append(',');
+      }
+      sb.append("{\"$Name\":\"").append(type).append(i).append("\",\"$Type\":\"")
+          .append(type).append("\",\"$Version\":\"1\",\"Uuid\":\"").append(i).append('"');
+      if (hasText(i)) {
+        sb.append(",\"Text\":\"").append(type).append(i).append('"');
+      }
+      sb.append('}');
+    }
+    sb.append("]}}\n|#\n");
+    return sb.toString();
+  }
+
+  private String blocksFile() {
+    StringBuilder sb = new StringBuilder("<xml xmlns=\"http://www.w3.org/1999/xhtml\">");
+    for (int i = 1; i <= blocksPerScreen; i++) {
+      sb.append("<block type=\"global_declaration\" id=\"").append(i).append("\">")
+          .append("<field name=\"NAME\">var").append(i).append("</field>")
+          .append("<value name=\"VALUE\"><block type=\"text\"><field name=\"TEXT\">")
+          .append(i).append("</field></block></value></block>");
+    }
+    sb.append("</xml>");
+    return sb.toString();
+  }
+
+  private String yailFile(String formClass, String screen) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("#|\n$Source $Yail\n|#\n\n")
+        .append("(define-form ").append(formClass).append(' ').append(screen).append(")\n")
+        .append("(require <com.google.youngandroid.runtime>)\n");
+    for (int i = 1; i <= blocksPerScreen; i++) {
+      sb.append("(def g$var").append(i).append(" (call-yail-primitive string-append ")
+          .append("(*list-for-runtime* \"value\" ").append(i).append(" ) ")
+          .append("'(text text ) \"join\"))\n");
+    }
+    sb.append(";;; ").append(screen).append('\n')
+        .append("(do-after-form-creation (set-and-coerce-property! '").append(screen)
+        .append(" 'Title \"").append(screen).append("\" 'text)\n)\n");
+    for (int i = 1; i <= componentsPerScreen; i++) {
+      String component = componentType(i) + i;
+      sb.append(";;; ").append(component).append('\n')
+          .append("(add-component ").append(screen).append(' ').append(componentType(i))
+          .append(' ').append(component).append(' ');
+      if (hasText(i)) {
+        sb.append("(set-and-coerce-property! '").append(component).append(" 'Text \"")
+            .append(component).append("\" 'text)\n");
+      }
+      sb.append(")\n");
+    }
+    sb.append("(init-runtime)\n");
+    return sb.toString();
+  }
+
+  private static String componentType(int i) {
+    return COMPONENT_TYPES[(i - 1) % COMPONENT_TYPES.length];
+  }
+
+  private static boolean hasText(int i) {
+    return (i - 1) % COMPONENT_TYPES.length < TEXT_COMPONENT_TYPES;
+  }
+
+  private static void put(ZipOutputStream output, String name, String contents)
+      throws IOException {
+    output.putNextEntry(new ZipEntry(name));
+    output.write(contents.getBytes(Charsets.UTF_8));
+    output.closeEntry();
+  }
+}
@@ -91,6 +91,22 @@ public class AARLibraries extends HashSet<AARLibrary> {
 
   @Override
   public boolean add(AARLibrary e) {
+    try {
+      return add(e, loadSymbols(e));
+    } catch(IOException ex) {
+      throw new IllegalArgumentException("IOException merging resources", ex);
+    }
+  }
+
+  /**
+   * Adds a library whose symbols were loaded earlier.
+   *
+   * @param e the library to add.
+   * @param loader the symbols of the library loaded by {@link #loadSymbols(AARLibrary)}, or null
+   *               if it declares none.
+   * @return true if the library was not yet part of the collection.
+   */
+  public boolean add(AARLibrary e, SymbolLoader loader) {
     if (super.add(e)) {
       final String packageName = e.getPackageName();
       classes.add(e.getClassesJar());
@@ -98,20 +114,31 @@ public class AARLibraries extends HashSet<AARLibrary> {
       assets.addAll(e.getAssets());
       libraries.addAll(e.getLibraries());
       natives.addAll(e.getNatives());
-      try {
-        if (e.getRTxt() != null) {
-          SymbolLoader loader = new SymbolLoader(e.getRTxt(), LOG);
-          loader.load();
-          symbols.put(packageName, loader);
-        }
-      } catch(IOException ex) {
-        throw new IllegalArgumentException("IOException merging resources", ex);
+      if (loader != null) {
+        symbols.put(packageName, loader);
       }
       return true;
     }
     return false;
   }
 
+  /**
+   * Loads the symbols declared in the R.txt file of a library. The returned loader is not
+   * modified by this class, so it can be shared by several collections.
+   *
+   * @param library the unpacked library.
+   * @return the loaded symbols, or null if the library has no R.txt file.
+   * @throws IOException if the R.txt file cannot be read.
+   */
+  public static SymbolLoader loadSymbols(AARLibrary library) throws IOException {
+    if (library.getRTxt() == null) {
+      return null;
+    }
+    SymbolLoader loader = new SymbolLoader(library.getRTxt(), LOG);
+    loader.load();
+    return loader;
+  }
+
   @Override
   public boolean remove(Object o) {
     // we don't support removing AAR libraries during compilation
@@ -142,6 +169,16 @@ public class AARLibraries extends HashSet<AARLibrary> {
     return outputDir;
   }
 
+  /**
+   * Sets the directory that holds the compiled R classes, when they were not compiled by
+   * {@link #writeRClasses(File, String, File)} but copied there from elsewhere.
+   *
+   * @param outputDir the directory that holds the R classes.
+   */
+  public void setOutputDirectory(File outputDir) {
+    this.outputDir = outputDir;
+  }
+
   /**
    * Gets a list of resource sets loaded from the AAR libraries in the collection. Note that this
    * is computed on every call (results are not cached), so it is recommended that the caller only
@@ -174,6 +211,23 @@ public class AARLibraries extends HashSet<AARLibrary> {
     ResourceSet mainResSet = new ResourceSet("main");
     mainResSet.addSource(mainResDir);
     resourceSets.add(mainResSet);
+    return merge(resourceSets, outputDir, cruncher);
+  }
+
+  /**
+   * Merges the resources of the dependent AAR libraries only. The result does not depend on the
+   * app being compiled and can be passed to AAPT after the app's own resource directory.
+   *
+   * @param outputDir the output directory to write the merged resources to.
+   * @param cruncher configured PNG cruncher utility for reducing the size of PNG assets.
+   * @return true if the merge was successful, otherwise false.
+   */
+  public boolean mergeLibraryResources(File outputDir, PngCruncher cruncher) {
+    return merge(getResourceSets(), outputDir, cruncher);
+  }
+
+  private static boolean merge(List<ResourceSet> resourceSets, File outputDir,
+      PngCruncher cruncher) {
     ResourceMerger merger = new ResourceMerger();
 
     try {
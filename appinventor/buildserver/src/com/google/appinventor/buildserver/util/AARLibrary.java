@@ -271,6 +271,40 @@ public class AARLibrary {
     }
   }
 
+  /**
+   * Uses a copy of the Android Archive that was unpacked earlier by {@link #unpackToDirectory}
+   * instead of unpacking it again.
+   *
+   * @param path the path the archive was unpacked to.
+   * @throws IOException if the path does not hold exactly one unpacked archive.
+   */
+  public void loadFromDirectory(final File path) throws IOException {
+    File[] dirs = path.listFiles();
+    if (dirs == null || dirs.length != 1 || !dirs[0].isDirectory()) {
+      throw new IOException("No unpacked AAR package in " + path.getAbsolutePath());
+    }
+    basedir = dirs[0];
+    packageName = basedir.getName();
+    catalogDirectory(basedir);
+    resdir = new File(basedir, "res");
+    if (!resdir.exists()) {
+      resdir = null;
+    }
+  }
+
+  private void catalogDirectory(File dir) {
+    File[] children = dir.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        if (child.isDirectory()) {
+          catalogDirectory(child);
+        } else {
+          catalog(child);
+        }
+      }
+    }
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -0,0 +1,127 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.util.AARLibraries;
+import com.google.appinventor.buildserver.util.AARLibrary;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import com.android.ide.common.internal.PngCruncher;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests AarLibraryCache class.
+ */
+public class AarLibraryCacheTest extends TestCase {
+  private static final PngCruncher NO_CRUNCHER = new PngCruncher() {
+    @Override
+    public int start() {
+      return 0;
+    }
+
+    @Override
+    public void crunchPng(int key, File from, File to) {
+    }
+
+    @Override
+    public void end(int key) {
+    }
+  };
+
+  private File tmpDir;
+  private File aar;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    aar = new File(tmpDir, "library.aar");
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(aar));
+    put(output, "AndroidManifest.xml",
+        "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\" " +
+        "package=\"com.example.library\"/>");
+    put(output, "classes.jar", "classes");
+    put(output, "R.txt", "int string library_name 0x7f010000\n");
+    put(output, "res/values/values.xml",
+        "<resources><string name=\"library_name\">Library</string></resources>");
+    output.close();
+    AarLibraryCache.configure(new File(tmpDir, "cache").getAbsolutePath(), 100);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    AarLibraryCache.configure(null, 0);
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testLibrariesAreSharedBetweenBuilds() throws Exception {
+    int hits = AarLibraryCache.getHitCount();
+    List<String> pinnedKeys1 = new ArrayList<String>();
+    AARLibraries libraries1 = new AARLibraries(new File(tmpDir, "generated1"));
+    assertTrue(AarLibraryCache.addLibrary(aar, libraries1, pinnedKeys1));
+    List<String> pinnedKeys2 = new ArrayList<String>();
+    AARLibraries libraries2 = new AARLibraries(new File(tmpDir, "generated2"));
+    assertTrue(AarLibraryCache.addLibrary(aar, libraries2, pinnedKeys2));
+
+    AARLibrary library1 = libraries1.iterator().next();
+    AARLibrary library2 = libraries2.iterator().next();
+    assertEquals("com.example.library", library2.getPackageName());
+    assertEquals(library1.getDirectory(), library2.getDirectory());
+    assertEquals("classes", Files.toString(library2.getClassesJar(), Charsets.UTF_8));
+    assertEquals(hits + 1, AarLibraryCache.getHitCount());
+
+    File resDir1 = AarLibraryCache.getMergedResources(libraries1, NO_CRUNCHER, pinnedKeys1);
+    File resDir2 = AarLibraryCache.getMergedResources(libraries2, NO_CRUNCHER, pinnedKeys2);
+    assertNotNull(resDir1);
+    assertEquals(resDir1, resDir2);
+    assertTrue(Files.toString(new File(resDir2, "values/values.xml"), Charsets.UTF_8)
+        .contains("library_name"));
+
+    AarLibraryCache.release(pinnedKeys1);
+    AarLibraryCache.release(pinnedKeys2);
+    assertTrue(pinnedKeys1.isEmpty());
+    assertEquals(2, AarLibraryCache.getEntryCount());
+  }
+
+  public void testRClassesAreRestored() throws Exception {
+    AARLibraries libraries = new AARLibraries(new File(tmpDir, "generated"));
+    List<String> pinnedKeys = new ArrayList<String>();
+    assertTrue(AarLibraryCache.addLibrary(aar, libraries, pinnedKeys));
+    File appRTxt = new File(tmpDir, "R.txt");
+    Files.write("int string library_name 0x7f020000\n", appRTxt, Charsets.UTF_8);
+    String key = AarLibraryCache.computeRClassesKey(libraries, "com.example.app", appRTxt);
+
+    File classesDir = new File(tmpDir, "classes");
+    assertFalse(AarLibraryCache.restoreRClasses(key, classesDir));
+    File rClassesDir = new File(tmpDir, "r-classes");
+    Files.createParentDirs(new File(rClassesDir, "com/example/library/R.class"));
+    Files.write("R", new File(rClassesDir, "com/example/library/R.class"), Charsets.UTF_8);
+    AarLibraryCache.storeRClasses(key, rClassesDir);
+    assertTrue(AarLibraryCache.restoreRClasses(key, classesDir));
+    assertEquals("R", Files.toString(new File(classesDir, "com/example/library/R.class"),
+        Charsets.UTF_8));
+
+    Files.write("int string library_name 0x7f030000\n", appRTxt, Charsets.UTF_8);
+    assertFalse(key.equals(
+        AarLibraryCache.computeRClassesKey(libraries, "com.example.app", appRTxt)));
+    AarLibraryCache.release(pinnedKeys);
+  }
+
+  private static void put(ZipOutputStream output, String name, String contents)
+      throws Exception {
+    output.putNextEntry(new ZipEntry(name));
+    output.write(contents.getBytes(Charsets.UTF_8));
+  }
+}
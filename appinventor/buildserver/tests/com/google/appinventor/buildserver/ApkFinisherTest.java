@@ -0,0 +1,236 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ApkFinisher class.
+ */
+public class ApkFinisherTest extends TestCase {
+  private File tmpDir;
+  private File keystore;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    keystore = new File(tmpDir, "android.keystore");
+    String[] keytoolCommandline = {
+        System.getProperty("java.home") + "/bin/keytool",
+        "-genkey",
+        "-keystore", keystore.getAbsolutePath(),
+        "-storetype", "JKS",
+        "-alias", "AndroidKey",
+        "-keyalg", "RSA",
+        "-dname", "CN=test, O=AppInventor for Android, C=US",
+        "-validity", "10000",
+        "-storepass", "android",
+        "-keypass", "android"
+    };
+    assertTrue(Execution.execute(null, keytoolCommandline, System.out, System.err));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testSignedAndAligned() throws Exception {
+    File unsigned = new File(tmpDir, "unsigned.apk");
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(unsigned));
+    // Names of odd lengths, so that stored entries need padding.
+    output.putNextEntry(new ZipEntry("classes.dex"));
+    output.write(new byte[5000]);
+    putStored(output, "res/raw/a.png", "abc");
+    output.putNextEntry(new ZipEntry("assets/a-file-with-a-name-long-enough-to-be-wrapped-in-the-" +
+        "manifest-éééé.txt"));
+    output.write("text".getBytes(Charsets.UTF_8));
+    putStored(output, "res/raw/bb.ogg", "defg");
+    // An old signature is dropped.
+    output.putNextEntry(new ZipEntry("META-INF/OLD.SF"));
+    output.write("old".getBytes(Charsets.UTF_8));
+    output.close();
+
+    File signed = new File(tmpDir, "signed.apk");
+    ApkFinisher.finish(unsigned, signed, keystore);
+
+    ZipFile zipFile = new ZipFile(signed);
+    try {
+      assertNull(zipFile.getEntry("META-INF/OLD.SF"));
+      // Newer JDKs treat JARs signed with SHA-1 as unsigned, although Android accepts them, so
+      // the signature is checked here rather than by JarFile.
+      byte[] manifestBytes = read(zipFile, "META-INF/MANIFEST.MF");
+      byte[] signatureFileBytes = read(zipFile, "META-INF/ANDROIDK.SF");
+      byte[] signatureBlockBytes = read(zipFile, "META-INF/ANDROIDK.RSA");
+
+      Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      int signedEntries = 0;
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (!entry.getName().startsWith("META-INF/")) {
+          Attributes attributes = manifest.getAttributes(entry.getName());
+          assertNotNull(entry.getName(), attributes);
+          assertEquals(entry.getName(), sha1(read(zipFile, entry.getName())),
+              attributes.getValue("SHA1-Digest"));
+          signedEntries++;
+        }
+      }
+      assertEquals(4, signedEntries);
+      assertEquals(4, manifest.getEntries().size());
+
+      Manifest signatureFile = new Manifest(new ByteArrayInputStream(signatureFileBytes));
+      assertEquals(sha1(manifestBytes),
+          signatureFile.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+      assertEquals(4, signatureFile.getEntries().size());
+
+      KeyStore keyStore = KeyStore.getInstance("JKS");
+      InputStream input = new FileInputStream(keystore);
+      try {
+        keyStore.load(input, "android".toCharArray());
+      } finally {
+        input.close();
+      }
+      X509Certificate certificate = (X509Certificate) keyStore.getCertificate("AndroidKey");
+      CMSSignedData signedData = new CMSSignedData(
+          new CMSProcessableByteArray(signatureFileBytes), signatureBlockBytes);
+      Collection<?> signers = signedData.getSignerInfos().getSigners();
+      assertEquals(1, signers.size());
+      SignerInformation signer = (SignerInformation) signers.iterator().next();
+      assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    } finally {
+      zipFile.close();
+    }
+
+    assertAligned(Files.toByteArray(signed), "res/raw/a.png");
+    assertAligned(Files.toByteArray(signed), "res/raw/bb.ogg");
+  }
+
+  public void testEntriesCopiedAsStored() throws Exception {
+    File unsigned = new File(tmpDir, "unsigned.apk");
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(unsigned));
+    // Compressed with a level the finisher does not use, so recompressing would change the data.
+    output.setLevel(Deflater.BEST_SPEED);
+    ZipEntry entry = new ZipEntry("classes.dex");
+    entry.setTime(new GregorianCalendar(2017, Calendar.MARCH, 4, 5, 6, 8).getTimeInMillis());
+    output.putNextEntry(entry);
+    for (int i = 0; i < 20000; i++) {
+      output.write(("line " + i + "\n").getBytes(Charsets.UTF_8));
+    }
+    output.close();
+
+    File signed = new File(tmpDir, "signed.apk");
+    ApkFinisher.finish(unsigned, signed, keystore);
+
+    ZipFile before = new ZipFile(unsigned);
+    ZipFile after = new ZipFile(signed);
+    try {
+      ZipEntry original = before.getEntry("classes.dex");
+      ZipEntry copy = after.getEntry("classes.dex");
+      assertEquals(original.getTime(), copy.getTime());
+      assertEquals(original.getCrc(), copy.getCrc());
+      assertEquals(original.getSize(), copy.getSize());
+      assertEquals(original.getCompressedSize(), copy.getCompressedSize());
+      assertTrue(Arrays.equals(read(before, "classes.dex"), read(after, "classes.dex")));
+    } finally {
+      before.close();
+      after.close();
+    }
+  }
+
+  public void testTooManyEntries() throws Exception {
+    File unsigned = new File(tmpDir, "unsigned.apk");
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(unsigned));
+    for (int i = 0; i < 0xFFFF; i++) {
+      putStored(output, "assets/" + i, "");
+    }
+    output.close();
+
+    File signed = new File(tmpDir, "signed.apk");
+    try {
+      ApkFinisher.finish(unsigned, signed, keystore);
+      fail("An APK that needs zip64 was signed");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("zip64"));
+    }
+  }
+
+  private static byte[] read(ZipFile zipFile, String name) throws Exception {
+    ZipEntry entry = zipFile.getEntry(name);
+    assertNotNull(name, entry);
+    InputStream input = zipFile.getInputStream(entry);
+    try {
+      return ByteStreams.toByteArray(input);
+    } finally {
+      input.close();
+    }
+  }
+
+  private static String sha1(byte[] data) throws Exception {
+    return BaseEncoding.base64().encode(MessageDigest.getInstance("SHA1").digest(data));
+  }
+
+  private static void putStored(ZipOutputStream output, String name, String contents)
+      throws Exception {
+    byte[] data = contents.getBytes(Charsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(data.length);
+    entry.setCompressedSize(data.length);
+    entry.setCrc(crc.getValue());
+    output.putNextEntry(entry);
+    output.write(data);
+  }
+
+  private static void assertAligned(byte[] apk, String name) {
+    byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+    for (int i = 0; i + 30 < apk.length; i++) {
+      if (apk[i] == 'P' && apk[i + 1] == 'K' && apk[i + 2] == 3 && apk[i + 3] == 4 &&
+          new String(apk, i + 30, Math.min(nameBytes.length, apk.length - i - 30),
+              Charsets.UTF_8).equals(name)) {
+        int nameLength = (apk[i + 26] & 0xFF) | ((apk[i + 27] & 0xFF) << 8);
+        int extraLength = (apk[i + 28] & 0xFF) | ((apk[i + 29] & 0xFF) << 8);
+        assertEquals(0, (i + 30 + nameLength + extraLength) % 4);
+        return;
+      }
+    }
+    fail("No entry " + name);
+  }
+}
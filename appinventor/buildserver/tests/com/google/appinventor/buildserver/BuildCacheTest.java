@@ -0,0 +1,128 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildCache class.
+ */
+public class BuildCacheTest extends TestCase {
+  private static final String KEYSTORE = YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION;
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildCache.configure(null, 0);
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testKeyIgnoresOrderKeystoreAndBlocks() throws Exception {
+    Set<String> types = Sets.newHashSet("com.google.appinventor.components.runtime.Button");
+    String key1 = key(types, "src/a/Screen1.yail", "(x)", "src/a/Screen1.scm", "{}",
+        KEYSTORE, "one");
+    String key2 = key(types, "src/a/Screen1.scm", "{}", "src/a/Screen1.bky", "<xml/>",
+        "src/a/Screen1.yail", "(x)", KEYSTORE, "two");
+    assertEquals(key1, key2);
+
+    assertFalse(key1.equals(key(types, "src/a/Screen1.yail", "(y)", "src/a/Screen1.scm", "{}")));
+    assertFalse(key1.equals(key(Sets.<String>newHashSet(), "src/a/Screen1.yail", "(x)",
+        "src/a/Screen1.scm", "{}")));
+  }
+
+  public void testStoreLookupAndResign() throws Exception {
+    BuildCache.configure(new File(tmpDir, "cache").getPath(), 100);
+    File apk = zip("app.apk", "classes.dex", "dex", "META-INF/MANIFEST.MF", "m",
+        "META-INF/ANDROIDK.SF", "s", "META-INF/ANDROIDK.RSA", "r");
+    File keystore = write("keystore", "key1");
+    assertNull(BuildCache.lookup("k"));
+    BuildCache.store("k", apk, keystore, "messages");
+
+    BuildCache.Entry entry = BuildCache.lookup("k");
+    assertNotNull(entry);
+    assertEquals("messages", entry.getMessages());
+
+    // Same keystore: the signed APK is used as it is.
+    File copy = new File(tmpDir, "copy.apk");
+    assertTrue(entry.copyApkTo(copy, keystore));
+    assertEquals(4, new ZipFile(copy).size());
+
+    // Other keystore: the signature is removed.
+    assertFalse(entry.copyApkTo(copy, write("other", "key2")));
+    ZipFile unsigned = new ZipFile(copy);
+    assertEquals(1, unsigned.size());
+    assertNotNull(unsigned.getEntry("classes.dex"));
+    unsigned.close();
+    entry.close();
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    BuildCache.configure(new File(tmpDir, "cache").getPath(), 1);
+    File keystore = write("keystore", "key");
+    byte[] data = new byte[400 * 1024];
+    File apk = new File(tmpDir, "big.apk");
+    Files.write(data, apk);
+    BuildCache.store("a", apk, keystore, "");
+    BuildCache.store("b", apk, keystore, "");
+    BuildCache.lookup("a").close();
+    BuildCache.store("c", apk, keystore, "");
+
+    assertNotNull(BuildCache.lookup("a"));
+    assertNull(BuildCache.lookup("b"));
+    assertNotNull(BuildCache.lookup("c"));
+    assertEquals(2, BuildCache.getEntryCount());
+    assertFalse(new File(tmpDir, "cache/b").exists());
+  }
+
+  private String key(Set<String> types, String... namesAndContents) throws IOException {
+    ZipFile zipFile = new ZipFile(zip("project" + System.nanoTime() + ".zip", namesAndContents));
+    try {
+      return BuildCache.computeKey(zipFile, types, false);
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  private File zip(String name, String... namesAndContents) throws IOException {
+    File file = new File(tmpDir, name);
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        output.putNextEntry(new ZipEntry(namesAndContents[i]));
+        output.write(namesAndContents[i + 1].getBytes(Charsets.UTF_8));
+        output.closeEntry();
+      }
+    } finally {
+      output.close();
+    }
+    return file;
+  }
+
+  private File write(String name, String contents) throws IOException {
+    File file = new File(tmpDir, name);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+}
@@ -0,0 +1,32 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildMetrics class.
+ */
+public class BuildMetricsTest extends TestCase {
+
+  public void testStageHistogram() throws Exception {
+    BuildMetrics.observeStageMillis("test_stage", 300);
+    BuildMetrics.observeStageMillis("test_stage", 3000);
+    String text = BuildMetrics.toPrometheusText();
+
+    assertTrue(text.contains("# TYPE buildserver_stage_duration_seconds histogram\n"));
+    assertTrue(text.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"test_stage\",le=\"0.25\"} 0\n"));
+    assertTrue(text.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"test_stage\",le=\"0.5\"} 1\n"));
+    assertTrue(text.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"test_stage\",le=\"5.0\"} 2\n"));
+    assertTrue(text.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"test_stage\",le=\"+Inf\"} 2\n"));
+    assertTrue(text.contains("buildserver_stage_duration_seconds_sum{stage=\"test_stage\"} 3.3\n"));
+    assertTrue(text.contains("buildserver_stage_duration_seconds_count{stage=\"test_stage\"} 2\n"));
+    assertTrue(text.contains("# TYPE buildserver_queue_wait_seconds histogram\n"));
+  }
+}
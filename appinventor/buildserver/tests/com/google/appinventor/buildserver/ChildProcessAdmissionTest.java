@@ -0,0 +1,71 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ChildProcessAdmission class.
+ */
+public class ChildProcessAdmissionTest extends TestCase {
+  public void testProcessesRunInParallelWithinBudget() throws Exception {
+    ChildProcessAdmission.configure(2048, 0, 0);
+    ChildProcessAdmission.Permit compile =
+        ChildProcessAdmission.acquire(ChildProcessAdmission.Stage.COMPILE, 1024);
+    ChildProcessAdmission.Permit dex =
+        ChildProcessAdmission.acquire(ChildProcessAdmission.Stage.DEX, 1024);
+    assertEquals(2048, ChildProcessAdmission.getReservedMemoryMb());
+
+    // The budget is used up, so the next process has to wait.
+    CountDownLatch admitted = acquireInBackground(ChildProcessAdmission.Stage.COMPILE, 1024);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    dex.release();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    compile.release();
+  }
+
+  public void testStageLimit() throws Exception {
+    ChildProcessAdmission.configure(8192, 0, 1);
+    ChildProcessAdmission.Permit dex =
+        ChildProcessAdmission.acquire(ChildProcessAdmission.Stage.DEX, 1024);
+    CountDownLatch admitted = acquireInBackground(ChildProcessAdmission.Stage.DEX, 1024);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    dex.release();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testProcessLargerThanBudgetRunsAlone() throws Exception {
+    ChildProcessAdmission.configure(1024, 0, 0);
+    ChildProcessAdmission.Permit compile =
+        ChildProcessAdmission.acquire(ChildProcessAdmission.Stage.COMPILE, 4096);
+    assertEquals(1, ChildProcessAdmission.getActiveCount(ChildProcessAdmission.Stage.COMPILE));
+    compile.release();
+    assertEquals(0, ChildProcessAdmission.getReservedMemoryMb());
+  }
+
+  /*
+   * Acquires a permit on another thread and releases it right away. The returned latch is counted
+   * down once the permit has been acquired.
+   */
+  private static CountDownLatch acquireInBackground(final ChildProcessAdmission.Stage stage,
+      final long memoryMb) {
+    final CountDownLatch admitted = new CountDownLatch(1);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ChildProcessAdmission.acquire(stage, memoryMb).release();
+          admitted.countDown();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    }).start();
+    return admitted;
+  }
+}
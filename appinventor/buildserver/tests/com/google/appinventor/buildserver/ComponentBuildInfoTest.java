@@ -0,0 +1,48 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.codehaus.jettison.json.JSONArray;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ComponentBuildInfo class.
+ */
+public class ComponentBuildInfoTest extends TestCase {
+
+  public void testParse() throws Exception {
+    ComponentBuildInfo buildInfo = ComponentBuildInfo.parse(new JSONArray(
+        "[{\"type\":\"a.Button\",\"permissions\":[],\"libraries\":[\"\"]}," +
+        "{\"type\":\"a.Sound\",\"permissions\":[\"android.permission.VIBRATE\",\"\"]," +
+        "\"assets\":[\"beep.mp3\"],\"androidMinSdk\":[7]}]"));
+    assertEquals(ImmutableSet.of("a.Button", "a.Sound"), buildInfo.getTypes());
+    assertTrue(buildInfo.contains("a.Sound"));
+    assertFalse(buildInfo.contains("a.Label"));
+
+    assertEquals(ImmutableSet.of(), buildInfo.get("a.Button", "permissions"));
+    assertEquals(ImmutableSet.of(), buildInfo.get("a.Button", "libraries"));
+    assertNull(buildInfo.get("a.Button", "assets"));
+    assertEquals(ImmutableSet.of("android.permission.VIBRATE"),
+        buildInfo.get("a.Sound", "permissions"));
+    assertEquals(ImmutableSet.of("7"), buildInfo.get("a.Sound", "androidMinSdk"));
+    assertNull(buildInfo.get("a.Label", "permissions"));
+  }
+
+  public void testLaterComponentReplacesEarlier() throws Exception {
+    ComponentBuildInfo buildInfo = ComponentBuildInfo.parse(new JSONArray(
+        "[{\"type\":\"x.Ext\",\"assets\":[\"old.png\"]}," +
+        "{\"type\":\"x.Ext\",\"assets\":[\"new.png\"]}]"));
+    assertEquals(ImmutableSet.of("new.png"), buildInfo.get("x.Ext", "assets"));
+  }
+
+  public void testEmpty() {
+    assertTrue(ComponentBuildInfo.EMPTY.getTypes().isEmpty());
+    assertNull(ComponentBuildInfo.EMPTY.get("a.Button", "permissions"));
+  }
+}
@@ -0,0 +1,99 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests DirectoryCache class.
+ */
+public class DirectoryCacheTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testPinnedEntryIsNotEvicted() throws Exception {
+    DirectoryCache cache = new DirectoryCache(tmpDir, 1500);
+    put(cache, "a");
+    File a = cache.get("a");
+    assertNotNull(a);
+    put(cache, "b");
+
+    // "a" is the least recently used entry, but it is still being read.
+    assertTrue(new File(a, "data").exists());
+    assertFalse(cache.contains("b"));
+
+    cache.release("a");
+    put(cache, "c");
+    assertFalse(cache.contains("a"));
+    assertTrue(cache.contains("c"));
+  }
+
+  public void testPartialEntriesAreDeletedOnStartup() throws Exception {
+    DirectoryCache cache = new DirectoryCache(tmpDir, 10000);
+    put(cache, "a");
+    File partial = cache.newEntryDir("b");
+    Files.write(new byte[10], new File(partial, "data"));
+
+    cache = new DirectoryCache(tmpDir, 10000);
+    assertTrue(cache.contains("a"));
+    assertFalse(cache.contains("b"));
+    assertFalse(partial.exists());
+    assertEquals(1000, cache.getSizeInBytes());
+  }
+
+  public void testInvalidateRemovesEntry() throws Exception {
+    DirectoryCache cache = new DirectoryCache(tmpDir, 10000);
+    put(cache, "a");
+    File a = cache.get("a");
+    cache.release("a");
+    cache.invalidate("a");
+    assertFalse(cache.contains("a"));
+    assertFalse(a.exists());
+    assertEquals(0, cache.getSizeInBytes());
+  }
+
+  public void testInvalidateKeepsPinnedEntry() throws Exception {
+    DirectoryCache cache = new DirectoryCache(tmpDir, 10000);
+    put(cache, "a");
+    File a = cache.get("a");
+    assertEquals(a, cache.get("a"));
+    cache.invalidate("a");
+    assertFalse(cache.contains("a"));
+    assertNull(cache.get("a"));
+
+    // The entry is deleted when the last build that uses it releases it.
+    cache.release("a");
+    assertTrue(a.exists());
+    cache.release("a");
+    assertFalse(a.exists());
+    assertEquals(0, cache.getSizeInBytes());
+
+    // Then it can be stored again.
+    put(cache, "a");
+    assertTrue(cache.contains("a"));
+  }
+
+  private static void put(DirectoryCache cache, String key) throws IOException {
+    File dir = cache.newEntryDir(key);
+    Files.write(new byte[1000], new File(dir, "data"));
+    cache.commit(key, dir);
+  }
+}
@@ -0,0 +1,94 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KawaCompilerPool class.
+ */
+public class KawaCompilerPoolTest extends TestCase {
+  private File tmpDir;
+  private File classesDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    classesDir = new File(tmpDir, "classes");
+    classesDir.mkdir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    KawaCompilerPool.configure(0, 20);
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testWorkerIsReused() throws Exception {
+    KawaCompilerPool.configure(1, 20);
+    int started = KawaCompilerPool.getStartedWorkerCount();
+    int reused = KawaCompilerPool.getReusedWorkerCount();
+
+    assertTrue(compile("first", "(define (answer) 42)"));
+    assertTrue(compile("second", "(define (answer) 43)"));
+    assertTrue(new File(classesDir, "test/first.class").exists());
+    assertTrue(new File(classesDir, "test/second.class").exists());
+    assertEquals(started + 1, KawaCompilerPool.getStartedWorkerCount());
+    assertEquals(reused + 1, KawaCompilerPool.getReusedWorkerCount());
+    assertEquals(1, KawaCompilerPool.getIdleWorkerCount());
+  }
+
+  public void testWorkerIsRetired() throws Exception {
+    KawaCompilerPool.configure(1, 1);
+    int started = KawaCompilerPool.getStartedWorkerCount();
+
+    assertTrue(compile("first", "(define (answer) 42)"));
+    assertTrue(compile("second", "(define (answer) 43)"));
+    assertEquals(started + 2, KawaCompilerPool.getStartedWorkerCount());
+  }
+
+  public void testNewWorkerAfterFailure() throws Exception {
+    KawaCompilerPool.configure(1, 20);
+    int started = KawaCompilerPool.getStartedWorkerCount();
+    int failed = KawaCompilerPool.getFailedJobCount();
+
+    // Kawa exits when a compilation fails, which takes the worker down with it.
+    assertFalse(compile("broken", "(define (answer"));
+    assertEquals(failed + 1, KawaCompilerPool.getFailedJobCount());
+    assertEquals(0, KawaCompilerPool.getIdleWorkerCount());
+
+    assertTrue(compile("fixed", "(define (answer) 42)"));
+    assertTrue(new File(classesDir, "test/fixed.class").exists());
+    assertEquals(started + 2, KawaCompilerPool.getStartedWorkerCount());
+  }
+
+  public void testCompileWithoutPool() throws Exception {
+    int started = KawaCompilerPool.getStartedWorkerCount();
+
+    assertTrue(compile("first", "(define (answer) 42)"));
+    assertFalse(compile("broken", "(define (answer"));
+    assertTrue(new File(classesDir, "test/first.class").exists());
+    assertEquals(started, KawaCompilerPool.getStartedWorkerCount());
+    assertEquals(0, KawaCompilerPool.getIdleWorkerCount());
+  }
+
+  private boolean compile(String module, String body) throws Exception {
+    File source = new File(tmpDir, module + ".scm");
+    Files.write("(module-name test." + module + ")\n" + body + "\n", source, Charsets.UTF_8);
+    String[] kawaArgs = { "-d", classesDir.getAbsolutePath(), "-C", source.getAbsolutePath() };
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    return KawaCompilerPool.compile(System.getProperty("java.class.path"), 256, kawaArgs,
+        System.out, new PrintStream(err, true));
+  }
+}
@@ -0,0 +1,76 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KeyStorePool class.
+ */
+public class KeyStorePoolTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    KeyStorePool.configure(0);
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testKeyStoreFromPool() throws Exception {
+    KeyStorePool.configure(1);
+    for (int i = 0; i < 600 && KeyStorePool.getAvailableCount() == 0; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(1, KeyStorePool.getAvailableCount());
+    int hits = KeyStorePool.getHitCount();
+
+    File keyStoreFile = new File(tmpDir, "android.keystore");
+    KeyStorePool.createKeyStore("Jane \"JD\", Doe", keyStoreFile);
+    assertEquals(hits + 1, KeyStorePool.getHitCount());
+    assertKeyStore(keyStoreFile, "CN=\"Jane \\\"JD\\\", Doe\", O=AppInventor for Android, C=US");
+  }
+
+  public void testKeyStoreWithoutPool() throws Exception {
+    int misses = KeyStorePool.getMissCount();
+    File keyStoreFile = new File(tmpDir, "android.keystore");
+    KeyStorePool.createKeyStore("jane", keyStoreFile);
+    assertEquals(misses + 1, KeyStorePool.getMissCount());
+    assertKeyStore(keyStoreFile, "CN=jane, O=AppInventor for Android, C=US");
+  }
+
+  private static void assertKeyStore(File keyStoreFile, String subject) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream input = new FileInputStream(keyStoreFile);
+    try {
+      keyStore.load(input, "android".toCharArray());
+    } finally {
+      input.close();
+    }
+    PrivateKey key = (PrivateKey) keyStore.getKey("AndroidKey", "android".toCharArray());
+    assertEquals("RSA", key.getAlgorithm());
+    X509Certificate certificate = (X509Certificate) keyStore.getCertificate("AndroidKey");
+    assertEquals(subject, certificate.getSubjectX500Principal().toString());
+    certificate.verify(certificate.getPublicKey());
+    long validDays = (certificate.getNotAfter().getTime() -
+        certificate.getNotBefore().getTime()) / (24 * 60 * 60 * 1000L);
+    assertEquals(10000, validDays);
+  }
+}
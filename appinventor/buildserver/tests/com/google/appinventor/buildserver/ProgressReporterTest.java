@@ -0,0 +1,89 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildServer.ProgressReporter class.
+ */
+public class ProgressReporterTest extends TestCase {
+  private HttpServer server;
+  private String callbackUrl;
+  private final List<Integer> received = new CopyOnWriteArrayList<Integer>();
+
+  @Override
+  protected void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/callback", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] zip = ByteStreams.toByteArray(exchange.getRequestBody());
+        try {
+          // A slow front end.
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip));
+        assertEquals("build.status", input.getNextEntry().getName());
+        received.add(Integer.parseInt(
+            new String(ByteStreams.toByteArray(input), Charsets.UTF_8).trim()));
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    callbackUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/callback";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop(0);
+  }
+
+  public void testReportsDoNotBlockAndLatestWins() throws Exception {
+    BuildServer.ProgressReporter reporter = new BuildServer.ProgressReporter(callbackUrl);
+    long start = System.currentTimeMillis();
+    for (int progress = 1; progress <= 50; progress++) {
+      reporter.report(progress);
+    }
+    assertTrue(System.currentTimeMillis() - start < 200);
+
+    for (int i = 0; i < 100 && !received.contains(50); i++) {
+      Thread.sleep(100);
+    }
+    assertTrue(received.contains(50));
+    assertTrue(received.size() < 50);
+    reporter.close();
+  }
+
+  public void testNothingIsPostedAfterClose() throws Exception {
+    BuildServer.ProgressReporter reporter = new BuildServer.ProgressReporter(callbackUrl);
+    reporter.report(10);
+    reporter.report(20);
+    // Waits for a post under way, and drops the rest.
+    reporter.close();
+    int count = received.size();
+    reporter.report(30);
+    Thread.sleep(1500);
+    assertEquals(count, received.size());
+    assertFalse(received.contains(30));
+  }
+}
@@ -0,0 +1,210 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests QueuingExecutor class.
+ *
+ * @author lizlooney@google.com (Liz Looney)
+ */
+public class QueuingExecutorTest extends TestCase {
+  public void testAdditionalTaskIsRejected() throws Exception {
+    // Create the QueuingExecutor with capacity 10 and no queue.
+    int maxCapacity = 10;
+    QueuingExecutor executor = new QueuingExecutor(maxCapacity, 0, 0);
+
+    // Execute the maximum number of tasks, which will all wait until I notify them via the signal.
+    final Object signal = new Object();
+    for (int i = 0; i < maxCapacity; i++) {
+      executor.execute(new TaskThatWaitsForSignal(signal));
+    }
+
+    // Now the executor should be at maximum capacity.
+    assertEquals(maxCapacity, executor.getActiveTaskCount());
+
+    // Try to execute another task. We expect it to be rejected.
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Notify the signal so the active tasks can complete.
+    synchronized (signal) {
+      signal.notifyAll();
+    }
+  }
+
+  public void testUnlimitedTasksAreNeverQueued() throws Exception {
+    // With unlimited capacity, the queue is never used, even if one is asked for.
+    QueuingExecutor executor = new QueuingExecutor(0, 10, 0);
+    assertEquals(0, executor.getMaxQueuedTasks());
+
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(20);
+    for (int i = 0; i < 20; i++) {
+      executor.execute(new TaskThatWaitsForLatch(release, done));
+    }
+    assertEquals(20, executor.getActiveTaskCount());
+    assertEquals(0, executor.getQueuedTaskCount());
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testAdditionalTaskIsQueued() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 1, 0);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+    executor.execute(new TaskThatWaitsForLatch(release, done));
+    executor.execute(new TaskThatWaitsForLatch(release, done));
+    assertEquals(1, executor.getActiveTaskCount());
+    assertEquals(1, executor.getQueuedTaskCount());
+
+    // The queue is full now.
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedTaskCount());
+  }
+
+  public void testOwnersAreServedRoundRobinAndPriorityFirst() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 10, 0);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(6);
+    List<String> order = new CopyOnWriteArrayList<String>();
+    executor.execute(new TaskThatWaitsForLatch(release, done));
+    executor.execute(new RecordingTask("a1", order, done), null, "a", false);
+    executor.execute(new RecordingTask("a2", order, done), null, "a", false);
+    executor.execute(new RecordingTask("b1", order, done), null, "b", false);
+    executor.execute(new RecordingTask("a3", order, done), null, "a", false);
+    executor.execute(new RecordingTask("c1", order, done), null, "c", true);
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("c1", "a1", "b1", "a2", "a3"), order);
+  }
+
+  public void testQueuedTaskExpires() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 1, 200);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch expired = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForLatch(release, new CountDownLatch(1)));
+    executor.execute(new TaskThatDoesNothing(), new LatchTask(expired), "a", false);
+
+    assertTrue(expired.await(5, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedTaskCount());
+    assertEquals(1, executor.getExpiredTaskCount());
+    release.countDown();
+  }
+
+  public void testQueuedTaskIsRemoved() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 2, 0);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+    List<String> order = new CopyOnWriteArrayList<String>();
+    Runnable removed = new RecordingTask("a1", order, done);
+    executor.execute(new TaskThatWaitsForLatch(release, done));
+    executor.execute(removed, null, "a", false);
+    executor.execute(new RecordingTask("a2", order, done), null, "a", false);
+
+    assertTrue(executor.remove(removed));
+    assertFalse(executor.remove(removed));
+    assertEquals(1, executor.getQueuedTaskCount());
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a2"), order);
+  }
+
+  private static class TaskThatWaitsForSignal implements Runnable {
+    private final Object signal;
+    private TaskThatWaitsForSignal(Object signal) {
+      this.signal = signal;
+    }
+
+    @Override
+    public void run() {
+      synchronized (signal) {
+        try {
+          // Wait for the signal.
+          signal.wait();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  private static class TaskThatWaitsForLatch implements Runnable {
+    private final CountDownLatch release;
+    private final CountDownLatch done;
+    private TaskThatWaitsForLatch(CountDownLatch release, CountDownLatch done) {
+      this.release = release;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+      done.countDown();
+    }
+  }
+
+  private static class RecordingTask implements Runnable {
+    private final String name;
+    private final List<String> order;
+    private final CountDownLatch done;
+    private RecordingTask(String name, List<String> order, CountDownLatch done) {
+      this.name = name;
+      this.order = order;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+      done.countDown();
+    }
+  }
+
+  private static class LatchTask implements Runnable {
+    private final CountDownLatch latch;
+    private LatchTask(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public void run() {
+      latch.countDown();
+    }
+  }
+
+  private static class TaskThatDoesNothing implements Runnable {
+    @Override
+    public void run() {
+    }
+  }
+}
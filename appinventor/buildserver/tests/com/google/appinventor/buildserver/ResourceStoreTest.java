@@ -0,0 +1,70 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ResourceStore class.
+ */
+public class ResourceStoreTest extends TestCase {
+  private File tmpDir;
+  private Map<String, URL> roots;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    File files = new File(tmpDir, "classes/files");
+    write(new File(files, "kawa.jar"), "kawa");
+    write(new File(files, "armeabi/lib.so"), "lib");
+    roots = ImmutableMap.of("/files/", files.toURI().toURL());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testUnpackAndLookup() throws Exception {
+    ResourceStore store = ResourceStore.open(new File(tmpDir, "store"), "v1", roots);
+    assertEquals(2, store.size());
+    File kawa = new File(store.getPath("/files/kawa.jar"));
+    assertEquals("kawa", Files.toString(kawa, Charsets.UTF_8));
+    assertTrue(kawa.canExecute());
+    assertEquals("lib", Files.toString(new File(store.getPath("/files/armeabi/lib.so")),
+        Charsets.UTF_8));
+    try {
+      store.getPath("/files/missing.jar");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testDamagedStoreIsUnpackedAgain() throws Exception {
+    File base = new File(tmpDir, "store");
+    File kawa = new File(ResourceStore.open(base, "v1", roots).getPath("/files/kawa.jar"));
+    write(kawa, "damaged");
+
+    ResourceStore store = ResourceStore.open(base, "v1", roots);
+    assertEquals(kawa.getPath(), store.getPath("/files/kawa.jar"));
+    assertEquals("kawa", Files.toString(kawa, Charsets.UTF_8));
+  }
+
+  private static void write(File file, String contents) throws Exception {
+    file.getParentFile().mkdirs();
+    Files.write(contents, file, Charsets.UTF_8);
+  }
+}
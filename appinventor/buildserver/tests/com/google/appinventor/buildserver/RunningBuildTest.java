@@ -0,0 +1,119 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests RunningBuild class and the process cleanup in Execution.
+ */
+public class RunningBuildTest extends TestCase {
+  // A shell that waits for a child process, which outlives the shell unless it is killed too.
+  private static final String[] HUNG_COMMAND = {"sh", "-c", "sleep 60 & wait"};
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Execution.setMaxTimeoutSeconds(0);
+    executor.shutdownNow();
+  }
+
+  public void testCancelKillsProcessTree() throws Exception {
+    final RunningBuild build = new RunningBuild("jane", "com.example.App", false);
+    final CountDownLatch attached = new CountDownLatch(1);
+    Future<Boolean> result = executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        assertTrue(build.attach());
+        try {
+          attached.countDown();
+          return execute();
+        } finally {
+          build.detach();
+        }
+      }
+    });
+    assertTrue(attached.await(5, TimeUnit.SECONDS));
+    Thread.sleep(500);
+
+    int cancelled = Execution.getCancelledCount();
+    long start = System.currentTimeMillis();
+    build.cancel();
+    assertFalse(result.get(10, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    assertEquals(cancelled + 1, Execution.getCancelledCount());
+    assertTrue(build.isCancelled());
+    assertFalse(build.attach());
+  }
+
+  public void testHungProcessTimesOut() throws Exception {
+    Execution.setMaxTimeoutSeconds(1);
+    int timedOut = Execution.getTimedOutCount();
+    long start = System.currentTimeMillis();
+    assertFalse(execute());
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    assertEquals(timedOut + 1, Execution.getTimedOutCount());
+  }
+
+  public void testDeadlineDependsOnKind() throws Exception {
+    Execution.setMaxTimeoutSeconds(600);
+    assertEquals(120 * 1000, getTimeoutMillis(Execution.Deadline.AAPT));
+    assertEquals(600 * 1000, getTimeoutMillis(Execution.Deadline.DEX));
+    assertEquals(600 * 1000, getTimeoutMillis(null));
+
+    // The longest deadline caps the others.
+    Execution.setMaxTimeoutSeconds(60);
+    assertEquals(60 * 1000, getTimeoutMillis(Execution.Deadline.AAPT));
+  }
+
+  public void testBuildIsPropagated() throws Exception {
+    final RunningBuild build = new RunningBuild("jane", "com.example.App", true);
+    assertEquals("jane/com.example.App/companion", build.getKey());
+    assertTrue(build.attach());
+    try {
+      Callable<RunningBuild> task = RunningBuild.propagate(new Callable<RunningBuild>() {
+        @Override
+        public RunningBuild call() {
+          return RunningBuild.current();
+        }
+      });
+      assertSame(build, executor.submit(task).get());
+    } finally {
+      build.detach();
+    }
+    assertNull(RunningBuild.current());
+  }
+
+  private static long getTimeoutMillis(Execution.Deadline kind) throws Exception {
+    Process process = Runtime.getRuntime().exec(HUNG_COMMAND);
+    Execution.ProcessWatch watch = Execution.watch(process, "sh", kind);
+    try {
+      return watch.getTimeoutMillis();
+    } finally {
+      watch.release();
+      Execution.destroyProcessTree(process);
+    }
+  }
+
+  private static boolean execute() {
+    PrintStream out = new PrintStream(new ByteArrayOutputStream());
+    return Execution.execute(null, HUNG_COMMAND.clone(), out, out);
+  }
+}
@@ -0,0 +1,137 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests StageGraph class.
+ */
+public class StageGraphTest extends TestCase {
+  private final List<String> log = new CopyOnWriteArrayList<String>();
+
+  public void testIndependentStagesRunConcurrently() throws Exception {
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    StageGraph.Stage waitForOther = new StageGraph.Stage() {
+      @Override
+      public boolean run() {
+        bothStarted.countDown();
+        try {
+          return bothStarted.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          return false;
+        }
+      }
+    };
+    StageGraph graph = new StageGraph()
+        .add("a", waitForOther)
+        .add("b", waitForOther)
+        .add("c", record("c", true), "a", "b");
+    assertTrue(graph.run());
+    assertEquals(Collections.singletonList("c"), log);
+    assertEquals(3, graph.getTimings().size());
+  }
+
+  public void testFailureStopsDependentStages() throws Exception {
+    StageGraph graph = new StageGraph()
+        .add("a", record("a", false))
+        .add("b", record("b", true), "a");
+    assertFalse(graph.run());
+    assertEquals(Collections.singletonList("a"), log);
+  }
+
+  public void testExceptionIsRethrown() throws Exception {
+    StageGraph graph = new StageGraph()
+        .add("a", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            throw new IllegalStateException("boom");
+          }
+        });
+    try {
+      graph.run();
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("boom", e.getMessage());
+    }
+  }
+
+  public void testOnlyFirstFailureIsReported() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PrintStream userErrors = new PrintStream(output, true);
+    final PrintStream stageErrors = StageGraph.newUserErrorStream(userErrors);
+    final CountDownLatch aFailed = new CountDownLatch(1);
+    StageGraph graph = new StageGraph(userErrors)
+        .add("a", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            stageErrors.print("a failed");
+            aFailed.countDown();
+            return false;
+          }
+        })
+        .add("b", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            try {
+              // Fails once a has failed, unless it is stopped first.
+              aFailed.await(10, TimeUnit.SECONDS);
+              Thread.sleep(500);
+            } catch (InterruptedException e) {
+              // Stopped because a failed.
+            }
+            stageErrors.print("b failed");
+            return false;
+          }
+        });
+    assertFalse(graph.run());
+    assertEquals("a failed", output.toString());
+
+    // Outside of stages, the stream is not buffered.
+    stageErrors.print(" later");
+    assertEquals("a failed later", output.toString());
+  }
+
+  public void testOutputIsKeptWhenAllSucceed() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PrintStream userErrors = new PrintStream(output, true);
+    final PrintStream stageErrors = StageGraph.newUserErrorStream(userErrors);
+    StageGraph graph = new StageGraph(userErrors)
+        .add("a", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            stageErrors.print("a;");
+            return true;
+          }
+        })
+        .add("b", new StageGraph.Stage() {
+          @Override
+          public boolean run() {
+            stageErrors.print("b;");
+            return true;
+          }
+        });
+    assertTrue(graph.run());
+    assertEquals("a;b;", output.toString());
+  }
+
+  private StageGraph.Stage record(final String name, final boolean result) {
+    return new StageGraph.Stage() {
+      @Override
+      public boolean run() {
+        log.add(name);
+        return result;
+      }
+    };
+  }
+}
@@ -0,0 +1,86 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests UploadedZip class.
+ */
+public class UploadedZipTest extends TestCase {
+  private File tmpDir;
+  private File file;
+  private byte[] zip;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    file = new File(tmpDir, "project.zip");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ZipOutputStream out = new ZipOutputStream(bytes);
+    out.putNextEntry(new ZipEntry("src/appinventor/ai_test/Test/Screen1.scm"));
+    out.write("#|\n$JSON\n{}\n|#".getBytes("UTF-8"));
+    out.closeEntry();
+    byte[] asset = new byte[100000];
+    new Random(1).nextBytes(asset);
+    out.putNextEntry(new ZipEntry("assets/noise.bin"));
+    out.write(asset);
+    out.closeEntry();
+    out.close();
+    zip = bytes.toByteArray();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testReceive() throws Exception {
+    assertEquals(2, UploadedZip.receive(new ByteArrayInputStream(zip), file));
+    assertTrue(Arrays.equals(zip, Files.toByteArray(file)));
+  }
+
+  public void testReceiveEmpty() throws Exception {
+    assertEquals(0, UploadedZip.receive(new ByteArrayInputStream(new byte[0]), file));
+    assertEquals(0, file.length());
+  }
+
+  public void testTruncated() throws Exception {
+    assertRejected(Arrays.copyOf(zip, zip.length / 2));
+    assertRejected(Arrays.copyOf(zip, zip.length - 30));
+  }
+
+  public void testCorrupt() throws Exception {
+    byte[] corrupt = zip.clone();
+    // A byte in the middle of the second entry.
+    corrupt[zip.length / 2] ^= 0x5a;
+    assertRejected(corrupt);
+    assertRejected("not a zip".getBytes("UTF-8"));
+  }
+
+  private void assertRejected(byte[] body) throws Exception {
+    try {
+      UploadedZip.receive(new ByteArrayInputStream(body), file);
+      fail();
+    } catch (ZipException expected) {
+      // expected
+    }
+  }
+}
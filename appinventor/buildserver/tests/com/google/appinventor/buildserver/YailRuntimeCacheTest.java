@@ -0,0 +1,148 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests YailRuntimeCache class.
+ */
+public class YailRuntimeCacheTest extends TestCase {
+  // A stand-in for runtime.scm that Kawa compiles quickly.
+  private static final String RUNTIME_SOURCE =
+      "(module-name " + YailRuntimeCache.RUNTIME_MODULE + ")\n(define (answer) 42)\n";
+
+  private File tmpDir;
+  private File runtime;
+  private File cacheDir;
+  private FakeTicker ticker;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    runtime = new File(tmpDir, "runtime.scm");
+    cacheDir = new File(tmpDir, "cache");
+    ticker = new FakeTicker();
+    YailRuntimeCache.reset(ticker);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    waitForCompilation();
+    YailRuntimeCache.reset(Ticker.systemTicker());
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testRuntimeIsCompiledOnceAndCached() throws Exception {
+    Files.write(RUNTIME_SOURCE, runtime, Charsets.UTF_8);
+    // Builds do not wait for the runtime to be compiled.
+    assertNull(getRuntimeJar());
+    assertTrue(YailRuntimeCache.isCompiling());
+    File jar = waitForRuntimeJar();
+    assertEquals(cacheDir, jar.getParentFile());
+    ZipFile zipFile = new ZipFile(jar);
+    try {
+      assertNotNull(zipFile.getEntry("com/google/youngandroid/runtime.class"));
+    } finally {
+      zipFile.close();
+    }
+    assertSame(jar, getRuntimeJar());
+    assertFalse(YailRuntimeCache.isCompiling());
+
+    // After a restart, the jar in the cache directory is used as it is.
+    long lastModified = jar.lastModified();
+    YailRuntimeCache.reset(ticker);
+    assertEquals(jar, waitForRuntimeJar());
+    assertEquals(lastModified, jar.lastModified());
+  }
+
+  public void testFallbackAndRetryAfterFailure() throws Exception {
+    // runtime.scm is missing, so it cannot be compiled.
+    assertNull(getRuntimeJar());
+    waitForCompilation();
+    assertNull(getRuntimeJar());
+    assertEquals(1, YailRuntimeCache.getFailureCount());
+
+    // Builds compile the runtime themselves until the retry delay has passed.
+    Files.write(RUNTIME_SOURCE, runtime, Charsets.UTF_8);
+    ticker.advance(30, TimeUnit.SECONDS);
+    assertNull(getRuntimeJar());
+    assertFalse(YailRuntimeCache.isCompiling());
+
+    ticker.advance(31, TimeUnit.SECONDS);
+    assertNull(getRuntimeJar());
+    assertTrue(YailRuntimeCache.isCompiling());
+    assertNotNull(waitForRuntimeJar());
+    assertEquals(0, YailRuntimeCache.getFailureCount());
+  }
+
+  public void testRetryDelayGrows() throws Exception {
+    assertNull(getRuntimeJar());
+    waitForCompilation();
+    assertEquals(1, YailRuntimeCache.getFailureCount());
+    ticker.advance(61, TimeUnit.SECONDS);
+    assertNull(getRuntimeJar());
+    assertTrue(YailRuntimeCache.isCompiling());
+    waitForCompilation();
+    assertEquals(2, YailRuntimeCache.getFailureCount());
+
+    // The second failure doubled the delay to two minutes.
+    ticker.advance(61, TimeUnit.SECONDS);
+    assertNull(getRuntimeJar());
+    assertFalse(YailRuntimeCache.isCompiling());
+    ticker.advance(60, TimeUnit.SECONDS);
+    assertNull(getRuntimeJar());
+    assertTrue(YailRuntimeCache.isCompiling());
+  }
+
+  private File getRuntimeJar() {
+    String kawa = System.getProperty("java.class.path");
+    return YailRuntimeCache.getRuntimeJar(runtime.getAbsolutePath(), kawa, new String[0],
+        cacheDir.getAbsolutePath(), 256);
+  }
+
+  private File waitForRuntimeJar() throws Exception {
+    File jar = getRuntimeJar();
+    for (int i = 0; i < 600 && jar == null; i++) {
+      Thread.sleep(100);
+      jar = getRuntimeJar();
+    }
+    assertNotNull(jar);
+    return jar;
+  }
+
+  private static void waitForCompilation() throws Exception {
+    for (int i = 0; i < 600 && YailRuntimeCache.isCompiling(); i++) {
+      Thread.sleep(100);
+      // Only getRuntimeJar notices that a compilation is over.
+      if (YailRuntimeCache.isCompiling()) {
+        YailRuntimeCache.getRuntimeJar("", "", new String[0], null, 0);
+      }
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public synchronized long read() {
+      return nanos;
+    }
+
+    synchronized void advance(long time, TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver.loadtest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests LoadTestStats class.
+ */
+public class LoadTestStatsTest extends TestCase {
+  public void testReport() throws Exception {
+    LoadTestStats stats = new LoadTestStats();
+    assertEquals(-1, stats.getLatencyPercentile(50));
+    for (int i = 1; i <= 100; i++) {
+      stats.submitted(0);
+      if (i % 10 == 0) {
+        stats.rejected();
+      } else {
+        stats.accepted();
+        stats.completed(i != 1, i * 1000, 60000);
+      }
+    }
+    assertEquals(10.0, stats.getRejectionRate(), 0.001);
+    assertEquals(90, stats.getCompletedCount());
+    assertEquals(0, stats.getOutstandingCount());
+    assertEquals(90.0, stats.getThroughputPerMinute(), 0.001);
+    // The 45th and the 86th of the 90 latencies, which skip every tenth second.
+    assertEquals(49000, stats.getLatencyPercentile(50));
+    assertEquals(95000, stats.getLatencyPercentile(95));
+    assertEquals(99000, stats.getLatencyPercentile(99));
+  }
+}
@@ -0,0 +1,74 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver.loadtest;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ProjectGenerator class.
+ */
+public class ProjectGeneratorTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteQuietly(tmpDir);
+  }
+
+  public void testGeneratedProject() throws Exception {
+    File zipFile = new File(tmpDir, "Sample.aia");
+    new ProjectGenerator(3, 12, 5, 2, 1000, 1).write("Sample", zipFile);
+
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      String properties = read(zip, "youngandroidproject/project.properties");
+      assertTrue(properties.contains("main=appinventor.ai_loadtest.Sample.Screen1\n"));
+      String source = "src/appinventor/ai_loadtest/Sample/";
+      assertNotNull(zip.getEntry(source + "Screen3.yail"));
+      assertNull(zip.getEntry(source + "Screen4.yail"));
+
+      String scm = read(zip, source + "Screen2.scm");
+      JSONObject form = new JSONObject(scm.substring(scm.indexOf('{'), scm.lastIndexOf('}') + 1))
+          .getJSONObject("Properties");
+      JSONArray components = form.getJSONArray("$Components");
+      assertEquals(12, components.length());
+      assertEquals("Button1", components.getJSONObject(0).getString("$Name"));
+      assertEquals("Button11", components.getJSONObject(10).getString("$Name"));
+
+      String yail = read(zip, source + "Screen2.yail");
+      assertTrue(yail.startsWith("#|\n$Source $Yail\n|#\n\n" +
+          "(define-form appinventor.ai_loadtest.Sample.Screen2 Screen2)\n"));
+      assertTrue(yail.contains("(def g$var5 "));
+      assertTrue(yail.contains("(add-component Screen2 TinyDB TinyDB10 )"));
+
+      ZipEntry asset = zip.getEntry("assets/asset2.bin");
+      assertEquals(1000, asset.getSize());
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static String read(ZipFile zip, String name) throws Exception {
+    return new String(ByteStreams.toByteArray(zip.getInputStream(zip.getEntry(name))),
+        Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,321 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.common.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Pulls the component types, and optionally the property names, out of the
+ * $JSON section of a Young Android Form file in a single pass, without
+ * building a JSON tree.
+ *
+ * <p>Only the strings that are collected are allocated. The structure of
+ * the JSON is checked as it is scanned, so malformed sections are rejected
+ * like a JSON parser would. Like the JSON based analyzers, it requires a
+ * Properties object holding the form, a $Type in every component, and
+ * $Components arrays of objects.</p>
+ */
+public final class FormPropertiesScanner {
+
+  private static final String FORM_PROPERTIES_PREFIX = "#|\n";
+  private static final String FORM_PROPERTIES_SUFFIX = "\n|#";
+  private static final String JSON_SECTION_PREFIX = FORM_PROPERTIES_PREFIX + "$JSON\n";
+
+  private static final String FORM_KEY = "Properties";
+  private static final String TYPE_KEY = "$Type";
+  private static final String COMPONENTS_KEY = "$Components";
+
+  // What an open object or array holds.
+  private static final byte OTHER = 0;
+  private static final byte FILE = 1;        // The outermost object.
+  private static final byte COMPONENT = 2;   // The properties of a component.
+  private static final byte COMPONENTS = 3;  // The $Components of a component.
+
+  // Objects and arrays nested deeper than this are rejected.
+  private static final int MAX_DEPTH = 1024;
+
+  private FormPropertiesScanner() {
+  }
+
+  /**
+   * Returns the set of component types used in a form file.
+   *
+   * @param source a complete form file
+   * @return the $Type of the form and of all its nested components
+   * @throws IllegalArgumentException  if the $JSON section is missing or malformed
+   */
+  public static Set<String> getComponentTypes(String source) {
+    Set<String> componentTypes = new HashSet<String>();
+    scan(source, componentTypes, null);
+    return componentTypes;
+  }
+
+  /**
+   * Scans a form file.
+   *
+   * @param source a complete form file
+   * @param componentTypes  receives the $Type of the form and of all the
+   *     components nested in its $Components
+   * @param propertyNames  receives the names of the properties of all
+   *     components, except the ones starting with $, or {@code null}
+   * @throws IllegalArgumentException  if the $JSON section is missing or malformed
+   */
+  public static void scan(String source, Set<String> componentTypes, Set<String> propertyNames) {
+    // First, locate the beginning of the $JSON section.
+    // Older files have a $Properties before the $JSON section and we need to make sure we skip
+    // that.
+    int begin = source.lastIndexOf(JSON_SECTION_PREFIX);
+    if (begin == -1) {
+      throw new IllegalArgumentException(
+          "Unable to parse file - cannot locate beginning of $JSON section");
+    }
+    begin += JSON_SECTION_PREFIX.length();
+
+    // Then, locate the end of the $JSON section;
+    int end = source.lastIndexOf(FORM_PROPERTIES_SUFFIX);
+    if (end < begin) {
+      throw new IllegalArgumentException(
+          "Unable to parse file - cannot locate end of $JSON section");
+    }
+
+    // For each open object or array, whether it is an object, what it holds, and for
+    // components, whether their $Type was found.
+    boolean[] isObject = new boolean[16];
+    byte[] roles = new byte[16];
+    boolean[] hasType = new boolean[16];
+    int depth = 0;
+    byte nextRole = FILE;         // What the value that comes next holds.
+    boolean expectKey = false;    // A key comes next, in an object.
+    boolean expectColon = false;  // The colon after a key comes next.
+    boolean expectValue = true;   // A value comes next.
+    boolean typeValue = false;    // The value that comes next is a $Type.
+    boolean foundForm = false;
+    boolean done = false;         // The outermost value is over.
+
+    int i = begin;
+    while (i < end) {
+      char c = source.charAt(i);
+      if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+        i++;
+        continue;
+      }
+      if (done) {
+        throw invalidSyntax();
+      }
+      switch (c) {
+        case '{':
+        case '[':
+          // The file, components and $Components must be of the right kind, and a $Type
+          // must be a string.
+          if (!expectValue || depth == MAX_DEPTH || typeValue ||
+              (nextRole != OTHER && (nextRole == COMPONENTS) == (c == '{'))) {
+            throw invalidSyntax();
+          }
+          if (depth == isObject.length) {
+            isObject = Arrays.copyOf(isObject, depth * 2);
+            roles = Arrays.copyOf(roles, depth * 2);
+            hasType = Arrays.copyOf(hasType, depth * 2);
+          }
+          isObject[depth] = c == '{';
+          roles[depth] = nextRole;
+          hasType[depth] = false;
+          depth++;
+          // Each entry of $Components is a component.
+          nextRole = nextRole == COMPONENTS ? COMPONENT : OTHER;
+          expectKey = c == '{';
+          // An empty array or object may close right away.
+          expectValue = c == '[';
+          i++;
+          break;
+
+        case '}':
+        case ']':
+          if (depth == 0 || isObject[depth - 1] != (c == '}') || expectColon ||
+              ((expectKey || expectValue) && !isEmptyContainer(source, begin, i))) {
+            throw invalidSyntax();
+          }
+          depth--;
+          if (roles[depth] == COMPONENT) {
+            // Every component has a $Type.
+            if (!hasType[depth]) {
+              throw invalidSyntax();
+            }
+            foundForm = true;
+          }
+          done = depth == 0;
+          expectKey = false;
+          expectValue = false;
+          i++;
+          break;
+
+        case ':':
+          if (!expectColon) {
+            throw invalidSyntax();
+          }
+          expectColon = false;
+          expectValue = true;
+          i++;
+          break;
+
+        case ',':
+          if (depth == 0 || expectKey || expectColon || expectValue) {
+            throw invalidSyntax();
+          }
+          expectKey = isObject[depth - 1];
+          expectValue = !expectKey;
+          nextRole = roles[depth - 1] == COMPONENTS ? COMPONENT : OTHER;
+          i++;
+          break;
+
+        case '"': {
+          int close = findEndOfString(source, i + 1, end);
+          if (expectKey) {
+            // The form is the Properties of the file, and the other components are in the
+            // $Components of their container. $Type is only collected from components.
+            byte role = roles[depth - 1];
+            nextRole = OTHER;
+            typeValue = false;
+            if (role == FILE && isKey(source, i + 1, close, FORM_KEY)) {
+              nextRole = COMPONENT;
+            } else if (role == COMPONENT) {
+              if (isKey(source, i + 1, close, TYPE_KEY)) {
+                typeValue = true;
+              } else if (isKey(source, i + 1, close, COMPONENTS_KEY)) {
+                nextRole = COMPONENTS;
+              } else if (propertyNames != null && source.charAt(i + 1) != '$') {
+                propertyNames.add(unescape(source, i + 1, close));
+              }
+            }
+            expectKey = false;
+            expectColon = true;
+          } else if (expectValue && nextRole == OTHER) {
+            if (typeValue) {
+              componentTypes.add(unescape(source, i + 1, close));
+              hasType[depth - 1] = true;
+              typeValue = false;
+            }
+            expectValue = false;
+            done = depth == 0;
+          } else {
+            throw invalidSyntax();
+          }
+          i = close + 1;
+          break;
+        }
+
+        default: {
+          // A number, true, false or null.
+          if (!expectValue || nextRole != OTHER || typeValue) {
+            throw invalidSyntax();
+          }
+          int start = i;
+          while (i < end && isLiteralChar(source.charAt(i))) {
+            i++;
+          }
+          if (i == start) {
+            throw invalidSyntax();
+          }
+          expectValue = false;
+          done = depth == 0;
+          break;
+        }
+      }
+    }
+    if (!done || !foundForm) {
+      throw invalidSyntax();
+    }
+  }
+
+  /*
+   * Whether the key between start and end is the given one. Keys that matter are never
+   * escaped.
+   */
+  private static boolean isKey(String source, int start, int end, String key) {
+    return end - start == key.length() && source.startsWith(key, start);
+  }
+
+  /*
+   * Returns the index of the quote that ends the string starting at start.
+   */
+  private static int findEndOfString(String source, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = source.charAt(i);
+      if (c == '"') {
+        return i;
+      } else if (c == '\\') {
+        i++;
+      }
+    }
+    throw invalidSyntax();
+  }
+
+  /*
+   * Returns the contents of a string, without allocating more than the result when there is
+   * nothing to unescape.
+   */
+  private static String unescape(String source, int start, int end) {
+    int backslash = source.indexOf('\\', start);
+    if (backslash == -1 || backslash >= end) {
+      return source.substring(start, end);
+    }
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = source.charAt(i);
+      if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      c = source.charAt(++i);
+      switch (c) {
+        case 'b': sb.append('\b'); break;
+        case 'f': sb.append('\f'); break;
+        case 'n': sb.append('\n'); break;
+        case 'r': sb.append('\r'); break;
+        case 't': sb.append('\t'); break;
+        case 'u':
+          if (i + 4 >= end) {
+            throw invalidSyntax();
+          }
+          try {
+            sb.append((char) Integer.parseInt(source.substring(i + 1, i + 5), 16));
+          } catch (NumberFormatException e) {
+            throw invalidSyntax();
+          }
+          i += 4;
+          break;
+        default:
+          // \" \\ and \/
+          sb.append(c);
+          break;
+      }
+    }
+    return sb.toString();
+  }
+
+  /*
+   * Whether the container closed at index i has nothing in it.
+   */
+  private static boolean isEmptyContainer(String source, int begin, int i) {
+    for (int j = i - 1; j >= begin; j--) {
+      char c = source.charAt(j);
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c == '[' || c == '{';
+      }
+    }
+    return false;
+  }
+
+  private static boolean isLiteralChar(char c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' ||
+        c == '.' || c == 'E';
+  }
+
+  private static IllegalArgumentException invalidSyntax() {
+    return new IllegalArgumentException("Unable to parse file - invalid $JSON section syntax");
+  }
+}
@@ -0,0 +1,113 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.common.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests FormPropertiesScanner.
+ *
+ * @see FormPropertiesScanner
+ */
+public class FormPropertiesScannerTest extends TestCase {
+
+  private static final String FORM =
+      "#|\n$JSON\n{\"YaVersion\":\"175\",\"Source\":\"Form\",\"Properties\":" +
+      "{\"$Name\":\"Screen1\",\"$Type\":\"Form\",\"$Version\":\"23\",\"Uuid\":\"0\"," +
+      "\"Title\":\"Screen \\\"1\\\"\",\"$Components\":[" +
+      "{\"$Name\":\"Arrangement1\",\"$Type\":\"VerticalArrangement\",\"$Version\":\"3\"," +
+      "\"Uuid\":\"1\",\"$Components\":[" +
+      "{\"$Name\":\"Button1\",\"$Type\":\"Button\",\"$Version\":\"6\",\"Uuid\":\"2\"," +
+      "\"Text\":\"$Type\",\"FontSize\":14.5,\"Enabled\":true}]}," +
+      "{\"$Name\":\"Ext1\",\"$Type\":\"com.example.Ext\\u0031\",\"$Version\":\"1\"," +
+      "\"Uuid\":\"3\",\"$Components\":[]}]}}\n|#";
+
+  public void testGetComponentTypes() {
+    assertEquals(
+        new HashSet<String>(Arrays.asList(
+            "Form", "VerticalArrangement", "Button", "com.example.Ext1")),
+        FormPropertiesScanner.getComponentTypes(FORM));
+  }
+
+  public void testPropertyNames() {
+    Set<String> componentTypes = new HashSet<String>();
+    Set<String> propertyNames = new HashSet<String>();
+    FormPropertiesScanner.scan(FORM, componentTypes, propertyNames);
+    assertEquals(4, componentTypes.size());
+    assertEquals(
+        new HashSet<String>(Arrays.asList("Uuid", "Title", "Text", "FontSize", "Enabled")),
+        propertyNames);
+  }
+
+  public void testOldFormat() {
+    // Older files have a $Properties section before the $JSON section.
+    String form = "#|\n$Properties\n(Form Screen1)\n|#\n" + FORM;
+    assertEquals(4, FormPropertiesScanner.getComponentTypes(form).size());
+  }
+
+  public void testInvalidSections() {
+    String[] invalid = {
+        "no section",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form\"}}",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form\"}\n|#",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form\",}}\n|#",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\" \"Form\"}}\n|#",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form}}\n|#",
+        "#|\n$JSON\n{\"Properties\":[\"$Type\",\"Form\"]}\n|#",
+        "#|\n$JSON\n{\"Properties\":{\"$Name\":\"Screen1\"}}\n|#",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form\"}}}\n|#",
+    };
+    assertRejected(invalid);
+  }
+
+  public void testMalformedForms() {
+    String[] malformed = {
+        // No form
+        "#|\n$JSON\n{\"Source\":\"Form\"}\n|#",
+        "#|\n$JSON\n{\"Other\":{\"$Type\":\"Form\"}}\n|#",
+        "#|\n$JSON\n[{\"Properties\":{\"$Type\":\"Form\"}}]\n|#",
+        "#|\n$JSON\n{\"Properties\":[{\"$Type\":\"Form\"}]}\n|#",
+        // A component without a $Type
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form\",\"$Components\":[" +
+            "{\"$Name\":\"Button1\"}]}}\n|#",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form\",\"$Components\":[" +
+            "{\"$Type\":\"Button\"},{\"$Name\":\"Label1\",\"Text\":\"$Type\"}]}}\n|#",
+        // A $Type that is not a string
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":7}}\n|#",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":{\"$Type\":\"Form\"}}}\n|#",
+        // $Components that are not an array of objects
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form\",\"$Components\":" +
+            "{\"$Type\":\"Button\"}}}\n|#",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form\",\"$Components\":" +
+            "[\"Button\"]}}\n|#",
+        "#|\n$JSON\n{\"Properties\":{\"$Type\":\"Form\",\"$Components\":null}}\n|#",
+    };
+    assertRejected(malformed);
+  }
+
+  public void testTypesOutsideComponentsAreIgnored() {
+    String form = "#|\n$JSON\n{\"$Type\":\"File\",\"Extra\":{\"$Type\":\"Extra\"}," +
+        "\"Properties\":{\"$Type\":\"Form\",\"Data\":[{\"$Type\":\"Data\"}]," +
+        "\"$Components\":[{\"$Type\":\"Button\",\"Font\":{\"$Type\":\"Font\"}}]}}\n|#";
+    assertEquals(new HashSet<String>(Arrays.asList("Form", "Button")),
+        FormPropertiesScanner.getComponentTypes(form));
+  }
+
+  private static void assertRejected(String[] sources) {
+    for (String source : sources) {
+      try {
+        FormPropertiesScanner.getComponentTypes(source);
+        fail(source);
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+    }
+  }
+}